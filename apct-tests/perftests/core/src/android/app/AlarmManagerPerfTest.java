@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.perftests.utils.ShellHelper;
+import android.provider.Settings;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures replacing and cancelling an alarm while {@link #ALARM_COUNT} other alarms are set,
+ * which makes the alarm manager take the alarm out of its batch and rebatch what's left.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerPerfTest {
+    private static final int ALARM_COUNT = 10000;
+    private static final String ACTION = "android.app.AlarmManagerPerfTest.ALARM";
+    // Far enough that none of the alarms goes off during the test
+    private static final long FIRST_ALARM_DELAY_MS = 24 * 60 * 60 * 1000;
+    // Inexact alarms get a window of about 75% of their delay, so a day-away set() would let
+    // nearly all of them share a few batches. Windows well under the spacing between alarms
+    // keep every alarm in a batch of its own.
+    private static final long ALARM_SPACING_MS = 60 * 1000;
+    private static final long ALARM_WINDOW_MS = 1000;
+    private static final long CONSTANTS_TIMEOUT_MS = 10000;
+
+    private static Context sContext;
+    private static AlarmManager sAlarmManager;
+    private static PendingIntent[] sOperations;
+    private static String sOldConstants;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        sContext = InstrumentationRegistry.getTargetContext();
+        sAlarmManager = sContext.getSystemService(AlarmManager.class);
+
+        // A single uid can only have max_alarms_per_uid alarms, 500 by default
+        sOldConstants = ShellHelper.runShellCommand("settings get global %s",
+                Settings.Global.ALARM_MANAGER_CONSTANTS);
+        ShellHelper.runShellCommand("settings put global %s max_alarms_per_uid=%d",
+                Settings.Global.ALARM_MANAGER_CONSTANTS, ALARM_COUNT + 1);
+        waitForMaxAlarmsPerUid(ALARM_COUNT + 1);
+
+        sOperations = new PendingIntent[ALARM_COUNT];
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ALARM_COUNT; i++) {
+            sOperations[i] = PendingIntent.getBroadcast(sContext, i,
+                    new Intent(ACTION).setPackage(sContext.getPackageName()), 0);
+            setAlarm(now, i, sOperations[i]);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        if (sOperations != null) {
+            for (PendingIntent operation : sOperations) {
+                if (operation != null) {
+                    sAlarmManager.cancel(operation);
+                    operation.cancel();
+                }
+            }
+        }
+        if (sOldConstants == null || sOldConstants.isEmpty() || "null".equals(sOldConstants)) {
+            ShellHelper.runShellCommand("settings delete global %s",
+                    Settings.Global.ALARM_MANAGER_CONSTANTS);
+        } else {
+            ShellHelper.runShellCommand("settings put global %s %s",
+                    Settings.Global.ALARM_MANAGER_CONSTANTS, sOldConstants);
+        }
+    }
+
+    /**
+     * Benchmark time to set an alarm whose operation already has one, which replaces it.
+     */
+    @Test
+    public void testReplaceAlarm() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long now = SystemClock.elapsedRealtime();
+        int i = 0;
+        while (state.keepRunning()) {
+            // Move each alarm to the slot of another one, so that batches keep changing
+            final int index = i % ALARM_COUNT;
+            setAlarm(now, (index * 7) % ALARM_COUNT, sOperations[index]);
+            i++;
+        }
+    }
+
+    /**
+     * Benchmark time to cancel an alarm.
+     */
+    @Test
+    public void testCancelAlarm() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long now = SystemClock.elapsedRealtime();
+        int i = 0;
+        while (state.keepRunning()) {
+            final int index = i % ALARM_COUNT;
+            state.pauseTiming();
+            setAlarm(now, index, sOperations[index]);
+            state.resumeTiming();
+
+            sAlarmManager.cancel(sOperations[index]);
+            i++;
+        }
+    }
+
+    private static void setAlarm(long now, int slot, PendingIntent operation) {
+        sAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME,
+                now + FIRST_ALARM_DELAY_MS + slot * ALARM_SPACING_MS, ALARM_WINDOW_MS, operation);
+    }
+
+    /** Waits for the alarm manager to pick up the new limit, which it reads asynchronously. */
+    private static void waitForMaxAlarmsPerUid(int maxAlarmsPerUid) throws Exception {
+        final String expected = "max_alarms_per_uid=" + maxAlarmsPerUid;
+        final long deadline = SystemClock.uptimeMillis() + CONSTANTS_TIMEOUT_MS;
+        while (!ShellHelper.runShellCommand("dumpsys alarm").contains(expected)) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                throw new IllegalStateException("Alarm manager didn't apply " + expected);
+            }
+            Thread.sleep(100);
+        }
+    }
+}
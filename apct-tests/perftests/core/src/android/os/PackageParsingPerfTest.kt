@@ -36,8 +36,10 @@ import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
 import org.junit.runners.Parameterized
 import java.io.File
+import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 
 @LargeTest
@@ -71,7 +73,8 @@ class PackageParsingPerfTest {
 
             return arrayOf(
                 Params(1, apks) { ParallelParser1(it?.let(::PackageCacher1)) },
-                Params(2, apks) { ParallelParser2(it?.let(::PackageCacher2)) }
+                Params(2, apks) { ParallelParser2(it?.let(::PackageCacher2)) },
+                Params(3, apks) { ParallelParser2(it?.let(::PackageCacher3)) }
             )
         }
 
@@ -197,7 +200,7 @@ class PackageParsingPerfTest {
 
     abstract class PackageCacher<PackageType : Parcelable>(private val cacheDir: File) {
 
-        fun getCachedResult(file: File): PackageType? {
+        open fun getCachedResult(file: File): PackageType? {
             val cacheFile = File(cacheDir, file.name)
             if (!cacheFile.exists()) {
                 return null
@@ -214,6 +217,37 @@ class PackageParsingPerfTest {
             }
         }
 
+        protected fun readPooled(file: File, stringPool: MutableMap<String, String>):
+                PackageType? {
+            val cacheFile = File(cacheDir, file.name)
+            if (!cacheFile.exists()) {
+                return null
+            }
+
+            var buffer = readBuffer.get()!!
+            var length = 0
+            FileInputStream(cacheFile).use { input ->
+                while (true) {
+                    if (length == buffer.size) {
+                        buffer = buffer.copyOf(buffer.size * 2)
+                    }
+                    val read = input.read(buffer, length, buffer.size - length)
+                    if (read == -1) break
+                    length += read
+                }
+            }
+            readBuffer.set(buffer)
+
+            val parcel = Parcel.obtain().apply {
+                unmarshall(buffer, 0, length)
+                setDataPosition(0)
+            }
+            ReadHelper(parcel, stringPool).apply { startAndInstall() }
+            return fromParcel(parcel).also {
+                parcel.recycle()
+            }
+        }
+
         fun cacheResult(file: File, parsed: Parcelable) {
             val cacheFile = File(cacheDir, file.name)
             if (cacheFile.exists()) {
@@ -236,6 +270,10 @@ class PackageParsingPerfTest {
         }
 
         protected abstract fun fromParcel(parcel: Parcel): PackageType
+
+        companion object {
+            private val readBuffer = ThreadLocal.withInitial { ByteArray(64 * 1024) }
+        }
     }
 
     /**
@@ -251,4 +289,16 @@ class PackageParsingPerfTest {
     class PackageCacher2(cacheDir: File) : PackageCacher<ParsingPackageRead>(cacheDir) {
         override fun fromParcel(parcel: Parcel) = ParsingPackageImpl(parcel)
     }
+
+    /**
+     * Re-implementation of the server side PackageCacher with its per-thread read buffer and
+     * string pool shared across packages, as it's inaccessible here.
+     */
+    class PackageCacher3(cacheDir: File) : PackageCacher<ParsingPackageRead>(cacheDir) {
+        private val stringPool = ConcurrentHashMap<String, String>()
+
+        override fun getCachedResult(file: File) = readPooled(file, stringPool)
+
+        override fun fromParcel(parcel: Parcel) = ParsingPackageImpl(parcel)
+    }
 }
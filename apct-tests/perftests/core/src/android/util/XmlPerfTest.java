@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static org.junit.Assert.assertEquals;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.XmlUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Compares text XML written through {@code FastXmlSerializer} against binary
+ * XML, using a synthetic document shaped like a real {@code packages.xml}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class XmlPerfTest {
+    private static final String TAG = "XmlPerfTest";
+
+    /**
+     * Number of packages in the synthetic document, which is typical of a
+     * device with a modest number of installed apps.
+     */
+    private static final int PACKAGE_COUNT = 400;
+    private static final int PERMISSIONS_PER_PACKAGE = 12;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void timeWrite_Fast() throws Exception {
+        doWrite(() -> Xml.newFastSerializer());
+    }
+
+    @Test
+    public void timeWrite_Binary() throws Exception {
+        doWrite(() -> Xml.newBinarySerializer());
+    }
+
+    @Test
+    public void timeRead_Fast() throws Exception {
+        doRead(write(Xml.newFastSerializer()));
+    }
+
+    @Test
+    public void timeRead_Binary() throws Exception {
+        doRead(write(Xml.newBinarySerializer()));
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        final int fast = write(Xml.newFastSerializer()).length;
+        final int binary = write(Xml.newBinarySerializer()).length;
+        Log.i(TAG, "packages.xml with " + PACKAGE_COUNT + " packages: text " + fast
+                + " bytes, binary " + binary + " bytes");
+    }
+
+    private void doWrite(Supplier<TypedXmlSerializer> factory) throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            write(factory.get());
+        }
+    }
+
+    private void doRead(byte[] data) throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final TypedXmlPullParser in = Xml.resolvePullParser(new ByteArrayInputStream(data));
+            assertEquals(PACKAGE_COUNT, read(in));
+        }
+    }
+
+    private static byte[] write(TypedXmlSerializer out) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String name = "com.example.package" + i;
+            out.startTag(null, "package");
+            out.attribute(null, "name", name);
+            out.attribute(null, "codePath", "/data/app/~~a1b2c3==/" + name + "-d4e5f6==");
+            out.attribute(null, "nativeLibraryPath",
+                    "/data/app/~~a1b2c3==/" + name + "-d4e5f6==/lib");
+            out.attributeInterned(null, "primaryCpuAbi", "arm64-v8a");
+            out.attributeInt(null, "publicFlags", 0x38d83e46);
+            out.attributeInt(null, "privateFlags", 0x20001000);
+            out.attributeLongHex(null, "ft", 0x174e4b2d6e8L + i);
+            out.attributeLongHex(null, "it", 0x174e4b2d6e8L);
+            out.attributeLongHex(null, "ut", 0x174e4b2d6e8L + i);
+            out.attributeLong(null, "version", 210000000L + i);
+            out.attributeInt(null, "userId", 10000 + i);
+            out.attributeInterned(null, "installer", "com.android.vending");
+            out.attributeBoolean(null, "isOrphaned", false);
+
+            out.startTag(null, "sigs");
+            out.attributeInt(null, "count", 1);
+            out.attributeInt(null, "schemeVersion", 3);
+            out.startTag(null, "cert");
+            out.attributeInt(null, "index", i % 16);
+            out.endTag(null, "cert");
+            out.endTag(null, "sigs");
+
+            out.startTag(null, "perms");
+            for (int j = 0; j < PERMISSIONS_PER_PACKAGE; j++) {
+                out.startTag(null, "item");
+                out.attributeInterned(null, "name", "android.permission.PERMISSION_" + j);
+                out.attributeBoolean(null, "granted", true);
+                out.attributeIntHex(null, "flags", 0x3000);
+                out.endTag(null, "item");
+            }
+            out.endTag(null, "perms");
+
+            out.startTag(null, "proper-signing-keyset");
+            out.attributeLong(null, "identifier", 1 + (i % 16));
+            out.endTag(null, "proper-signing-keyset");
+            out.endTag(null, "package");
+        }
+        out.endTag(null, "packages");
+        out.endDocument();
+        return os.toByteArray();
+    }
+
+    private static int read(TypedXmlPullParser in) throws Exception {
+        int packages = 0;
+        int type;
+        while ((type = in.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG) continue;
+            switch (in.getName()) {
+                case "package":
+                    in.getAttributeValue(null, "name");
+                    in.getAttributeValue(null, "codePath");
+                    in.getAttributeValue(null, "nativeLibraryPath");
+                    in.getAttributeValue(null, "primaryCpuAbi");
+                    in.getAttributeInt(null, "publicFlags", 0);
+                    in.getAttributeInt(null, "privateFlags", 0);
+                    in.getAttributeLongHex(null, "ft", 0);
+                    in.getAttributeLongHex(null, "it", 0);
+                    in.getAttributeLongHex(null, "ut", 0);
+                    in.getAttributeLong(null, "version", 0);
+                    in.getAttributeInt(null, "userId", 0);
+                    in.getAttributeValue(null, "installer");
+                    in.getAttributeBoolean(null, "isOrphaned", false);
+                    packages++;
+                    break;
+                case "sigs":
+                    XmlUtils.readIntAttribute(in, "count", 0);
+                    break;
+                case "cert":
+                    XmlUtils.readIntAttribute(in, "index", 0);
+                    break;
+                case "item":
+                    in.getAttributeValue(null, "name");
+                    in.getAttributeBoolean(null, "granted", false);
+                    in.getAttributeIntHex(null, "flags", 0);
+                    break;
+                case "proper-signing-keyset":
+                    XmlUtils.readLongAttribute(in, "identifier", 0);
+                    break;
+            }
+        }
+        return packages;
+    }
+}
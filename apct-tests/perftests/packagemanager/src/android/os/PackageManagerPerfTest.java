@@ -62,6 +62,8 @@ public class PackageManagerPerfTest {
     public void setup() {
         PackageManager.disableApplicationInfoCache();
         PackageManager.disablePackageInfoCache();
+        PackageManager.disablePackageUidCache();
+        PackageManager.disablePackagesForUidCache();
     }
 
     @Test
@@ -157,6 +159,43 @@ public class PackageManagerPerfTest {
         testGetApplicationInfo();
     }
 
+    @Test
+    @DisableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testGetPackageUid() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm =
+                InstrumentationRegistry.getInstrumentation().getTargetContext().getPackageManager();
+
+        while (state.keepRunning()) {
+            pm.getPackageUid(TEST_ACTIVITY.getPackageName(), 0);
+        }
+    }
+
+    @Test
+    @EnableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testGetPackageUidWithFiltering() throws Exception {
+        testGetPackageUid();
+    }
+
+    @Test
+    @DisableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testGetPackagesForUid() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm =
+                InstrumentationRegistry.getInstrumentation().getTargetContext().getPackageManager();
+        final int uid = Process.myUid();
+
+        while (state.keepRunning()) {
+            pm.getPackagesForUid(uid);
+        }
+    }
+
+    @Test
+    @EnableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testGetPackagesForUidWithFiltering() throws Exception {
+        testGetPackagesForUid();
+    }
+
     @Test
     @DisableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
     public void testGetActivityInfo() throws Exception {
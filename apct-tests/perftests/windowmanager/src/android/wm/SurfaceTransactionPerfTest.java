@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.wm;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.view.SurfaceControl;
+import android.view.SurfaceControl.Transaction;
+import android.view.SurfaceSession;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures building surface transactions for {@link #SURFACE_COUNT} surfaces, as the containers
+ * of a display do in a frame, and applying them either one by one or merged into one.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SurfaceTransactionPerfTest {
+    private static final int SURFACE_COUNT = 50;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private SurfaceSession mSession;
+    private final SurfaceControl[] mSurfaces = new SurfaceControl[SURFACE_COUNT];
+    private final Transaction[] mTransactions = new Transaction[SURFACE_COUNT];
+    private int mIteration;
+
+    @Before
+    public void setUp() {
+        mSession = new SurfaceSession();
+        for (int i = 0; i < SURFACE_COUNT; i++) {
+            mSurfaces[i] = new SurfaceControl.Builder(mSession)
+                    .setName("SurfaceTransactionPerfTest" + i)
+                    .setContainerLayer()
+                    .setCallsite("SurfaceTransactionPerfTest")
+                    .build();
+            mTransactions[i] = new Transaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = 0; i < SURFACE_COUNT; i++) {
+            mTransactions[i].close();
+            mSurfaces[i].release();
+        }
+        mSession.kill();
+    }
+
+    @Test
+    public void testBuild() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Each surface has a single state in its transaction, which is updated in place
+            build();
+        }
+    }
+
+    @Test
+    public void testApplyEach() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            build();
+            state.resumeTiming();
+            for (Transaction t : mTransactions) {
+                t.apply();
+            }
+        }
+    }
+
+    @Test
+    public void testMergeAndApply() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Transaction frameTransaction = new Transaction();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            build();
+            state.resumeTiming();
+            for (Transaction t : mTransactions) {
+                frameTransaction.merge(t);
+            }
+            frameTransaction.apply();
+        }
+        frameTransaction.close();
+    }
+
+    /** Sets the properties a container typically updates in a frame, on its own transaction. */
+    private void build() {
+        mIteration++;
+        for (int i = 0; i < SURFACE_COUNT; i++) {
+            mTransactions[i].setPosition(mSurfaces[i], mIteration, i)
+                    .setAlpha(mSurfaces[i], 1f)
+                    .setLayer(mSurfaces[i], i)
+                    .setWindowCrop(mSurfaces[i], 100, 100);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.wm;
+
+import static android.hardware.display.DisplayManager.VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY;
+
+import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
+
+import android.graphics.PixelFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.ImageReader;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.ManualBenchmarkState.ManualBenchmarkTest;
+import android.perftests.utils.PerfManualStatusReporter;
+import android.util.MergedConfiguration;
+import android.view.Display;
+import android.view.DisplayCutout;
+import android.view.IWindowSession;
+import android.view.InputChannel;
+import android.view.InsetsSourceControl;
+import android.view.InsetsState;
+import android.view.SurfaceControl;
+import android.view.View;
+import android.view.WindowManager;
+import android.view.WindowManagerGlobal;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.internal.view.BaseIWindow;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures a relayout that changes the size of one of {@link #WINDOW_COUNT} windows spread across
+ * {@link #DISPLAY_COUNT} displays, which performs a surface placement of all of them. The
+ * windows visited by the last placement, as reported by dumpsys, are reported as the
+ * "windowsVisited" extra result.
+ */
+@LargeTest
+public class WindowSurfacePlacerPerfTest extends WindowManagerPerfTestBase {
+    private static final int WINDOW_COUNT = 50;
+    private static final int DISPLAY_COUNT = 3;
+    private static final int VIRTUAL_DISPLAY_WIDTH = 720;
+    private static final int VIRTUAL_DISPLAY_HEIGHT = 1280;
+    private static final int VIRTUAL_DISPLAY_DENSITY = 320;
+    private static final int WINDOW_SIZE = 200;
+    private static final Pattern WINDOWS_VISITED_PATTERN =
+            Pattern.compile("lastWindowsVisited=(\\d+)");
+
+    private final ArrayList<ImageReader> mImageReaders = new ArrayList<>();
+    private final ArrayList<VirtualDisplay> mVirtualDisplays = new ArrayList<>();
+    private final ArrayList<TestWindow> mWindows = new ArrayList<>();
+
+    @Rule
+    public final PerfManualStatusReporter mPerfStatusReporter = new PerfManualStatusReporter();
+
+    @BeforeClass
+    public static void setUpClass() {
+        // Get the permission to use most window types.
+        sUiAutomation.adoptShellPermissionIdentity();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        sUiAutomation.dropShellPermissionIdentity();
+    }
+
+    @Before
+    public void setUp() throws RemoteException {
+        final DisplayManager displayManager =
+                getInstrumentation().getContext().getSystemService(DisplayManager.class);
+        final int[] displayIds = new int[DISPLAY_COUNT];
+        displayIds[0] = Display.DEFAULT_DISPLAY;
+        for (int i = 1; i < DISPLAY_COUNT; i++) {
+            final ImageReader reader = ImageReader.newInstance(VIRTUAL_DISPLAY_WIDTH,
+                    VIRTUAL_DISPLAY_HEIGHT, PixelFormat.RGBA_8888, 2 /* maxImages */);
+            mImageReaders.add(reader);
+            final VirtualDisplay display = displayManager.createVirtualDisplay(
+                    WindowSurfacePlacerPerfTest.class.getSimpleName() + i,
+                    VIRTUAL_DISPLAY_WIDTH, VIRTUAL_DISPLAY_HEIGHT, VIRTUAL_DISPLAY_DENSITY,
+                    reader.getSurface(), VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY);
+            mVirtualDisplays.add(display);
+            displayIds[i] = display.getDisplay().getDisplayId();
+        }
+        for (int i = 0; i < WINDOW_COUNT; i++) {
+            final TestWindow window = new TestWindow(displayIds[i % DISPLAY_COUNT], i);
+            window.add();
+            window.relayout(WINDOW_SIZE);
+            mWindows.add(window);
+        }
+    }
+
+    @After
+    public void tearDown() throws RemoteException {
+        for (TestWindow window : mWindows) {
+            window.remove();
+        }
+        for (VirtualDisplay display : mVirtualDisplays) {
+            display.release();
+        }
+        for (ImageReader reader : mImageReaders) {
+            reader.close();
+        }
+    }
+
+    @Test
+    @ManualBenchmarkTest(warmupDurationNs = TIME_1_S_IN_NS, targetTestDurationNs = TIME_5_S_IN_NS)
+    public void testRelayoutOneWindow() throws Throwable {
+        final ManualBenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        int i = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final TestWindow window = mWindows.get(i % WINDOW_COUNT);
+            // Alternate the size, so that each relayout changes the frame of the window
+            final int size = (i / WINDOW_COUNT) % 2 == 0 ? WINDOW_SIZE * 2 : WINDOW_SIZE;
+            i++;
+
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            window.relayout(size);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+
+            final long windowsVisited = getLastWindowsVisited();
+            if (windowsVisited >= 0) {
+                state.addExtraResult("windowsVisited", windowsVisited);
+            }
+        }
+    }
+
+    /** Returns the windows visited by the last surface placement, or -1 if it isn't known. */
+    private static long getLastWindowsVisited() {
+        final Matcher matcher = WINDOWS_VISITED_PATTERN.matcher(
+                executeShellCommand("dumpsys window windows").toString());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static class TestWindow extends BaseIWindow {
+        final IWindowSession mSession = WindowManagerGlobal.getWindowSession();
+        final WindowManager.LayoutParams mLayoutParams = new WindowManager.LayoutParams();
+        final int mDisplayId;
+        final InputChannel mInputChannel = new InputChannel();
+        final Rect mOutFrame = new Rect();
+        final Rect mOutContentInsets = new Rect();
+        final Rect mOutVisibleInsets = new Rect();
+        final Rect mOutStableInsets = new Rect();
+        final Rect mOutBackDropFrame = new Rect();
+        final DisplayCutout.ParcelableWrapper mOutDisplayCutout =
+                new DisplayCutout.ParcelableWrapper(DisplayCutout.NO_CUTOUT);
+        final MergedConfiguration mOutMergedConfiguration = new MergedConfiguration();
+        final InsetsState mOutInsetsState = new InsetsState();
+        final InsetsSourceControl[] mOutControls = new InsetsSourceControl[0];
+        final Point mOutSurfaceSize = new Point();
+        final SurfaceControl mOutSurfaceControl = new SurfaceControl();
+        final SurfaceControl mOutBlastSurfaceControl = new SurfaceControl();
+
+        TestWindow(int displayId, int index) {
+            mDisplayId = displayId;
+            mLayoutParams.setTitle(TestWindow.class.getName() + index);
+            mLayoutParams.type = WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY;
+            mLayoutParams.flags = WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
+            mLayoutParams.width = WINDOW_SIZE;
+            mLayoutParams.height = WINDOW_SIZE;
+            mLayoutParams.x = (index * 10) % WINDOW_SIZE;
+            mLayoutParams.y = (index * 20) % WINDOW_SIZE;
+        }
+
+        void add() throws RemoteException {
+            mSession.addToDisplay(this, mSeq, mLayoutParams, View.VISIBLE, mDisplayId, mOutFrame,
+                    mOutContentInsets, mOutStableInsets, mOutDisplayCutout, mInputChannel,
+                    mOutInsetsState, mOutControls);
+        }
+
+        void relayout(int size) throws RemoteException {
+            mLayoutParams.width = size;
+            mLayoutParams.height = size;
+            mSession.relayout(this, mSeq, mLayoutParams, size, size, View.VISIBLE, 0 /* flags */,
+                    0 /* frameNumber */, mOutFrame, mOutContentInsets, mOutVisibleInsets,
+                    mOutStableInsets, mOutBackDropFrame, mOutDisplayCutout,
+                    mOutMergedConfiguration, mOutSurfaceControl, mOutInsetsState, mOutControls,
+                    mOutSurfaceSize, mOutBlastSurfaceControl);
+        }
+
+        void remove() throws RemoteException {
+            mSession.remove(this);
+            mInputChannel.dispose();
+            mOutSurfaceControl.release();
+        }
+    }
+}
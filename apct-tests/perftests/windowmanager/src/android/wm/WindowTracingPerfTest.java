@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.wm;
+
+import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.ManualBenchmarkState.ManualBenchmarkTest;
+import android.perftests.utils.PerfManualStatusReporter;
+import android.perftests.utils.PerfTestActivity;
+import android.util.MergedConfiguration;
+import android.view.DisplayCutout;
+import android.view.IWindow;
+import android.view.IWindowSession;
+import android.view.InsetsSourceControl;
+import android.view.InsetsState;
+import android.view.SurfaceControl;
+import android.view.View;
+import android.view.WindowManager;
+import android.view.WindowManagerGlobal;
+import android.widget.LinearLayout;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.rule.ActivityTestRule;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Measures the cost of window tracing to the window manager by relayouting a window, which logs
+ * the state of the window manager with each transaction or each frame while tracing. Each result
+ * is the time of one relayout, averaged over {@link #RELAYOUT_COUNT} relayouts. While tracing,
+ * the time covered by each megabyte of trace is reported as the "traceNsPerMb" extra result.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class WindowTracingPerfTest extends WindowManagerPerfTestBase {
+    private static final String TRACE_FILE = "/data/misc/wmtrace/wm_trace.pb";
+    private static final int RELAYOUT_COUNT = 50;
+    /** Large enough to hold the states of a whole iteration, so that none is discarded. */
+    private static final int TRACE_BUFFER_KB = 32 * 1024;
+    private static final int DEFAULT_TRACE_BUFFER_KB = 2048;
+
+    @Rule
+    public final PerfManualStatusReporter mPerfStatusReporter = new PerfManualStatusReporter();
+
+    @Rule
+    public final ActivityTestRule<PerfTestActivity> mActivityRule =
+            new ActivityTestRule<>(PerfTestActivity.class);
+
+    /** The log frequency passed to "wm tracing", or null to not trace. */
+    @Parameterized.Parameter(0)
+    public String logFrequency;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {
+                { null },
+                { "transaction" },
+                { "frame" },
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executeShellCommand("wm tracing stop");
+        executeShellCommand("wm tracing transaction");
+        executeShellCommand("wm tracing size " + DEFAULT_TRACE_BUFFER_KB);
+    }
+
+    @Test
+    @ManualBenchmarkTest(warmupDurationNs = TIME_1_S_IN_NS, targetTestDurationNs = TIME_5_S_IN_NS)
+    public void testRelayout() throws Throwable {
+        final Activity activity = mActivityRule.getActivity();
+        final ContentView contentView = new ContentView(activity);
+        mActivityRule.runOnUiThread(() -> activity.setContentView(contentView));
+        getInstrumentation().waitForIdleSync();
+
+        if (logFrequency != null) {
+            executeShellCommand("wm tracing " + logFrequency);
+            executeShellCommand("wm tracing size " + TRACE_BUFFER_KB);
+        }
+        final RelayoutRunner relayoutRunner = new RelayoutRunner(activity,
+                contentView.getWindow());
+        final ManualBenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            if (logFrequency != null) {
+                executeShellCommand("wm tracing start");
+            }
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < RELAYOUT_COUNT; i++) {
+                relayoutRunner.relayout(i % 2 == 0 ? View.INVISIBLE : View.VISIBLE);
+            }
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            elapsedTimeNs = (endTime - startTime) / RELAYOUT_COUNT;
+
+            if (logFrequency != null) {
+                // Blocks until the trace is written
+                executeShellCommand("wm tracing stop");
+                final long traceBytes = getTraceFileSize();
+                if (traceBytes > 0) {
+                    state.addExtraResult("traceNsPerMb",
+                            (endTime - startTime) * 1024 * 1024 / traceBytes);
+                }
+            }
+        }
+    }
+
+    private static long getTraceFileSize() {
+        final String size = executeShellCommand("stat -c %s " + TRACE_FILE).toString().trim();
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** A dummy view to get IWindow. */
+    private static class ContentView extends LinearLayout {
+        ContentView(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected IWindow getWindow() {
+            return super.getWindow();
+        }
+    }
+
+    private static class RelayoutRunner {
+        final Rect mOutFrame = new Rect();
+        final Rect mOutContentInsets = new Rect();
+        final Rect mOutVisibleInsets = new Rect();
+        final Rect mOutStableInsets = new Rect();
+        final Rect mOutBackDropFrame = new Rect();
+        final DisplayCutout.ParcelableWrapper mOutDisplayCutout =
+                new DisplayCutout.ParcelableWrapper(DisplayCutout.NO_CUTOUT);
+        final MergedConfiguration mOutMergedConfiguration = new MergedConfiguration();
+        final InsetsState mOutInsetsState = new InsetsState();
+        final InsetsSourceControl[] mOutControls = new InsetsSourceControl[0];
+        final IWindowSession mSession = WindowManagerGlobal.getWindowSession();
+        final IWindow mWindow;
+        final WindowManager.LayoutParams mParams;
+        final int mWidth;
+        final int mHeight;
+        final Point mOutSurfaceSize = new Point();
+        final SurfaceControl mOutSurfaceControl;
+        final SurfaceControl mOutBlastSurfaceControl = new SurfaceControl();
+
+        RelayoutRunner(Activity activity, IWindow window) {
+            final View view = activity.getWindow().getDecorView();
+            mWindow = window;
+            mParams = (WindowManager.LayoutParams) view.getLayoutParams();
+            mWidth = view.getMeasuredWidth();
+            mHeight = view.getMeasuredHeight();
+            mOutSurfaceControl = view.getViewRootImpl().getSurfaceControl();
+        }
+
+        void relayout(int visibility) throws RemoteException {
+            mSession.relayout(mWindow, 0 /* seq */, mParams, mWidth, mHeight, visibility,
+                    0 /* flags */, 0 /* frameNumber */, mOutFrame, mOutContentInsets,
+                    mOutVisibleInsets, mOutStableInsets, mOutBackDropFrame, mOutDisplayCutout,
+                    mOutMergedConfiguration, mOutSurfaceControl, mOutInsetsState, mOutControls,
+                    mOutSurfaceSize, mOutBlastSurfaceControl);
+        }
+    }
+}
@@ -71,6 +71,15 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        /** Number of per-uid job files rewritten by the last save. */
+        public int countFilesSaved = -1;
+        /** Number of bytes written by the last save. */
+        public long bytesSaved = -1;
+        /** Time taken by the last save, in milliseconds. */
+        public long durationMillisSaved = -1;
+        /** Number of bytes written by every save since boot. */
+        public long totalBytesSaved = 0;
+
         public JobStorePersistStats() {
         }
 
@@ -82,6 +91,11 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            countFilesSaved = source.countFilesSaved;
+            bytesSaved = source.bytesSaved;
+            durationMillisSaved = source.durationMillisSaved;
+            totalBytesSaved = source.totalBytesSaved;
         }
 
         @Override
@@ -93,7 +107,13 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " LastSaveFiles/Bytes: "
+                    + countFilesSaved + "/"
+                    + bytesSaved
+                    + " in " + durationMillisSaved + "ms"
+                    + " TotalBytesSaved: "
+                    + totalBytesSaved;
         }
 
         /**
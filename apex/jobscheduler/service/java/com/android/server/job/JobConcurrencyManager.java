@@ -17,7 +17,6 @@
 package com.android.server.job;
 
 import android.app.ActivityManager;
-import android.app.job.JobInfo;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -205,7 +204,7 @@ class JobConcurrencyManager {
     }
 
     private boolean isFgJob(JobStatus job) {
-        return job.lastEvaluatedPriority >= JobInfo.PRIORITY_TOP_APP;
+        return PendingJobQueue.isFgJob(job);
     }
 
     @GuardedBy("mLock")
@@ -276,7 +275,7 @@ class JobConcurrencyManager {
         }
 
         final JobPackageTracker tracker = mService.mJobPackageTracker;
-        final List<JobStatus> pendingJobs = mService.mPendingJobs;
+        final PendingJobQueue pendingJobs = mService.mPendingJobs;
         final List<JobServiceContext> activeServices = mService.mActiveServices;
         final List<StateController> controllers = mService.mControllers;
 
@@ -294,12 +293,19 @@ class JobConcurrencyManager {
                 mMaxJobCounts.getMaxBg(),
                 mMaxJobCounts.getMinBg());
 
+        // The queue keeps the priorities of the pending jobs up to date and counts the FG ones,
+        // so the pending jobs only need to be walked once, in priority order, to assign them.
+        int numPendingFg = pendingJobs.getFgJobCount();
+        int numPendingBg = pendingJobs.size() - numPendingFg;
         for (int i=0; i<MAX_JOB_CONTEXTS_COUNT; i++) {
             final JobServiceContext js = mService.mActiveServices.get(i);
             final JobStatus status = js.getRunningJobLocked();
 
             if ((contextIdToJobMap[i] = status) != null) {
                 mJobCountTracker.incrementRunningJobCount(isFgJob(status));
+                // Pending jobs which are already running aren't counted as pending
+                numPendingFg -= pendingJobs.countMatching(status, true /* fg */);
+                numPendingBg -= pendingJobs.countMatching(status, false /* fg */);
             }
 
             slotChanged[i] = false;
@@ -309,28 +315,13 @@ class JobConcurrencyManager {
             Slog.d(TAG, printContextIdToJobMap(contextIdToJobMap, "running jobs initial"));
         }
 
-        // Next, update the job priorities, and also count the pending FG / BG jobs.
-        for (int i = 0; i < pendingJobs.size(); i++) {
-            final JobStatus pending = pendingJobs.get(i);
-
-            // If job is already running, go to next job.
-            int jobRunningContext = findJobContextIdFromMap(pending, contextIdToJobMap);
-            if (jobRunningContext != -1) {
-                continue;
-            }
-
-            final int priority = mService.evaluateJobPriorityLocked(pending);
-            pending.lastEvaluatedPriority = priority;
-
-            mJobCountTracker.incrementPendingJobCount(isFgJob(pending));
-        }
-
+        mJobCountTracker.setPendingJobCounts(numPendingFg, numPendingBg);
         mJobCountTracker.onCountDone();
 
         for (int i = 0; i < pendingJobs.size(); i++) {
             final JobStatus nextPending = pendingJobs.get(i);
 
-            // Unfortunately we need to repeat this relatively expensive check.
+            // If job is already running, go to next job.
             int jobRunningContext = findJobContextIdFromMap(nextPending, contextIdToJobMap);
             if (jobRunningContext != -1) {
                 continue;
@@ -588,6 +579,11 @@ class JobConcurrencyManager {
             }
         }
 
+        void setPendingJobCounts(int numPendingFg, int numPendingBg) {
+            mNumPendingFgJobs = numPendingFg;
+            mNumPendingBgJobs = numPendingBg;
+        }
+
         void onStartingNewJob(boolean isFg) {
             if (isFg) {
                 mNumStartingFgJobs++;
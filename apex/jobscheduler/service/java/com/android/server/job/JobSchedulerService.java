@@ -70,6 +70,7 @@ import android.os.WorkSource;
 import android.provider.Settings;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Log;
 import android.util.Slog;
@@ -79,6 +80,7 @@ import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.R;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.util.ArrayUtils;
@@ -221,6 +223,7 @@ public class JobSchedulerService extends com.android.server.SystemService
     static final int MSG_UID_GONE = 5;
     static final int MSG_UID_ACTIVE = 6;
     static final int MSG_UID_IDLE = 7;
+    static final int MSG_CHECK_CHANGED_JOBS = 8;
 
     /**
      * Track Services that have currently active or pending jobs. The index is provided by
@@ -272,7 +275,26 @@ public class JobSchedulerService extends com.android.server.SystemService
      * Queue of pending jobs. The JobServiceContext class will receive jobs from this list
      * when ready to execute them.
      */
-    final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
+    final PendingJobQueue mPendingJobs =
+            new PendingJobQueue(sPendingJobComparator, this::evaluateJobPriorityLocked);
+
+    /**
+     * Jobs whose constraints were reported changed by a controller since the last time they
+     * were checked. Only these jobs need to be re-evaluated, rather than every job.
+     */
+    @GuardedBy("mLock")
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
+
+    /** Whether any of {@link #mChangedJobs} that become ready should be run right away. */
+    @GuardedBy("mLock")
+    private boolean mRunChangedJobsNow;
+
+    /**
+     * Whether the last check may have left ready jobs out of {@link #mPendingJobs} to batch them.
+     * Only a check of every job can find those jobs again.
+     */
+    @GuardedBy("mLock")
+    private boolean mHasBatchedReadyJobs;
 
     int[] mStartedUsers = EmptyArray.INT;
 
@@ -787,20 +809,16 @@ public class JobSchedulerService extends com.android.server.SystemService
             // Higher override state (OVERRIDE_FULL) should be before lower state (OVERRIDE_SOFT)
             return o2.overrideState - o1.overrideState;
         }
+        // Then higher priority jobs, so that they are handed the free contexts first
+        if (o1.lastEvaluatedPriority != o2.lastEvaluatedPriority) {
+            return Integer.compare(o2.lastEvaluatedPriority, o1.lastEvaluatedPriority);
+        }
         if (o1.enqueueTime < o2.enqueueTime) {
             return -1;
         }
         return o1.enqueueTime > o2.enqueueTime ? 1 : 0;
     };
 
-    static <T> void addOrderedItem(ArrayList<T> array, T newItem, Comparator<T> comparator) {
-        int where = Collections.binarySearch(array, newItem, comparator);
-        if (where < 0) {
-            where = ~where;
-        }
-        array.add(where, newItem);
-    }
-
     /**
      * Cleans up outstanding jobs when a package is removed. Even if it's being replaced later we
      * still clean up. On reinstall the package will have a new uid.
@@ -1146,7 +1164,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                 // This is a new job, we can just immediately put it on the pending
                 // list and try to run it.
                 mJobPackageTracker.notePending(jobStatus);
-                addOrderedItem(mPendingJobs, jobStatus, sPendingJobComparator);
+                mPendingJobs.add(jobStatus);
                 maybeRunPendingJobsLocked();
             } else {
                 evaluateControllerStatesLocked(jobStatus);
@@ -1284,6 +1302,7 @@ public class JobSchedulerService extends com.android.server.SystemService
 
     void updateUidState(int uid, int procState) {
         synchronized (mLock) {
+            final int oldOverride = mUidPriorityOverride.get(uid, 0);
             if (procState == ActivityManager.PROCESS_STATE_TOP) {
                 // Only use this if we are exactly the top app.  All others can live
                 // with just the foreground priority.  This means that persistent processes
@@ -1296,6 +1315,9 @@ public class JobSchedulerService extends com.android.server.SystemService
             } else {
                 mUidPriorityOverride.delete(uid);
             }
+            if (mUidPriorityOverride.get(uid, 0) != oldOverride) {
+                mPendingJobs.reevaluatePriorities(uid);
+            }
         }
     }
 
@@ -1604,6 +1626,21 @@ public class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
+    /**
+     * Adds a job to the store and starts tracking it with every controller, as scheduling it
+     * after boot would.
+     */
+    @VisibleForTesting
+    public void startTrackingJobForTesting(JobStatus jobStatus) {
+        synchronized (mLock) {
+            jobStatus.enqueueTime = sElapsedRealtimeClock.millis();
+            mJobs.add(jobStatus);
+            for (int i = 0; i < mControllers.size(); i++) {
+                mControllers.get(i).maybeStartTrackingJobLocked(jobStatus, null);
+            }
+        }
+    }
+
     /**
      * Called when we want to remove a JobStatus object that we've finished executing.
      * @return true if the job was removed.
@@ -1659,7 +1696,7 @@ public class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
-    void noteJobsNonpending(List<JobStatus> jobs) {
+    void noteJobsNonpending(PendingJobQueue jobs) {
         for (int i = jobs.size() - 1; i >= 0; i--) {
             JobStatus job = jobs.get(i);
             mJobPackageTracker.noteNonpending(job);
@@ -1885,6 +1922,22 @@ public class JobSchedulerService extends com.android.server.SystemService
         mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
     }
 
+    @Override
+    public void onControllerStateChanged(ArraySet<JobStatus> changedJobs, boolean runNow) {
+        synchronized (mLock) {
+            addChangedJobsLocked(changedJobs, runNow);
+        }
+        mHandler.obtainMessage(MSG_CHECK_CHANGED_JOBS).sendToTarget();
+    }
+
+    /** Notes jobs to check on the next {@link #queueChangedJobsForExecutionLocked}. */
+    @VisibleForTesting
+    @GuardedBy("mLock")
+    void addChangedJobsLocked(ArraySet<JobStatus> changedJobs, boolean runNow) {
+        mChangedJobs.addAll(changedJobs);
+        mRunChangedJobsNow |= runNow;
+    }
+
     @Override
     public void onRunJobNow(JobStatus jobStatus) {
         mHandler.obtainMessage(MSG_JOB_EXPIRED, jobStatus).sendToTarget();
@@ -1909,7 +1962,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                         // state is such that all ready jobs should be run immediately.
                         if (runNow != null && isReadyToBeExecutedLocked(runNow)) {
                             mJobPackageTracker.notePending(runNow);
-                            addOrderedItem(mPendingJobs, runNow, sPendingJobComparator);
+                            mPendingJobs.add(runNow);
                         } else {
                             queueReadyJobsForExecutionLocked();
                         }
@@ -1933,6 +1986,13 @@ public class JobSchedulerService extends com.android.server.SystemService
                         }
                         queueReadyJobsForExecutionLocked();
                         break;
+                    case MSG_CHECK_CHANGED_JOBS:
+                        if (DEBUG) {
+                            Slog.d(TAG, "MSG_CHECK_CHANGED_JOBS");
+                        }
+                        removeMessages(MSG_CHECK_CHANGED_JOBS);
+                        queueChangedJobsForExecutionLocked();
+                        break;
                     case MSG_STOP_JOB:
                         cancelJobImplLocked((JobStatus) message.obj, null,
                                 "app no longer allowed to run");
@@ -2046,11 +2106,14 @@ public class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, "queuing all ready jobs for execution:");
         }
+        // Every job is about to be evaluated, including any changed ones
+        clearChangedJobsLocked();
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
         mJobs.forEachJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
+        mHasBatchedReadyJobs = false;
 
         if (DEBUG) {
             final int queuedJobs = mPendingJobs.size();
@@ -2080,9 +2143,6 @@ public class JobSchedulerService extends com.android.server.SystemService
         public void postProcess() {
             noteJobsPending(newReadyJobs);
             mPendingJobs.addAll(newReadyJobs);
-            if (mPendingJobs.size() > 1) {
-                mPendingJobs.sort(sPendingJobComparator);
-            }
 
             newReadyJobs.clear();
         }
@@ -2149,17 +2209,22 @@ public class JobSchedulerService extends com.android.server.SystemService
             }
         }
 
+        /**
+         * Whether the jobs accepted so far would be queued by {@link #postProcess}, given that
+         * no other job is pending.
+         */
+        boolean shouldQueueJobs() {
+            return unbatchedCount > 0
+                    || forceBatchedCount >= mConstants.MIN_READY_NON_ACTIVE_JOBS_COUNT;
+        }
+
         public void postProcess() {
-            if (unbatchedCount > 0
-                    || forceBatchedCount >= mConstants.MIN_READY_NON_ACTIVE_JOBS_COUNT) {
+            if (shouldQueueJobs()) {
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Running jobs.");
                 }
                 noteJobsPending(runnableJobs);
                 mPendingJobs.addAll(runnableJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(sPendingJobComparator);
-                }
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Not running anything.");
@@ -2179,16 +2244,100 @@ public class JobSchedulerService extends com.android.server.SystemService
     }
     private final MaybeReadyJobQueueFunctor mMaybeQueueFunctor = new MaybeReadyJobQueueFunctor();
 
-    private void maybeQueueReadyJobsForExecutionLocked() {
+    @VisibleForTesting
+    public void maybeQueueReadyJobsForExecutionLocked() {
         if (DEBUG) Slog.d(TAG, "Maybe queuing ready jobs...");
 
+        // Every job is about to be evaluated, including any changed ones
+        clearChangedJobsLocked();
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
         mJobs.forEachJob(mMaybeQueueFunctor);
+        mHasBatchedReadyJobs = !mMaybeQueueFunctor.shouldQueueJobs()
+                && mMaybeQueueFunctor.forceBatchedCount > 0;
         mMaybeQueueFunctor.postProcess();
     }
 
+    @GuardedBy("mLock")
+    private void clearChangedJobsLocked() {
+        mChangedJobs.clear();
+        mRunChangedJobsNow = false;
+        mHandler.removeMessages(MSG_CHECK_CHANGED_JOBS);
+    }
+
+    /**
+     * Re-evaluates only the jobs whose constraints controllers have reported changed since they
+     * were last checked, applying the same policy as a check of every job would.
+     */
+    @VisibleForTesting
+    @GuardedBy("mLock")
+    public void queueChangedJobsForExecutionLocked() {
+        if (mChangedJobs.size() == 0) {
+            return;
+        }
+        final boolean greedy = mRunChangedJobsNow || mReportedActive;
+        if (mHasBatchedReadyJobs) {
+            // The jobs held back for batching would be queued along with the changed ones
+            if (greedy) {
+                queueReadyJobsForExecutionLocked();
+            } else {
+                maybeQueueReadyJobsForExecutionLocked();
+            }
+            return;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Checking " + mChangedJobs.size() + " changed jobs, greedy=" + greedy);
+        }
+        stopNonReadyActiveJobsLocked();
+        if (greedy) {
+            for (int i = mChangedJobs.size() - 1; i >= 0; i--) {
+                final JobStatus job = mChangedJobs.valueAt(i);
+                if (!mJobs.containsJob(job)) {
+                    // Cancelled or replaced since it changed
+                    continue;
+                }
+                if (mPendingJobs.remove(job)) {
+                    // Every ready job gets queued, so a pending job only needs to still be ready
+                    if (isReadyToBeExecutedLocked(job)) {
+                        mPendingJobs.add(job);
+                    } else {
+                        mJobPackageTracker.noteNonpending(job);
+                    }
+                    continue;
+                }
+                mReadyQueueFunctor.accept(job);
+            }
+            mReadyQueueFunctor.postProcess();
+        } else {
+            // Whether ready jobs get queued depends on all of them, so the pending jobs go
+            // through the queuing policy again with the changed ones. No other job is ready, as
+            // none was held back for batching.
+            final ArrayList<JobStatus> pendingJobs = new ArrayList<>(mPendingJobs.size());
+            for (JobStatus job : mPendingJobs) {
+                pendingJobs.add(job);
+            }
+            noteJobsNonpending(mPendingJobs);
+            mPendingJobs.clear();
+            for (int i = 0; i < pendingJobs.size(); i++) {
+                final JobStatus job = pendingJobs.get(i);
+                mChangedJobs.remove(job);
+                mMaybeQueueFunctor.accept(job);
+            }
+            for (int i = mChangedJobs.size() - 1; i >= 0; i--) {
+                final JobStatus job = mChangedJobs.valueAt(i);
+                if (mJobs.containsJob(job)) {
+                    mMaybeQueueFunctor.accept(job);
+                }
+            }
+            mHasBatchedReadyJobs = !mMaybeQueueFunctor.shouldQueueJobs()
+                    && mMaybeQueueFunctor.forceBatchedCount > 0;
+            mMaybeQueueFunctor.postProcess();
+        }
+        mChangedJobs.clear();
+        mRunChangedJobsNow = false;
+    }
+
     /** Returns true if both the calling and source users for the job are started. */
     private boolean areUsersStartedLocked(final JobStatus job) {
         boolean sourceStarted = ArrayUtils.contains(mStartedUsers, job.getSourceUserId());
@@ -36,12 +36,14 @@ import android.util.AtomicFile;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.BitUtils;
+import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
 import com.android.server.LocalServices;
@@ -62,6 +64,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -86,6 +90,13 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final long JOB_PERSIST_DELAY = 2000L;
 
+    /** Prefix and suffix of the name of each per-uid job file, around the uid. */
+    private static final String JOB_FILE_PREFIX = "jobs_";
+    private static final String JOB_FILE_SUFFIX = ".xml";
+
+    /** Most threads used to read job files in parallel at boot. */
+    private static final int MAX_READ_THREADS = 4;
+
     final Object mLock;
     final Object mWriteScheduleLock;    // used solely for invariants around write scheduling
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
@@ -101,8 +112,33 @@ public final class JobStore {
     @GuardedBy("mWriteScheduleLock")
     private boolean mWriteInProgress;
 
+    /**
+     * Calling uids whose persisted jobs changed since they were last written. Each uid's jobs
+     * are kept in their own file, so only these files need to be rewritten.
+     */
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mDirtyUids = new SparseBooleanArray();
+
+    /**
+     * Whether every uid's file must be rewritten, and files of uids without persisted jobs
+     * deleted.
+     */
+    @GuardedBy("mLock")
+    private boolean mAllUidsDirty;
+
     private static final Object sSingletonLock = new Object();
+    /**
+     * Single file holding every persisted job, as written before jobs were split into one file
+     * per uid. Only ever read; it's left in place so that a downgrade still finds its jobs.
+     */
     private final AtomicFile mJobsFile;
+    /** Directory holding one file of persisted jobs per calling uid. */
+    private final File mJobsDir;
+    /**
+     * Touched once every uid's jobs have been written to {@link #mJobsDir}. The legacy file is
+     * only read if it was modified after this, i.e. before the migration or after a downgrade.
+     */
+    private final File mMigratedFile;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -142,6 +178,9 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJobsDir = new File(jobDir, "uids");
+        mJobsDir.mkdirs();
+        mMigratedFile = new File(mJobsDir, "migrated");
 
         mJobSet = new JobSet();
 
@@ -156,10 +195,56 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = getJobFilesLastModifiedTime();
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
+
+        if (isLegacyJobsFileCurrent()) {
+            // Migrate to one file per uid
+            synchronized (mLock) {
+                mAllUidsDirty = true;
+            }
+            maybeWriteStatusToDiskAsync();
+        }
+    }
+
+    private long getJobFilesLastModifiedTime() {
+        long lastModified = mJobsFile.getLastModifiedTime();
+        final File[] files = mJobsDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (getUidForJobFile(file) != -1) {
+                    lastModified = Math.max(lastModified,
+                            new AtomicFile(file).getLastModifiedTime());
+                }
+            }
+        }
+        return lastModified;
+    }
+
+    /** @return whether the legacy file holds newer jobs than the per-uid files. */
+    private boolean isLegacyJobsFileCurrent() {
+        return mJobsFile.exists()
+                && mJobsFile.getLastModifiedTime() > mMigratedFile.lastModified();
+    }
+
+    private File getJobFileForUid(int uid) {
+        return new File(mJobsDir, JOB_FILE_PREFIX + uid + JOB_FILE_SUFFIX);
+    }
+
+    /** Returns the uid whose jobs are held in {@code file}, or -1 if it isn't a job file. */
+    private static int getUidForJobFile(File file) {
+        final String name = file.getName();
+        if (!name.startsWith(JOB_FILE_PREFIX) || !name.endsWith(JOB_FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(JOB_FILE_PREFIX.length(),
+                    name.length() - JOB_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     public boolean jobTimesInflatedValid() {
@@ -206,6 +291,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mDirtyUids.put(jobStatus.getUid(), true);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -245,6 +331,7 @@ public final class JobStore {
             return false;
         }
         if (removeFromPersisted && jobStatus.isPersisted()) {
+            mDirtyUids.put(jobStatus.getUid(), true);
             maybeWriteStatusToDiskAsync();
         }
         return removed;
@@ -255,12 +342,18 @@ public final class JobStore {
      * @param whitelist Array of User IDs whose jobs are not to be removed.
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
+        // Nothing is written now, but make sure the next write drops these uids' jobs
+        mJobSet.forEachJob(job -> job.isPersisted()
+                && (!ArrayUtils.contains(whitelist, job.getSourceUserId())
+                        || !ArrayUtils.contains(whitelist, job.getUserId())),
+                job -> mDirtyUids.put(job.getUid(), true));
         mJobSet.removeJobsOfNonUsers(whitelist);
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mAllUidsDirty = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -322,8 +415,8 @@ public final class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we rewrite the files of the uids whose jobs changed, and
+     * leave every other uid's file alone.
      */
     private void maybeWriteStatusToDiskAsync() {
         synchronized (mWriteScheduleLock) {
@@ -345,6 +438,25 @@ public final class JobStore {
     /** Write persisted JobStore state to disk synchronously. Should only be used for testing. */
     @VisibleForTesting
     public void writeStatusToDiskForTesting() {
+        synchronized (mLock) {
+            mAllUidsDirty = true;
+        }
+        writeDirtyStatusToDiskForTesting();
+    }
+
+    /**
+     * Write the persisted jobs of {@code uid} to disk synchronously, as after a change to them.
+     * Should only be used for testing.
+     */
+    @VisibleForTesting
+    public void writeStatusToDiskForTesting(int uid) {
+        synchronized (mLock) {
+            mDirtyUids.put(uid, true);
+        }
+        writeDirtyStatusToDiskForTesting();
+    }
+
+    private void writeDirtyStatusToDiskForTesting() {
         synchronized (mWriteScheduleLock) {
             if (mWriteScheduled) {
                 throw new IllegalStateException("An asynchronous write is already scheduled.");
@@ -391,7 +503,13 @@ public final class JobStore {
         @Override
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
-            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            // Not the injectable clock, which tests freeze
+            final long startRealtime = SystemClock.elapsedRealtime();
+            // Persisted jobs of each uid whose file needs to be rewritten; an empty list means
+            // the uid's file is to be deleted.
+            final SparseArray<List<JobStatus>> dirtyJobs = new SparseArray<>();
+            final boolean allUidsDirty;
+            final int[] jobCounts = new int[3];
             // Intentionally allow new scheduling of a write operation *before* we clone
             // the job set.  If we reset it to false after cloning, there's a window in
             // which no new write will be scheduled but mLock is not held, i.e. a new
@@ -403,14 +521,43 @@ public final class JobStore {
                 mWriteScheduled = false;
             }
             synchronized (mLock) {
+                allUidsDirty = mAllUidsDirty;
+                if (!allUidsDirty) {
+                    for (int i = mDirtyUids.size() - 1; i >= 0; i--) {
+                        dirtyJobs.put(mDirtyUids.keyAt(i), new ArrayList<>());
+                    }
+                }
+                mAllUidsDirty = false;
+                mDirtyUids.clear();
+
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(null, (job) -> {
-                    if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                    if (!job.isPersisted()) {
+                        return;
                     }
+                    jobCounts[0]++;
+                    if (job.getUid() == Process.SYSTEM_UID) {
+                        jobCounts[1]++;
+                        if (isSyncJob(job)) {
+                            jobCounts[2]++;
+                        }
+                    }
+                    List<JobStatus> jobs = dirtyJobs.get(job.getUid());
+                    if (jobs == null) {
+                        if (!allUidsDirty) {
+                            return;
+                        }
+                        jobs = new ArrayList<>();
+                        dirtyJobs.put(job.getUid(), jobs);
+                    }
+                    jobs.add(new JobStatus(job));
                 });
             }
-            writeJobsMapImpl(storeCopy);
+            writeJobsMapImpl(dirtyJobs, allUidsDirty);
+            mPersistInfo.countAllJobsSaved = jobCounts[0];
+            mPersistInfo.countSystemServerJobsSaved = jobCounts[1];
+            mPersistInfo.countSystemSyncManagerJobsSaved = jobCounts[2];
+            mPersistInfo.durationMillisSaved = SystemClock.elapsedRealtime() - startRealtime;
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
                         - startElapsed) + "ms");
@@ -421,10 +568,77 @@ public final class JobStore {
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
+        /**
+         * Rewrites the job file of each uid in {@code dirtyJobs}, and deletes the files of the
+         * uids left without persisted jobs.
+         *
+         * @param allUidsDirty whether {@code dirtyJobs} holds every uid with persisted jobs, in
+         *                     which case any other job file is stale
+         */
+        private void writeJobsMapImpl(SparseArray<List<JobStatus>> dirtyJobs,
+                boolean allUidsDirty) {
+            long bytesWritten = 0;
+            int filesWritten = 0;
+            boolean failed = false;
+            for (int i = 0; i < dirtyJobs.size(); i++) {
+                final int uid = dirtyJobs.keyAt(i);
+                final List<JobStatus> jobs = dirtyJobs.valueAt(i);
+                final AtomicFile file = new AtomicFile(getJobFileForUid(uid), "jobs");
+                if (jobs.isEmpty()) {
+                    file.delete();
+                    continue;
+                }
+                final long bytes = writeJobsFile(file, jobs);
+                if (bytes < 0) {
+                    // Try again with the next write
+                    synchronized (mLock) {
+                        mDirtyUids.put(uid, true);
+                    }
+                    failed = true;
+                    continue;
+                }
+                bytesWritten += bytes;
+                filesWritten++;
+            }
+
+            if (allUidsDirty && failed) {
+                // Keep any stale files and the legacy file until every uid has been written
+                synchronized (mLock) {
+                    mAllUidsDirty = true;
+                }
+            } else if (allUidsDirty) {
+                final File[] files = mJobsDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        final int uid = getUidForJobFile(file);
+                        if (uid != -1 && dirtyJobs.indexOfKey(uid) < 0) {
+                            new AtomicFile(file).delete();
+                        }
+                    }
+                }
+                // Everything that was in the single legacy file now lives in per-uid files, but
+                // keep the legacy file itself for a downgrade
+                if (mJobsFile.exists()) {
+                    markMigrated();
+                }
+            }
+
+            mPersistInfo.countFilesSaved = filesWritten;
+            mPersistInfo.bytesSaved = bytesWritten;
+            mPersistInfo.totalBytesSaved += bytesWritten;
+        }
+
+        private void markMigrated() {
+            try {
+                mMigratedFile.createNewFile();
+                mMigratedFile.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to mark the job files as migrated", e);
+            }
+        }
+
+        /** @return the number of bytes written, or -1 if the file couldn't be written. */
+        private long writeJobsFile(AtomicFile file, List<JobStatus> jobList) {
             try {
                 final long startTime = SystemClock.uptimeMillis();
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -446,22 +660,21 @@ public final class JobStore {
                     writeExecutionCriteriaToXml(out, jobStatus);
                     writeBundleToXml(jobStatus.getJob().getExtras(), out);
                     out.endTag(null, "job");
-
-                    numJobs++;
-                    if (jobStatus.getUid() == Process.SYSTEM_UID) {
-                        numSystemJobs++;
-                        if (isSyncJob(jobStatus)) {
-                            numSyncJobs++;
-                        }
-                    }
                 }
                 out.endTag(null, "job-info");
                 out.endDocument();
 
                 // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite(startTime);
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
+                final byte[] bytes = baos.toByteArray();
+                FileOutputStream fos = file.startWrite(startTime);
+                try {
+                    fos.write(bytes);
+                    file.finishWrite(fos);
+                } catch (IOException e) {
+                    file.failWrite(fos);
+                    throw e;
+                }
+                return bytes.length;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -470,11 +683,8 @@ public final class JobStore {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
-            } finally {
-                mPersistInfo.countAllJobsSaved = numJobs;
-                mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
-                mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return -1;
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -658,35 +868,30 @@ public final class JobStore {
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                final List<JobStatus> jobs;
+                if (isLegacyJobsFileCurrent()) {
+                    // Written before jobs were split into one file per uid, or by a downgrade
+                    jobs = readJobsFile(mJobsFile);
+                } else {
+                    jobs = readJobFilesInParallel();
+                }
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
-                    if (jobs != null) {
-                        long now = sElapsedRealtimeClock.millis();
-                        for (int i=0; i<jobs.size(); i++) {
-                            JobStatus js = jobs.get(i);
-                            js.prepareLocked();
-                            js.enqueueTime = now;
-                            this.jobSet.add(js);
-
-                            numJobs++;
-                            if (js.getUid() == Process.SYSTEM_UID) {
-                                numSystemJobs++;
-                                if (isSyncJob(js)) {
-                                    numSyncJobs++;
-                                }
+                    long now = sElapsedRealtimeClock.millis();
+                    for (int i=0; i<jobs.size(); i++) {
+                        JobStatus js = jobs.get(i);
+                        js.prepareLocked();
+                        js.enqueueTime = now;
+                        this.jobSet.add(js);
+
+                        numJobs++;
+                        if (js.getUid() == Process.SYSTEM_UID) {
+                            numSystemJobs++;
+                            if (isSyncJob(js)) {
+                                numSyncJobs++;
                             }
                         }
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
-                }
-            } catch (XmlPullParserException | IOException e) {
-                Slog.wtf(TAG, "Error jobstore xml.", e);
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -697,6 +902,61 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /**
+         * Reads every per-uid job file, spreading the parsing across a few threads since each
+         * file is independent.
+         */
+        private List<JobStatus> readJobFilesInParallel() {
+            final File[] files = mJobsDir.listFiles();
+            final List<JobStatus> jobs = new ArrayList<>();
+            if (files == null || files.length == 0) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Could not find job files, probably there was nothing to load.");
+                }
+                return jobs;
+            }
+            final List<Future<List<JobStatus>>> results = new ArrayList<>(files.length);
+            final ExecutorService executor = ConcurrentUtils.newFixedThreadPool(
+                    Math.min(files.length, MAX_READ_THREADS), "JobStoreRead",
+                    Process.THREAD_PRIORITY_FOREGROUND);
+            try {
+                for (File file : files) {
+                    if (getUidForJobFile(file) == -1) {
+                        continue;
+                    }
+                    final AtomicFile jobsFile = new AtomicFile(file);
+                    results.add(executor.submit(() -> readJobsFile(jobsFile)));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    jobs.addAll(ConcurrentUtils.waitForFutureNoInterrupt(results.get(i),
+                            "Reading job file"));
+                }
+            } finally {
+                executor.shutdown();
+            }
+            return jobs;
+        }
+
+        /**
+         * @return the jobs held in {@code file}, which is empty if the file doesn't exist or
+         *     couldn't be parsed. Never null.
+         */
+        private List<JobStatus> readJobsFile(AtomicFile file) {
+            try (FileInputStream fis = file.openRead()) {
+                final List<JobStatus> jobs = readJobMapImpl(fis, rtcGood);
+                if (jobs != null) {
+                    return jobs;
+                }
+            } catch (FileNotFoundException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
+                }
+            } catch (XmlPullParserException | IOException e) {
+                Slog.wtf(TAG, "Error jobstore xml " + file.getBaseFile(), e);
+            }
+            return new ArrayList<>();
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
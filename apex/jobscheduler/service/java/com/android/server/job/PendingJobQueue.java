@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import android.annotation.NonNull;
+import android.app.job.JobInfo;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Jobs which are ready to run, kept in the order in which they should be handed to a
+ * {@link JobServiceContext}.
+ * <p>
+ * The priority of each job is evaluated into {@link JobStatus#lastEvaluatedPriority} as it is
+ * added, so the comparator can order by it, and is evaluated again for the jobs of a uid when
+ * {@link #reevaluatePriorities} is called. The queue stays ordered as jobs are added, so readers
+ * never need to sort it, and membership checks and the count of foreground jobs don't need to
+ * scan it. Callers must lock on the JobSchedulerService lock.
+ */
+final class PendingJobQueue implements Iterable<JobStatus> {
+    private final Comparator<JobStatus> mComparator;
+    private final ToIntFunction<JobStatus> mPriorityEvaluator;
+    private final ArrayList<JobStatus> mJobs = new ArrayList<>();
+    /** Number of times each job appears in {@link #mJobs}. */
+    private final ArrayMap<JobStatus, Integer> mJobCounts = new ArrayMap<>();
+    /** The distinct jobs of {@link #mJobs}, by source uid. */
+    private final SparseArray<ArraySet<JobStatus>> mJobsBySourceUid = new SparseArray<>();
+    /** Number of entries of {@link #mJobs} with at least the top app priority. */
+    private int mFgJobCount;
+
+    /**
+     * @param comparator The order of the jobs, which may depend on
+     *                   {@link JobStatus#lastEvaluatedPriority}.
+     * @param priorityEvaluator Evaluates the priority of a job as it is added.
+     */
+    PendingJobQueue(@NonNull Comparator<JobStatus> comparator,
+            @NonNull ToIntFunction<JobStatus> priorityEvaluator) {
+        mComparator = comparator;
+        mPriorityEvaluator = priorityEvaluator;
+    }
+
+    /** Inserts {@code job} in order. */
+    void add(@NonNull JobStatus job) {
+        onAdded(job);
+        int where = Collections.binarySearch(mJobs, job, mComparator);
+        if (where < 0) {
+            where = ~where;
+        }
+        mJobs.add(where, job);
+    }
+
+    /** Adds every job in {@code jobs}, keeping the queue ordered. */
+    void addAll(@NonNull List<JobStatus> jobs) {
+        if (jobs.size() == 1) {
+            add(jobs.get(0));
+            return;
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            onAdded(jobs.get(i));
+        }
+        mJobs.addAll(jobs);
+        mJobs.sort(mComparator);
+    }
+
+    /**
+     * Removes a single occurrence of {@code job}.
+     * @return whether {@code job} was queued.
+     */
+    boolean remove(@NonNull JobStatus job) {
+        final int index = mJobCounts.indexOfKey(job);
+        if (index < 0) {
+            return false;
+        }
+        final int count = mJobCounts.valueAt(index);
+        if (count == 1) {
+            mJobCounts.removeAt(index);
+            final ArraySet<JobStatus> uidJobs = mJobsBySourceUid.get(job.getSourceUid());
+            uidJobs.remove(job);
+            if (uidJobs.isEmpty()) {
+                mJobsBySourceUid.remove(job.getSourceUid());
+            }
+        } else {
+            mJobCounts.setValueAt(index, count - 1);
+        }
+        if (isFgJob(job)) {
+            mFgJobCount--;
+        }
+        mJobs.remove(indexOf(job));
+        return true;
+    }
+
+    /**
+     * Evaluates the priority of the jobs of {@code sourceUid} again, e.g. when the uid changed
+     * state, and moves them to their new place.
+     */
+    void reevaluatePriorities(int sourceUid) {
+        final ArraySet<JobStatus> uidJobs = mJobsBySourceUid.get(sourceUid);
+        if (uidJobs == null) {
+            return;
+        }
+        final ArrayList<JobStatus> jobs = new ArrayList<>(uidJobs.size());
+        for (int i = 0; i < uidJobs.size(); i++) {
+            final JobStatus job = uidJobs.valueAt(i);
+            final int count = mJobCounts.get(job);
+            for (int c = 0; c < count; c++) {
+                remove(job);
+                jobs.add(job);
+            }
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            add(jobs.get(i));
+        }
+    }
+
+    private void onAdded(JobStatus job) {
+        job.lastEvaluatedPriority = mPriorityEvaluator.applyAsInt(job);
+        if (isFgJob(job)) {
+            mFgJobCount++;
+        }
+        final Integer count = mJobCounts.get(job);
+        mJobCounts.put(job, count == null ? 1 : count + 1);
+        if (count == null) {
+            ArraySet<JobStatus> uidJobs = mJobsBySourceUid.get(job.getSourceUid());
+            if (uidJobs == null) {
+                uidJobs = new ArraySet<>();
+                mJobsBySourceUid.put(job.getSourceUid(), uidJobs);
+            }
+            uidJobs.add(job);
+        }
+    }
+
+    private int indexOf(JobStatus job) {
+        final int where = Collections.binarySearch(mJobs, job, mComparator);
+        if (where >= 0) {
+            // Look through the run of jobs which compare equal to this one
+            for (int i = where; i >= 0 && mComparator.compare(mJobs.get(i), job) == 0; i--) {
+                if (mJobs.get(i) == job) {
+                    return i;
+                }
+            }
+            for (int i = where + 1;
+                    i < mJobs.size() && mComparator.compare(mJobs.get(i), job) == 0; i++) {
+                if (mJobs.get(i) == job) {
+                    return i;
+                }
+            }
+        }
+        // The job's ordering changed since it was queued
+        return mJobs.indexOf(job);
+    }
+
+    static boolean isFgJob(@NonNull JobStatus job) {
+        return job.lastEvaluatedPriority >= JobInfo.PRIORITY_TOP_APP;
+    }
+
+    boolean contains(@NonNull JobStatus job) {
+        return mJobCounts.containsKey(job);
+    }
+
+    /**
+     * Returns how many queued jobs have the same calling uid and job id as {@code job}, whether
+     * they are {@code job} itself or another {@link JobStatus} for it, and whether they have at
+     * least the top app priority or not, as given by {@code fg}.
+     */
+    int countMatching(@NonNull JobStatus job, boolean fg) {
+        final ArraySet<JobStatus> uidJobs = mJobsBySourceUid.get(job.getSourceUid());
+        if (uidJobs == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < uidJobs.size(); i++) {
+            final JobStatus queued = uidJobs.valueAt(i);
+            if (queued.matches(job.getUid(), job.getJobId()) && isFgJob(queued) == fg) {
+                count += mJobCounts.get(queued);
+            }
+        }
+        return count;
+    }
+
+    /** Returns the number of queued jobs with at least the top app priority. */
+    int getFgJobCount() {
+        return mFgJobCount;
+    }
+
+    void clear() {
+        mJobs.clear();
+        mJobCounts.clear();
+        mJobsBySourceUid.clear();
+        mFgJobCount = 0;
+    }
+
+    @NonNull
+    JobStatus get(int index) {
+        return mJobs.get(index);
+    }
+
+    int size() {
+        return mJobs.size();
+    }
+
+    @Override
+    @NonNull
+    public Iterator<JobStatus> iterator() {
+        return Collections.unmodifiableList(mJobs).iterator();
+    }
+}
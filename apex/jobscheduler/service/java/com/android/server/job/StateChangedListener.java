@@ -17,6 +17,7 @@
 package com.android.server.job;
 
 import android.annotation.NonNull;
+import android.util.ArraySet;
 
 import com.android.server.job.controllers.JobStatus;
 
@@ -34,6 +35,15 @@ public interface StateChangedListener {
      */
     public void onControllerStateChanged();
 
+    /**
+     * Called by the controller to notify the JobManager that the state of only the given tasks
+     * changed, so that no other task needs to be checked.
+     * @param changedJobs The tasks whose constraints changed. The set isn't retained.
+     * @param runNow Whether any of these tasks that became ready should be run immediately,
+     *               rather than when the scheduler thinks is best.
+     */
+    void onControllerStateChanged(@NonNull ArraySet<JobStatus> changedJobs, boolean runNow);
+
     /**
      * Called by the controller to notify the JobManager that regardless of the state of the task,
      * it must be run immediately.
@@ -49,6 +49,8 @@ public final class BatteryController extends RestrictingController {
             || Log.isLoggable(TAG, Log.DEBUG);
 
     private final ArraySet<JobStatus> mTrackedTasks = new ArraySet<>();
+    /** Scratch set of the tracked jobs whose constraints changed, reused to avoid churn. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
     private ChargingTracker mChargeTracker;
 
     @VisibleForTesting
@@ -97,25 +99,24 @@ public final class BatteryController extends RestrictingController {
         if (DEBUG) {
             Slog.d(TAG, "maybeReportNewChargingStateLocked: " + stablePower);
         }
-        boolean reportChange = false;
         for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
             final JobStatus ts = mTrackedTasks.valueAt(i);
             boolean previous = ts.setChargingConstraintSatisfied(stablePower);
             if (previous != stablePower) {
-                reportChange = true;
+                mChangedJobs.add(ts);
             }
             previous = ts.setBatteryNotLowConstraintSatisfied(batteryNotLow);
             if (previous != batteryNotLow) {
-                reportChange = true;
+                mChangedJobs.add(ts);
             }
         }
-        if (stablePower || batteryNotLow) {
+        if (mChangedJobs.size() > 0) {
             // If one of our conditions has been satisfied, always schedule any newly ready jobs.
-            mStateChangedListener.onRunJobNow(null);
-        } else if (reportChange) {
-            // Otherwise, just let the job scheduler know the state has changed and take care of it
-            // as it thinks is best.
-            mStateChangedListener.onControllerStateChanged();
+            // Otherwise, just let the job scheduler know the state has changed and take care of
+            // it as it thinks is best.
+            mStateChangedListener.onControllerStateChanged(mChangedJobs,
+                    stablePower || batteryNotLow);
+            mChangedJobs.clear();
         }
     }
 
@@ -474,26 +474,31 @@ public final class ConnectivityController extends RestrictingController implemen
             // answers that we get from ConnectivityManager.
             final ArrayMap<Network, NetworkCapabilities> networkToCapabilities = new ArrayMap<>();
 
-            boolean changed = false;
+            final ArraySet<JobStatus> changedJobs = new ArraySet<>();
             if (filterUid == -1) {
                 for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
-                    changed |= updateTrackedJobsLocked(mTrackedJobs.valueAt(i),
-                            filterNetwork, networkToCapabilities);
+                    updateTrackedJobsLocked(mTrackedJobs.valueAt(i),
+                            filterNetwork, networkToCapabilities, changedJobs);
                 }
             } else {
-                changed = updateTrackedJobsLocked(mTrackedJobs.get(filterUid),
-                        filterNetwork, networkToCapabilities);
+                updateTrackedJobsLocked(mTrackedJobs.get(filterUid),
+                        filterNetwork, networkToCapabilities, changedJobs);
             }
-            if (changed) {
-                mStateChangedListener.onControllerStateChanged();
+            if (changedJobs.size() > 0) {
+                mStateChangedListener.onControllerStateChanged(changedJobs, false);
             }
         }
     }
 
-    private boolean updateTrackedJobsLocked(ArraySet<JobStatus> jobs, Network filterNetwork,
-            ArrayMap<Network, NetworkCapabilities> networkToCapabilities) {
+    /**
+     * Updates the constraints of the given jobs, all of which belong to the same UID, and adds
+     * those whose constraints changed to {@code changedJobs}.
+     */
+    private void updateTrackedJobsLocked(ArraySet<JobStatus> jobs, Network filterNetwork,
+            ArrayMap<Network, NetworkCapabilities> networkToCapabilities,
+            ArraySet<JobStatus> changedJobs) {
         if (jobs == null || jobs.size() == 0) {
-            return false;
+            return;
         }
 
         final Network network = mConnManager.getActiveNetworkForUid(jobs.valueAt(0).getSourceUid());
@@ -505,18 +510,17 @@ public final class ConnectivityController extends RestrictingController implemen
         final boolean networkMatch = (filterNetwork == null
                 || Objects.equals(filterNetwork, network));
 
-        boolean changed = false;
         for (int i = jobs.size() - 1; i >= 0; i--) {
             final JobStatus js = jobs.valueAt(i);
 
             // Update either when we have a network match, or when the
             // job hasn't yet been evaluated against the currently
             // active network; typically when we just lost a network.
-            if (networkMatch || !Objects.equals(js.network, network)) {
-                changed |= updateConstraintsSatisfied(js, network, capabilities);
+            if ((networkMatch || !Objects.equals(js.network, network))
+                    && updateConstraintsSatisfied(js, network, capabilities)) {
+                changedJobs.add(js);
             }
         }
-        return changed;
     }
 
     /**
@@ -45,6 +45,8 @@ public final class IdleController extends RestrictingController implements Idlen
     // Policy: we decide that we're "idle" if the device has been unused /
     // screen off or dreaming or wireless charging dock idle for at least this long
     final ArraySet<JobStatus> mTrackedTasks = new ArraySet<>();
+    /** Scratch set of the tracked jobs whose constraints changed, reused to avoid churn. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
     IdlenessTracker mIdleTracker;
 
     public IdleController(JobSchedulerService service) {
@@ -91,10 +93,16 @@ public final class IdleController extends RestrictingController implements Idlen
     public void reportNewIdleState(boolean isIdle) {
         synchronized (mLock) {
             for (int i = mTrackedTasks.size()-1; i >= 0; i--) {
-                mTrackedTasks.valueAt(i).setIdleConstraintSatisfied(isIdle);
+                final JobStatus ts = mTrackedTasks.valueAt(i);
+                if (ts.setIdleConstraintSatisfied(isIdle)) {
+                    mChangedJobs.add(ts);
+                }
+            }
+            if (mChangedJobs.size() > 0) {
+                mStateChangedListener.onControllerStateChanged(mChangedJobs, false);
+                mChangedJobs.clear();
             }
         }
-        mStateChangedListener.onControllerStateChanged();
     }
 
     /**
@@ -45,6 +45,8 @@ public final class StorageController extends StateController {
             || Log.isLoggable(TAG, Log.DEBUG);
 
     private final ArraySet<JobStatus> mTrackedTasks = new ArraySet<JobStatus>();
+    /** Scratch set of the tracked jobs whose constraints changed, reused to avoid churn. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
     private final StorageTracker mStorageTracker;
 
     @VisibleForTesting
@@ -77,20 +79,20 @@ public final class StorageController extends StateController {
 
     private void maybeReportNewStorageState() {
         final boolean storageNotLow = mStorageTracker.isStorageNotLow();
-        boolean reportChange = false;
         synchronized (mLock) {
             for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
                 final JobStatus ts = mTrackedTasks.valueAt(i);
-                reportChange |= ts.setStorageNotLowConstraintSatisfied(storageNotLow);
+                if (ts.setStorageNotLowConstraintSatisfied(storageNotLow)) {
+                    mChangedJobs.add(ts);
+                }
+            }
+            if (mChangedJobs.size() > 0) {
+                // If storage is no longer low, run the newly ready jobs right away. Otherwise
+                // let the scheduler know that state has changed. This may or may not result in
+                // an execution.
+                mStateChangedListener.onControllerStateChanged(mChangedJobs, storageNotLow);
+                mChangedJobs.clear();
             }
-        }
-        if (storageNotLow) {
-            // Tell the scheduler that any ready jobs should be flushed.
-            mStateChangedListener.onRunJobNow(null);
-        } else if (reportChange) {
-            // Let the scheduler know that state has changed. This may or may not result in an
-            // execution.
-            mStateChangedListener.onControllerStateChanged();
         }
     }
 
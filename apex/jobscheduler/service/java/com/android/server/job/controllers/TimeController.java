@@ -31,6 +31,7 @@ import android.os.Process;
 import android.os.UserHandle;
 import android.os.WorkSource;
 import android.provider.Settings;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Log;
 import android.util.Slog;
@@ -74,6 +75,8 @@ public final class TimeController extends StateController {
     private AlarmManager mAlarmService = null;
     /** List of tracked jobs, sorted asc. by deadline */
     private final List<JobStatus> mTrackedJobs = new LinkedList<>();
+    /** Scratch set of the jobs made ready by an expired delay, reused to avoid churn. */
+    private final ArraySet<JobStatus> mChangedJobs = new ArraySet<>();
 
     public TimeController(JobSchedulerService service) {
         super(service);
@@ -296,7 +299,6 @@ public final class TimeController extends StateController {
             long nextDelayTime = Long.MAX_VALUE;
             int nextDelayUid = 0;
             String nextDelayPackageName = null;
-            boolean ready = false;
             Iterator<JobStatus> it = mTrackedJobs.iterator();
             while (it.hasNext()) {
                 final JobStatus job = it.next();
@@ -308,7 +310,7 @@ public final class TimeController extends StateController {
                         it.remove();
                     }
                     if (job.isReady()) {
-                        ready = true;
+                        mChangedJobs.add(job);
                     }
                 } else {
                     if (!wouldBeReadyWithConstraintLocked(job, JobStatus.CONSTRAINT_TIMING_DELAY)) {
@@ -327,8 +329,9 @@ public final class TimeController extends StateController {
                     }
                 }
             }
-            if (ready) {
-                mStateChangedListener.onControllerStateChanged();
+            if (mChangedJobs.size() > 0) {
+                mStateChangedListener.onControllerStateChanged(mChangedJobs, false);
+                mChangedJobs.clear();
             }
             setDelayExpiredAlarmLocked(nextDelayTime,
                     deriveWorkSource(nextDelayUid, nextDelayPackageName));
@@ -1161,6 +1161,17 @@ public final class ActivityThread extends ClientTransactionHandler {
                     sticky, sendingUser);
         }
 
+        public void scheduleRegisteredReceivers(List<IBinder> receivers, List<Intent> intents,
+                int[] resultCodes, List<String> data, List<Bundle> extras, boolean[] sticky,
+                int[] sendingUsers, int processState) throws RemoteException {
+            updateProcessState(processState, false);
+            for (int i = 0; i < receivers.size(); i++) {
+                IIntentReceiver.Stub.asInterface(receivers.get(i)).performReceive(intents.get(i),
+                        resultCodes[i], data.get(i), extras.get(i), false /* ordered */,
+                        sticky[i], sendingUsers[i]);
+            }
+        }
+
         @Override
         public void scheduleLowMemory() {
             sendMessage(H.LOW_MEMORY, null);
@@ -316,16 +316,11 @@ public class ApplicationPackageManager extends PackageManager {
     @Override
     public int getPackageUidAsUser(String packageName, int flags, int userId)
             throws NameNotFoundException {
-        try {
-            int uid = mPM.getPackageUid(packageName,
-                    updateFlagsForPackage(flags, userId), userId);
-            if (uid >= 0) {
-                return uid;
-            }
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+        final int uid = getPackageUidAsUserCached(packageName,
+                updateFlagsForPackage(flags, userId), userId);
+        if (uid >= 0) {
+            return uid;
         }
-
         throw new NameNotFoundException(packageName);
     }
 
@@ -948,11 +943,7 @@ public class ApplicationPackageManager extends PackageManager {
 
     @Override
     public String[] getPackagesForUid(int uid) {
-        try {
-            return mPM.getPackagesForUid(uid);
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
-        }
+        return getPackagesForUidCached(uid);
     }
 
     @Override
@@ -195,6 +195,28 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
     @GuardedBy("mLock")
     private long mMisses = 0;
 
+    // Queries that went straight to recompute() because the cache was disabled, either in this
+    // process or system-wide.
+    @GuardedBy("mLock")
+    private long mSkipsDisabled = 0;
+
+    // Queries that went straight to recompute() because the nonce was unset, which is also the
+    // state of a corked cache.
+    @GuardedBy("mLock")
+    private long mSkipsUnset = 0;
+
+    // Number of times a non-empty cache was dropped because the nonce changed.
+    @GuardedBy("mLock")
+    private long mClears = 0;
+
+    // Number of entries discarded to stay within mMaxEntries.
+    @GuardedBy("mLock")
+    private long mEvictions = 0;
+
+    // The largest number of entries the cache has held.
+    @GuardedBy("mLock")
+    private int mHighWaterMark = 0;
+
     // Most invalidation is done in a static context, so the counters need to be accessible.
     @GuardedBy("sCorkLock")
     private static final HashMap<String, Long> sInvalidates = new HashMap<>();
@@ -256,6 +278,11 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      */
     private final int mMaxEntries;
 
+    /**
+     * Name of the cache in debug messages and dumps. Several caches may share one property.
+     */
+    private final String mCacheName;
+
     /**
      * Make a new property invalidated cache.
      *
@@ -263,7 +290,20 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      * @param propertyName Name of the system property holding the cache invalidation nonce
      */
     public PropertyInvalidatedCache(int maxEntries, @NonNull String propertyName) {
+        this(maxEntries, propertyName, propertyName);
+    }
+
+    /**
+     * Make a new property invalidated cache.
+     *
+     * @param maxEntries Maximum number of entries to cache; LRU discard
+     * @param propertyName Name of the system property holding the cache invalidation nonce
+     * @param cacheName Name of this cache in debug messages and dumps
+     */
+    public PropertyInvalidatedCache(int maxEntries, @NonNull String propertyName,
+            @NonNull String cacheName) {
         mPropertyName = propertyName;
+        mCacheName = cacheName;
         mMaxEntries = maxEntries;
         mCache = new LinkedHashMap<Query, Result>(
             2 /* start small */,
@@ -271,7 +311,15 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
             true /* LRU access order */) {
                 @Override
                 protected boolean removeEldestEntry(Map.Entry eldest) {
-                    return size() > maxEntries;
+                    final int size = size();
+                    if (size > mHighWaterMark) {
+                        mHighWaterMark = size;
+                    }
+                    if (size > maxEntries) {
+                        mEvictions++;
+                        return true;
+                    }
+                    return false;
                 }
             };
         synchronized (sCorkLock) {
@@ -364,6 +412,13 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
         long currentNonce = (!isDisabledLocal()) ? getCurrentNonce() : NONCE_DISABLED;
         for (;;) {
             if (currentNonce == NONCE_DISABLED || currentNonce == NONCE_UNSET) {
+                synchronized (mLock) {
+                    if (currentNonce == NONCE_DISABLED) {
+                        mSkipsDisabled++;
+                    } else {
+                        mSkipsUnset++;
+                    }
+                }
                 if (DEBUG) {
                     Log.d(TAG,
                             String.format("cache %s %s for %s",
@@ -386,6 +441,9 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                                         cacheName(),
                                         mLastSeenNonce, currentNonce));
                     }
+                    if (!mCache.isEmpty()) {
+                        mClears++;
+                    }
                     mCache.clear();
                     mLastSeenNonce = currentNonce;
                     cachedResult = null;
@@ -735,7 +793,45 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      * method is public so clients can use it.
      */
     public String cacheName() {
-        return mPropertyName;
+        return mCacheName;
+    }
+
+    /**
+     * Returns the number of queries answered from the cache.
+     */
+    public final long getHitCount() {
+        synchronized (mLock) {
+            return mHits;
+        }
+    }
+
+    /**
+     * Returns the number of queries that had to call {@link #recompute} although the cache was
+     * enabled.
+     */
+    public final long getMissCount() {
+        synchronized (mLock) {
+            return mMisses;
+        }
+    }
+
+    /**
+     * Returns the number of queries that bypassed the cache because it was disabled, unset or
+     * corked.
+     */
+    public final long getSkipCount() {
+        synchronized (mLock) {
+            return mSkipsDisabled + mSkipsUnset;
+        }
+    }
+
+    /**
+     * Returns the number of entries discarded to keep the cache within its maximum size.
+     */
+    public final long getEvictionCount() {
+        synchronized (mLock) {
+            return mEvictions;
+        }
     }
 
     /**
@@ -782,12 +878,19 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
         }
 
         synchronized (mLock) {
-            pw.println(String.format("  Cache Property Name: %s", cacheName()));
-            pw.println(String.format("    Hits: %d, Misses: %d, Invalidates: %d",
-                    mHits, mMisses, invalidateCount));
+            pw.println(String.format("  Cache Name: %s", cacheName()));
+            pw.println(String.format("    Property: %s", mPropertyName));
+            final long queries = mHits + mMisses + mSkipsDisabled + mSkipsUnset;
+            pw.println(String.format("    Hits: %d, Misses: %d, Skips: %d, Hit Rate: %d%%",
+                    mHits, mMisses, mSkipsDisabled + mSkipsUnset,
+                    queries == 0 ? 0 : mHits * 100 / queries));
+            pw.println(String.format("    Skips Disabled: %d, Skips Unset/Corked: %d",
+                    mSkipsDisabled, mSkipsUnset));
+            pw.println(String.format("    Invalidates: %d, Clears: %d, Evictions: %d",
+                    invalidateCount, mClears, mEvictions));
             pw.println(String.format("    Last Observed Nonce: %d", mLastSeenNonce));
-            pw.println(String.format("    Current Size: %d, Max Size: %d",
-                    mCache.entrySet().size(), mMaxEntries));
+            pw.println(String.format("    Current Size: %d, Max Size: %d, High Water Mark: %d",
+                    mCache.entrySet().size(), mMaxEntries, mHighWaterMark));
             pw.println(String.format("    Enabled: %s", mDisabled ? "false" : "true"));
 
             Set<Map.Entry<Query, Result>> cacheEntries = mCache.entrySet();
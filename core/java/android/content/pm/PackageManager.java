@@ -81,6 +81,7 @@ import dalvik.system.VMRuntime;
 import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -8084,7 +8085,7 @@ public abstract class PackageManager {
     private static final PropertyInvalidatedCache<ApplicationInfoQuery, ApplicationInfo>
             sApplicationInfoCache =
             new PropertyInvalidatedCache<ApplicationInfoQuery, ApplicationInfo>(
-                    16, PermissionManager.CACHE_KEY_PACKAGE_INFO) {
+                    16, PermissionManager.CACHE_KEY_PACKAGE_INFO, "getApplicationInfo") {
                 @Override
                 protected ApplicationInfo recompute(ApplicationInfoQuery query) {
                     return getApplicationInfoAsUserUncached(
@@ -8185,7 +8186,7 @@ public abstract class PackageManager {
     private static final PropertyInvalidatedCache<PackageInfoQuery, PackageInfo>
             sPackageInfoCache =
             new PropertyInvalidatedCache<PackageInfoQuery, PackageInfo>(
-                    32, PermissionManager.CACHE_KEY_PACKAGE_INFO) {
+                    32, PermissionManager.CACHE_KEY_PACKAGE_INFO, "getPackageInfo") {
                 @Override
                 protected PackageInfo recompute(PackageInfoQuery query) {
                     return getPackageInfoAsUserUncached(
@@ -8214,6 +8215,67 @@ public abstract class PackageManager {
         sPackageInfoCache.disableLocal();
     }
 
+    private static final PropertyInvalidatedCache<PackageInfoQuery, Integer>
+            sPackageUidCache =
+            new PropertyInvalidatedCache<PackageInfoQuery, Integer>(
+                    32, PermissionManager.CACHE_KEY_PACKAGE_INFO, "getPackageUid") {
+                @Override
+                protected Integer recompute(PackageInfoQuery query) {
+                    try {
+                        return ActivityThread.getPackageManager().getPackageUid(
+                                query.packageName, query.flags, query.userId);
+                    } catch (RemoteException e) {
+                        throw e.rethrowFromSystemServer();
+                    }
+                }
+            };
+
+    /** @hide */
+    public static int getPackageUidAsUserCached(String packageName, int flags, int userId) {
+        return sPackageUidCache.query(new PackageInfoQuery(packageName, flags, userId));
+    }
+
+    /**
+     * Make getPackageUidAsUser() bypass the cache in this process.
+     * @hide
+     */
+    public static void disablePackageUidCache() {
+        sPackageUidCache.disableLocal();
+    }
+
+    private static final PropertyInvalidatedCache<Integer, String[]> sPackagesForUidCache =
+            new PropertyInvalidatedCache<Integer, String[]>(
+                    32, PermissionManager.CACHE_KEY_PACKAGE_INFO, "getPackagesForUid") {
+                @Override
+                protected String[] recompute(Integer uid) {
+                    try {
+                        return ActivityThread.getPackageManager().getPackagesForUid(uid);
+                    } catch (RemoteException e) {
+                        throw e.rethrowFromSystemServer();
+                    }
+                }
+                @Override
+                protected boolean debugCompareQueryResults(String[] cachedResult,
+                        String[] fetchedResult) {
+                    return fetchedResult == null || Arrays.equals(cachedResult, fetchedResult);
+                }
+            };
+
+    /** @hide */
+    public static String[] getPackagesForUidCached(int uid) {
+        final String[] packageNames = sPackagesForUidCache.query(uid);
+        // The cached array is shared, so callers get their own copy to modify
+        return packageNames != null ? packageNames.clone() : null;
+    }
+
+    /**
+     * Make getPackagesForUid() bypass the cache in this process.
+     * @hide
+     */
+    public static void disablePackagesForUidCache() {
+        sPackagesForUidCache.disableLocal();
+    }
+
     /**
      * Inhibit package info cache invalidations when correct.
      *
@@ -16,11 +16,13 @@
 
 package android.content.pm;
 
+import android.annotation.Nullable;
 import android.os.Parcel;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper classes to read from and write to Parcel with pooled strings.
@@ -42,8 +44,21 @@ public class PackageParserCacheHelper {
 
         private final Parcel mParcel;
 
+        @Nullable
+        private final Map<String, String> mSharedPool;
+
         public ReadHelper(Parcel p) {
+            this(p, null);
+        }
+
+        /**
+         * @param sharedPool optional thread-safe pool used to canonicalize strings across
+         *                   multiple parcels, so that values repeated across parcels (such as
+         *                   permission names shared by many packages) are only retained once.
+         */
+        public ReadHelper(Parcel p, @Nullable Map<String, String> sharedPool) {
             mParcel = p;
+            mSharedPool = sharedPool;
         }
 
         /**
@@ -62,6 +77,18 @@ public class PackageParserCacheHelper {
             mParcel.setDataPosition(poolPosition);
             mParcel.readStringList(mStrings);
 
+            if (mSharedPool != null) {
+                for (int i = 0; i < mStrings.size(); i++) {
+                    final String s = mStrings.get(i);
+                    if (s != null) {
+                        final String existing = mSharedPool.putIfAbsent(s, s);
+                        if (existing != null) {
+                            mStrings.set(i, existing);
+                        }
+                    }
+                }
+            }
+
             // Then move back.
             mParcel.setDataPosition(startPosition);
 
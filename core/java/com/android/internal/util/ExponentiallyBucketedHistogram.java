@@ -20,6 +20,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.util.Log;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 /**
@@ -72,6 +73,23 @@ public class ExponentiallyBucketedHistogram {
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
+        appendTo(builder);
+        Log.d(tag, builder.toString());
+    }
+
+    /**
+     * Write the histogram to a {@link PrintWriter}, in the same format as {@link #log}.
+     *
+     * @param pw     The writer to print to
+     * @param prefix A custom prefix that is printed in front of the histogram
+     */
+    public void dump(@NonNull PrintWriter pw, @Nullable CharSequence prefix) {
+        StringBuilder builder = new StringBuilder(prefix);
+        appendTo(builder);
+        pw.println(builder);
+    }
+
+    private void appendTo(@NonNull StringBuilder builder) {
         builder.append('[');
 
         for (int i = 0; i < mData.length; i++) {
@@ -91,7 +109,5 @@ public class ExponentiallyBucketedHistogram {
             builder.append(mData[i]);
         }
         builder.append("]");
-
-        Log.d(tag, builder.toString());
     }
 }
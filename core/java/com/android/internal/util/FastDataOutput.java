@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Optimized implementation of {@link DataOutput} which buffers data in memory
+ * before flushing to the underlying {@link OutputStream}.
+ * <p>
+ * This avoids the per-byte virtual dispatch and synchronization overhead of
+ * using a {@link DataOutputStream} with a {@link BufferedOutputStream}.
+ * <p>
+ * Strings are always encoded as standard UTF-8 (not the "modified UTF-8" used
+ * by {@link DataOutputStream}), and may additionally be written through
+ * {@link #writeInternedUTF(String)} to deduplicate repeated values.
+ *
+ * @hide
+ */
+public class FastDataOutput implements DataOutput, Flushable, Closeable {
+    private static final int MAX_UNSIGNED_SHORT = 65_535;
+
+    private final OutputStream mOut;
+
+    private final byte[] mBuffer;
+    private final int mBufferCap;
+
+    private int mBufferPos;
+
+    /**
+     * Values that have been "interned" by {@link #writeInternedUTF(String)}.
+     */
+    private final HashMap<String, Short> mStringRefs = new HashMap<>();
+
+    public FastDataOutput(@NonNull OutputStream out, int bufferSize) {
+        mOut = Objects.requireNonNull(out);
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException();
+        }
+
+        mBuffer = new byte[bufferSize];
+        mBufferCap = mBuffer.length;
+    }
+
+    private void drain() throws IOException {
+        if (mBufferPos > 0) {
+            mOut.write(mBuffer, 0, mBufferPos);
+            mBufferPos = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mBufferCap < len) {
+            drain();
+            mOut.write(b, off, len);
+        } else {
+            if (mBufferCap - mBufferPos < len) drain();
+            System.arraycopy(b, off, mBuffer, mBufferPos, len);
+            mBufferPos += len;
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        // Attempt to encode directly into our buffer when the worst-case
+        // encoding (3 bytes per char) is guaranteed to fit
+        final int worstLen = s.length() * 3;
+        if (worstLen + 2 <= mBufferCap) {
+            if (mBufferCap - mBufferPos < worstLen + 2) drain();
+            final int len = encodeUTF(s, mBuffer, mBufferPos + 2);
+            if (len > MAX_UNSIGNED_SHORT) {
+                throw new IOException("Encoded UTF-8 length too large: " + len);
+            }
+            mBuffer[mBufferPos] = (byte) (len >> 8);
+            mBuffer[mBufferPos + 1] = (byte) len;
+            mBufferPos += len + 2;
+        } else {
+            final byte[] tmp = new byte[worstLen];
+            final int len = encodeUTF(s, tmp, 0);
+            if (len > MAX_UNSIGNED_SHORT) {
+                throw new IOException("Encoded UTF-8 length too large: " + len);
+            }
+            writeShort(len);
+            write(tmp, 0, len);
+        }
+    }
+
+    /**
+     * Encode the given string as standard UTF-8 into the given buffer,
+     * returning the number of bytes written. Unpaired surrogates are encoded
+     * as '?', matching the behavior of {@link String#getBytes}.
+     */
+    private static int encodeUTF(String s, byte[] dst, int off) {
+        final int start = off;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[off++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[off++] = (byte) (0xc0 | (c >> 6));
+                dst[off++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[off++] = (byte) (0xf0 | (cp >> 18));
+                dst[off++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dst[off++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dst[off++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                dst[off++] = (byte) '?';
+            } else {
+                dst[off++] = (byte) (0xe0 | (c >> 12));
+                dst[off++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[off++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return off - start;
+    }
+
+    /**
+     * Write a {@link String} value with the additional signal that the given
+     * value is a candidate for being canonicalized, similar to
+     * {@link String#intern()}.
+     * <p>
+     * Canonicalization is implemented by writing each unique string value once
+     * the first time it appears, and then writing a lightweight {@code short}
+     * reference when that string is written again in the future.
+     *
+     * @see FastDataInput#readInternedUTF()
+     */
+    public void writeInternedUTF(@NonNull String s) throws IOException {
+        Short ref = mStringRefs.get(s);
+        if (ref != null) {
+            writeShort(ref);
+        } else {
+            writeShort(MAX_UNSIGNED_SHORT);
+            writeUTF(s);
+
+            // We can only safely intern when we have remaining values; if we're
+            // full we at least sent the string value above
+            final int next = mStringRefs.size();
+            if (next < MAX_UNSIGNED_SHORT) {
+                mStringRefs.put(s, (short) next);
+            }
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        writeByte(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        if (mBufferCap - mBufferPos < 1) drain();
+        mBuffer[mBufferPos++] = (byte) ((v >> 0) & 0xff);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        if (mBufferCap - mBufferPos < 2) drain();
+        mBuffer[mBufferPos++] = (byte) ((v >> 8) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((v >> 0) & 0xff);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        writeShort((short) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        if (mBufferCap - mBufferPos < 4) drain();
+        mBuffer[mBufferPos++] = (byte) ((v >> 24) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((v >> 16) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((v >>  8) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((v >>  0) & 0xff);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        if (mBufferCap - mBufferPos < 8) drain();
+        int i = (int) (v >> 32);
+        mBuffer[mBufferPos++] = (byte) ((i >> 24) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((i >> 16) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((i >>  8) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((i >>  0) & 0xff);
+        i = (int) v;
+        mBuffer[mBufferPos++] = (byte) ((i >> 24) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((i >> 16) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((i >>  8) & 0xff);
+        mBuffer[mBufferPos++] = (byte) ((i >>  0) & 0xff);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        // Callers should use writeUTF()
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        // Callers should use writeUTF()
+        throw new UnsupportedOperationException();
+    }
+}
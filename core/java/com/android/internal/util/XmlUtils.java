@@ -16,6 +16,7 @@
 
 package com.android.internal.util;
 
+import android.annotation.NonNull;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
@@ -24,6 +25,8 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Base64;
+import android.util.TypedXmlPullParser;
+import android.util.TypedXmlSerializer;
 import android.util.Xml;
 
 import libcore.util.HexEncoding;
@@ -51,6 +54,209 @@ public class XmlUtils {
 
     private static final String STRING_ARRAY_SEPARATOR = ":";
 
+    /**
+     * Return a specialization of the given {@link XmlSerializer} which has
+     * explicit methods to support consistent and efficient conversion of
+     * primitive data types.
+     */
+    public static @NonNull TypedXmlSerializer makeTyped(@NonNull XmlSerializer xml) {
+        if (xml instanceof TypedXmlSerializer) {
+            return (TypedXmlSerializer) xml;
+        } else {
+            return new ForcedTypedXmlSerializer(xml);
+        }
+    }
+
+    /**
+     * Return a specialization of the given {@link XmlPullParser} which has
+     * explicit methods to support consistent and efficient conversion of
+     * primitive data types.
+     */
+    public static @NonNull TypedXmlPullParser makeTyped(@NonNull XmlPullParser xml) {
+        if (xml instanceof TypedXmlPullParser) {
+            return (TypedXmlPullParser) xml;
+        } else {
+            return new ForcedTypedXmlPullParser(xml);
+        }
+    }
+
+    /**
+     * Adapter which makes any {@link XmlSerializer} look like a
+     * {@link TypedXmlSerializer} by converting every strongly-typed value into
+     * its human-readable {@link String} representation.
+     */
+    private static class ForcedTypedXmlSerializer extends XmlSerializerWrapper
+            implements TypedXmlSerializer {
+        public ForcedTypedXmlSerializer(XmlSerializer wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public XmlSerializer attributeInterned(String namespace, String name, String value)
+                throws IOException {
+            return attribute(namespace, name, value);
+        }
+
+        @Override
+        public XmlSerializer attributeBytesHex(String namespace, String name, byte[] value)
+                throws IOException {
+            return attribute(namespace, name, HexEncoding.encodeToString(value));
+        }
+
+        @Override
+        public XmlSerializer attributeBytesBase64(String namespace, String name, byte[] value)
+                throws IOException {
+            return attribute(namespace, name, Base64.encodeToString(value, Base64.NO_WRAP));
+        }
+
+        @Override
+        public XmlSerializer attributeInt(String namespace, String name, int value)
+                throws IOException {
+            return attribute(namespace, name, Integer.toString(value));
+        }
+
+        @Override
+        public XmlSerializer attributeIntHex(String namespace, String name, int value)
+                throws IOException {
+            return attribute(namespace, name, Integer.toString(value, 16));
+        }
+
+        @Override
+        public XmlSerializer attributeLong(String namespace, String name, long value)
+                throws IOException {
+            return attribute(namespace, name, Long.toString(value));
+        }
+
+        @Override
+        public XmlSerializer attributeLongHex(String namespace, String name, long value)
+                throws IOException {
+            return attribute(namespace, name, Long.toString(value, 16));
+        }
+
+        @Override
+        public XmlSerializer attributeFloat(String namespace, String name, float value)
+                throws IOException {
+            return attribute(namespace, name, Float.toString(value));
+        }
+
+        @Override
+        public XmlSerializer attributeDouble(String namespace, String name, double value)
+                throws IOException {
+            return attribute(namespace, name, Double.toString(value));
+        }
+
+        @Override
+        public XmlSerializer attributeBoolean(String namespace, String name, boolean value)
+                throws IOException {
+            return attribute(namespace, name, Boolean.toString(value));
+        }
+    }
+
+    /**
+     * Adapter which makes any {@link XmlPullParser} look like a
+     * {@link TypedXmlPullParser} by parsing strongly-typed values from their
+     * human-readable {@link String} representation.
+     */
+    private static class ForcedTypedXmlPullParser extends XmlPullParserWrapper
+            implements TypedXmlPullParser {
+        public ForcedTypedXmlPullParser(XmlPullParser wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public byte[] getAttributeBytesHex(int index) throws XmlPullParserException {
+            try {
+                return HexEncoding.decode(getAttributeValue(index));
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public byte[] getAttributeBytesBase64(int index) throws XmlPullParserException {
+            try {
+                return Base64.decode(getAttributeValue(index), Base64.NO_WRAP);
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public int getAttributeInt(int index) throws XmlPullParserException {
+            try {
+                return Integer.parseInt(getAttributeValue(index));
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public int getAttributeIntHex(int index) throws XmlPullParserException {
+            try {
+                return Integer.parseInt(getAttributeValue(index), 16);
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public long getAttributeLong(int index) throws XmlPullParserException {
+            try {
+                return Long.parseLong(getAttributeValue(index));
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public long getAttributeLongHex(int index) throws XmlPullParserException {
+            try {
+                return Long.parseLong(getAttributeValue(index), 16);
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public float getAttributeFloat(int index) throws XmlPullParserException {
+            try {
+                return Float.parseFloat(getAttributeValue(index));
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public double getAttributeDouble(int index) throws XmlPullParserException {
+            try {
+                return Double.parseDouble(getAttributeValue(index));
+            } catch (Exception e) {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + e);
+            }
+        }
+
+        @Override
+        public boolean getAttributeBoolean(int index) throws XmlPullParserException {
+            final String value = getAttributeValue(index);
+            if ("true".equalsIgnoreCase(value)) {
+                return true;
+            } else if ("false".equalsIgnoreCase(value)) {
+                return false;
+            } else {
+                throw new XmlPullParserException(
+                        "Invalid attribute " + getAttributeName(index) + ": " + value);
+            }
+        }
+    }
+
     @UnsupportedAppUsage
     public static void skipCurrentTag(XmlPullParser parser)
             throws XmlPullParserException, IOException {
@@ -1589,6 +1795,9 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name, int defaultValue) {
+        if (in instanceof TypedXmlPullParser) {
+            return ((TypedXmlPullParser) in).getAttributeInt(null, name, defaultValue);
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1601,6 +1810,13 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof TypedXmlPullParser) {
+            try {
+                return ((TypedXmlPullParser) in).getAttributeInt(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Integer.parseInt(value);
@@ -1611,10 +1827,17 @@ public class XmlUtils {
 
     public static void writeIntAttribute(XmlSerializer out, String name, int value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeInt(null, name, value);
+            return;
+        }
         out.attribute(null, name, Integer.toString(value));
     }
 
     public static long readLongAttribute(XmlPullParser in, String name, long defaultValue) {
+        if (in instanceof TypedXmlPullParser) {
+            return ((TypedXmlPullParser) in).getAttributeLong(null, name, defaultValue);
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1627,6 +1850,13 @@ public class XmlUtils {
     }
 
     public static long readLongAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof TypedXmlPullParser) {
+            try {
+                return ((TypedXmlPullParser) in).getAttributeLong(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Long.parseLong(value);
@@ -1637,10 +1867,21 @@ public class XmlUtils {
 
     public static void writeLongAttribute(XmlSerializer out, String name, long value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeLong(null, name, value);
+            return;
+        }
         out.attribute(null, name, Long.toString(value));
     }
 
     public static float readFloatAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof TypedXmlPullParser) {
+            try {
+                return ((TypedXmlPullParser) in).getAttributeFloat(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Float.parseFloat(value);
@@ -1651,16 +1892,26 @@ public class XmlUtils {
 
     public static void writeFloatAttribute(XmlSerializer out, String name, float value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeFloat(null, name, value);
+            return;
+        }
         out.attribute(null, name, Float.toString(value));
     }
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name) {
+        if (in instanceof TypedXmlPullParser) {
+            return ((TypedXmlPullParser) in).getAttributeBoolean(null, name, false);
+        }
         final String value = in.getAttributeValue(null, name);
         return Boolean.parseBoolean(value);
     }
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name,
             boolean defaultValue) {
+        if (in instanceof TypedXmlPullParser) {
+            return ((TypedXmlPullParser) in).getAttributeBoolean(null, name, defaultValue);
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1671,6 +1922,10 @@ public class XmlUtils {
 
     public static void writeBooleanAttribute(XmlSerializer out, String name, boolean value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeBoolean(null, name, value);
+            return;
+        }
         out.attribute(null, name, Boolean.toString(value));
     }
 
@@ -1698,6 +1953,9 @@ public class XmlUtils {
     }
 
     public static byte[] readByteArrayAttribute(XmlPullParser in, String name) {
+        if (in instanceof TypedXmlPullParser) {
+            return ((TypedXmlPullParser) in).getAttributeBytesBase64(null, name, null);
+        }
         final String value = in.getAttributeValue(null, name);
         if (!TextUtils.isEmpty(value)) {
             return Base64.decode(value, Base64.DEFAULT);
@@ -1708,7 +1966,9 @@ public class XmlUtils {
 
     public static void writeByteArrayAttribute(XmlSerializer out, String name, byte[] value)
             throws IOException {
-        if (value != null) {
+        if (value != null && out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeBytesBase64(null, name, value);
+        } else if (value != null) {
             out.attribute(null, name, Base64.encodeToString(value, Base64.DEFAULT));
         }
     }
@@ -66,6 +66,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -480,6 +481,12 @@ public class TransactionParcelTests {
                 throws RemoteException {
         }
 
+        @Override
+        public void scheduleRegisteredReceivers(List<IBinder> list, List<Intent> list1,
+                int[] ints, List<String> list2, List<Bundle> list3, boolean[] booleans,
+                int[] ints1, int i) throws RemoteException {
+        }
+
         @Override
         public void scheduleLowMemory() throws RemoteException {
         }
@@ -17,6 +17,7 @@
 package android.content.pm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import android.content.pm.PackageParserCacheHelper.ReadHelper;
 import android.content.pm.PackageParserCacheHelper.WriteHelper;
@@ -29,6 +30,8 @@ import androidx.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class PackageParserCacheHelperTest {
@@ -67,4 +70,37 @@ public class PackageParserCacheHelperTest {
         assertEquals(source.getBundle("b1").get("s1"), dest.getBundle("b1").get("s1"));
         assertEquals(source.keySet().size(), dest.keySet().size());
     }
+
+    @Test
+    public void testSharedStringPool() throws Exception {
+        final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+        final Bundle first = readWithPool(writeBundle("android.permission.INTERNET"), pool);
+        final Bundle second = readWithPool(writeBundle("android.permission.INTERNET"), pool);
+
+        assertEquals("android.permission.INTERNET", first.getString("s1"));
+        assertSame(first.getString("s1"), second.getString("s1"));
+    }
+
+    private static Parcel writeBundle(String value) {
+        final Bundle source = new Bundle();
+        source.putString("s1", new String(value));
+
+        final Parcel p = Parcel.obtain();
+        final WriteHelper writeHelper = new WriteHelper(p);
+        source.writeToParcel(p, 0);
+        writeHelper.finishAndUninstall();
+        p.setDataPosition(0);
+        return p;
+    }
+
+    private static Bundle readWithPool(Parcel p, ConcurrentHashMap<String, String> pool) {
+        final ReadHelper readHelper = new ReadHelper(p, pool);
+        readHelper.startAndInstall();
+
+        final Bundle dest = new Bundle();
+        dest.readFromParcel(p);
+        dest.size(); // Unparcel so that the strings are read through the helper.
+        p.recycle();
+        return dest;
+    }
 }
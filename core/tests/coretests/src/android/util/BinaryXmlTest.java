@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.XmlUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link Xml#newBinarySerializer()} and {@link Xml#newBinaryPullParser()}, verifying
+ * that typed values round-trip and that both text and binary streams are transparently
+ * detected by {@link Xml#resolvePullParser}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BinaryXmlTest {
+    private static final byte[] TEST_BYTES = new byte[] { 0, 1, 2, 3, 4, 3, 2, 1, 0 };
+
+    @Test
+    public void testRoundTrip_Binary() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final TypedXmlSerializer out = Xml.newBinarySerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        doWrite(out);
+        doVerifyRead(Xml.resolvePullParser(new ByteArrayInputStream(os.toByteArray())));
+    }
+
+    @Test
+    public void testRoundTrip_Text() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final TypedXmlSerializer out = Xml.newFastSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        doWrite(out);
+        doVerifyRead(Xml.resolvePullParser(new ByteArrayInputStream(os.toByteArray())));
+    }
+
+    @Test
+    public void testUntypedReader() throws Exception {
+        // Existing callers that only know about XmlPullParser should still see
+        // human-readable values for strongly-typed attributes
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final TypedXmlSerializer out = Xml.newBinarySerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        doWrite(out);
+
+        final TypedXmlPullParser in = Xml.resolvePullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertNext(in, START_TAG, "one", 1);
+        assertEquals("12", in.getAttributeValue(null, "int"));
+        assertEquals("ff", in.getAttributeValue(null, "intHex"));
+        assertEquals("true", in.getAttributeValue(null, "booleanTrue"));
+        assertEquals("3.14", in.getAttributeValue(null, "float"));
+    }
+
+    @Test
+    public void testXmlUtilsHelpers() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final TypedXmlSerializer out = Xml.newBinarySerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "tag");
+        XmlUtils.writeIntAttribute(out, "i", 42);
+        XmlUtils.writeLongAttribute(out, "l", 43L);
+        XmlUtils.writeBooleanAttribute(out, "b", true);
+        XmlUtils.writeByteArrayAttribute(out, "bytes", TEST_BYTES);
+        out.endTag(null, "tag");
+        out.endDocument();
+
+        final TypedXmlPullParser in = Xml.resolvePullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertNext(in, START_TAG, "tag", 1);
+        assertEquals(42, XmlUtils.readIntAttribute(in, "i"));
+        assertEquals(43L, XmlUtils.readLongAttribute(in, "l"));
+        assertTrue(XmlUtils.readBooleanAttribute(in, "b"));
+        assertEquals(-1, XmlUtils.readIntAttribute(in, "missing", -1));
+        assertArrayEquals(TEST_BYTES, XmlUtils.readByteArrayAttribute(in, "bytes"));
+    }
+
+    @Test
+    public void testInvalidConversion() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final TypedXmlSerializer out = Xml.newBinarySerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "tag");
+        out.attribute(null, "name", "not a number");
+        out.endTag(null, "tag");
+        out.endDocument();
+
+        final TypedXmlPullParser in = Xml.resolvePullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertNext(in, START_TAG, "tag", 1);
+        assertEquals(7, in.getAttributeInt(null, "name", 7));
+        try {
+            in.getAttributeInt(null, "name");
+            fail();
+        } catch (XmlPullParserException expected) {
+        }
+        try {
+            in.getAttributeInt(null, "missing");
+            fail();
+        } catch (XmlPullParserException expected) {
+        }
+    }
+
+    private static void doWrite(TypedXmlSerializer out) throws IOException {
+        out.startDocument(StandardCharsets.UTF_8.name(), true);
+        out.startTag(null, "one");
+        {
+            out.attribute(null, "string", "foo");
+            out.attributeInterned(null, "stringInterned", "bar");
+            out.attributeBytesHex(null, "bytesHex", TEST_BYTES);
+            out.attributeBytesBase64(null, "bytesBase64", TEST_BYTES);
+            out.attributeInt(null, "int", 12);
+            out.attributeIntHex(null, "intHex", 255);
+            out.attributeLong(null, "long", 17L);
+            out.attributeLongHex(null, "longHex", 0xcafeL);
+            out.attributeFloat(null, "float", 3.14f);
+            out.attributeDouble(null, "double", 3.14159);
+            out.attributeBoolean(null, "booleanTrue", true);
+            out.attributeBoolean(null, "booleanFalse", false);
+
+            out.startTag(null, "two");
+            out.text("hello");
+            out.text("&");
+            out.text("world");
+            out.endTag(null, "two");
+
+            out.startTag(null, "three");
+            out.endTag(null, "three");
+        }
+        out.endTag(null, "one");
+        out.endDocument();
+    }
+
+    private static void doVerifyRead(TypedXmlPullParser in) throws Exception {
+        assertNext(in, START_TAG, "one", 1);
+        {
+            assertEquals(12, in.getAttributeCount());
+            assertEquals("foo", in.getAttributeValue(null, "string"));
+            assertEquals("bar", in.getAttributeValue(null, "stringInterned"));
+            assertArrayEquals(TEST_BYTES, in.getAttributeBytesHex(null, "bytesHex"));
+            assertArrayEquals(TEST_BYTES, in.getAttributeBytesBase64(null, "bytesBase64"));
+            assertEquals(12, in.getAttributeInt(null, "int"));
+            assertEquals(255, in.getAttributeIntHex(null, "intHex"));
+            assertEquals(17L, in.getAttributeLong(null, "long"));
+            assertEquals(0xcafeL, in.getAttributeLongHex(null, "longHex"));
+            assertEquals(3.14f, in.getAttributeFloat(null, "float"), 0.0f);
+            assertEquals(3.14159, in.getAttributeDouble(null, "double"), 0.0);
+            assertTrue(in.getAttributeBoolean(null, "booleanTrue"));
+            assertFalse(in.getAttributeBoolean(null, "booleanFalse"));
+            assertNull(in.getAttributeValue(null, "missing"));
+
+            assertNext(in, START_TAG, "two", 2);
+            assertNext(in, TEXT, null, 2);
+            assertEquals("hello&world", in.getText());
+            assertNext(in, END_TAG, "two", 2);
+
+            assertNext(in, START_TAG, "three", 2);
+            assertNext(in, END_TAG, "three", 2);
+        }
+        assertNext(in, END_TAG, "one", 1);
+        assertNext(in, END_DOCUMENT, null, 0);
+    }
+
+    private static void assertNext(TypedXmlPullParser in, int token, String name, int depth)
+            throws Exception {
+        assertEquals("next", token, in.next());
+        assertEquals("name", name, in.getName());
+        assertEquals("depth", depth, in.getDepth());
+    }
+}
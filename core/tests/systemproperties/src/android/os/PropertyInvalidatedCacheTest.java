@@ -18,10 +18,14 @@ package android.os;
 
 import android.app.PropertyInvalidatedCache;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import junit.framework.TestCase;
 
+import java.util.Random;
+
 public class PropertyInvalidatedCacheTest extends TestCase {
+    private static final String TAG = "PropertyInvalidatedCacheTest";
     private static final String KEY = "sys.testkey";
     private static final String UNSET_KEY = "Aiw7woh6ie4toh7W";
 
@@ -31,7 +35,11 @@ public class PropertyInvalidatedCacheTest extends TestCase {
         }
 
         TestCache(String key) {
-            super(4, key);
+            this(key, 4);
+        }
+
+        TestCache(String key, int maxEntries) {
+            super(maxEntries, key);
         }
 
         @Override
@@ -165,4 +173,56 @@ public class PropertyInvalidatedCacheTest extends TestCase {
         assertEquals(3, cache.getRecomputeCount());
     }
 
+    @SmallTest
+    public void testCounters() throws Exception {
+        TestCache cache = new TestCache();
+        assertEquals("foo1", cache.query(1));
+        assertEquals(1, cache.getSkipCount());
+        cache.invalidateCache();
+        for (int i = 1; i <= 5; i++) {
+            assertEquals("foo" + i, cache.query(i));
+        }
+        assertEquals("foo5", cache.query(5));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(5, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        cache.disableLocal();
+        assertEquals("foo5", cache.query(5));
+        assertEquals(2, cache.getSkipCount());
+        assertEquals(1 + 5 + 1, cache.getRecomputeCount());
+    }
+
+    /**
+     * Checks the hit rate on a synthetic sequence of lookups, randomly generated and skewed so
+     * that a few keys are looked up over and over, with one invalidation half way. Every
+     * recompute stands for a binder transaction.
+     */
+    @SmallTest
+    public void testSyntheticHitRate() throws Exception {
+        final int queries = 2000;
+        final int distinctKeys = 24;
+        final Random random = new Random(42);
+        final int[] lookups = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            // Skewed towards small keys
+            final double r = random.nextDouble();
+            lookups[i] = (int) (r * r * r * distinctKeys);
+        }
+
+        TestCache cache = new TestCache(KEY, 32);
+        cache.invalidateCache();
+        for (int i = 0; i < queries; i++) {
+            if (i == queries / 2) {
+                cache.invalidateCache();
+            }
+            assertEquals("foo" + lookups[i], cache.query(lookups[i]));
+        }
+        final int transactions = cache.getRecomputeCount();
+        assertEquals(queries, cache.getHitCount() + cache.getMissCount());
+        assertEquals(transactions, cache.getMissCount());
+        assertTrue(transactions < queries / 10);
+        Log.i(TAG, "made " + queries + " synthetic lookups with " + transactions
+                + " binder transactions, " + (queries - transactions) + " avoided, "
+                + cache.getEvictionCount() + " evictions");
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to a {@link SettingsState} since its settings file was
+ * last written in full.
+ * <p>
+ * The journal starts with a header naming the id of the full settings file it applies to,
+ * followed by length-prefixed and checksummed records, each of which carries the complete
+ * state of one setting. A record torn by a crash is dropped on load along with anything after
+ * it, and a journal whose id doesn't match the settings file it's loaded against is ignored.
+ * <p>
+ * This class isn't thread-safe; {@link SettingsState} serializes all access to it.
+ */
+final class SettingsJournal {
+    private static final String LOG_TAG = "SettingsJournal";
+
+    static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x534A524E; // "SJRN"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_VERSION = 3;
+
+    /** Longest run of chars written with a single {@link DataOutputStream#writeUTF}. */
+    private static final int MAX_UTF_CHUNK = 16383;
+
+    /** Receives the records of a journal as it's read. */
+    interface Reader {
+        void onPut(String id, String name, String value, String defaultValue,
+                String packageName, String tag, boolean defaultFromSystem,
+                boolean preservedInRestore);
+
+        void onDelete(String name);
+
+        void onVersion(int version);
+    }
+
+    /** A batch of records which are appended to the journal together. */
+    static final class Batch {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+        private int mRecordCount;
+
+        void put(String id, String name, String value, String defaultValue,
+                String packageName, String tag, boolean defaultFromSystem,
+                boolean preservedInRestore) throws IOException {
+            mRecord.writeByte(RECORD_PUT);
+            writeString(mRecord, id);
+            writeString(mRecord, name);
+            writeString(mRecord, value);
+            writeString(mRecord, defaultValue);
+            writeString(mRecord, packageName);
+            writeString(mRecord, tag);
+            mRecord.writeBoolean(defaultFromSystem);
+            mRecord.writeBoolean(preservedInRestore);
+            finishRecord();
+        }
+
+        void delete(String name) throws IOException {
+            mRecord.writeByte(RECORD_DELETE);
+            writeString(mRecord, name);
+            finishRecord();
+        }
+
+        void version(int version) throws IOException {
+            mRecord.writeByte(RECORD_VERSION);
+            mRecord.writeInt(version);
+            finishRecord();
+        }
+
+        boolean isEmpty() {
+            return mRecordCount == 0;
+        }
+
+        private void finishRecord() throws IOException {
+            mRecord.flush();
+            final byte[] payload = mRecordBytes.toByteArray();
+            mRecordBytes.reset();
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            mOut.writeInt(payload.length);
+            mOut.write(payload);
+            mOut.writeInt((int) crc.getValue());
+            mRecordCount++;
+        }
+    }
+
+    private final File mFile;
+
+    /** Length of the intact part of the journal, which is where the next batch goes. */
+    private long mLength;
+
+    private long mBytesWritten;
+    private int mSyncCount;
+
+    SettingsJournal(File settingsFile) {
+        mFile = new File(settingsFile.getPath() + JOURNAL_FILE_SUFFIX);
+    }
+
+    /**
+     * Hands every intact record of the journal to {@code reader}, if the journal was written
+     * against the settings file with the given id.
+     *
+     * @return whether the whole journal applied cleanly, in which case new batches may be
+     * appended to it; otherwise the caller must {@link #reset} it before appending
+     */
+    boolean read(long snapshotId, Reader reader) {
+        mLength = 0;
+        FileInputStream fis = null;
+        int records = 0;
+        try {
+            fis = new AtomicFile(mFile).openRead();
+            final long fileLength = fis.getChannel().size();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(LOG_TAG, "Ignoring journal with unknown header " + mFile);
+                return false;
+            }
+            if (in.readLong() != snapshotId) {
+                // Written against a different settings file, e.g. we crashed between writing
+                // the settings file and starting its journal
+                return false;
+            }
+            long length = Integer.BYTES * 2 + Long.BYTES;
+            while (true) {
+                final int payloadLength;
+                try {
+                    payloadLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (payloadLength <= 0 || payloadLength > fileLength - length) {
+                    throw new IOException("Bad record length " + payloadLength);
+                }
+                final byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    throw new IOException("Bad record checksum");
+                }
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload)),
+                        reader);
+                length += Integer.BYTES + payloadLength + Integer.BYTES;
+                mLength = length;
+                records++;
+            }
+            mLength = length;
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            // A torn final record is expected after an unclean shutdown; keep everything we
+            // managed to read, and let the caller start over with a compacted journal
+            Slog.w(LOG_TAG, "Truncated settings journal " + mFile + " after " + records
+                    + " records", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
+    private static void applyRecord(DataInputStream in, Reader reader) throws IOException {
+        final byte op = in.readByte();
+        switch (op) {
+            case RECORD_PUT:
+                reader.onPut(readString(in), readString(in), readString(in), readString(in),
+                        readString(in), readString(in), in.readBoolean(), in.readBoolean());
+                break;
+            case RECORD_DELETE:
+                reader.onDelete(readString(in));
+                break;
+            case RECORD_VERSION:
+                reader.onVersion(in.readInt());
+                break;
+            default:
+                throw new IOException("Unknown record " + op);
+        }
+    }
+
+    /**
+     * Replaces the journal with an empty one for the settings file with the given id. Must be
+     * called after that settings file has been durably written.
+     */
+    void reset(long snapshotId) throws IOException {
+        final AtomicFile file = new AtomicFile(mFile);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshotId);
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            file.failWrite(fos);
+            throw e;
+        }
+        mLength = Integer.BYTES * 2 + Long.BYTES;
+        mBytesWritten += mLength;
+        mSyncCount++;
+    }
+
+    /**
+     * Durably appends {@code batch} to the journal. If this throws, the journal may hold part
+     * of the batch, and must be {@link #reset} before anything else is appended.
+     */
+    void append(Batch batch) throws IOException {
+        batch.mOut.flush();
+        final byte[] bytes = batch.mBytes.toByteArray();
+        try (FileOutputStream fos = new FileOutputStream(mFile, true /* append */)) {
+            // Drop whatever a previous failed append may have left past the intact prefix
+            fos.getChannel().truncate(mLength);
+            fos.write(bytes);
+            FileUtils.sync(fos);
+        }
+        mLength += bytes.length;
+        mBytesWritten += bytes.length;
+        mSyncCount++;
+    }
+
+    /** Deletes the journal, leaving the full settings file as the only persisted state. */
+    void delete() {
+        new AtomicFile(mFile).delete();
+        mLength = 0;
+    }
+
+    /** Returns the current length of the journal in bytes. */
+    long length() {
+        return mLength;
+    }
+
+    /** Returns the number of bytes written to the journal since this object was created. */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Returns the number of times the journal was synced since this object was created. */
+    int getSyncCount() {
+        return mSyncCount;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // writeUTF() is lossless for any char sequence, including broken surrogate pairs, but
+        // limited to 64K bytes, so longer strings are written in chunks
+        final int length = s.length();
+        out.writeInt(length);
+        for (int start = 0; start < length; start += MAX_UTF_CHUNK) {
+            out.writeUTF(s.substring(start, Math.min(length, start + MAX_UTF_CHUNK)));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(in.readUTF());
+        }
+        if (sb.length() != length) {
+            throw new IOException("Bad string length " + length);
+        }
+        return sb.toString();
+    }
+}
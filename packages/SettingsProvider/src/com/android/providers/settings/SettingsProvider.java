@@ -825,6 +825,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(configSettings, pw);
                 pw.println();
                 configSettings.dumpHistoricalOperations(pw);
+                configSettings.dumpPersistenceStats(pw);
             }
 
             pw.println("GLOBAL SETTINGS (user " + userId + ")");
@@ -834,6 +835,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
                 globalSettings.dumpHistoricalOperations(pw);
+                globalSettings.dumpPersistenceStats(pw);
             }
         }
 
@@ -844,6 +846,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
             secureSettings.dumpHistoricalOperations(pw);
+            secureSettings.dumpPersistenceStats(pw);
         }
 
         pw.println("SYSTEM SETTINGS (user " + userId + ")");
@@ -853,6 +856,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
             systemSettings.dumpHistoricalOperations(pw);
+            systemSettings.dumpPersistenceStats(pw);
         }
     }
 
@@ -1067,10 +1071,7 @@ public class SettingsProvider extends ContentProvider {
         DeviceConfig.enforceReadPermission(getContext(), /*namespace=*/name.split("/")[0]);
 
         // Get the value.
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_CONFIG,
-                    UserHandle.USER_SYSTEM, name);
-        }
+        return mSettingsRegistry.getSetting(SETTINGS_TYPE_CONFIG, UserHandle.USER_SYSTEM, name);
     }
 
     private boolean insertConfigSetting(String name, String value, boolean makeDefault) {
@@ -1209,10 +1210,7 @@ public class SettingsProvider extends ContentProvider {
         enforceSettingReadable(name, SETTINGS_TYPE_GLOBAL, UserHandle.getCallingUserId());
 
         // Get the value.
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_GLOBAL,
-                    UserHandle.USER_SYSTEM, name);
-        }
+        return mSettingsRegistry.getSetting(SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM, name);
     }
 
     private boolean updateGlobalSetting(String name, String value, String tag,
@@ -1426,10 +1424,7 @@ public class SettingsProvider extends ContentProvider {
         }
 
         // Not the SSAID; do a straight lookup
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_SECURE,
-                    owningUserId, name);
-        }
+        return mSettingsRegistry.getSetting(SETTINGS_TYPE_SECURE, owningUserId, name);
     }
 
     private boolean isNewSsaidSetting(String name) {
@@ -1702,9 +1697,7 @@ public class SettingsProvider extends ContentProvider {
         final int owningUserId = resolveOwningUserIdForSystemSettingLocked(callingUserId, name);
 
         // Get the value.
-        synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_SYSTEM, owningUserId, name);
-        }
+        return mSettingsRegistry.getSetting(SETTINGS_TYPE_SYSTEM, owningUserId, name);
     }
 
     private boolean insertSystemSetting(String name, String value, int requestingUserId,
@@ -2572,6 +2565,18 @@ public class SettingsProvider extends ContentProvider {
 
         private final SparseArray<SettingsState> mSettingsStates = new SparseArray<>();
 
+        /**
+         * Copy of {@link #mSettingsStates} which is never modified once published, letting
+         * {@link #getSetting(int, int, String)} find a loaded settings state without the lock.
+         */
+        private volatile SparseArray<SettingsState> mSettingsStatesSnapshot = new SparseArray<>();
+
+        /**
+         * Guards the generation tracking data, which is read for every client query and so
+         * must not contend with writers holding {@link #mLock}.
+         */
+        private final Object mGenerationLock = new Object();
+
         private GenerationRegistry mGenerationRegistry;
 
         private final Handler mHandler;
@@ -2582,7 +2587,7 @@ public class SettingsProvider extends ContentProvider {
 
         public SettingsRegistry() {
             mHandler = new MyHandler(getContext().getMainLooper());
-            mGenerationRegistry = new GenerationRegistry(mLock);
+            mGenerationRegistry = new GenerationRegistry(mGenerationLock);
             mBackupManager = new BackupManager(getContext());
             migrateAllLegacySettingsIfNeeded();
             syncSsaidTableOnStart();
@@ -2782,9 +2787,19 @@ public class SettingsProvider extends ContentProvider {
                 SettingsState settingsState = new SettingsState(getContext(), mLock,
                         getSettingsFile(key), key, maxBytesPerPackage, mHandlerThread.getLooper());
                 mSettingsStates.put(key, settingsState);
+                publishSettingsStatesLocked();
             }
         }
 
+        private void removeSettingsStateLocked(int key) {
+            mSettingsStates.remove(key);
+            publishSettingsStatesLocked();
+        }
+
+        private void publishSettingsStatesLocked() {
+            mSettingsStatesSnapshot = mSettingsStates.clone();
+        }
+
         public void removeUserStateLocked(int userId, boolean permanently) {
             // We always keep the global settings in memory.
 
@@ -2793,13 +2808,16 @@ public class SettingsProvider extends ContentProvider {
             final SettingsState systemSettingsState = mSettingsStates.get(systemKey);
             if (systemSettingsState != null) {
                 if (permanently) {
-                    mSettingsStates.remove(systemKey);
+                    removeSettingsStateLocked(systemKey);
                     systemSettingsState.destroyLocked(null);
                 } else {
                     systemSettingsState.destroyLocked(new Runnable() {
                         @Override
                         public void run() {
-                            mSettingsStates.remove(systemKey);
+                            // Runs on the persistence handler, without the lock held
+                            synchronized (mLock) {
+                                removeSettingsStateLocked(systemKey);
+                            }
                         }
                     });
                 }
@@ -2810,13 +2828,16 @@ public class SettingsProvider extends ContentProvider {
             final SettingsState secureSettingsState = mSettingsStates.get(secureKey);
             if (secureSettingsState != null) {
                 if (permanently) {
-                    mSettingsStates.remove(secureKey);
+                    removeSettingsStateLocked(secureKey);
                     secureSettingsState.destroyLocked(null);
                 } else {
                     secureSettingsState.destroyLocked(new Runnable() {
                         @Override
                         public void run() {
-                            mSettingsStates.remove(secureKey);
+                            // Runs on the persistence handler, without the lock held
+                            synchronized (mLock) {
+                                removeSettingsStateLocked(secureKey);
+                            }
                         }
                     });
                 }
@@ -2827,13 +2848,16 @@ public class SettingsProvider extends ContentProvider {
             final SettingsState ssaidSettingsState = mSettingsStates.get(ssaidKey);
             if (ssaidSettingsState != null) {
                 if (permanently) {
-                    mSettingsStates.remove(ssaidKey);
+                    removeSettingsStateLocked(ssaidKey);
                     ssaidSettingsState.destroyLocked(null);
                 } else {
                     ssaidSettingsState.destroyLocked(new Runnable() {
                         @Override
                         public void run() {
-                            mSettingsStates.remove(ssaidKey);
+                            // Runs on the persistence handler, without the lock held
+                            synchronized (mLock) {
+                                removeSettingsStateLocked(ssaidKey);
+                            }
                         }
                     });
                 }
@@ -2955,6 +2979,22 @@ public class SettingsProvider extends ContentProvider {
             return settingsState.getSettingLocked(name);
         }
 
+        /**
+         * Lock-free equivalent of {@link #getSettingLocked(int, int, String)}, which only takes
+         * the lock when the settings state for {@code userId} hasn't been loaded yet. The
+         * returned setting is shared and must not be modified.
+         */
+        public Setting getSetting(int type, int userId, String name) {
+            final SettingsState settingsState = mSettingsStatesSnapshot.get(
+                    makeKey(type, userId));
+            if (settingsState != null) {
+                return settingsState.getSetting(name);
+            }
+            synchronized (mLock) {
+                return getSettingLocked(type, userId, name);
+            }
+        }
+
         public void resetSettingsLocked(int type, int userId, String packageName, int mode,
                 String tag) {
             resetSettingsLocked(type, userId, packageName, mode, tag, /*prefix=*/
@@ -37,7 +37,9 @@ import android.provider.Settings;
 import android.provider.Settings.Global;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -47,6 +49,7 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FrameworkStatsLog;
 
@@ -72,6 +75,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class contains the state for one type of settings. It is responsible
@@ -97,6 +101,12 @@ final class SettingsState {
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
 
+    /**
+     * The settings file is rewritten in full once the journal of changes made since it was last
+     * written grows past both this size and the size of the settings file itself.
+     */
+    private static final long MIN_JOURNAL_COMPACTION_BYTES = 16 * 1024;
+
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
 
@@ -112,6 +122,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_JOURNAL_ID = "journalId";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -143,6 +154,7 @@ final class SettingsState {
     private static final String HISTORICAL_OPERATION_UPDATE = "update";
     private static final String HISTORICAL_OPERATION_DELETE = "delete";
     private static final String HISTORICAL_OPERATION_PERSIST = "persist";
+    private static final String HISTORICAL_OPERATION_COMPACT = "compact";
     private static final String HISTORICAL_OPERATION_INITIALIZE = "initialize";
     private static final String HISTORICAL_OPERATION_RESET = "reset";
 
@@ -171,6 +183,61 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final ArrayMap<String, Setting> mSettings = new ArrayMap<>();
 
+    /**
+     * Copy of {@link #mSettings} which is never modified once published, so that
+     * {@link #getSetting(String)} can be served without holding {@link #mLock}. Every mutator
+     * republishes it before returning, which also happens before the change is notified.
+     */
+    private volatile ArrayMap<String, Setting> mSettingsSnapshot = new ArrayMap<>();
+
+    /** Names of the settings changed since {@link #mSettingsSnapshot} was last published. */
+    @GuardedBy("mLock")
+    private final ArraySet<String> mSnapshotChangedNames = new ArraySet<>();
+
+    /** Names of the settings changed since they were last handed to {@link #doWriteState}. */
+    @GuardedBy("mLock")
+    private final ArraySet<String> mUnpersistedNames = new ArraySet<>();
+
+    /** Version most recently handed to {@link #doWriteState}. */
+    @GuardedBy("mLock")
+    private int mUnpersistedVersion = VERSION_UNDEFINED;
+
+    /** Incremented each time {@link #doWriteState} captures the state to write. */
+    @GuardedBy("mLock")
+    private long mPersistSeq;
+
+    /**
+     * Set when the next write must rewrite the settings file in full, e.g. because the journal
+     * is missing or damaged, or a previous write failed. Set under either lock, so it's atomic
+     * rather than guarded by one of them.
+     */
+    private final AtomicBoolean mFullWriteRequested = new AtomicBoolean(true);
+
+    @GuardedBy("mWriteLock")
+    private final SettingsJournal mJournal;
+
+    /** Id of the settings file on disk, which its journal must carry to be applied. */
+    @GuardedBy("mWriteLock")
+    private long mJournalId;
+
+    /** Id read from the settings file while loading, before its journal is applied. */
+    @GuardedBy("mLock")
+    private long mParsedJournalId;
+
+    @GuardedBy("mWriteLock")
+    private long mLastPersistedSeq;
+
+    @GuardedBy("mWriteLock")
+    private long mSettingsFileBytes;
+
+    @GuardedBy("mWriteLock")
+    private long mFullWriteBytes;
+
+    @GuardedBy("mWriteLock")
+    private int mFullWriteCount;
+
+    private final long mCreationTimeMillis = SystemClock.elapsedRealtime();
+
     @GuardedBy("mLock")
     private final ArrayMap<String, String> mNamespaceBannedHashes = new ArrayMap<>();
 
@@ -287,9 +354,14 @@ final class SettingsState {
 
         mHistoricalOperations = Build.IS_DEBUGGABLE
                 ? new ArrayList<>(HISTORICAL_OPERATION_COUNT) : null;
+        mJournal = new SettingsJournal(file);
 
         synchronized (mLock) {
             readStateSyncLocked();
+            readJournalLocked();
+            mUnpersistedVersion = mVersion;
+            mSnapshotChangedNames.addAll(mSettings.keySet());
+            publishSnapshotLocked();
         }
     }
 
@@ -330,11 +402,13 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                markChangedLocked(name);
                 removedSomething = true;
             }
         }
 
         if (removedSomething) {
+            publishSnapshotLocked();
             scheduleWriteIfNeededLocked();
         }
     }
@@ -364,6 +438,21 @@ final class SettingsState {
         return mNullSetting;
     }
 
+    /**
+     * Lock-free equivalent of {@link #getSettingLocked(String)}, served from the most recently
+     * published snapshot. The returned setting is shared and must not be modified.
+     */
+    public Setting getSetting(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return mNullSetting;
+        }
+        Setting setting = mSettingsSnapshot.get(name);
+        if (setting != null) {
+            return setting;
+        }
+        return mNullSetting;
+    }
+
     // The settings provider must hold its lock when calling here.
     public boolean updateSettingLocked(String name, String value, String tag,
             boolean makeValue, String packageName) {
@@ -387,6 +476,8 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
+            markChangedLocked(name);
+            publishSnapshotLocked();
             scheduleWriteIfNeededLocked();
         }
     }
@@ -442,6 +533,9 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        markChangedLocked(name);
+        publishSnapshotLocked();
+
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -467,6 +561,7 @@ final class SettingsState {
         // to unban all unbanned namespaces.
         if (mNamespaceBannedHashes.get(prefix) != null) {
             mNamespaceBannedHashes.clear();
+            mFullWriteRequested.set(true);
             scheduleWriteIfNeededLocked();
         }
     }
@@ -479,6 +574,8 @@ final class SettingsState {
         // The write is intentionally not scheduled here, banned hashes should and will be written
         // when the related setting changes are written
         mNamespaceBannedHashes.put(prefix, hashCode(keyValues));
+        // Banned hashes aren't journaled, so they're only persisted by a full write
+        mFullWriteRequested.set(true);
     }
 
     @GuardedBy("mLock")
@@ -538,6 +635,10 @@ final class SettingsState {
         }
 
         if (!changedKeys.isEmpty()) {
+            for (int i = 0; i < changedKeys.size(); i++) {
+                markChangedLocked(changedKeys.get(i));
+            }
+            publishSnapshotLocked();
             scheduleWriteIfNeededLocked();
         }
 
@@ -568,6 +669,9 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        markChangedLocked(name);
+        publishSnapshotLocked();
+
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -598,6 +702,9 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        markChangedLocked(name);
+        publishSnapshotLocked();
+
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -618,6 +725,37 @@ final class SettingsState {
         }
     }
 
+    @GuardedBy("mLock")
+    private void markChangedLocked(String name) {
+        mSnapshotChangedNames.add(name);
+        mUnpersistedNames.add(name);
+    }
+
+    /**
+     * Publishes a new {@link #mSettingsSnapshot} reflecting the settings named in
+     * {@link #mSnapshotChangedNames}. Unchanged entries are shared with the previous snapshot,
+     * so a write only costs a copy of the map's arrays plus a copy of each changed setting.
+     */
+    @GuardedBy("mLock")
+    private void publishSnapshotLocked() {
+        final int changedCount = mSnapshotChangedNames.size();
+        if (changedCount == 0) {
+            return;
+        }
+        final ArrayMap<String, Setting> snapshot = new ArrayMap<>(mSettingsSnapshot);
+        for (int i = 0; i < changedCount; i++) {
+            final String name = mSnapshotChangedNames.valueAt(i);
+            final Setting setting = mSettings.get(name);
+            if (setting != null) {
+                snapshot.put(name, new Setting(setting));
+            } else {
+                snapshot.remove(name);
+            }
+        }
+        mSnapshotChangedNames.clear();
+        mSettingsSnapshot = snapshot;
+    }
+
     @GuardedBy("mLock")
     private void addHistoricalOperationLocked(String type, Setting setting) {
         if (mHistoricalOperations == null) {
@@ -783,107 +921,279 @@ final class SettingsState {
 
     private void doWriteState() {
         boolean wroteState = false;
+        boolean compacted = false;
         final int version;
-        final ArrayMap<String, Setting> settings;
+        final boolean versionChanged;
+        final String[] changedNames;
         final ArrayMap<String, String> namespaceBannedHashes;
+        final boolean fullWriteRequested;
+        final long seq;
 
         synchronized (mLock) {
             version = mVersion;
-            settings = new ArrayMap<>(mSettings);
+            versionChanged = mVersion != mUnpersistedVersion;
+            mUnpersistedVersion = mVersion;
+            changedNames = mUnpersistedNames.toArray(new String[mUnpersistedNames.size()]);
+            mUnpersistedNames.clear();
             namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
+            fullWriteRequested = mFullWriteRequested.getAndSet(false);
+            seq = ++mPersistSeq;
             mDirty = false;
             mWriteScheduled = false;
         }
 
         synchronized (mWriteLock) {
-            if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST START]");
+            // The settings themselves are only read now, so that a write which loses the race
+            // for mWriteLock never persists values older than those a later write already has.
+            final ArrayMap<String, Setting> settings = mSettingsSnapshot;
+            final boolean stale = seq < mLastPersistedSeq;
+            mLastPersistedSeq = Math.max(mLastPersistedSeq, seq);
+
+            if (fullWriteRequested || mJournal.length()
+                    > Math.max(MIN_JOURNAL_COMPACTION_BYTES, mSettingsFileBytes)) {
+                wroteState = writeSettingsFile(version, settings, namespaceBannedHashes);
+                compacted = true;
+            } else {
+                wroteState = appendToJournal(changedNames, settings, version,
+                        versionChanged && !stale);
             }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    if (setting.isTransient()) {
-                        if (DEBUG_PERSISTENCE) {
-                            Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
-                        }
-                        continue;
-                    }
+            if (!wroteState || stale) {
+                // Either the journal no longer matches what's in memory, or a stale version or
+                // banned hashes may have been written; start over from a full write.
+                mFullWriteRequested.set(true);
+                if (stale) {
+                    mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS).sendToTarget();
+                }
+            }
+        }
 
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem(),
-                            setting.isValuePreservedInRestore());
+        if (wroteState) {
+            synchronized (mLock) {
+                addHistoricalOperationLocked(compacted
+                        ? HISTORICAL_OPERATION_COMPACT : HISTORICAL_OPERATION_PERSIST, null);
+            }
+        }
+    }
 
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
-                    }
-                }
-                serializer.endTag(null, TAG_SETTINGS);
+    /**
+     * Rewrites the settings file in full, and starts a new, empty journal for it.
+     */
+    @GuardedBy("mWriteLock")
+    private boolean writeSettingsFile(int version, ArrayMap<String, Setting> settings,
+            ArrayMap<String, String> namespaceBannedHashes) {
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[PERSIST START]");
+        }
 
-                serializer.startTag(null, TAG_NAMESPACE_HASHES);
-                for (int i = 0; i < namespaceBannedHashes.size(); i++) {
-                    String namespace = namespaceBannedHashes.keyAt(i);
-                    String bannedHash = namespaceBannedHashes.get(namespace);
-                    writeSingleNamespaceHash(serializer, namespace, bannedHash);
+        // Ids are never 0, which stands for a settings file without a journal
+        final long journalId = mJournalId + 1 != 0 ? mJournalId + 1 : 1;
+        AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+
+            XmlSerializer serializer = Xml.newSerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                    true);
+            serializer.startDocument(null, true);
+            serializer.startTag(null, TAG_SETTINGS);
+            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+            serializer.attribute(null, ATTR_JOURNAL_ID, String.valueOf(journalId));
+
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                Setting setting = settings.valueAt(i);
+
+                if (setting.isTransient()) {
                     if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED] namespace=" + namespace
-                                + ", bannedHash=" + bannedHash);
+                        Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
                     }
+                    continue;
                 }
-                serializer.endTag(null, TAG_NAMESPACE_HASHES);
-                serializer.endDocument();
-                destination.finishWrite(out);
 
-                wroteState = true;
+                writeSingleSetting(version, serializer, setting.getId(), setting.getName(),
+                        setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                        setting.getTag(), setting.isDefaultFromSystem(),
+                        setting.isValuePreservedInRestore());
 
                 if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
+                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                            + setting.getValue());
                 }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                if (t instanceof IOException) {
-                    // we failed to create a directory, so log the permissions and existence
-                    // state for the settings file and directory
-                    logSettingsDirectoryInformation(destination.getBaseFile());
-                    if (t.getMessage().contains("Couldn't create directory")) {
-                        // attempt to create the directory with Files.createDirectories, which
-                        // throws more informative errors than File.mkdirs.
-                        Path parentPath = destination.getBaseFile().getParentFile().toPath();
-                        try {
-                            Files.createDirectories(parentPath);
-                            Slog.i(LOG_TAG, "Successfully created " + parentPath);
-                        } catch (Throwable t2) {
-                            Slog.e(LOG_TAG, "Failed to write " + parentPath
-                                    + " with Files.writeDirectories", t2);
-                        }
+            }
+            serializer.endTag(null, TAG_SETTINGS);
+
+            serializer.startTag(null, TAG_NAMESPACE_HASHES);
+            for (int i = 0; i < namespaceBannedHashes.size(); i++) {
+                String namespace = namespaceBannedHashes.keyAt(i);
+                String bannedHash = namespaceBannedHashes.get(namespace);
+                writeSingleNamespaceHash(serializer, namespace, bannedHash);
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[PERSISTED] namespace=" + namespace
+                            + ", bannedHash=" + bannedHash);
+                }
+            }
+            serializer.endTag(null, TAG_NAMESPACE_HASHES);
+            serializer.endDocument();
+            destination.finishWrite(out);
+
+            mJournalId = journalId;
+            mSettingsFileBytes = mStatePersistFile.length();
+            mFullWriteBytes += mSettingsFileBytes;
+            mFullWriteCount++;
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST END]");
+            }
+        } catch (Throwable t) {
+            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+            if (t instanceof IOException) {
+                // we failed to create a directory, so log the permissions and existence
+                // state for the settings file and directory
+                logSettingsDirectoryInformation(destination.getBaseFile());
+                if (t.getMessage().contains("Couldn't create directory")) {
+                    // attempt to create the directory with Files.createDirectories, which
+                    // throws more informative errors than File.mkdirs.
+                    Path parentPath = destination.getBaseFile().getParentFile().toPath();
+                    try {
+                        Files.createDirectories(parentPath);
+                        Slog.i(LOG_TAG, "Successfully created " + parentPath);
+                    } catch (Throwable t2) {
+                        Slog.e(LOG_TAG, "Failed to write " + parentPath
+                                + " with Files.writeDirectories", t2);
                     }
                 }
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
             }
+            destination.failWrite(out);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
         }
 
-        if (wroteState) {
-            synchronized (mLock) {
-                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+        try {
+            mJournal.reset(journalId);
+        } catch (IOException e) {
+            // The settings file is complete on its own, and the stale journal will be ignored
+            // since it doesn't carry the new id; we just can't append to it.
+            Slog.w(LOG_TAG, "Failed to reset settings journal", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends the current state of each of the named settings to the journal.
+     */
+    @GuardedBy("mWriteLock")
+    private boolean appendToJournal(String[] names, ArrayMap<String, Setting> settings,
+            int version, boolean versionChanged) {
+        final SettingsJournal.Batch batch = new SettingsJournal.Batch();
+        try {
+            if (versionChanged) {
+                batch.version(version);
             }
+            for (String name : names) {
+                final Setting setting = settings.get(name);
+                if (setting == null) {
+                    batch.delete(name);
+                } else if (!setting.isTransient()) {
+                    batch.put(setting.getId(), name, setting.getValue(),
+                            setting.getDefaultValue(), setting.getPackageName(),
+                            setting.getTag(), setting.isDefaultFromSystem(),
+                            setting.isValuePreservedInRestore());
+                }
+            }
+            if (!batch.isEmpty()) {
+                mJournal.append(batch);
+            }
+            return true;
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed to append to settings journal", e);
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void readJournalLocked() {
+        synchronized (mWriteLock) {
+            mSettingsFileBytes = mStatePersistFile.length();
+            mJournalId = mParsedJournalId;
+            if (mJournalId == 0) {
+                // Written before journaling existed, or not at all yet
+                return;
+            }
+            final boolean intact = mJournal.read(mJournalId, new SettingsJournal.Reader() {
+                @Override
+                public void onPut(String id, String name, String value, String defaultValue,
+                        String packageName, String tag, boolean defaultFromSystem,
+                        boolean preservedInRestore) {
+                    mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                            defaultFromSystem, id, preservedInRestore));
+                }
+
+                @Override
+                public void onDelete(String name) {
+                    mSettings.remove(name);
+                }
+
+                @Override
+                public void onVersion(int version) {
+                    mVersion = version;
+                }
+            });
+            // Anything short of an intact journal gets folded into a fresh settings file by the
+            // next write, after which appends can resume
+            mFullWriteRequested.set(!intact);
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to persist this state since it was created.
+     */
+    @VisibleForTesting
+    long getPersistedBytes() {
+        synchronized (mWriteLock) {
+            return mFullWriteBytes + mJournal.getBytesWritten();
+        }
+    }
+
+    /**
+     * Returns the number of times files were synced to persist this state since it was created.
+     */
+    @VisibleForTesting
+    int getPersistSyncCount() {
+        synchronized (mWriteLock) {
+            return mFullWriteCount + mJournal.getSyncCount();
+        }
+    }
+
+    public void dumpPersistenceStats(PrintWriter pw) {
+        synchronized (mWriteLock) {
+            final long elapsedMillis = Math.max(
+                    SystemClock.elapsedRealtime() - mCreationTimeMillis, 1);
+            final long bytes = mFullWriteBytes + mJournal.getBytesWritten();
+            final int syncs = mFullWriteCount + mJournal.getSyncCount();
+            pw.println("Persistence");
+            pw.print("  settings file: ");
+            pw.print(mSettingsFileBytes);
+            pw.print(" bytes, rewritten ");
+            pw.print(mFullWriteCount);
+            pw.println(" times");
+            pw.print("  journal: ");
+            pw.print(mJournal.length());
+            pw.println(" bytes");
+            pw.print("  written: ");
+            pw.print(bytes);
+            pw.print(" bytes in ");
+            pw.print(syncs);
+            pw.print(" syncs (");
+            pw.print(bytes * DateUtils.HOUR_IN_MILLIS / elapsedMillis);
+            pw.print(" bytes and ");
+            pw.print(syncs * DateUtils.HOUR_IN_MILLIS / elapsedMillis);
+            pw.println(" syncs per hour)");
+            pw.println();
         }
     }
 
@@ -1090,6 +1400,8 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
+        final String journalId = parser.getAttributeValue(null, ATTR_JOURNAL_ID);
+        mParsedJournalId = journalId != null ? Long.parseLong(journalId) : 0;
 
         final int outerDepth = parser.getDepth();
         int type;
@@ -24,6 +24,9 @@ import android.os.UserHandle;
 import android.util.Log;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
 * Performance tests for the SettingContentProvider.
 */
@@ -36,6 +39,8 @@ public class SettingsProviderPerformanceTest extends BaseSettingsProviderTest {
 
     private static final long MAX_AVERAGE_SET_AND_GET_SETTING_DURATION_MILLIS = 20;
 
+    private static final int READER_THREAD_COUNT = 4;
+
     @Test
     public void testSetAndGetPerformanceForGlobalViaFrontEndApi() throws Exception {
         // Start with a clean slate.
@@ -124,4 +129,67 @@ public class SettingsProviderPerformanceTest extends BaseSettingsProviderTest {
         assertTrue("Setting and getting a settings takes too long.", averageTimePerIterationMillis
                 < MAX_AVERAGE_SET_AND_GET_SETTING_DURATION_MILLIS);
     }
+
+    @Test
+    public void testGetPerformanceWithConcurrentWriter() throws Exception {
+        // Start with a clean slate.
+        insertStringViaProviderApi(SETTING_TYPE_GLOBAL,
+                FAKE_SETTING_NAME, FAKE_SETTING_VALUE, false);
+        insertStringViaProviderApi(SETTING_TYPE_GLOBAL,
+                FAKE_SETTING_NAME_1, FAKE_SETTING_VALUE, false);
+
+        try {
+            final long idleReadMicro = measureConcurrentReadsMicro();
+
+            // Keep rewriting an unrelated setting, as a DeviceConfig sync would.
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final Thread writer = new Thread(() -> {
+                int i = 0;
+                while (writing.get()) {
+                    updateStringViaProviderApiSetting(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME_1,
+                            String.valueOf(i++));
+                }
+            });
+            writer.start();
+            final long contendedReadMicro;
+            try {
+                contendedReadMicro = measureConcurrentReadsMicro();
+            } finally {
+                writing.set(false);
+                writer.join();
+            }
+
+            Log.i(LOG_TAG, "Average time to read a setting from " + READER_THREAD_COUNT
+                    + " threads: " + idleReadMicro + " us idle, " + contendedReadMicro
+                    + " us with a concurrent writer");
+        } finally {
+            // Clean up.
+            deleteStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME);
+            deleteStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME_1);
+        }
+    }
+
+    /**
+     * Reads a setting straight from the provider on {@link #READER_THREAD_COUNT} threads at
+     * once, bypassing the client side cache, and returns the average time per read.
+     */
+    private long measureConcurrentReadsMicro() throws Exception {
+        final AtomicLong totalReadMicro = new AtomicLong();
+        final Thread[] readers = new Thread[READER_THREAD_COUNT];
+        for (int i = 0; i < READER_THREAD_COUNT; i++) {
+            readers[i] = new Thread(() -> {
+                final long startTimeMicro = SystemClock.currentTimeMicro();
+                for (int j = 0; j < ITERATION_COUNT; j++) {
+                    assertEquals("Unexpected setting value", FAKE_SETTING_VALUE,
+                            queryStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME));
+                }
+                totalReadMicro.addAndGet(SystemClock.currentTimeMicro() - startTimeMicro);
+            });
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        return totalReadMicro.get() / (READER_THREAD_COUNT * ITERATION_COUNT);
+    }
 }
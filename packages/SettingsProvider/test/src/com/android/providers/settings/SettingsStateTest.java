@@ -17,6 +17,7 @@ package com.android.providers.settings;
 
 import android.os.Looper;
 import android.test.AndroidTestCase;
+import android.util.Log;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlSerializer;
@@ -26,6 +27,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 public class SettingsStateTest extends AndroidTestCase {
     public static final String CRAZY_STRING =
@@ -50,14 +55,19 @@ public class SettingsStateTest extends AndroidTestCase {
     private static final String SYSTEM_PACKAGE = "android";
     private static final String SETTING_NAME = "test_setting";
 
+    private static final String LOG_TAG = "SettingsStateTest";
+
     private final Object mLock = new Object();
 
     private File mSettingsFile;
+    private File mJournalFile;
 
     @Override
     protected void setUp() {
         mSettingsFile = new File(getContext().getCacheDir(), "setting.xml");
         mSettingsFile.delete();
+        mJournalFile = new File(mSettingsFile.getPath() + SettingsJournal.JOURNAL_FILE_SUFFIX);
+        mJournalFile.delete();
     }
 
     public void testIsBinary() {
@@ -274,6 +284,201 @@ public class SettingsStateTest extends AndroidTestCase {
         assertTrue(settingsState.getSettingLocked(SETTING_NAME).isValuePreservedInRestore());
     }
 
+    public void testGetSetting_reflectsMutations() {
+        SettingsState settingsState = getSettingStateObject();
+        assertTrue(settingsState.getSetting(SETTING_NAME).isNull());
+
+        synchronized (mLock) {
+            settingsState.insertSettingLocked(SETTING_NAME, "1", null, false, TEST_PACKAGE);
+        }
+        final SettingsState.Setting first = settingsState.getSetting(SETTING_NAME);
+        assertEquals("1", first.getValue());
+
+        synchronized (mLock) {
+            settingsState.insertSettingLocked(SETTING_NAME, "2", null, false, TEST_PACKAGE);
+        }
+        assertEquals("2", settingsState.getSetting(SETTING_NAME).getValue());
+        // Settings handed out earlier are never modified by later writes
+        assertEquals("1", first.getValue());
+
+        synchronized (mLock) {
+            settingsState.deleteSettingLocked(SETTING_NAME);
+        }
+        assertTrue(settingsState.getSetting(SETTING_NAME).isNull());
+    }
+
+    public void testGetSetting_reflectsBulkMutations() {
+        SettingsState settingsState = getSettingStateObject();
+        final Map<String, String> keyValues = new HashMap<>();
+        keyValues.put("namespace/a", "1");
+        keyValues.put("namespace/b", "2");
+        synchronized (mLock) {
+            settingsState.insertSettingLocked("namespace/c", "3", null, false, TEST_PACKAGE);
+            settingsState.setSettingsLocked("namespace/", keyValues, TEST_PACKAGE);
+        }
+        assertEquals("1", settingsState.getSetting("namespace/a").getValue());
+        assertEquals("2", settingsState.getSetting("namespace/b").getValue());
+        assertTrue(settingsState.getSetting("namespace/c").isNull());
+
+        synchronized (mLock) {
+            settingsState.removeSettingsForPackageLocked(TEST_PACKAGE);
+        }
+        assertTrue(settingsState.getSetting("namespace/a").isNull());
+        assertTrue(settingsState.getSetting("namespace/b").isNull());
+    }
+
+    public void testGetSetting_loadedFromDisk() {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked(SETTING_NAME, "1", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+
+        SettingsState settingsReader = getSettingStateObject();
+        assertEquals("1", settingsReader.getSetting(SETTING_NAME).getValue());
+    }
+
+    public void testJournal_changesRecoveredOnLoad() {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked(SETTING_NAME, "1", null, false, TEST_PACKAGE);
+        settingsWriter.insertSettingLocked("deleted", "1", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        final long settingsFileLength = mSettingsFile.length();
+
+        settingsWriter.insertSettingLocked(SETTING_NAME, CRAZY_STRING, null, false,
+                TEST_PACKAGE);
+        settingsWriter.insertSettingLocked("added", null, null, false, TEST_PACKAGE);
+        settingsWriter.deleteSettingLocked("deleted");
+        settingsWriter.persistSyncLocked();
+        // Only the journal was written
+        assertEquals(settingsFileLength, mSettingsFile.length());
+        assertTrue(mJournalFile.exists());
+
+        SettingsState settingsReader = getSettingStateObject();
+        assertEquals(CRAZY_STRING, settingsReader.getSettingLocked(SETTING_NAME).getValue());
+        assertFalse(settingsReader.getSettingLocked("added").isNull());
+        assertNull(settingsReader.getSettingLocked("added").getValue());
+        assertTrue(settingsReader.getSettingLocked("deleted").isNull());
+    }
+
+    public void testJournal_tornRecordDropped() throws Exception {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked(SETTING_NAME, "1", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        settingsWriter.insertSettingLocked(SETTING_NAME, "2", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+
+        // Simulate a crash in the middle of appending a record
+        try (FileOutputStream out = new FileOutputStream(mJournalFile, true)) {
+            out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        }
+
+        SettingsState settingsReader = getSettingStateObject();
+        assertEquals("2", settingsReader.getSettingLocked(SETTING_NAME).getValue());
+
+        // The next write starts over from a full settings file
+        settingsReader.insertSettingLocked(SETTING_NAME, "3", null, false, TEST_PACKAGE);
+        settingsReader.persistSyncLocked();
+        settingsReader.insertSettingLocked(SETTING_NAME, "4", null, false, TEST_PACKAGE);
+        settingsReader.persistSyncLocked();
+
+        SettingsState settingsReader2 = getSettingStateObject();
+        assertEquals("4", settingsReader2.getSettingLocked(SETTING_NAME).getValue());
+    }
+
+    public void testJournal_ignoredWithoutSettingsFile() {
+        SettingsState settingsWriter = getSettingStateObject();
+        settingsWriter.insertSettingLocked(SETTING_NAME, "1", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+        settingsWriter.insertSettingLocked(SETTING_NAME, "2", null, false, TEST_PACKAGE);
+        settingsWriter.persistSyncLocked();
+
+        mSettingsFile.delete();
+        SettingsState settingsReader = getSettingStateObject();
+        assertTrue(settingsReader.getSettingLocked(SETTING_NAME).isNull());
+    }
+
+    /**
+     * Replays an hour of DeviceConfig pushes, each touching a couple of flags in one namespace,
+     * and compares what's written against rewriting the whole settings file every time.
+     */
+    public void testJournal_replayedDeviceConfigTrace() {
+        final int namespaceCount = 40;
+        final int flagsPerNamespace = 25;
+        final int pushCount = 60;
+
+        final Map<String, Map<String, String>> namespaces = new HashMap<>();
+        SettingsState settingsState = getSettingStateObject();
+        synchronized (mLock) {
+            for (int i = 0; i < namespaceCount; i++) {
+                final String prefix = "namespace" + i + "/";
+                final Map<String, String> flags = new HashMap<>();
+                for (int j = 0; j < flagsPerNamespace; j++) {
+                    flags.put(prefix + "flag_" + j, "value_" + j);
+                }
+                namespaces.put(prefix, flags);
+                settingsState.setSettingsLocked(prefix, flags, SYSTEM_PACKAGE);
+            }
+            settingsState.persistSyncLocked();
+        }
+        final long settingsFileLength = mSettingsFile.length();
+        final long initialBytes = settingsState.getPersistedBytes();
+        final int initialSyncs = settingsState.getPersistSyncCount();
+
+        for (int push = 0; push < pushCount; push++) {
+            final String prefix = "namespace" + (push % namespaceCount) + "/";
+            final Map<String, String> flags = namespaces.get(prefix);
+            flags.put(prefix + "flag_" + (push % flagsPerNamespace), "push_" + push);
+            flags.put(prefix + "flag_" + ((push + 7) % flagsPerNamespace), "push_" + push);
+            if (push % 5 == 0) {
+                // Pushes also drop flags, which the journal records as deletes
+                flags.remove(prefix + "flag_" + ((push + 13) % flagsPerNamespace));
+            }
+            synchronized (mLock) {
+                settingsState.setSettingsLocked(prefix, flags, SYSTEM_PACKAGE);
+                settingsState.persistSyncLocked();
+            }
+        }
+
+        final long bytes = settingsState.getPersistedBytes() - initialBytes;
+        final int syncs = settingsState.getPersistSyncCount() - initialSyncs;
+        Log.i(LOG_TAG, pushCount + " pushes to " + namespaceCount * flagsPerNamespace
+                + " flags: journaled " + bytes + " bytes in " + syncs + " syncs, full rewrites "
+                + settingsFileLength * pushCount + " bytes in " + pushCount + " syncs");
+        assertTrue(bytes < settingsFileLength * pushCount / 4);
+
+        // Replaying the journal on load rebuilds exactly what was in memory
+        SettingsState settingsReader = getSettingStateObject();
+        assertSameSettings(settingsState, settingsReader);
+        for (Map<String, String> flags : namespaces.values()) {
+            for (Map.Entry<String, String> flag : flags.entrySet()) {
+                assertEquals(flag.getValue(),
+                        settingsReader.getSettingLocked(flag.getKey()).getValue());
+            }
+        }
+    }
+
+    private void assertSameSettings(SettingsState expected, SettingsState actual) {
+        synchronized (mLock) {
+            assertEquals(expected.getVersionLocked(), actual.getVersionLocked());
+            final List<String> names = expected.getSettingNamesLocked();
+            assertEquals(new HashSet<>(names), new HashSet<>(actual.getSettingNamesLocked()));
+            for (String name : names) {
+                final SettingsState.Setting expectedSetting = expected.getSettingLocked(name);
+                final SettingsState.Setting actualSetting = actual.getSettingLocked(name);
+                assertEquals(name, expectedSetting.getValue(), actualSetting.getValue());
+                assertEquals(name, expectedSetting.getDefaultValue(),
+                        actualSetting.getDefaultValue());
+                assertEquals(name, expectedSetting.getPackageName(),
+                        actualSetting.getPackageName());
+                assertEquals(name, expectedSetting.getTag(), actualSetting.getTag());
+                assertEquals(name, expectedSetting.getId(), actualSetting.getId());
+                assertEquals(name, expectedSetting.isDefaultFromSystem(),
+                        actualSetting.isDefaultFromSystem());
+                assertEquals(name, expectedSetting.isValuePreservedInRestore(),
+                        actualSetting.isValuePreservedInRestore());
+            }
+        }
+    }
+
     private SettingsState getSettingStateObject() {
         SettingsState settingsState = new SettingsState(getContext(), mLock, mSettingsFile, 1,
                 SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
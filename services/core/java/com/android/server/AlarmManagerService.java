@@ -25,6 +25,7 @@ import static android.app.AlarmManager.RTC_WAKEUP;
 import static android.content.pm.PackageManager.MATCH_SYSTEM_ONLY;
 import static android.os.UserHandle.USER_SYSTEM;
 
+import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.app.Activity;
 import android.app.ActivityManager;
@@ -259,11 +260,13 @@ class AlarmManagerService extends SystemService {
     interface Stats {
         int REBATCH_ALL_ALARMS = 0;
         int REORDER_ALARMS_FOR_STANDBY = 1;
+        int REBATCH_AFTER_REMOVE = 2;
     }
 
     private final StatLogger mStatLogger = new StatLogger(new String[] {
             "REBATCH_ALL_ALARMS",
             "REORDER_ALARMS_FOR_STANDBY",
+            "REBATCH_AFTER_REMOVE",
     });
 
     /**
@@ -977,7 +980,9 @@ class AlarmManagerService extends SystemService {
 
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
+        // Batches are ordered by start, and no batch starting after maxWhen can hold this
+        // alarm, so only the prefix before that point needs to be scanned.
+        final int N = upperBoundBatchStartLocked(maxWhen);
         for (int i = 0; i < N; i++) {
             Batch b = mAlarmBatches.get(i);
             if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
@@ -986,6 +991,21 @@ class AlarmManagerService extends SystemService {
         }
         return -1;
     }
+
+    /** @return the index of the first batch whose start is after {@code when}. */
+    private int upperBoundBatchStartLocked(long when) {
+        int lo = 0;
+        int hi = mAlarmBatches.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mAlarmBatches.get(mid).start <= when) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
     /** @return total count of the alarms in a set of alarm batches. */
     static int getAlarmCount(ArrayList<Batch> batches) {
         int ret = 0;
@@ -1071,6 +1091,30 @@ class AlarmManagerService extends SystemService {
         mStatLogger.logDurationStat(Stats.REBATCH_ALL_ALARMS, start);
     }
 
+    /**
+     * Re-adds the alarms remaining in {@code changedBatches}, which must already have been
+     * taken out of {@link #mAlarmBatches}, and reschedules the kernel alarms. Unlike
+     * {@link #rebatchAllAlarmsLocked(boolean)} this leaves every other batch untouched, so
+     * cancelling or replacing a single alarm doesn't cost a pass over every alarm. The
+     * trade-off is that other batches aren't merged into the newly widened ones.
+     */
+    void rebatchChangedAlarmsLocked(@Nullable ArrayList<Batch> changedBatches) {
+        final long start = mStatLogger.getTime();
+        if (changedBatches != null) {
+            final long nowElapsed = mInjector.getElapsedRealtime();
+            for (int batchNum = 0; batchNum < changedBatches.size(); batchNum++) {
+                final Batch batch = changedBatches.get(batchNum);
+                final int N = batch.size();
+                for (int i = 0; i < N; i++) {
+                    reAddAlarmLocked(batch.get(i), nowElapsed, true);
+                }
+            }
+        }
+        rescheduleKernelAlarmsLocked();
+        updateNextAlarmClockLocked();
+        mStatLogger.logDurationStat(Stats.REBATCH_AFTER_REMOVE, start);
+    }
+
     /**
      * Re-orders the alarm batches based on newly evaluated send times based on the current
      * app-standby buckets
@@ -1082,24 +1126,42 @@ class AlarmManagerService extends SystemService {
         final long start = mStatLogger.getTime();
         final ArrayList<Alarm> rescheduledAlarms = new ArrayList<>();
 
+        // Most calls only target a handful of packages, so check the package name on its own
+        // before allocating a [package, user] pair for every alarm.
+        ArraySet<String> targetPackageNames = null;
+        if (targetPackages != null) {
+            targetPackageNames = new ArraySet<>(targetPackages.size());
+            for (int i = 0; i < targetPackages.size(); i++) {
+                targetPackageNames.add(targetPackages.valueAt(i).first);
+            }
+        }
+
+        boolean needsSort = false;
         for (int batchIndex = mAlarmBatches.size() - 1; batchIndex >= 0; batchIndex--) {
             final Batch batch = mAlarmBatches.get(batchIndex);
             for (int alarmIndex = batch.size() - 1; alarmIndex >= 0; alarmIndex--) {
                 final Alarm alarm = batch.get(alarmIndex);
-                final Pair<String, Integer> packageUser =
-                        Pair.create(alarm.sourcePackage, UserHandle.getUserId(alarm.creatorUid));
-                if (targetPackages != null && !targetPackages.contains(packageUser)) {
+                if (targetPackages != null && (!targetPackageNames.contains(alarm.sourcePackage)
+                        || !targetPackages.contains(Pair.create(alarm.sourcePackage,
+                                UserHandle.getUserId(alarm.creatorUid))))) {
                     continue;
                 }
                 if (adjustDeliveryTimeBasedOnBucketLocked(alarm)) {
+                    final long oldStart = batch.start;
                     batch.remove(alarm);
                     rescheduledAlarms.add(alarm);
+                    needsSort |= (batch.start != oldStart);
                 }
             }
             if (batch.size() == 0) {
                 mAlarmBatches.remove(batchIndex);
             }
         }
+        if (needsSort) {
+            // Removing an alarm can move a batch's start earlier; restore the ordering that
+            // attemptCoalesceLocked() and delivery rely on before re-inserting anything.
+            Collections.sort(mAlarmBatches, sBatchOrder);
+        }
         for (int i = 0; i < rescheduledAlarms.size(); i++) {
             final Alarm a = rescheduledAlarms.get(i);
             insertAndBatchAlarmLocked(a);
@@ -3079,12 +3141,21 @@ class AlarmManagerService extends SystemService {
         }
 
         boolean didRemove = false;
+        ArrayList<Batch> changedBatches = null;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(operation, directReceiver);
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
+            if (b.remove(whichAlarms, false)) {
+                didRemove = true;
+                // Only batches we removed from can have changed bounds; take them out so
+                // their remaining alarms can be re-added below
                 mAlarmBatches.remove(i);
+                if (b.size() > 0) {
+                    if (changedBatches == null) {
+                        changedBatches = new ArrayList<>();
+                    }
+                    changedBatches.add(b);
+                }
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -3122,14 +3193,27 @@ class AlarmManagerService extends SystemService {
                 Slog.v(TAG, "remove(operation) changed bounds; rebatching");
             }
             boolean restorePending = false;
+            boolean idleStateChanged = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
                 mPendingIdleUntil = null;
                 restorePending = true;
+                idleStateChanged = true;
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                idleStateChanged = true;
+            }
+            if (idleStateChanged) {
+                // The idle-until alarm may need to move, which can affect any batch
+                if (changedBatches != null) {
+                    for (int i = 0; i < changedBatches.size(); i++) {
+                        addBatchLocked(mAlarmBatches, changedBatches.get(i));
+                    }
+                }
+                rebatchAllAlarmsLocked(true);
+            } else {
+                rebatchChangedAlarmsLocked(changedBatches);
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
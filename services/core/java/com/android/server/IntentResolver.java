@@ -25,6 +25,7 @@ import android.util.ArraySet;
 import android.util.FastImmutableArraySet;
 import android.util.Log;
 import android.util.LogPrinter;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Printer;
@@ -40,6 +41,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -60,6 +62,7 @@ public abstract class IntentResolver<F, R extends Object> {
         }
 
         mFilters.add(f);
+        mGeneration++;
         int numS = register_intent_filter(f, intentFilter.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -204,6 +207,7 @@ public abstract class IntentResolver<F, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        mGeneration++;
         int numS = unregister_intent_filter(f, intentFilter.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -471,21 +475,36 @@ public abstract class IntentResolver<F, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+        if (debug) {
+            // Resolve from scratch so that every candidate is logged
+            if (firstTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, firstTypeCut, finalList, userId);
+            }
+            if (secondTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, secondTypeCut, finalList, userId);
+            }
+            if (thirdTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, thirdTypeCut, finalList, userId);
+            }
+            if (schemeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, schemeCut, finalList, userId);
+            }
+        } else {
+            final MatchKey key = new MatchKey(intent, resolvedType);
+            Matches matches = getCachedMatches(key);
+            if (matches == null) {
+                matches = new Matches();
+                collectMatches(intent, categories, resolvedType, scheme, firstTypeCut, matches);
+                collectMatches(intent, categories, resolvedType, scheme, secondTypeCut, matches);
+                collectMatches(intent, categories, resolvedType, scheme, thirdTypeCut, matches);
+                collectMatches(intent, categories, resolvedType, scheme, schemeCut, matches);
+                mMatchCache.put(key, matches);
+            }
+            buildResolveList(intent, defaultOnly, matches, finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -829,6 +848,137 @@ public abstract class IntentResolver<F, R extends Object> {
         }
     }
 
+    /**
+     * Returns the cached matches for {@code key}, or null if there are none or the registered
+     * filters have changed since they were computed.
+     */
+    private Matches getCachedMatches(MatchKey key) {
+        if (mMatchCacheGeneration != mGeneration) {
+            // Drop everything at once, rather than on every add/remove, so that registering
+            // many filters in a row stays cheap and removed filters aren't kept alive
+            mMatchCache.evictAll();
+            mMatchCacheGeneration = mGeneration;
+            return null;
+        }
+        return mMatchCache.get(key);
+    }
+
+    /**
+     * Appends every filter in {@code src} whose {@link IntentFilter#match} accepts the intent to
+     * {@code dest}, in order. Unlike {@link #buildResolveList}, this only depends on the intent
+     * and the registered filters, so the result can be reused by later queries.
+     */
+    private void collectMatches(Intent intent, FastImmutableArraySet<String> categories,
+            String resolvedType, String scheme, F[] src, Matches dest) {
+        if (src == null) {
+            return;
+        }
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        F filter;
+        for (int i = 0; i < src.length && (filter = src[i]) != null; i++) {
+            final IntentFilter intentFilter = getIntentFilter(filter);
+            final int match = intentFilter.match(action, resolvedType, scheme, data, categories,
+                    TAG);
+            if (match >= 0) {
+                dest.add(filter, match, intentFilter.hasCategory(Intent.CATEGORY_DEFAULT));
+            }
+        }
+    }
+
+    /**
+     * Equivalent to the non-debug behavior of the other {@code buildResolveList} over the cuts
+     * that {@code matches} was collected from, applying only the checks that depend on the
+     * caller and the current package state.
+     */
+    @SuppressWarnings("unchecked")
+    private void buildResolveList(Intent intent, boolean defaultOnly, Matches matches,
+            List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+        for (int i = 0; i < matches.size; i++) {
+            final F filter = (F) matches.filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (defaultOnly && !matches.hasDefault[i]) {
+                continue;
+            }
+            final R oneResult = newResult(filter, matches.match[i], userId);
+            if (oneResult != null) {
+                dest.add(oneResult);
+            }
+        }
+    }
+
+    /**
+     * The parts of an {@link Intent} that {@link IntentFilter#match} and the choice of cuts in
+     * {@link #queryIntent} depend on.
+     */
+    private static final class MatchKey {
+        private final String mAction;
+        private final String mResolvedType;
+        private final Uri mData;
+        private final ArraySet<String> mCategories;
+        private final int mHashCode;
+
+        MatchKey(Intent intent, String resolvedType) {
+            mAction = intent.getAction();
+            mResolvedType = resolvedType;
+            mData = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            mCategories = categories != null ? new ArraySet<>(categories) : null;
+            mHashCode = Objects.hash(mAction, mResolvedType, mData, mCategories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MatchKey)) return false;
+            final MatchKey other = (MatchKey) o;
+            return mHashCode == other.mHashCode
+                    && Objects.equals(mAction, other.mAction)
+                    && Objects.equals(mResolvedType, other.mResolvedType)
+                    && Objects.equals(mData, other.mData)
+                    && Objects.equals(mCategories, other.mCategories);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * Filters accepted by {@link IntentFilter#match} for a {@link MatchKey}, in the order
+     * {@link #queryIntent} visits them.
+     */
+    private static final class Matches {
+        Object[] filters = new Object[4];
+        int[] match = new int[4];
+        boolean[] hasDefault = new boolean[4];
+        int size;
+
+        void add(Object filter, int matchResult, boolean filterHasDefault) {
+            if (size == filters.length) {
+                final int newLength = size * 2;
+                filters = Arrays.copyOf(filters, newLength);
+                match = Arrays.copyOf(match, newLength);
+                hasDefault = Arrays.copyOf(hasDefault, newLength);
+            }
+            filters[size] = filter;
+            match[size] = matchResult;
+            hasDefault[size] = filterHasDefault;
+            size++;
+        }
+    }
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
@@ -882,6 +1032,29 @@ public abstract class IntentResolver<F, R extends Object> {
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * Number of recent queries whose matching filters are remembered by {@link #mMatchCache}.
+     */
+    private static final int MATCH_CACHE_SIZE = 64;
+
+    /**
+     * Incremented whenever a filter is added or removed.
+     */
+    private int mGeneration;
+
+    /**
+     * Value of {@link #mGeneration} when {@link #mMatchCache} was last known to be valid.
+     */
+    private int mMatchCacheGeneration;
+
+    /**
+     * Filters that matched recent calls to {@link #queryIntent}. Matching only depends on the
+     * intent and the registered filters, so this is invalidated whenever {@link #mGeneration}
+     * changes, while everything that depends on the caller or on package state (stopped,
+     * package restrictions, {@link #newResult}) is still evaluated on every query.
+     */
+    private final LruCache<MatchKey, Matches> mMatchCache = new LruCache<>(MATCH_CACHE_SIZE);
+
     /**
      * Rather than refactoring the entire class, this allows the input {@link F} to be a type
      * other than {@link IntentFilter}, transforming it whenever necessary. It is valid to use
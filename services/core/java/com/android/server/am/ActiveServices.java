@@ -2235,6 +2235,9 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            // Only the processes hosting the unbound services, and whatever they bind to in
+            // turn, could have become less important
+            final ArraySet<ProcessRecord> unboundProcesses = new ArraySet<>();
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -2245,6 +2248,7 @@ public final class ActiveServices {
                 }
 
                 if (r.binding.service.app != null) {
+                    unboundProcesses.add(r.binding.service.app);
                     if (r.binding.service.app.whitelistManager) {
                         updateWhitelistManagerLocked(r.binding.service.app);
                     }
@@ -2258,7 +2262,7 @@ public final class ActiveServices {
                 }
             }
 
-            mAm.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
+            mAm.updateOomAdjLocked(unboundProcesses, OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
 
         } finally {
             Binder.restoreCallingIdentity(origId);
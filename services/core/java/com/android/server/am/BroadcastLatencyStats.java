@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms of the broadcasts delivered by a {@link BroadcastQueue}, in milliseconds of
+ * {@link android.os.SystemClock#uptimeMillis} so that wall clock changes don't skew them.
+ */
+final class BroadcastLatencyStats {
+    /**
+     * Number of buckets in each histogram; the last bucket holds everything that took at least
+     * 2^15 ms (about 33 seconds).
+     */
+    static final int HISTOGRAM_BUCKETS = 17;
+
+    /** How long parallel broadcasts waited between being enqueued and being dispatched. */
+    private final ExponentiallyBucketedHistogram mParallelDispatchLatency =
+            new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+
+    /**
+     * How long serialized broadcasts waited between being enqueued and being dispatched to their
+     * first receiver.
+     */
+    private final ExponentiallyBucketedHistogram mOrderedDispatchLatency =
+            new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+
+    /** How long serialized broadcasts took from dispatch until every receiver had finished. */
+    private final ExponentiallyBucketedHistogram mOrderedFinishLatency =
+            new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+
+    /** Records a parallel broadcast that has just been delivered to all its receivers. */
+    void onParallelBroadcastDispatched(BroadcastRecord r) {
+        mParallelDispatchLatency.add(toMillis(r.dispatchTime - r.enqueueTime));
+    }
+
+    /**
+     * Records a serialized broadcast that has finished at {@code now}. Broadcasts that were never
+     * dispatched, e.g. because they had no receivers, are ignored.
+     */
+    void onOrderedBroadcastFinished(BroadcastRecord r, long now) {
+        if (r.dispatchTime <= 0) {
+            return;
+        }
+        mOrderedDispatchLatency.add(toMillis(r.dispatchTime - r.enqueueTime));
+        mOrderedFinishLatency.add(toMillis(now - r.dispatchTime));
+    }
+
+    private static int toMillis(long duration) {
+        return (int) Math.min(duration, Integer.MAX_VALUE);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        mParallelDispatchLatency.dump(pw, prefix + "parallel dispatch: ");
+        mOrderedDispatchLatency.dump(pw, prefix + "ordered dispatch: ");
+        mOrderedFinishLatency.dump(pw, prefix + "ordered finish: ");
+    }
+}
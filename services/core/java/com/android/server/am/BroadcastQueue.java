@@ -61,6 +61,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * BROADCASTS
@@ -173,6 +174,30 @@ public final class BroadcastQueue {
     // log latency metrics for ordered broadcasts during BOOT_COMPLETED processing
     boolean mLogLatencyMetrics = true;
 
+    /** Latency histograms of the broadcasts delivered by this queue. */
+    final BroadcastLatencyStats mLatencyStats = new BroadcastLatencyStats();
+
+    /**
+     * Deliveries of parallel broadcasts to registered receivers, collected while the parallel
+     * broadcasts are dispatched and then sent in one transaction per process.
+     */
+    private final RegisteredReceiverBatcher mReceiverBatcher = new RegisteredReceiverBatcher();
+
+    /** Whether deliveries to registered receivers go to {@link #mReceiverBatcher}. */
+    private boolean mBatchingRegisteredDeliveries;
+
+    /** Called with a process that can't be reached and the broadcasts it didn't get. */
+    private final BiConsumer<ProcessRecord, ArrayList<BroadcastRecord>> mOnBatchFailed =
+            (app, records) -> {
+                // Failed to call into the process. It's either dying or wedged. Kill it gently.
+                Slog.w(TAG, "Can't deliver broadcast to " + app.processName
+                        + " (pid " + app.pid + "). Crashing it.");
+                app.scheduleCrash("can't deliver broadcast");
+                for (int i = 0; i < records.size(); i++) {
+                    app.removeAllowBackgroundActivityStartsToken(records.get(i));
+                }
+            };
+
     final BroadcastHandler mHandler;
 
     private final class BroadcastHandler extends Handler {
@@ -238,6 +263,7 @@ public final class BroadcastQueue {
      * enqueueOrderedBroadcastLocked.
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
+        r.enqueueTime = SystemClock.uptimeMillis();
         r.enqueueClockTime = System.currentTimeMillis();
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -804,9 +830,18 @@ public final class BroadcastQueue {
             } else {
                 r.receiverTime = SystemClock.uptimeMillis();
                 maybeAddAllowBackgroundActivityStartsToken(filter.receiverList.app, r);
-                performReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
-                        new Intent(r.intent), r.resultCode, r.resultData,
-                        r.resultExtras, r.ordered, r.initialSticky, r.userId);
+                final ProcessRecord app = filter.receiverList.app;
+                if (mBatchingRegisteredDeliveries && !ordered && app != null
+                        && app.thread != null) {
+                    // Sent with the process's other deliveries once every parallel broadcast
+                    // has been dispatched
+                    mReceiverBatcher.add(app, app.thread, app.getReportedProcState(), r,
+                            filter.receiverList.receiver, new Intent(r.intent));
+                } else {
+                    performReceiveLocked(app, filter.receiverList.receiver,
+                            new Intent(r.intent), r.resultCode, r.resultData,
+                            r.resultExtras, r.ordered, r.initialSticky, r.userId);
+                }
                 // parallel broadcasts are fire-and-forget, not bookended by a call to
                 // finishReceiverLocked(), so we manage their activity-start token here
                 if (r.allowBackgroundActivityStarts && !r.ordered) {
@@ -962,7 +997,9 @@ public final class BroadcastQueue {
             mBroadcastsScheduled = false;
         }
 
-        // First, deliver any non-serialized broadcasts right away.
+        // First, deliver any non-serialized broadcasts right away. The deliveries to each
+        // process are sent together after all of them have been dispatched, in order.
+        mBatchingRegisteredDeliveries = true;
         while (mParallelBroadcasts.size() > 0) {
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
@@ -987,10 +1024,15 @@ public final class BroadcastQueue {
                         + target + ": " + r);
                 deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false, i);
             }
+            mLatencyStats.onParallelBroadcastDispatched(r);
             addBroadcastToHistoryLocked(r);
             if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
                     + mQueueName + "] " + r);
         }
+        mBatchingRegisteredDeliveries = false;
+        if (mReceiverBatcher.getProcessCount() > 0) {
+            mReceiverBatcher.send(mOnBatchFailed);
+        }
 
         // Now take care of the next serialized one...
 
@@ -1148,6 +1190,7 @@ public final class BroadcastQueue {
                         "Finished with ordered broadcast " + r);
 
                 // ... and on to the next...
+                mLatencyStats.onOrderedBroadcastFinished(r, SystemClock.uptimeMillis());
                 addBroadcastToHistoryLocked(r);
                 if (r.intent.getComponent() == null && r.intent.getPackage() == null
                         && (r.intent.getFlags()&Intent.FLAG_RECEIVER_REGISTERED_ONLY) == 0) {
@@ -1994,6 +2037,13 @@ public final class BroadcastQueue {
 
         mConstants.dump(pw);
 
+        if (dumpPackage == null) {
+            pw.println();
+            pw.println("  Latency histograms (ms) [" + mQueueName + "]:");
+            mLatencyStats.dump(pw, "    ");
+            needSep = true;
+        }
+
         int i;
         boolean printed = false;
 
@@ -34,11 +34,14 @@ import android.provider.DeviceConfig.OnPropertiesChangedListener;
 import android.provider.DeviceConfig.Properties;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.Slog;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.app.procstats.ProcessStats;
 import com.android.internal.util.FrameworkStatsLog;
 import com.android.server.ServiceThread;
 
@@ -135,6 +138,15 @@ public final class CachedAppOptimizer {
     //TODO:change this static definition into a configurable flag.
     static final int FREEZE_TIMEOUT_MS = 10000;
 
+    // Processes due to be frozen within this long of the earliest are frozen together with it.
+    @VisibleForTesting static final int FREEZE_BATCH_WINDOW_MS = 1000;
+
+    // At normal memory pressure, compactions run this many at a time, this far apart, so that
+    // a burst of processes going to the background doesn't monopolize a CPU. Under pressure
+    // all pending compactions run back to back.
+    @VisibleForTesting static final int COMPACT_BATCH_SIZE = 4;
+    @VisibleForTesting static final long COMPACT_BATCH_DELAY_MS = 500;
+
     static final int DO_FREEZE = 1;
     static final int REPORT_UNFREEZE = 2;
 
@@ -151,8 +163,16 @@ public final class CachedAppOptimizer {
      */
     final ServiceThread mCachedAppOptimizerThread;
 
-    private final ArrayList<ProcessRecord> mPendingCompactionProcesses =
-            new ArrayList<ProcessRecord>();
+    // Compactions which have been requested but haven't run yet. A process asked to compact
+    // again before its turn keeps a single entry, which runs the latest requested action.
+    @GuardedBy("mAm")
+    private final ArrayMap<ProcessRecord, PendingCompaction> mPendingCompactions =
+            new ArrayMap<>();
+
+    // Processes waiting to be frozen, see ProcessRecord#freezeDueTime.
+    @VisibleForTesting
+    @GuardedBy("mAm")
+    final ArraySet<ProcessRecord> mPendingFreezes = new ArraySet<>();
     private final ActivityManagerService mAm;
     private final OnPropertiesChangedListener mOnFlagsChangedListener =
             new OnPropertiesChangedListener() {
@@ -250,6 +270,16 @@ public final class CachedAppOptimizer {
     private int mFullCompactionCount;
     private int mPersistentCompactionCount;
     private int mBfgsCompactionCount;
+    // Throughput and latency of the compaction and freezer pipelines, for dumpsys.
+    private int mCoalescedCompactionCount;
+    private int mCompactionBatchCount;
+    private long mCompactionReclaimedKb;
+    private long mCompactionCpuTimeMs;
+    private int mCompletedCompactionCount;
+    private long mTotalCompactionLatencyMs;
+    private long mMaxCompactionLatencyMs;
+    private int mFreezeBatchCount;
+    private int mFrozenProcessCount;
     private final ProcessDependencies mProcessDependencies;
 
     public CachedAppOptimizer(ActivityManagerService am) {
@@ -329,11 +359,24 @@ public final class CachedAppOptimizer {
             pw.println("  " + mSomeCompactionCount + " some, " + mFullCompactionCount
                     + " full, " + mPersistentCompactionCount + " persistent, "
                     + mBfgsCompactionCount + " BFGS compactions.");
+            pw.println("  " + mPendingCompactions.size() + " pending, "
+                    + mCoalescedCompactionCount + " coalesced compaction requests in "
+                    + mCompactionBatchCount + " batches.");
+            if (mCompletedCompactionCount > 0) {
+                final long mbPerCpuSecond = mCompactionCpuTimeMs > 0
+                        ? mCompactionReclaimedKb * 1000 / 1024 / mCompactionCpuTimeMs : 0;
+                pw.println("  Reclaimed " + (mCompactionReclaimedKb / 1024) + "MB using "
+                        + mCompactionCpuTimeMs + "ms CPU (" + mbPerCpuSecond + "MB/CPU-s),"
+                        + " latency avg=" + (mTotalCompactionLatencyMs / mCompletedCompactionCount)
+                        + "ms max=" + mMaxCompactionLatencyMs + "ms");
+            }
 
             pw.println("  Tracking last compaction stats for " + mLastCompactionStats.size()
                     + " processes.");
             pw.println(" " + KEY_USE_FREEZER + "=" + mUseFreezer);
             pw.println("  " + KEY_FREEZER_STATSD_SAMPLE_RATE + "=" + mFreezerStatsdSampleRate);
+            pw.println("  " + mPendingFreezes.size() + " pending, " + mFrozenProcessCount
+                    + " frozen processes in " + mFreezeBatchCount + " batches.");
             if (DEBUG_COMPACTION) {
                 for (Map.Entry<Integer, LastCompactionStats> entry
                         : mLastCompactionStats.entrySet()) {
@@ -348,30 +391,17 @@ public final class CachedAppOptimizer {
 
     @GuardedBy("mAm")
     void compactAppSome(ProcessRecord app) {
-        app.reqCompactAction = COMPACT_PROCESS_SOME;
-        mPendingCompactionProcesses.add(app);
-        mCompactionHandler.sendMessage(
-                mCompactionHandler.obtainMessage(
-                COMPACT_PROCESS_MSG, app.setAdj, app.setProcState));
+        queueCompactionLocked(app, COMPACT_PROCESS_SOME, app.setAdj);
     }
 
     @GuardedBy("mAm")
     void compactAppFull(ProcessRecord app) {
-        app.reqCompactAction = COMPACT_PROCESS_FULL;
-        mPendingCompactionProcesses.add(app);
-        mCompactionHandler.sendMessage(
-                mCompactionHandler.obtainMessage(
-                COMPACT_PROCESS_MSG, app.setAdj, app.setProcState));
-
+        queueCompactionLocked(app, COMPACT_PROCESS_FULL, app.setAdj);
     }
 
     @GuardedBy("mAm")
     void compactAppPersistent(ProcessRecord app) {
-        app.reqCompactAction = COMPACT_PROCESS_PERSISTENT;
-        mPendingCompactionProcesses.add(app);
-        mCompactionHandler.sendMessage(
-                mCompactionHandler.obtainMessage(
-                    COMPACT_PROCESS_MSG, app.curAdj, app.setProcState));
+        queueCompactionLocked(app, COMPACT_PROCESS_PERSISTENT, app.curAdj);
     }
 
     @GuardedBy("mAm")
@@ -382,11 +412,48 @@ public final class CachedAppOptimizer {
 
     @GuardedBy("mAm")
     void compactAppBfgs(ProcessRecord app) {
-        app.reqCompactAction = COMPACT_PROCESS_BFGS;
-        mPendingCompactionProcesses.add(app);
-        mCompactionHandler.sendMessage(
-                mCompactionHandler.obtainMessage(
-                    COMPACT_PROCESS_MSG, app.curAdj, app.setProcState));
+        queueCompactionLocked(app, COMPACT_PROCESS_BFGS, app.curAdj);
+    }
+
+    @GuardedBy("mAm")
+    private void queueCompactionLocked(ProcessRecord app, int action, int oomAdj) {
+        app.reqCompactAction = action;
+        PendingCompaction pending = mPendingCompactions.get(app);
+        if (pending == null) {
+            pending = new PendingCompaction(app, SystemClock.uptimeMillis());
+            mPendingCompactions.put(app, pending);
+        } else {
+            mCoalescedCompactionCount++;
+        }
+        pending.mLastOomAdj = oomAdj;
+        pending.mProcState = app.setProcState;
+        if (!mCompactionHandler.hasMessages(COMPACT_PROCESS_MSG)) {
+            mCompactionHandler.sendMessage(mCompactionHandler.obtainMessage(COMPACT_PROCESS_MSG));
+        }
+    }
+
+    /**
+     * Returns the index in {@link #mPendingCompactions} of the compaction expected to reclaim
+     * the most memory. Processes which haven't been fully compacted before go first, in the
+     * order they were requested, followed by those which reclaimed the most last time.
+     */
+    @GuardedBy("mAm")
+    private int pickNextCompactionLocked() {
+        int best = -1;
+        long bestReclaimKb = -1;
+        long bestRequestTime = Long.MAX_VALUE;
+        for (int i = mPendingCompactions.size() - 1; i >= 0; i--) {
+            final PendingCompaction pending = mPendingCompactions.valueAt(i);
+            final LastCompactionStats stats = mLastCompactionStats.get(pending.mProc.pid);
+            final long reclaimKb = stats == null ? Long.MAX_VALUE : stats.getReclaimedKb();
+            if (reclaimKb > bestReclaimKb
+                    || (reclaimKb == bestReclaimKb && pending.mRequestTime < bestRequestTime)) {
+                best = i;
+                bestReclaimKb = reclaimKb;
+                bestRequestTime = pending.mRequestTime;
+            }
+        }
+        return best;
     }
 
     @GuardedBy("mAm")
@@ -722,17 +789,45 @@ public final class CachedAppOptimizer {
 
     @GuardedBy("mAm")
     void freezeAppAsync(ProcessRecord app) {
-        mFreezeHandler.removeMessages(SET_FROZEN_PROCESS_MSG, app);
+        // This is called on every oom adj update of a cached process, so rather than posting a
+        // message per call, keep pushing back the process's due time; a single message wakes
+        // up for whichever pending freeze is due first.
+        app.freezeDueTime = SystemClock.uptimeMillis() + FREEZE_TIMEOUT_MS;
+        mPendingFreezes.add(app);
+        if (!mFreezeHandler.hasMessages(SET_FROZEN_PROCESS_MSG)) {
+            mFreezeHandler.sendMessageAtTime(
+                    mFreezeHandler.obtainMessage(SET_FROZEN_PROCESS_MSG, DO_FREEZE, 0),
+                    app.freezeDueTime);
+        }
+    }
 
-        mFreezeHandler.sendMessageDelayed(
-                mFreezeHandler.obtainMessage(
-                    SET_FROZEN_PROCESS_MSG, DO_FREEZE, 0, app),
-                FREEZE_TIMEOUT_MS);
+    /**
+     * Moves the pending freezes which are due within {@link #FREEZE_BATCH_WINDOW_MS} of
+     * {@code now} to {@code batch}.
+     *
+     * @return the earliest due time of the freezes left pending, or {@link Long#MAX_VALUE}.
+     */
+    @VisibleForTesting
+    @GuardedBy("mAm")
+    long takeDueFreezesLocked(long now, ArrayList<ProcessRecord> batch) {
+        long nextDueTime = Long.MAX_VALUE;
+        for (int i = mPendingFreezes.size() - 1; i >= 0; i--) {
+            final ProcessRecord proc = mPendingFreezes.valueAt(i);
+            if (proc.freezeDueTime <= now + FREEZE_BATCH_WINDOW_MS) {
+                batch.add(proc);
+                mPendingFreezes.removeAt(i);
+                proc.freezeDueTime = 0;
+            } else {
+                nextDueTime = Math.min(nextDueTime, proc.freezeDueTime);
+            }
+        }
+        return nextDueTime;
     }
 
     @GuardedBy("mAm")
     void unfreezeAppLocked(ProcessRecord app) {
-        mFreezeHandler.removeMessages(SET_FROZEN_PROCESS_MSG, app);
+        mPendingFreezes.remove(app);
+        app.freezeDueTime = 0;
 
         if (!app.frozen) {
             if (DEBUG_FREEZER) {
@@ -813,17 +908,41 @@ public final class CachedAppOptimizer {
     @VisibleForTesting
     static final class LastCompactionStats {
         private final long[] mRssAfterCompaction;
+        private final long mReclaimedKb;
 
-        LastCompactionStats(long[] rss) {
+        LastCompactionStats(long[] rss, long reclaimedKb) {
             mRssAfterCompaction = rss;
+            mReclaimedKb = reclaimedKb;
         }
 
         long[] getRssAfterCompaction() {
             return mRssAfterCompaction;
         }
+
+        /** Memory freed by the compaction, net of what was added to zram. */
+        long getReclaimedKb() {
+            return mReclaimedKb;
+        }
+    }
+
+    private static final class PendingCompaction {
+        final ProcessRecord mProc;
+        // When the process was first asked to compact, for latency reporting.
+        final long mRequestTime;
+        // The oom adj and proc state at the time of the latest request, for logging.
+        int mLastOomAdj;
+        int mProcState;
+
+        PendingCompaction(ProcessRecord proc, long requestTime) {
+            mProc = proc;
+            mRequestTime = requestTime;
+        }
     }
 
     private final class MemCompactionHandler extends Handler {
+        // Only used on the compaction thread.
+        private final ArrayList<PendingCompaction> mBatch = new ArrayList<>();
+
         private MemCompactionHandler() {
             super(mCachedAppOptimizerThread.getLooper());
         }
@@ -832,237 +951,269 @@ public final class CachedAppOptimizer {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case COMPACT_PROCESS_MSG: {
-                    long start = SystemClock.uptimeMillis();
-                    ProcessRecord proc;
-                    int pid;
-                    String action;
-                    final String name;
-                    int pendingAction, lastCompactAction;
-                    long lastCompactTime;
-                    LastCompactionStats lastCompactionStats;
-                    int lastOomAdj = msg.arg1;
-                    int procState = msg.arg2;
                     synchronized (mAm) {
-                        proc = mPendingCompactionProcesses.remove(0);
-
-                        pendingAction = proc.reqCompactAction;
-                        pid = proc.pid;
-                        name = proc.processName;
-
-                        // don't compact if the process has returned to perceptible
-                        // and this is only a cached/home/prev compaction
-                        if ((pendingAction == COMPACT_PROCESS_SOME
-                                || pendingAction == COMPACT_PROCESS_FULL)
-                                && (proc.setAdj <= ProcessList.PERCEPTIBLE_APP_ADJ)) {
-                            if (DEBUG_COMPACTION) {
-                                Slog.d(TAG_AM,
-                                        "Skipping compaction as process " + name + " is "
-                                        + "now perceptible.");
-                            }
-                            return;
+                        final boolean normalMemory =
+                                mAm.mLastMemoryLevel == ProcessStats.ADJ_MEM_FACTOR_NORMAL;
+                        final int batchSize = normalMemory
+                                ? COMPACT_BATCH_SIZE : mPendingCompactions.size();
+                        while (mBatch.size() < batchSize && !mPendingCompactions.isEmpty()) {
+                            mBatch.add(mPendingCompactions.removeAt(pickNextCompactionLocked()));
+                        }
+                        if (!mPendingCompactions.isEmpty()) {
+                            sendMessageDelayed(obtainMessage(COMPACT_PROCESS_MSG),
+                                    normalMemory ? COMPACT_BATCH_DELAY_MS : 0);
                         }
-
-                        lastCompactAction = proc.lastCompactAction;
-                        lastCompactTime = proc.lastCompactTime;
-                        lastCompactionStats = mLastCompactionStats.get(pid);
                     }
-
-                    if (pid == 0) {
-                        // not a real process, either one being launched or one being killed
-                        return;
+                    if (!mBatch.isEmpty()) {
+                        mCompactionBatchCount++;
                     }
-
-                    // basic throttling
-                    // use the Phenotype flag knobs to determine whether current/prevous
-                    // compaction combo should be throtted or not
-
-                    // Note that we explicitly don't take mPhenotypeFlagLock here as the flags
-                    // should very seldom change, and taking the risk of using the wrong action is
-                    // preferable to taking the lock for every single compaction action.
-                    if (lastCompactTime != 0) {
-                        if (pendingAction == COMPACT_PROCESS_SOME) {
-                            if ((lastCompactAction == COMPACT_PROCESS_SOME
-                                    && (start - lastCompactTime < mCompactThrottleSomeSome))
-                                    || (lastCompactAction == COMPACT_PROCESS_FULL
-                                        && (start - lastCompactTime
-                                                < mCompactThrottleSomeFull))) {
-                                if (DEBUG_COMPACTION) {
-                                    Slog.d(TAG_AM, "Skipping some compaction for " + name
-                                            + ": too soon. throttle=" + mCompactThrottleSomeSome
-                                            + "/" + mCompactThrottleSomeFull + " last="
-                                            + (start - lastCompactTime) + "ms ago");
-                                }
-                                return;
-                            }
-                        } else if (pendingAction == COMPACT_PROCESS_FULL) {
-                            if ((lastCompactAction == COMPACT_PROCESS_SOME
-                                    && (start - lastCompactTime < mCompactThrottleFullSome))
-                                    || (lastCompactAction == COMPACT_PROCESS_FULL
-                                        && (start - lastCompactTime
-                                                < mCompactThrottleFullFull))) {
-                                if (DEBUG_COMPACTION) {
-                                    Slog.d(TAG_AM, "Skipping full compaction for " + name
-                                            + ": too soon. throttle=" + mCompactThrottleFullSome
-                                            + "/" + mCompactThrottleFullFull + " last="
-                                            + (start - lastCompactTime) + "ms ago");
-                                }
-                                return;
-                            }
-                        } else if (pendingAction == COMPACT_PROCESS_PERSISTENT) {
-                            if (start - lastCompactTime < mCompactThrottlePersistent) {
-                                if (DEBUG_COMPACTION) {
-                                    Slog.d(TAG_AM, "Skipping persistent compaction for " + name
-                                            + ": too soon. throttle=" + mCompactThrottlePersistent
-                                            + " last=" + (start - lastCompactTime) + "ms ago");
-                                }
-                                return;
-                            }
-                        } else if (pendingAction == COMPACT_PROCESS_BFGS) {
-                            if (start - lastCompactTime < mCompactThrottleBFGS) {
-                                if (DEBUG_COMPACTION) {
-                                    Slog.d(TAG_AM, "Skipping bfgs compaction for " + name
-                                            + ": too soon. throttle=" + mCompactThrottleBFGS
-                                            + " last=" + (start - lastCompactTime) + "ms ago");
-                                }
-                                return;
-                            }
-                        }
+                    for (int i = 0; i < mBatch.size(); i++) {
+                        compactProcess(mBatch.get(i));
                     }
+                    mBatch.clear();
+                    break;
+                }
+                case COMPACT_SYSTEM_MSG: {
+                    Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "compactSystem");
+                    compactSystem();
+                    Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+                    break;
+                }
+            }
+        }
 
-                    switch (pendingAction) {
-                        case COMPACT_PROCESS_SOME:
-                            action = mCompactActionSome;
-                            break;
-                        // For the time being, treat these as equivalent.
-                        case COMPACT_PROCESS_FULL:
-                        case COMPACT_PROCESS_PERSISTENT:
-                        case COMPACT_PROCESS_BFGS:
-                            action = mCompactActionFull;
-                            break;
-                        default:
-                            action = COMPACT_ACTION_NONE;
-                            break;
-                    }
+        private void compactProcess(PendingCompaction pending) {
+            long start = SystemClock.uptimeMillis();
+            final ProcessRecord proc = pending.mProc;
+            int pid;
+            String action;
+            final String name;
+            int pendingAction, lastCompactAction;
+            long lastCompactTime;
+            LastCompactionStats lastCompactionStats;
+            int lastOomAdj = pending.mLastOomAdj;
+            int procState = pending.mProcState;
+            synchronized (mAm) {
+                pendingAction = proc.reqCompactAction;
+                pid = proc.pid;
+                name = proc.processName;
 
-                    if (COMPACT_ACTION_NONE.equals(action)) {
-                        return;
+                // don't compact if the process has returned to perceptible
+                // and this is only a cached/home/prev compaction
+                if ((pendingAction == COMPACT_PROCESS_SOME
+                        || pendingAction == COMPACT_PROCESS_FULL)
+                        && (proc.setAdj <= ProcessList.PERCEPTIBLE_APP_ADJ)) {
+                    if (DEBUG_COMPACTION) {
+                        Slog.d(TAG_AM,
+                                "Skipping compaction as process " + name + " is "
+                                + "now perceptible.");
                     }
+                    return;
+                }
+
+                lastCompactAction = proc.lastCompactAction;
+                lastCompactTime = proc.lastCompactTime;
+                lastCompactionStats = mLastCompactionStats.get(pid);
+            }
+
+            if (pid == 0) {
+                // not a real process, either one being launched or one being killed
+                return;
+            }
 
-                    if (mProcStateThrottle.contains(procState)) {
+            // basic throttling
+            // use the Phenotype flag knobs to determine whether current/prevous
+            // compaction combo should be throtted or not
+
+            // Note that we explicitly don't take mPhenotypeFlagLock here as the flags
+            // should very seldom change, and taking the risk of using the wrong action is
+            // preferable to taking the lock for every single compaction action.
+            if (lastCompactTime != 0) {
+                if (pendingAction == COMPACT_PROCESS_SOME) {
+                    if ((lastCompactAction == COMPACT_PROCESS_SOME
+                            && (start - lastCompactTime < mCompactThrottleSomeSome))
+                            || (lastCompactAction == COMPACT_PROCESS_FULL
+                                && (start - lastCompactTime
+                                        < mCompactThrottleSomeFull))) {
                         if (DEBUG_COMPACTION) {
-                            Slog.d(TAG_AM, "Skipping full compaction for process " + name
-                                    + "; proc state is " + procState);
+                            Slog.d(TAG_AM, "Skipping some compaction for " + name
+                                    + ": too soon. throttle=" + mCompactThrottleSomeSome
+                                    + "/" + mCompactThrottleSomeFull + " last="
+                                    + (start - lastCompactTime) + "ms ago");
                         }
                         return;
                     }
-
-                    long[] rssBefore = mProcessDependencies.getRss(pid);
-                    long anonRssBefore = rssBefore[2];
-
-                    if (rssBefore[0] == 0 && rssBefore[1] == 0 && rssBefore[2] == 0
-                            && rssBefore[3] == 0) {
+                } else if (pendingAction == COMPACT_PROCESS_FULL) {
+                    if ((lastCompactAction == COMPACT_PROCESS_SOME
+                            && (start - lastCompactTime < mCompactThrottleFullSome))
+                            || (lastCompactAction == COMPACT_PROCESS_FULL
+                                && (start - lastCompactTime
+                                        < mCompactThrottleFullFull))) {
                         if (DEBUG_COMPACTION) {
-                            Slog.d(TAG_AM, "Skipping compaction for" + "process " + pid
-                                    + " with no memory usage. Dead?");
+                            Slog.d(TAG_AM, "Skipping full compaction for " + name
+                                    + ": too soon. throttle=" + mCompactThrottleFullSome
+                                    + "/" + mCompactThrottleFullFull + " last="
+                                    + (start - lastCompactTime) + "ms ago");
                         }
                         return;
                     }
-
-                    if (action.equals(COMPACT_ACTION_FULL) || action.equals(COMPACT_ACTION_ANON)) {
-                        if (mFullAnonRssThrottleKb > 0L
-                                && anonRssBefore < mFullAnonRssThrottleKb) {
-                            if (DEBUG_COMPACTION) {
-                                Slog.d(TAG_AM, "Skipping full compaction for process "
-                                        + name + "; anon RSS is too small: " + anonRssBefore
-                                        + "KB.");
-                            }
-                            return;
+                } else if (pendingAction == COMPACT_PROCESS_PERSISTENT) {
+                    if (start - lastCompactTime < mCompactThrottlePersistent) {
+                        if (DEBUG_COMPACTION) {
+                            Slog.d(TAG_AM, "Skipping persistent compaction for " + name
+                                    + ": too soon. throttle=" + mCompactThrottlePersistent
+                                    + " last=" + (start - lastCompactTime) + "ms ago");
                         }
-
-                        if (lastCompactionStats != null && mFullDeltaRssThrottleKb > 0L) {
-                            long[] lastRss = lastCompactionStats.getRssAfterCompaction();
-                            long absDelta = Math.abs(rssBefore[1] - lastRss[1])
-                                    + Math.abs(rssBefore[2] - lastRss[2])
-                                    + Math.abs(rssBefore[3] - lastRss[3]);
-                            if (absDelta <= mFullDeltaRssThrottleKb) {
-                                if (DEBUG_COMPACTION) {
-                                    Slog.d(TAG_AM, "Skipping full compaction for process "
-                                            + name + "; abs delta is too small: " + absDelta
-                                            + "KB.");
-                                }
-                                return;
-                            }
+                        return;
+                    }
+                } else if (pendingAction == COMPACT_PROCESS_BFGS) {
+                    if (start - lastCompactTime < mCompactThrottleBFGS) {
+                        if (DEBUG_COMPACTION) {
+                            Slog.d(TAG_AM, "Skipping bfgs compaction for " + name
+                                    + ": too soon. throttle=" + mCompactThrottleBFGS
+                                    + " last=" + (start - lastCompactTime) + "ms ago");
                         }
+                        return;
                     }
+                }
+            }
+
+            switch (pendingAction) {
+                case COMPACT_PROCESS_SOME:
+                    action = mCompactActionSome;
+                    break;
+                // For the time being, treat these as equivalent.
+                case COMPACT_PROCESS_FULL:
+                case COMPACT_PROCESS_PERSISTENT:
+                case COMPACT_PROCESS_BFGS:
+                    action = mCompactActionFull;
+                    break;
+                default:
+                    action = COMPACT_ACTION_NONE;
+                    break;
+            }
+
+            if (COMPACT_ACTION_NONE.equals(action)) {
+                return;
+            }
+
+            if (mProcStateThrottle.contains(procState)) {
+                if (DEBUG_COMPACTION) {
+                    Slog.d(TAG_AM, "Skipping full compaction for process " + name
+                            + "; proc state is " + procState);
+                }
+                return;
+            }
+
+            long[] rssBefore = mProcessDependencies.getRss(pid);
+            long anonRssBefore = rssBefore[2];
+
+            if (rssBefore[0] == 0 && rssBefore[1] == 0 && rssBefore[2] == 0
+                    && rssBefore[3] == 0) {
+                if (DEBUG_COMPACTION) {
+                    Slog.d(TAG_AM, "Skipping compaction for" + "process " + pid
+                            + " with no memory usage. Dead?");
+                }
+                return;
+            }
 
-                    // Now we've passed through all the throttles and are going to compact, update
-                    // bookkeeping.
-                    switch (pendingAction) {
-                        case COMPACT_PROCESS_SOME:
-                            mSomeCompactionCount++;
-                            break;
-                        case COMPACT_PROCESS_FULL:
-                            mFullCompactionCount++;
-                            break;
-                        case COMPACT_PROCESS_PERSISTENT:
-                            mPersistentCompactionCount++;
-                            break;
-                        case COMPACT_PROCESS_BFGS:
-                            mBfgsCompactionCount++;
-                            break;
-                        default:
-                            break;
+            if (action.equals(COMPACT_ACTION_FULL) || action.equals(COMPACT_ACTION_ANON)) {
+                if (mFullAnonRssThrottleKb > 0L
+                        && anonRssBefore < mFullAnonRssThrottleKb) {
+                    if (DEBUG_COMPACTION) {
+                        Slog.d(TAG_AM, "Skipping full compaction for process "
+                                + name + "; anon RSS is too small: " + anonRssBefore
+                                + "KB.");
                     }
-                    try {
-                        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "Compact "
-                                + ((pendingAction == COMPACT_PROCESS_SOME) ? "some" : "full")
-                                + ": " + name);
-                        long zramFreeKbBefore = Debug.getZramFreeKb();
-                        mProcessDependencies.performCompaction(action, pid);
-                        long[] rssAfter = mProcessDependencies.getRss(pid);
-                        long end = SystemClock.uptimeMillis();
-                        long time = end - start;
-                        long zramFreeKbAfter = Debug.getZramFreeKb();
-                        EventLog.writeEvent(EventLogTags.AM_COMPACT, pid, name, action,
-                                rssBefore[0], rssBefore[1], rssBefore[2], rssBefore[3],
-                                rssAfter[0] - rssBefore[0], rssAfter[1] - rssBefore[1],
-                                rssAfter[2] - rssBefore[2], rssAfter[3] - rssBefore[3], time,
-                                lastCompactAction, lastCompactTime, lastOomAdj, procState,
-                                zramFreeKbBefore, zramFreeKbAfter - zramFreeKbBefore);
-                        // Note that as above not taking mPhenoTypeFlagLock here to avoid locking
-                        // on every single compaction for a flag that will seldom change and the
-                        // impact of reading the wrong value here is low.
-                        if (mRandom.nextFloat() < mCompactStatsdSampleRate) {
-                            FrameworkStatsLog.write(FrameworkStatsLog.APP_COMPACTED, pid, name,
-                                    pendingAction, rssBefore[0], rssBefore[1], rssBefore[2],
-                                    rssBefore[3], rssAfter[0], rssAfter[1], rssAfter[2],
-                                    rssAfter[3], time, lastCompactAction, lastCompactTime,
-                                    lastOomAdj, ActivityManager.processStateAmToProto(procState),
-                                    zramFreeKbBefore, zramFreeKbAfter);
-                        }
-                        synchronized (mAm) {
-                            proc.lastCompactTime = end;
-                            proc.lastCompactAction = pendingAction;
-                        }
-                        if (action.equals(COMPACT_ACTION_FULL)
-                                || action.equals(COMPACT_ACTION_ANON)) {
-                            // Remove entry and insert again to update insertion order.
-                            mLastCompactionStats.remove(pid);
-                            mLastCompactionStats.put(pid, new LastCompactionStats(rssAfter));
+                    return;
+                }
+
+                if (lastCompactionStats != null && mFullDeltaRssThrottleKb > 0L) {
+                    long[] lastRss = lastCompactionStats.getRssAfterCompaction();
+                    long absDelta = Math.abs(rssBefore[1] - lastRss[1])
+                            + Math.abs(rssBefore[2] - lastRss[2])
+                            + Math.abs(rssBefore[3] - lastRss[3]);
+                    if (absDelta <= mFullDeltaRssThrottleKb) {
+                        if (DEBUG_COMPACTION) {
+                            Slog.d(TAG_AM, "Skipping full compaction for process "
+                                    + name + "; abs delta is too small: " + absDelta
+                                    + "KB.");
                         }
-                    } catch (Exception e) {
-                        // nothing to do, presumably the process died
-                    } finally {
-                        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+                        return;
                     }
-                    break;
                 }
-                case COMPACT_SYSTEM_MSG: {
-                    Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "compactSystem");
-                    compactSystem();
-                    Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+            }
+
+            // Now we've passed through all the throttles and are going to compact, update
+            // bookkeeping.
+            switch (pendingAction) {
+                case COMPACT_PROCESS_SOME:
+                    mSomeCompactionCount++;
+                    break;
+                case COMPACT_PROCESS_FULL:
+                    mFullCompactionCount++;
+                    break;
+                case COMPACT_PROCESS_PERSISTENT:
+                    mPersistentCompactionCount++;
+                    break;
+                case COMPACT_PROCESS_BFGS:
+                    mBfgsCompactionCount++;
+                    break;
+                default:
                     break;
+            }
+            try {
+                Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "Compact "
+                        + ((pendingAction == COMPACT_PROCESS_SOME) ? "some" : "full")
+                        + ": " + name);
+                long zramFreeKbBefore = Debug.getZramFreeKb();
+                long cpuTimeBefore = SystemClock.currentThreadTimeMillis();
+                mProcessDependencies.performCompaction(action, pid);
+                long[] rssAfter = mProcessDependencies.getRss(pid);
+                long end = SystemClock.uptimeMillis();
+                long time = end - start;
+                long zramFreeKbAfter = Debug.getZramFreeKb();
+                // What moved to zram still takes up memory there, compressed
+                long reclaimedKb = Math.max(0, (rssBefore[0] - rssAfter[0])
+                        - (zramFreeKbBefore - zramFreeKbAfter));
+                mCompactionReclaimedKb += reclaimedKb;
+                mCompactionCpuTimeMs += SystemClock.currentThreadTimeMillis() - cpuTimeBefore;
+                final long latency = end - pending.mRequestTime;
+                mCompletedCompactionCount++;
+                mTotalCompactionLatencyMs += latency;
+                mMaxCompactionLatencyMs = Math.max(mMaxCompactionLatencyMs, latency);
+                EventLog.writeEvent(EventLogTags.AM_COMPACT, pid, name, action,
+                        rssBefore[0], rssBefore[1], rssBefore[2], rssBefore[3],
+                        rssAfter[0] - rssBefore[0], rssAfter[1] - rssBefore[1],
+                        rssAfter[2] - rssBefore[2], rssAfter[3] - rssBefore[3], time,
+                        lastCompactAction, lastCompactTime, lastOomAdj, procState,
+                        zramFreeKbBefore, zramFreeKbAfter - zramFreeKbBefore);
+                // Note that as above not taking mPhenoTypeFlagLock here to avoid locking
+                // on every single compaction for a flag that will seldom change and the
+                // impact of reading the wrong value here is low.
+                if (mRandom.nextFloat() < mCompactStatsdSampleRate) {
+                    FrameworkStatsLog.write(FrameworkStatsLog.APP_COMPACTED, pid, name,
+                            pendingAction, rssBefore[0], rssBefore[1], rssBefore[2],
+                            rssBefore[3], rssAfter[0], rssAfter[1], rssAfter[2],
+                            rssAfter[3], time, lastCompactAction, lastCompactTime,
+                            lastOomAdj, ActivityManager.processStateAmToProto(procState),
+                            zramFreeKbBefore, zramFreeKbAfter);
+                }
+                synchronized (mAm) {
+                    proc.lastCompactTime = end;
+                    proc.lastCompactAction = pendingAction;
+                }
+                if (action.equals(COMPACT_ACTION_FULL)
+                        || action.equals(COMPACT_ACTION_ANON)) {
+                    // Remove entry and insert again to update insertion order.
+                    mLastCompactionStats.remove(pid);
+                    mLastCompactionStats.put(pid,
+                            new LastCompactionStats(rssAfter, reclaimedKb));
                 }
+            } catch (Exception e) {
+                // nothing to do, presumably the process died
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
             }
         }
     }
@@ -1076,7 +1227,7 @@ public final class CachedAppOptimizer {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case SET_FROZEN_PROCESS_MSG:
-                    freezeProcess((ProcessRecord) msg.obj);
+                    freezePendingProcesses();
                     break;
                 case REPORT_UNFREEZE_MSG:
                     int pid = msg.arg1;
@@ -1090,71 +1241,107 @@ public final class CachedAppOptimizer {
             }
         }
 
-        private void freezeProcess(ProcessRecord proc) {
-            final int pid;
-            final String name;
-            final long unfrozenDuration;
-            final boolean frozen;
+        /**
+         * Freezes the pending processes which are due, along with those due within
+         * {@link #FREEZE_BATCH_WINDOW_MS}, so that the lock is taken once per batch rather than
+         * once per process.
+         */
+        private void freezePendingProcesses() {
+            final int count;
+            final int[] pids;
+            final String[] names;
+            final long[] unfrozenDurations;
 
             synchronized (mAm) {
-                pid = proc.pid;
-                name = proc.processName;
-
-                if (proc.curAdj < ProcessList.CACHED_APP_MIN_ADJ
-                        || proc.shouldNotFreeze) {
-                    if (DEBUG_FREEZER) {
-                        Slog.d(TAG_AM, "Skipping freeze for process " + pid
-                                + " " + name + " curAdj = " + proc.curAdj
-                                + ", shouldNotFreeze = " + proc.shouldNotFreeze);
-                    }
-                    return;
-                }
-
-                try {
-                    freezeBinder(pid, true);
-                } catch (RuntimeException e) {
-                    // TODO: it might be preferable to kill the target pid in this case
-                    Slog.e(TAG_AM, "Unable to freeze binder for " + pid + " " + name);
-                    return;
-                }
-
-                if (pid == 0 || proc.frozen) {
-                    // Already frozen or not a real process, either one being
-                    // launched or one being killed
-                    return;
+                final ArrayList<ProcessRecord> batch = new ArrayList<>();
+                final long nextDueTime = takeDueFreezesLocked(SystemClock.uptimeMillis(), batch);
+                if (nextDueTime != Long.MAX_VALUE) {
+                    sendMessageAtTime(obtainMessage(SET_FROZEN_PROCESS_MSG, DO_FREEZE, 0),
+                            nextDueTime);
                 }
 
-                long unfreezeTime = proc.freezeUnfreezeTime;
-
-                try {
-                    Process.setProcessFrozen(pid, proc.uid, true);
-
-                    proc.freezeUnfreezeTime = SystemClock.uptimeMillis();
-                    proc.frozen = true;
-                } catch (Exception e) {
-                    Slog.w(TAG_AM, "Unable to freeze " + pid + " " + name);
+                count = batch.size();
+                pids = new int[count];
+                names = new String[count];
+                unfrozenDurations = new long[count];
+                for (int i = 0; i < count; i++) {
+                    final ProcessRecord proc = batch.get(i);
+                    pids[i] = proc.pid;
+                    names[i] = proc.processName;
+                    unfrozenDurations[i] = freezeProcessLocked(proc);
                 }
-
-                unfrozenDuration = proc.freezeUnfreezeTime - unfreezeTime;
-                frozen = proc.frozen;
             }
 
-            if (frozen) {
+            if (count > 0) {
+                mFreezeBatchCount++;
+            }
+            for (int i = 0; i < count; i++) {
+                if (unfrozenDurations[i] < 0) {
+                    continue;
+                }
+                mFrozenProcessCount++;
                 if (DEBUG_FREEZER) {
-                    Slog.d(TAG_AM, "froze " + pid + " " + name);
+                    Slog.d(TAG_AM, "froze " + pids[i] + " " + names[i]);
                 }
 
-                EventLog.writeEvent(EventLogTags.AM_FREEZE, pid, name);
+                EventLog.writeEvent(EventLogTags.AM_FREEZE, pids[i], names[i]);
 
                 // See above for why we're not taking mPhenotypeFlagLock here
                 if (mRandom.nextFloat() < mFreezerStatsdSampleRate) {
                     FrameworkStatsLog.write(FrameworkStatsLog.APP_FREEZE_CHANGED,
                             FrameworkStatsLog.APP_FREEZE_CHANGED__ACTION__FREEZE_APP,
-                            pid,
-                            name,
-                            unfrozenDuration);
+                            pids[i],
+                            names[i],
+                            unfrozenDurations[i]);
+                }
+            }
+        }
+
+        /**
+         * @return how long the process had been unfrozen for, or -1 if it wasn't frozen.
+         */
+        @GuardedBy("mAm")
+        private long freezeProcessLocked(ProcessRecord proc) {
+            final int pid = proc.pid;
+            final String name = proc.processName;
+
+            if (proc.curAdj < ProcessList.CACHED_APP_MIN_ADJ
+                    || proc.shouldNotFreeze) {
+                if (DEBUG_FREEZER) {
+                    Slog.d(TAG_AM, "Skipping freeze for process " + pid
+                            + " " + name + " curAdj = " + proc.curAdj
+                            + ", shouldNotFreeze = " + proc.shouldNotFreeze);
                 }
+                return -1;
+            }
+
+            try {
+                freezeBinder(pid, true);
+            } catch (RuntimeException e) {
+                // TODO: it might be preferable to kill the target pid in this case
+                Slog.e(TAG_AM, "Unable to freeze binder for " + pid + " " + name);
+                return -1;
+            }
+
+            if (pid == 0 || proc.frozen) {
+                // Already frozen or not a real process, either one being
+                // launched or one being killed
+                return -1;
+            }
+
+            long unfreezeTime = proc.freezeUnfreezeTime;
+
+            try {
+                Process.setProcessFrozen(pid, proc.uid, true);
+
+                proc.freezeUnfreezeTime = SystemClock.uptimeMillis();
+                proc.frozen = true;
+            } catch (Exception e) {
+                Slog.w(TAG_AM, "Unable to freeze " + pid + " " + name);
+                return -1;
             }
+
+            return proc.freezeUnfreezeTime - unfreezeTime;
         }
 
         private void reportUnfreeze(int pid, int frozenDuration, String processName) {
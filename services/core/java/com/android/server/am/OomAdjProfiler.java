@@ -70,6 +70,13 @@ public class OomAdjProfiler {
     @GuardedBy("this")
     private int mTotalOomAdjCalls;
 
+    /** Totals for updates which only recomputed the processes reachable from a change. */
+    @GuardedBy("this")
+    private final UpdateStats mPartialUpdateStats = new UpdateStats();
+    /** Totals for updates which recomputed every process in the LRU list. */
+    @GuardedBy("this")
+    private final UpdateStats mFullUpdateStats = new UpdateStats();
+
     void batteryPowerChanged(boolean onBattery) {
         synchronized (this) {
             scheduleSystemServerCpuTimeUpdate();
@@ -91,7 +98,11 @@ public class OomAdjProfiler {
         }
     }
 
-    void oomAdjEnded() {
+    /**
+     * @param fullUpdate whether every process in the LRU list was recomputed
+     * @param numProcesses the number of processes which were recomputed
+     */
+    void oomAdjEnded(boolean fullUpdate, int numProcesses) {
         synchronized (this) {
             if (!mOomAdjStarted) {
                 return;
@@ -100,6 +111,7 @@ public class OomAdjProfiler {
             mOomAdjRunTime.addCpuTimeUs(elapsedUs);
             mTotalOomAdjRunTimeUs += elapsedUs;
             mTotalOomAdjCalls++;
+            (fullUpdate ? mFullUpdateStats : mPartialUpdateStats).add(elapsedUs, numProcesses);
         }
     }
 
@@ -185,7 +197,43 @@ public class OomAdjProfiler {
                 pw.print(mTotalOomAdjCalls);
                 pw.print("  average=");
                 pw.println(mTotalOomAdjRunTimeUs / mTotalOomAdjCalls);
+                mPartialUpdateStats.dump(pw, "partial");
+                mFullUpdateStats.dump(pw, "full");
+            }
+        }
+    }
+
+    private static class UpdateStats {
+        private long mRunTimeUs;
+        private int mCalls;
+        private long mProcesses;
+        private int mMaxProcesses;
+
+        void add(long runTimeUs, int numProcesses) {
+            mRunTimeUs += runTimeUs;
+            mCalls++;
+            mProcesses += numProcesses;
+            mMaxProcesses = Math.max(mMaxProcesses, numProcesses);
+        }
+
+        void dump(PrintWriter pw, String name) {
+            if (mCalls == 0) {
+                return;
             }
+            pw.print("  ");
+            pw.print(name);
+            pw.print(": cpu time spent=");
+            pw.print(mRunTimeUs);
+            pw.print("  number of calls=");
+            pw.print(mCalls);
+            pw.print("  average=");
+            pw.print(mRunTimeUs / mCalls);
+            pw.print("  average processes=");
+            pw.print(mProcesses / mCalls);
+            pw.print("  max processes=");
+            pw.print(mMaxProcesses);
+            pw.print("  average per process=");
+            pw.println(mProcesses == 0 ? 0 : mRunTimeUs / mProcesses);
         }
     }
 
@@ -82,6 +82,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
+import android.os.Build;
 import android.os.Debug;
 import android.os.Handler;
 import android.os.IBinder;
@@ -90,6 +91,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.util.ArrayMap;
@@ -116,6 +118,13 @@ import java.util.Arrays;
  */
 public final class OomAdjuster {
     private static final String TAG = "OomAdjuster";
+
+    /**
+     * System property which, on debuggable builds, makes every partial update be followed by a
+     * full one so that any process the partial update missed gets reported.
+     */
+    private static final String PROPERTY_VERIFY_PARTIAL_UPDATES = "debug.oomadj.verify_partial";
+
     static final String OOM_ADJ_REASON_METHOD = "updateOomAdj";
     static final String OOM_ADJ_REASON_NONE = OOM_ADJ_REASON_METHOD + "_meh";
     static final String OOM_ADJ_REASON_ACTIVITY = OOM_ADJ_REASON_METHOD + "_activityChange";
@@ -197,6 +206,14 @@ public final class OomAdjuster {
     /** Track all uids that have actively running processes. */
     ActiveUids mActiveUids;
 
+    /**
+     * Whether partial updates are checked against a full update, see
+     * {@link #PROPERTY_VERIFY_PARTIAL_UPDATES}.
+     */
+    @VisibleForTesting
+    boolean mVerifyPartialUpdates = Build.IS_DEBUGGABLE
+            && SystemProperties.getBoolean(PROPERTY_VERIFY_PARTIAL_UPDATES, false);
+
     /**
      * The handler to execute {@link #setProcessGroup} (it may be heavy if the process has many
      * threads) for reducing the time spent in {@link #applyOomAdjLocked}.
@@ -213,6 +230,7 @@ public final class OomAdjuster {
     private ArrayList<UidRecord> mTmpBecameIdle = new ArrayList<UidRecord>();
     private ActiveUids mTmpUidRecords;
     private ArrayDeque<ProcessRecord> mTmpQueue;
+    private final ArraySet<ProcessRecord> mTmpRoots = new ArraySet<>();
 
     private final IPlatformCompat mPlatformCompat;
 
@@ -442,7 +460,7 @@ public final class OomAdjuster {
             if (DEBUG_OOM_ADJ) {
                 Slog.i(TAG_OOM_ADJ, "No oomadj changes for " + app);
             }
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(false, 1);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
             return success;
         }
@@ -450,18 +468,108 @@ public final class OomAdjuster {
         // Next to find out all its reachable processes
         ArrayList<ProcessRecord> processes = mTmpProcessList;
         ActiveUids uids = mTmpUidRecords;
+        ArraySet<ProcessRecord> roots = mTmpRoots;
+        roots.clear();
+        roots.add(app);
+        final boolean containsCycle = collectReachableProcessesLocked(roots, processes, uids);
+
+        // Reset the flag
+        app.mReachable = false;
+        int size = processes.size();
+        if (size > 0) {
+            // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
+            reverse(processes);
+            mAdjSeq--;
+            // Update these reachable processes
+            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
+            // In case the app goes from non-cached to cached but it doesn't have other reachable
+            // processes, its adj could be still unknown as of now, assign one.
+            processes.add(app);
+            assignCachedAdjIfNecessary(processes);
+            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
+                    SystemClock.elapsedRealtime());
+        }
+        mService.mOomAdjProfiler.oomAdjEnded(false, size + 1);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        if (mVerifyPartialUpdates) {
+            verifyPartialUpdateLocked(oomAdjReason, topApp);
+        }
+        return true;
+    }
+
+    /**
+     * Update OomAdj for the given processes and their reachable processes. This is meant for
+     * a binding or provider connection going away: only the processes it pointed to, and the
+     * ones they bind to in turn, could have become less important, so there's no need to
+     * recompute every process in the LRU list.
+     *
+     * @param apps The processes whose importance may have changed; a full update is done if
+     *             this is null or empty.
+     * @param oomAdjReason
+     */
+    @GuardedBy("mService")
+    void updateOomAdjLocked(ArraySet<ProcessRecord> apps, String oomAdjReason) {
+        if (apps == null || apps.isEmpty() || !mConstants.OOMADJ_UPDATE_QUICK) {
+            updateOomAdjLocked(oomAdjReason);
+            return;
+        }
+        if (apps.size() == 1) {
+            updateOomAdjLocked(apps.valueAt(0), oomAdjReason);
+            return;
+        }
+
+        final ProcessRecord topApp = mService.getTopAppLocked();
+
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
+        mService.mOomAdjProfiler.oomAdjStarted();
+
+        ArrayList<ProcessRecord> processes = mTmpProcessList;
+        ActiveUids uids = mTmpUidRecords;
+        boolean containsCycle = collectReachableProcessesLocked(apps, processes, uids);
+        reverse(processes);
+        // The roots go last, so they're evaluated before anything they bind to
+        for (int i = apps.size() - 1; i >= 0; i--) {
+            processes.add(apps.valueAt(i));
+        }
+        final int size = processes.size();
+        updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+
+        mService.mOomAdjProfiler.oomAdjEnded(false, size);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        if (mVerifyPartialUpdates) {
+            verifyPartialUpdateLocked(oomAdjReason, topApp);
+        }
+    }
+
+    /**
+     * Collects every process reachable from {@code roots} through service bindings and
+     * provider connections into {@code processes}, in the order they're found, along with
+     * their uids. The roots themselves are left out of {@code processes} and left marked as
+     * {@link ProcessRecord#mReachable}.
+     *
+     * @return whether the reachable processes could include a cycle.
+     */
+    @GuardedBy("mService")
+    private boolean collectReachableProcessesLocked(ArraySet<ProcessRecord> roots,
+            ArrayList<ProcessRecord> processes, ActiveUids uids) {
         ArrayDeque<ProcessRecord> queue = mTmpQueue;
 
         processes.clear();
         uids.clear();
         queue.clear();
 
+        for (int i = roots.size() - 1; i >= 0; i--) {
+            final ProcessRecord root = roots.valueAt(i);
+            root.mReachable = true;
+            queue.offer(root);
+        }
+
         // Track if any of them reachables could include a cycle
         boolean containsCycle = false;
-        // Scan downstreams of the process record
-        app.mReachable = true;
-        for (ProcessRecord pr = app; pr != null; pr = queue.poll()) {
-            if (pr != app) {
+        // Scan downstreams of the process records
+        for (ProcessRecord pr = queue.poll(); pr != null; pr = queue.poll()) {
+            if (!roots.contains(pr)) {
                 processes.add(pr);
             }
             if (pr.uidRecord != null) {
@@ -501,31 +609,61 @@ public final class OomAdjuster {
                 provider.mReachable = true;
             }
         }
+        return containsCycle;
+    }
 
-        // Reset the flag
-        app.mReachable = false;
-        int size = processes.size();
-        if (size > 0) {
-            // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
-            for (int l = 0, r = size - 1; l < r; l++, r--) {
-                ProcessRecord t = processes.get(l);
-                processes.set(l, processes.get(r));
-                processes.set(r, t);
+    private static void reverse(ArrayList<ProcessRecord> processes) {
+        for (int l = 0, r = processes.size() - 1; l < r; l++, r--) {
+            ProcessRecord t = processes.get(l);
+            processes.set(l, processes.get(r));
+            processes.set(r, t);
+        }
+    }
+
+    /**
+     * Runs a full update right after a partial one, and reports any process whose state the
+     * full update changed, as that means the partial update missed a process it should have
+     * reached. Only used on debug builds, see {@link #mVerifyPartialUpdates}.
+     */
+    @GuardedBy("mService")
+    private void verifyPartialUpdateLocked(String oomAdjReason, ProcessRecord topApp) {
+        final ArrayList<ProcessRecord> lru = new ArrayList<>(mProcessList.mLruProcesses);
+        final int numLru = lru.size();
+        final int[] procStates = new int[numLru];
+        final int[] adjs = new int[numLru];
+        for (int i = 0; i < numLru; i++) {
+            final ProcessRecord app = lru.get(i);
+            procStates[i] = app.getCurProcState();
+            adjs[i] = app.curAdj;
+        }
+
+        updateOomAdjLockedInner(oomAdjReason, topApp, null, null, true, false);
+
+        StringBuilder mismatches = null;
+        for (int i = 0; i < numLru; i++) {
+            final ProcessRecord app = lru.get(i);
+            if (app.killedByAm || app.thread == null) {
+                continue;
+            }
+            // Cached processes get their adj from their position in the LRU list, which may
+            // shift without their importance changing, so only compare their proc state
+            final boolean adjChanged = adjs[i] != app.curAdj
+                    && (adjs[i] < ProcessList.CACHED_APP_MIN_ADJ
+                    || app.curAdj < ProcessList.CACHED_APP_MIN_ADJ);
+            if (procStates[i] != app.getCurProcState() || adjChanged) {
+                if (mismatches == null) {
+                    mismatches = new StringBuilder();
+                }
+                mismatches.append(' ').append(app.toShortString())
+                        .append(" procState=").append(procStates[i])
+                        .append("->").append(app.getCurProcState())
+                        .append(" adj=").append(adjs[i]).append("->").append(app.curAdj);
             }
-            mAdjSeq--;
-            // Update these reachable processes
-            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
-        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
-            // In case the app goes from non-cached to cached but it doesn't have other reachable
-            // processes, its adj could be still unknown as of now, assign one.
-            processes.add(app);
-            assignCachedAdjIfNecessary(processes);
-            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
-                    SystemClock.elapsedRealtime());
         }
-        mService.mOomAdjProfiler.oomAdjEnded();
-        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
-        return true;
+        if (mismatches != null) {
+            Slog.wtf(TAG, "Partial oom adj update (" + oomAdjReason
+                    + ") disagrees with full update:" + mismatches);
+        }
     }
 
     /**
@@ -677,7 +815,7 @@ public final class OomAdjuster {
             }
         }
         if (startProfiling) {
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(fullUpdate, numProc);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
         }
     }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.IApplicationThread;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects the deliveries of non-ordered broadcasts to registered receivers by process, so that
+ * all those due to one process are sent in a single one-way transaction to its application
+ * thread. The deliveries to each process keep the order they were added in.
+ */
+final class RegisteredReceiverBatcher {
+    /** The deliveries not sent yet, by the application thread they're sent to. */
+    private final ArrayMap<IBinder, Batch> mBatches = new ArrayMap<>();
+
+    /** Batches that have been sent, to reuse. */
+    private final ArrayList<Batch> mSpareBatches = new ArrayList<>();
+
+    /**
+     * Adds the delivery of broadcast {@code r} to a registered receiver of process {@code app},
+     * which will be told it is in {@code processState} when the deliveries are sent.
+     */
+    void add(ProcessRecord app, IApplicationThread thread, int processState, BroadcastRecord r,
+            IIntentReceiver receiver, Intent intent) {
+        Batch batch = mBatches.get(thread.asBinder());
+        if (batch == null) {
+            batch = mSpareBatches.isEmpty()
+                    ? new Batch() : mSpareBatches.remove(mSpareBatches.size() - 1);
+            batch.app = app;
+            batch.thread = thread;
+            mBatches.put(thread.asBinder(), batch);
+        }
+        batch.processState = processState;
+        batch.records.add(r);
+        batch.receivers.add(receiver.asBinder());
+        batch.intents.add(intent);
+        batch.data.add(r.resultData);
+        batch.extras.add(r.resultExtras);
+    }
+
+    /** Returns the number of processes that have deliveries waiting to be sent. */
+    int getProcessCount() {
+        return mBatches.size();
+    }
+
+    /**
+     * Sends the deliveries to each process in one transaction and forgets them. A process that
+     * can't be reached is passed to {@code onFailure} with the broadcasts that weren't delivered
+     * to it.
+     */
+    void send(BiConsumer<ProcessRecord, ArrayList<BroadcastRecord>> onFailure) {
+        for (int i = 0; i < mBatches.size(); i++) {
+            final Batch batch = mBatches.valueAt(i);
+            try {
+                batch.send();
+            } catch (RemoteException e) {
+                onFailure.accept(batch.app, batch.records);
+            }
+            batch.clear();
+            mSpareBatches.add(batch);
+        }
+        mBatches.clear();
+    }
+
+    private static final class Batch {
+        ProcessRecord app;
+        IApplicationThread thread;
+        int processState;
+        final ArrayList<BroadcastRecord> records = new ArrayList<>();
+        final ArrayList<IBinder> receivers = new ArrayList<>();
+        final ArrayList<Intent> intents = new ArrayList<>();
+        final ArrayList<String> data = new ArrayList<>();
+        final ArrayList<Bundle> extras = new ArrayList<>();
+
+        void send() throws RemoteException {
+            final int count = records.size();
+            if (count == 1) {
+                // Nothing to batch, so use the call that doesn't need the arrays
+                final BroadcastRecord r = records.get(0);
+                thread.scheduleRegisteredReceiver(IIntentReceiver.Stub.asInterface(
+                        receivers.get(0)), intents.get(0), r.resultCode, data.get(0),
+                        extras.get(0), false /* ordered */, r.initialSticky, r.userId,
+                        processState);
+                return;
+            }
+            final int[] resultCodes = new int[count];
+            final boolean[] sticky = new boolean[count];
+            final int[] sendingUsers = new int[count];
+            for (int i = 0; i < count; i++) {
+                final BroadcastRecord r = records.get(i);
+                resultCodes[i] = r.resultCode;
+                sticky[i] = r.initialSticky;
+                sendingUsers[i] = r.userId;
+            }
+            thread.scheduleRegisteredReceivers(receivers, intents, resultCodes, data, extras,
+                    sticky, sendingUsers, processState);
+        }
+
+        void clear() {
+            app = null;
+            thread = null;
+            records.clear();
+            receivers.clear();
+            intents.clear();
+            data.clear();
+            extras.clear();
+        }
+    }
+}
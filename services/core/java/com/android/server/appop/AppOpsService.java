@@ -204,6 +204,9 @@ public class AppOpsService extends IAppOpsService.Stub {
     private final ArraySet<NoteOpTrace> mNoteOpCallerStacktraces = new ArraySet<>();
 
     private static final int NO_VERSION = -1;
+
+    /** Marks an op without a uid mode in {@link UidModes}, and a mode that isn't cached */
+    private static final int MODE_UNSET = -1;
     /** Increment by one every time and add the corresponding upgrade logic in
      *  {@link #upgradeLocked(int)} below. The first version was 1 */
     private static final int CURRENT_VERSION = 1;
@@ -318,6 +321,20 @@ public class AppOpsService extends IAppOpsService.Stub {
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /**
+     * Read-only copies of the modes in {@link #mUidStates}, which let checkOperation() answer
+     * without taking the service lock. The array and everything in it is immutable once
+     * published; a uid is dropped from it under the lock whenever its modes or packages change,
+     * and re-added the next time it is checked with the lock held.
+     */
+    private volatile @NonNull SparseArray<UidModes> mUidModes = new SparseArray<>();
+
+    /**
+     * Ops restricted for any user by any client, or {@code null} if there are none. Replaced, not
+     * modified, whenever {@link #mOpUserRestrictions} changes.
+     */
+    private volatile @Nullable boolean[] mRestrictedOps;
+
     volatile @NonNull HistoricalRegistry mHistoricalRegistry = new HistoricalRegistry(this);
 
     long mLastRealtime;
@@ -329,8 +346,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     SparseIntArray mProfileOwners;
 
-    @GuardedBy("this")
-    private CheckOpsDelegate mCheckOpsDelegate;
+    private volatile CheckOpsDelegate mCheckOpsDelegate;
 
     /**
       * Reverse lookup for {@link AppOpsManager#opToSwitch(int)}. Initialized once and never
@@ -646,6 +662,87 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Immutable copy of the modes of a {@link UidState}, see {@link #mUidModes}.
+     */
+    private static final class UidModes {
+        /** Mode set for the whole uid indexed by op code, or {@code null} if there are none */
+        private final @Nullable int[] mUidOpModes;
+
+        /** Modes of the packages of the uid whose {@link Ops#bypass} is known */
+        private final @NonNull ArrayMap<String, PackageModes> mPackageModes;
+
+        UidModes(@NonNull UidState uidState) {
+            if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                mUidOpModes = new int[AppOpsManager._NUM_OP];
+                Arrays.fill(mUidOpModes, MODE_UNSET);
+                for (int i = uidState.opModes.size() - 1; i >= 0; i--) {
+                    mUidOpModes[uidState.opModes.keyAt(i)] = uidState.opModes.valueAt(i);
+                }
+            } else {
+                mUidOpModes = null;
+            }
+
+            final int numPkgs = uidState.pkgOps != null ? uidState.pkgOps.size() : 0;
+            mPackageModes = new ArrayMap<>(numPkgs);
+            for (int i = 0; i < numPkgs; i++) {
+                final Ops ops = uidState.pkgOps.valueAt(i);
+                if (ops.bypass != null) {
+                    mPackageModes.put(ops.packageName, new PackageModes(ops));
+                }
+            }
+        }
+
+        @Nullable PackageModes getPackageModes(@NonNull String packageName) {
+            return mPackageModes.get(packageName);
+        }
+
+        /**
+         * Returns the mode the uid-wide or package policy sets for a switch op, as
+         * {@link #checkOperationUnchecked} resolves it before evaluating it.
+         */
+        int getRawMode(int switchCode, @NonNull PackageModes packageModes) {
+            if (mUidOpModes != null && mUidOpModes[switchCode] != MODE_UNSET) {
+                return mUidOpModes[switchCode];
+            }
+            return packageModes.getMode(switchCode);
+        }
+    }
+
+    /**
+     * Immutable copy of the modes and cached properties of an {@link Ops}.
+     */
+    private static final class PackageModes {
+        /** Mode of each op indexed by op code, or {@code null} if all of them are the default */
+        private final @Nullable int[] mModes;
+        final @NonNull RestrictionBypass bypass;
+        final @NonNull ArraySet<String> knownAttributionTags;
+
+        PackageModes(@NonNull Ops ops) {
+            int[] modes = null;
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                final Op op = ops.valueAt(i);
+                if (op.mode == AppOpsManager.opToDefaultMode(op.op)) {
+                    continue;
+                }
+                if (modes == null) {
+                    modes = new int[AppOpsManager._NUM_OP];
+                    for (int code = 0; code < AppOpsManager._NUM_OP; code++) {
+                        modes[code] = AppOpsManager.opToDefaultMode(code);
+                    }
+                }
+                modes[op.op] = op.mode;
+            }
+            mModes = modes;
+            bypass = ops.bypass;
+            knownAttributionTags = new ArraySet<>(ops.knownAttributionTags);
+        }
+
+        int getMode(int code) {
+            return mModes != null ? mModes[code] : AppOpsManager.opToDefaultMode(code);
+        }
+    }
+
     final static class Ops extends SparseArray<Op> {
         final String packageName;
         final UidState uidState;
@@ -1514,6 +1611,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
                     Ops removedOps = uidState.pkgOps.remove(pkgName);
                     if (removedOps != null) {
+                        invalidateUidModesLocked(uid);
                         scheduleFastWriteLocked();
                     }
                 }
@@ -1557,6 +1655,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     // Reset cached package properties to re-initialize when needed
                     ops.bypass = null;
                     ops.knownAttributionTags.clear();
+                    invalidateUidModesLocked(uid);
 
                     // Merge data collected for removed attributions into their successor
                     // attributions
@@ -1589,6 +1688,15 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    /**
+     * Starts recording op history without the rest of {@link #systemReady()}, which needs the
+     * other system services to be running.
+     */
+    @VisibleForTesting
+    public void startHistoricalRegistryForTesting() {
+        mHistoricalRegistry.systemReady(mContext.getContentResolver());
+    }
+
     public void systemReady() {
         mConstants.startMonitoring(mContext.getContentResolver());
         mHistoricalRegistry.systemReady(mContext.getContentResolver());
@@ -1610,6 +1718,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (ArrayUtils.isEmpty(pkgsInUid)) {
                     uidState.clear();
                     mUidStates.removeAt(uidNum);
+                    invalidateUidModesLocked(uid);
                     scheduleFastWriteLocked();
                     continue;
                 }
@@ -1770,6 +1879,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (ops != null) {
+                invalidateUidModesLocked(uid);
                 scheduleFastWriteLocked();
 
                 final int numOps = ops.size();
@@ -1796,6 +1906,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateUidModesLocked(uid);
                 scheduleFastWriteLocked();
             }
         }
@@ -2144,6 +2255,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             Ops ops = getOpsLocked(uid, packageName, null, null, false /* edit */);
             if (ops != null) {
                 ops.remove(op.op);
+                invalidateUidModesLocked(uid);
                 if (ops.size() <= 0) {
                     UidState uidState = ops.uidState;
                     ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
@@ -2237,6 +2349,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 scheduleWriteLocked();
             }
             uidState.evalForegroundOps(mOpModeWatchers);
+            invalidateUidModesLocked(uid);
         }
 
         notifyOpChangedForAllPkgsInUid(code, uid, false, permissionPolicyCallback);
@@ -2464,6 +2577,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (op.mode != mode) {
                     previousMode = op.mode;
                     op.mode = mode;
+                    invalidateUidModesLocked(uid);
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -2703,6 +2817,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
 
+            // The uid modes are reset even if no package op changed
+            invalidateAllUidModesLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -2828,15 +2944,11 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     public CheckOpsDelegate getAppOpsServiceDelegate() {
-        synchronized (this) {
-            return mCheckOpsDelegate;
-        }
+        return mCheckOpsDelegate;
     }
 
     public void setAppOpsServiceDelegate(CheckOpsDelegate delegate) {
-        synchronized (this) {
-            mCheckOpsDelegate = delegate;
-        }
+        mCheckOpsDelegate = delegate;
     }
 
     @Override
@@ -2850,10 +2962,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private int checkOperationInternal(int code, int uid, String packageName, boolean raw) {
-        final CheckOpsDelegate delegate;
-        synchronized (this) {
-            delegate = mCheckOpsDelegate;
-        }
+        final CheckOpsDelegate delegate = mCheckOpsDelegate;
         if (delegate == null) {
             return checkOperationImpl(code, uid, packageName, raw);
         }
@@ -2894,7 +3003,12 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (isOpRestrictedDueToSuspend(code, packageName, uid)) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final int cachedMode = checkOperationLockFree(code, uid, packageName, raw);
+        if (cachedMode != MODE_UNSET) {
+            return cachedMode;
+        }
         synchronized (this) {
+            publishUidModesLocked(uid);
             if (isOpRestrictedLocked(uid, code, packageName, bypass)) {
                 return AppOpsManager.MODE_IGNORED;
             }
@@ -2915,10 +3029,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     @Override
     public int checkAudioOperation(int code, int usage, int uid, String packageName) {
-        final CheckOpsDelegate delegate;
-        synchronized (this) {
-            delegate = mCheckOpsDelegate;
-        }
+        final CheckOpsDelegate delegate = mCheckOpsDelegate;
         if (delegate == null) {
             return checkAudioOperationImpl(code, usage, uid, packageName);
         }
@@ -3016,10 +3127,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     @Override
     public int noteOperation(int code, int uid, String packageName, String attributionTag,
             boolean shouldCollectAsyncNotedOp, String message, boolean shouldCollectMessage) {
-        final CheckOpsDelegate delegate;
-        synchronized (this) {
-            delegate = mCheckOpsDelegate;
-        }
+        final CheckOpsDelegate delegate = mCheckOpsDelegate;
         if (delegate == null) {
             return noteOperationImpl(code, uid, packageName, attributionTag,
                     shouldCollectAsyncNotedOp, message, shouldCollectMessage);
@@ -3736,6 +3844,116 @@ public class AppOpsService extends IAppOpsService.Stub {
         return uidState;
     }
 
+    /**
+     * Publishes a copy of the modes of a uid to {@link #mUidModes}, if it isn't already there.
+     */
+    @GuardedBy("this")
+    private void publishUidModesLocked(int uid) {
+        final SparseArray<UidModes> uidModes = mUidModes;
+        if (uidModes.get(uid) != null) {
+            return;
+        }
+        final UidState uidState = mUidStates.get(uid);
+        if (uidState == null) {
+            return;
+        }
+        // Nothing is ever removed from a published array, so clone() and put() don't need to gc
+        // it, and readers only ever get() from it
+        final SparseArray<UidModes> newUidModes = uidModes.clone();
+        newUidModes.put(uid, new UidModes(uidState));
+        mUidModes = newUidModes;
+    }
+
+    /**
+     * Drops the copy of the modes of a uid from {@link #mUidModes}. Must be called whenever
+     * the modes, packages or cached package properties of the uid change.
+     */
+    @GuardedBy("this")
+    private void invalidateUidModesLocked(int uid) {
+        final SparseArray<UidModes> uidModes = mUidModes;
+        final int index = uidModes.indexOfKey(uid);
+        if (index < 0) {
+            return;
+        }
+        final int size = uidModes.size();
+        final SparseArray<UidModes> newUidModes = new SparseArray<>(size - 1);
+        for (int i = 0; i < size; i++) {
+            if (i != index) {
+                newUidModes.append(uidModes.keyAt(i), uidModes.valueAt(i));
+            }
+        }
+        mUidModes = newUidModes;
+    }
+
+    /** Drops the copies of the modes of all uids from {@link #mUidModes}. */
+    @GuardedBy("this")
+    private void invalidateAllUidModesLocked() {
+        if (mUidModes.size() > 0) {
+            mUidModes = new SparseArray<>();
+        }
+    }
+
+    /** Recomputes {@link #mRestrictedOps} after {@link #mOpUserRestrictions} changed. */
+    @GuardedBy("this")
+    private void updateRestrictedOpsLocked() {
+        boolean[] restrictedOps = null;
+        final int restrictionSetCount = mOpUserRestrictions.size();
+        for (int i = 0; i < restrictionSetCount; i++) {
+            final SparseArray<boolean[]> perUserRestrictions =
+                    mOpUserRestrictions.valueAt(i).perUserRestrictions;
+            final int userCount = perUserRestrictions != null ? perUserRestrictions.size() : 0;
+            for (int j = 0; j < userCount; j++) {
+                final boolean[] restrictions = perUserRestrictions.valueAt(j);
+                if (restrictions == null) {
+                    continue;
+                }
+                final int numOps = Math.min(restrictions.length, AppOpsManager._NUM_OP);
+                for (int code = 0; code < numOps; code++) {
+                    if (restrictions[code]) {
+                        if (restrictedOps == null) {
+                            restrictedOps = new boolean[AppOpsManager._NUM_OP];
+                        }
+                        restrictedOps[code] = true;
+                    }
+                }
+            }
+        }
+        mRestrictedOps = restrictedOps;
+    }
+
+    /**
+     * Get the mode of an app-op from {@link #mUidModes}, without taking the service lock.
+     *
+     * @return The mode of the op, or {@link #MODE_UNSET} if it has to be looked up with the lock
+     * held, as the package isn't verified yet, the op might be restricted, or its mode depends
+     * on the state of the uid
+     */
+    private int checkOperationLockFree(int code, int uid, @NonNull String packageName,
+            boolean raw) {
+        final UidModes uidModes = mUidModes.get(uid);
+        final PackageModes packageModes =
+                uidModes != null ? uidModes.getPackageModes(packageName) : null;
+        if (packageModes == null) {
+            return MODE_UNSET;
+        }
+        final boolean[] restrictedOps = mRestrictedOps;
+        if (restrictedOps != null && restrictedOps[code]) {
+            return MODE_UNSET;
+        }
+        final int switchCode = AppOpsManager.opToSwitch(code);
+        final int mode = uidModes.getRawMode(switchCode, packageModes);
+        if (!raw && isModeDependentOnUidState(switchCode, mode)) {
+            return MODE_UNSET;
+        }
+        return mode;
+    }
+
+    /** Whether {@link UidState#evalMode} might change {@code mode}. */
+    private static boolean isModeDependentOnUidState(int op, int mode) {
+        return mode == MODE_FOREGROUND
+                || (mode == MODE_ALLOWED && (op == OP_CAMERA || op == OP_RECORD_AUDIO));
+    }
+
     /**
      * Check if the pending state should be updated and do so if needed
      *
@@ -3859,7 +4077,15 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         // Do not check if uid/packageName/attributionTag is already known
+        final UidModes uidModes = mUidModes.get(uid);
+        final PackageModes packageModes =
+                uidModes != null ? uidModes.getPackageModes(packageName) : null;
+        if (packageModes != null && (attributionTag == null
+                || packageModes.knownAttributionTags.contains(attributionTag))) {
+            return packageModes.bypass;
+        }
         synchronized (this) {
+            publishUidModesLocked(uid);
             UidState uidState = mUidStates.get(uid);
             if (uidState != null && uidState.pkgOps != null) {
                 Ops ops = uidState.pkgOps.get(packageName);
@@ -3957,12 +4183,13 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         if (edit) {
-            if (bypass != null) {
+            if (bypass != null && ops.bypass != bypass) {
                 ops.bypass = bypass;
+                invalidateUidModesLocked(uid);
             }
 
-            if (attributionTag != null) {
-                ops.knownAttributionTags.add(attributionTag);
+            if (attributionTag != null && ops.knownAttributionTags.add(attributionTag)) {
+                invalidateUidModesLocked(uid);
             }
         }
 
@@ -4124,6 +4351,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     if (!success) {
                         mUidStates.clear();
                     }
+                    invalidateAllUidModesLocked();
                     try {
                         stream.close();
                     } catch (IOException e) {
@@ -4184,6 +4412,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             case 1:
                 // for future upgrades
         }
+        invalidateAllUidModesLocked();
         scheduleFastWriteLocked();
     }
 
@@ -5741,6 +5970,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mOpUserRestrictions.remove(token);
                 restrictionState.destroy();
             }
+            updateRestrictedOpsLocked();
         }
     }
 
@@ -5766,6 +5996,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
                 opRestrictions.removeUser(userHandle);
             }
+            updateRestrictedOpsLocked();
             removeUidsForUserLocked(userHandle);
         }
     }
@@ -6101,6 +6332,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             final int uid = mUidStates.keyAt(i);
             if (UserHandle.getUserId(uid) == userHandle) {
                 mUidStates.removeAt(i);
+                invalidateUidModesLocked(uid);
             }
         }
     }
@@ -6285,6 +6517,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                updateRestrictedOpsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
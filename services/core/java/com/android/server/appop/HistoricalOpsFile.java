@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.AttributedHistoricalOps;
+import android.app.AppOpsManager.HistoricalOp;
+import android.app.AppOpsManager.HistoricalOps;
+import android.app.AppOpsManager.HistoricalPackageOps;
+import android.app.AppOpsManager.HistoricalUidOps;
+import android.os.Process;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Binary encoding of the snapshots of app op history in one interval file of
+ * {@link HistoricalRegistry}.
+ * <p>
+ * The file starts with a header holding the overflow of the interval and the number of
+ * snapshots. Each snapshot has its begin and end time, followed by an index of the uids in it,
+ * sorted by uid, which points at the block of ops of each uid. Within a uid block every package
+ * is prefixed with its length. A query for one uid hence reads only the header and index of each
+ * snapshot plus the block of that uid, and a query for one package skips the other packages of
+ * the uid without decoding them.
+ * <p>
+ * Records are handed to a {@link Visitor} as they are decoded, so callers decide what to
+ * materialize.
+ */
+@VisibleForTesting
+public final class HistoricalOpsFile {
+    private static final int MAGIC = 0x48414F50; // "HAOP"
+    private static final int VERSION = 1;
+
+    /** magic, version, overflow millis, snapshot count */
+    private static final int FILE_HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES + Integer.BYTES;
+    /** begin millis, end millis, uid count, body length */
+    private static final int SNAPSHOT_HEADER_SIZE = Long.BYTES * 2 + Integer.BYTES * 2;
+    /** uid, offset in body, length */
+    private static final int INDEX_ENTRY_SIZE = Integer.BYTES * 3;
+
+    /** Receives the contents of a file, in the order they are stored in. */
+    @VisibleForTesting
+    public interface Visitor {
+        /**
+         * Called for each snapshot before any of its states.
+         *
+         * @return whether to read the states of the snapshot
+         */
+        boolean visitSnapshot(long beginTimeMillis, long endTimeMillis);
+
+        /** Called for each state of an op in a snapshot which passes the uid/package filter. */
+        void visitState(int uid, @NonNull String packageName, @Nullable String attributionTag,
+                int op, long key, long accessCount, long rejectCount, long accessDuration);
+
+        /** Called after the states of a snapshot for which {@link #visitSnapshot} returned true */
+        void visitSnapshotEnd();
+    }
+
+    private HistoricalOpsFile() {
+    }
+
+    /**
+     * Writes the snapshots of an interval.
+     *
+     * @param out The stream to write to
+     * @param allOps The snapshots of the interval, in the order to read them back in
+     * @param intervalOverflowMillis How much the last snapshot overflows the interval end
+     */
+    @VisibleForTesting
+    public static void write(@NonNull OutputStream out, @Nullable List<HistoricalOps> allOps,
+            long intervalOverflowMillis) throws IOException {
+        final DataOutputStream dataOut = new DataOutputStream(out);
+        final int snapshotCount = allOps != null ? allOps.size() : 0;
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeLong(intervalOverflowMillis);
+        dataOut.writeInt(snapshotCount);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream bodyOut = new DataOutputStream(body);
+        final ByteArrayOutputStream pkg = new ByteArrayOutputStream();
+        final DataOutputStream pkgOut = new DataOutputStream(pkg);
+        for (int i = 0; i < snapshotCount; i++) {
+            final HistoricalOps ops = allOps.get(i);
+            final int uidCount = ops.getUidCount();
+            final int[] offsets = new int[uidCount + 1];
+            body.reset();
+            for (int j = 0; j < uidCount; j++) {
+                offsets[j] = body.size();
+                writeUidOps(ops.getUidOpsAt(j), bodyOut, pkg, pkgOut);
+            }
+            offsets[uidCount] = body.size();
+
+            dataOut.writeLong(ops.getBeginTimeMillis());
+            dataOut.writeLong(ops.getEndTimeMillis());
+            dataOut.writeInt(uidCount);
+            dataOut.writeInt(body.size());
+            // Uids come out of a SparseArray, hence are sorted as the index requires
+            for (int j = 0; j < uidCount; j++) {
+                dataOut.writeInt(ops.getUidOpsAt(j).getUid());
+                dataOut.writeInt(offsets[j]);
+                dataOut.writeInt(offsets[j + 1] - offsets[j]);
+            }
+            body.writeTo(dataOut);
+        }
+        dataOut.flush();
+    }
+
+    private static void writeUidOps(@NonNull HistoricalUidOps uidOps,
+            @NonNull DataOutputStream out, @NonNull ByteArrayOutputStream pkg,
+            @NonNull DataOutputStream pkgOut) throws IOException {
+        final int packageCount = uidOps.getPackageCount();
+        out.writeInt(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(i);
+            pkg.reset();
+            final int attributionCount = packageOps.getAttributedOpsCount();
+            pkgOut.writeInt(attributionCount);
+            for (int j = 0; j < attributionCount; j++) {
+                writeAttributionOps(packageOps.getAttributedOpsAt(j), pkgOut);
+            }
+            out.writeUTF(packageOps.getPackageName());
+            out.writeInt(pkg.size());
+            pkg.writeTo(out);
+        }
+    }
+
+    private static void writeAttributionOps(@NonNull AttributedHistoricalOps attributionOps,
+            @NonNull DataOutputStream out) throws IOException {
+        final String tag = attributionOps.getTag();
+        out.writeBoolean(tag != null);
+        if (tag != null) {
+            out.writeUTF(tag);
+        }
+        final int opCount = attributionOps.getOpCount();
+        out.writeInt(opCount);
+        for (int i = 0; i < opCount; i++) {
+            writeOp(attributionOps.getOpAt(i), out);
+        }
+    }
+
+    private static void writeOp(@NonNull HistoricalOp op, @NonNull DataOutputStream out)
+            throws IOException {
+        final LongSparseArray<Object> keys = op.collectKeys();
+        final int keyCount = keys != null ? keys.size() : 0;
+        out.writeInt(op.getOpCode());
+        out.writeInt(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            final long key = keys.keyAt(i);
+            final int uidState = AppOpsManager.extractUidStateFromKey(key);
+            final int flags = AppOpsManager.extractFlagsFromKey(key);
+            out.writeLong(key);
+            out.writeLong(op.getAccessCount(uidState, uidState, flags));
+            out.writeLong(op.getRejectCount(uidState, uidState, flags));
+            out.writeLong(op.getAccessDuration(uidState, uidState, flags));
+        }
+    }
+
+    /**
+     * Reads the snapshots of an interval, handing the states which pass the filters to
+     * {@code visitor}.
+     *
+     * @param file The file to read
+     * @param filterUid The uid to read the states of, or {@link Process#INVALID_UID} for all
+     * @param filterPackageName The package to read the states of, or {@code null} for all
+     * @param visitor Receives the snapshots and states
+     *
+     * @return How much the last snapshot of the interval overflows the interval end
+     */
+    @VisibleForTesting
+    public static long read(@NonNull File file, int filterUid, @Nullable String filterPackageName,
+            @NonNull Visitor visitor) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final long fileLength = raf.length();
+            final ByteBuffer header = readAt(raf, fileLength, 0, FILE_HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a history file: " + file);
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported history version " + version + " for file: "
+                        + file);
+            }
+            final long overflowMillis = header.getLong();
+            final int snapshotCount = header.getInt();
+
+            long position = FILE_HEADER_SIZE;
+            for (int i = 0; i < snapshotCount; i++) {
+                final ByteBuffer snapshot = readAt(raf, fileLength, position,
+                        SNAPSHOT_HEADER_SIZE);
+                final long beginTimeMillis = snapshot.getLong();
+                final long endTimeMillis = snapshot.getLong();
+                final int uidCount = snapshot.getInt();
+                final int bodyLength = snapshot.getInt();
+                final long indexPosition = position + SNAPSHOT_HEADER_SIZE;
+                final long bodyPosition = indexPosition + (long) uidCount * INDEX_ENTRY_SIZE;
+                position = bodyPosition + bodyLength;
+
+                if (!visitor.visitSnapshot(beginTimeMillis, endTimeMillis)) {
+                    continue;
+                }
+                final ByteBuffer index = readAt(raf, fileLength, indexPosition,
+                        uidCount * INDEX_ENTRY_SIZE);
+                if (filterUid != Process.INVALID_UID) {
+                    final int entry = findUid(index, uidCount, filterUid);
+                    if (entry >= 0) {
+                        final int offset = index.getInt(entry * INDEX_ENTRY_SIZE + Integer.BYTES);
+                        final int length = index.getInt(
+                                entry * INDEX_ENTRY_SIZE + Integer.BYTES * 2);
+                        readUidOps(filterUid,
+                                readAt(raf, fileLength, bodyPosition + offset, length),
+                                filterPackageName, visitor);
+                    }
+                } else {
+                    final ByteBuffer body = readAt(raf, fileLength, bodyPosition, bodyLength);
+                    for (int j = 0; j < uidCount; j++) {
+                        final int uid = index.getInt(j * INDEX_ENTRY_SIZE);
+                        final int offset = index.getInt(j * INDEX_ENTRY_SIZE + Integer.BYTES);
+                        final int length = index.getInt(
+                                j * INDEX_ENTRY_SIZE + Integer.BYTES * 2);
+                        final ByteBuffer block = body.duplicate();
+                        block.position(offset);
+                        block.limit(offset + length);
+                        readUidOps(uid, block.slice(), filterPackageName, visitor);
+                    }
+                }
+                visitor.visitSnapshotEnd();
+            }
+            return overflowMillis;
+        }
+    }
+
+    private static int findUid(@NonNull ByteBuffer index, int uidCount, int uid) {
+        int low = 0;
+        int high = uidCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midUid = index.getInt(mid * INDEX_ENTRY_SIZE);
+            if (midUid < uid) {
+                low = mid + 1;
+            } else if (midUid > uid) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static void readUidOps(int uid, @NonNull ByteBuffer block,
+            @Nullable String filterPackageName, @NonNull Visitor visitor) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(block.array(),
+                block.arrayOffset() + block.position(), block.remaining()));
+        final int packageCount = in.readInt();
+        for (int i = 0; i < packageCount; i++) {
+            final String packageName = in.readUTF();
+            final int length = in.readInt();
+            if (filterPackageName != null && !filterPackageName.equals(packageName)) {
+                in.skipBytes(length);
+                continue;
+            }
+            final int attributionCount = in.readInt();
+            for (int j = 0; j < attributionCount; j++) {
+                final String attributionTag = in.readBoolean() ? in.readUTF() : null;
+                final int opCount = in.readInt();
+                for (int k = 0; k < opCount; k++) {
+                    final int op = in.readInt();
+                    final int stateCount = in.readInt();
+                    for (int l = 0; l < stateCount; l++) {
+                        visitor.visitState(uid, packageName, attributionTag, op, in.readLong(),
+                                in.readLong(), in.readLong(), in.readLong());
+                    }
+                }
+            }
+        }
+    }
+
+    private static @NonNull ByteBuffer readAt(@NonNull RandomAccessFile raf, long fileLength,
+            long position, int length) throws IOException {
+        if (length < 0 || position + length > fileLength) {
+            throw new IOException("Truncated history file");
+        }
+        final byte[] bytes = new byte[length];
+        raf.seek(position);
+        raf.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -61,8 +61,8 @@ import com.android.server.FgThread;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -156,7 +156,10 @@ final class HistoricalRegistry {
     // See mIntervalCompressionMultiplier
     private static final long DEFAULT_COMPRESSION_STEP = 10;
 
-    private static final String HISTORY_FILE_SUFFIX = ".xml";
+    private static final String HISTORY_FILE_SUFFIX = ".bin";
+
+    // History written before the binary format, which is still read until it is rewritten
+    private static final String LEGACY_HISTORY_FILE_SUFFIX = ".xml";
 
     /**
      * Whether history is enabled.
@@ -783,6 +786,22 @@ final class HistoricalRegistry {
             return new File(baseDir, Long.toString(globalBeginMillis) + HISTORY_FILE_SUFFIX);
         }
 
+        private File generateLegacyFile(@NonNull File baseDir, int depth) {
+            final long globalBeginMillis = computeGlobalIntervalBeginMillis(depth);
+            return new File(baseDir, Long.toString(globalBeginMillis)
+                    + LEGACY_HISTORY_FILE_SUFFIX);
+        }
+
+        /** Returns the file holding the interval at {@code depth}, in whichever format. */
+        private File findFile(@NonNull File baseDir, int depth) {
+            final File file = generateFile(baseDir, depth);
+            if (file.exists()) {
+                return file;
+            }
+            final File legacyFile = generateLegacyFile(baseDir, depth);
+            return legacyFile.exists() ? legacyFile : file;
+        }
+
         void clearHistoryDLocked(int uid, String packageName) {
             List<HistoricalOps> historicalOps = readHistoryDLocked();
 
@@ -857,7 +876,8 @@ final class HistoricalRegistry {
                     File shortestFile = null;
                     for (File candidate : files) {
                         final String candidateName = candidate.getName();
-                        if (!candidateName.endsWith(HISTORY_FILE_SUFFIX)) {
+                        if (!candidateName.endsWith(HISTORY_FILE_SUFFIX)
+                                && !candidateName.endsWith(LEGACY_HISTORY_FILE_SUFFIX)) {
                             continue;
                         }
                         if (shortestFile == null) {
@@ -994,9 +1014,9 @@ final class HistoricalRegistry {
             if (passedOps == null || passedOps.isEmpty()) {
                 if (!oldFileNames.isEmpty()) {
                     // If there is an old file we need to copy it over to the new state.
-                    final File oldFile = generateFile(oldBaseDir, depth);
+                    final File oldFile = findFile(oldBaseDir, depth);
                     if (oldFileNames.remove(oldFile.getName())) {
-                        final File newFile = generateFile(newBaseDir, depth);
+                        final File newFile = new File(newBaseDir, oldFile.getName());
                         Files.createLink(newFile.toPath(), oldFile.toPath());
                     }
                     handlePersistHistoricalOpsRecursiveDLocked(newBaseDir, oldBaseDir,
@@ -1121,6 +1141,7 @@ final class HistoricalRegistry {
 
             final File newFile = generateFile(newBaseDir, depth);
             oldFileNames.remove(newFile.getName());
+            oldFileNames.remove(generateLegacyFile(newBaseDir, depth).getName());
 
             if (persistedOps != null) {
                 normalizeSnapshotForSlotDuration(persistedOps, slotDurationMillis);
@@ -1144,9 +1165,10 @@ final class HistoricalRegistry {
                 @Nullable long[] cumulativeOverflowMillis, int depth,
                 @NonNull Set<String> historyFiles)
                 throws IOException, XmlPullParserException {
-            final File file = generateFile(baseDir, depth);
+            final File file = findFile(baseDir, depth);
             if (historyFiles != null) {
-                historyFiles.remove(file.getName());
+                historyFiles.remove(generateFile(baseDir, depth).getName());
+                historyFiles.remove(generateLegacyFile(baseDir, depth).getName());
             }
             if (filterBeginTimeMillis >= filterEndTimeMillis
                     || filterEndTimeMillis < intervalBeginMillis) {
@@ -1165,12 +1187,60 @@ final class HistoricalRegistry {
                     return null;
                 }
             }
+            if (file.getName().endsWith(LEGACY_HISTORY_FILE_SUFFIX)) {
+                return readLegacyHistoricalOpsLocked(file, filterUid, filterPackageName,
+                        filterAttributionTag, filterOpNames, filter, filterBeginTimeMillis,
+                        filterEndTimeMillis, filterFlags, cumulativeOverflowMillis);
+            }
             return readHistoricalOpsLocked(file, filterUid, filterPackageName, filterAttributionTag,
                     filterOpNames, filter, filterBeginTimeMillis, filterEndTimeMillis, filterFlags,
                     cumulativeOverflowMillis);
         }
 
-        private @Nullable  List<HistoricalOps> readHistoricalOpsLocked(@NonNull File file,
+        private @Nullable List<HistoricalOps> readHistoricalOpsLocked(@NonNull File file,
+                int filterUid, @Nullable String filterPackageName,
+                @Nullable String filterAttributionTag, @Nullable String[] filterOpNames,
+                @HistoricalOpsRequestFilter int filter, long filterBeginTimeMillis,
+                long filterEndTimeMillis, @OpFlags int filterFlags,
+                @Nullable long[] cumulativeOverflowMillis) throws IOException {
+            if (DEBUG) {
+                Slog.i(LOG_TAG, "Reading ops from:" + file);
+            }
+            final HistoricalOpsCollector collector = new HistoricalOpsCollector(
+                    filterAttributionTag, filterOpNames, filter, filterBeginTimeMillis,
+                    filterEndTimeMillis, filterFlags,
+                    cumulativeOverflowMillis != null ? cumulativeOverflowMillis[0] : 0);
+            final long overflowMillis;
+            try {
+                // The uid and package filters are applied while reading, so that the ops of
+                // other uids and packages aren't even decoded
+                overflowMillis = HistoricalOpsFile.read(file,
+                        (filter & FILTER_BY_UID) != 0 ? filterUid : Process.INVALID_UID,
+                        (filter & FILTER_BY_PACKAGE_NAME) != 0 ? filterPackageName : null,
+                        collector);
+            } catch (FileNotFoundException e) {
+                Slog.i(LOG_TAG, "No history file: " + file.getName());
+                return Collections.emptyList();
+            }
+            if (cumulativeOverflowMillis != null) {
+                cumulativeOverflowMillis[0] += overflowMillis;
+            }
+            final List<HistoricalOps> allOps = collector.getOps();
+            if (DEBUG) {
+                if (allOps != null) {
+                    Slog.i(LOG_TAG, "Read from file: " + file + " ops:\n"
+                            + opsToDebugString(allOps));
+                    enforceOpsWellFormed(allOps);
+                }
+            }
+            return allOps;
+        }
+
+        /**
+         * Reads an interval written as XML before the binary format. Such files are kept until
+         * their interval is rewritten on persisting.
+         */
+        private @Nullable List<HistoricalOps> readLegacyHistoricalOpsLocked(@NonNull File file,
                 int filterUid, @Nullable String filterPackageName,
                 @Nullable String filterAttributionTag, @Nullable String[] filterOpNames,
                 @HistoricalOpsRequestFilter int filter, long filterBeginTimeMillis,
@@ -1431,26 +1501,9 @@ final class HistoricalRegistry {
                 long intervalOverflowMillis, @NonNull File file) throws IOException {
             final FileOutputStream output = sHistoricalAppOpsDir.openWrite(file);
             try {
-                final XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(output, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_HISTORY);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(CURRENT_VERSION));
-                if (intervalOverflowMillis != 0) {
-                    serializer.attribute(null, ATTR_OVERFLOW,
-                            Long.toString(intervalOverflowMillis));
-                }
-                if (allOps != null) {
-                    final int opsCount = allOps.size();
-                    for (int i = 0; i < opsCount; i++) {
-                        final HistoricalOps ops = allOps.get(i);
-                        writeHistoricalOpDLocked(ops, serializer);
-                    }
-                }
-                serializer.endTag(null, TAG_HISTORY);
-                serializer.endDocument();
+                final BufferedOutputStream bufferedOutput = new BufferedOutputStream(output);
+                HistoricalOpsFile.write(bufferedOutput, allOps, intervalOverflowMillis);
+                bufferedOutput.flush();
                 sHistoricalAppOpsDir.closeWrite(output);
             } catch (IOException e) {
                 sHistoricalAppOpsDir.failWrite(output);
@@ -1458,98 +1511,6 @@ final class HistoricalRegistry {
             }
         }
 
-        private void writeHistoricalOpDLocked(@NonNull HistoricalOps ops,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_OPS);
-            serializer.attribute(null, ATTR_BEGIN_TIME, Long.toString(ops.getBeginTimeMillis()));
-            serializer.attribute(null, ATTR_END_TIME, Long.toString(ops.getEndTimeMillis()));
-            final int uidCount = ops.getUidCount();
-            for (int i = 0; i < uidCount; i++) {
-                final HistoricalUidOps uidOp = ops.getUidOpsAt(i);
-                writeHistoricalUidOpsDLocked(uidOp, serializer);
-            }
-            serializer.endTag(null, TAG_OPS);
-        }
-
-        private void writeHistoricalUidOpsDLocked(@NonNull HistoricalUidOps uidOps,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_UID);
-            serializer.attribute(null, ATTR_NAME, Integer.toString(uidOps.getUid()));
-            final int packageCount = uidOps.getPackageCount();
-            for (int i = 0; i < packageCount; i++) {
-                final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(i);
-                writeHistoricalPackageOpsDLocked(packageOps, serializer);
-            }
-            serializer.endTag(null, TAG_UID);
-        }
-
-        private void writeHistoricalPackageOpsDLocked(@NonNull HistoricalPackageOps packageOps,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_PACKAGE);
-            serializer.attribute(null, ATTR_NAME, packageOps.getPackageName());
-            final int numAttributions = packageOps.getAttributedOpsCount();
-            for (int i = 0; i < numAttributions; i++) {
-                final AppOpsManager.AttributedHistoricalOps op = packageOps.getAttributedOpsAt(i);
-                writeHistoricalAttributionOpsDLocked(op, serializer);
-            }
-            serializer.endTag(null, TAG_PACKAGE);
-        }
-
-        private void writeHistoricalAttributionOpsDLocked(
-                @NonNull AppOpsManager.AttributedHistoricalOps attributionOps,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_ATTRIBUTION);
-            XmlUtils.writeStringAttribute(serializer, ATTR_NAME, attributionOps.getTag());
-            final int opCount = attributionOps.getOpCount();
-            for (int i = 0; i < opCount; i++) {
-                final HistoricalOp op = attributionOps.getOpAt(i);
-                writeHistoricalOpDLocked(op, serializer);
-            }
-            serializer.endTag(null, TAG_ATTRIBUTION);
-        }
-
-        private void writeHistoricalOpDLocked(@NonNull HistoricalOp op,
-                @NonNull XmlSerializer serializer) throws IOException {
-            final LongSparseArray keys = op.collectKeys();
-            if (keys == null || keys.size() <= 0) {
-                return;
-            }
-            serializer.startTag(null, TAG_OP);
-            serializer.attribute(null, ATTR_NAME, Integer.toString(op.getOpCode()));
-            final int keyCount = keys.size();
-            for (int i = 0; i < keyCount; i++) {
-                writeStateOnLocked(op, keys.keyAt(i), serializer);
-            }
-            serializer.endTag(null, TAG_OP);
-        }
-
-        private void writeStateOnLocked(@NonNull HistoricalOp op, long key,
-                @NonNull XmlSerializer serializer) throws IOException {
-            final int uidState = AppOpsManager.extractUidStateFromKey(key);
-            final int flags = AppOpsManager.extractFlagsFromKey(key);
-
-            final long accessCount = op.getAccessCount(uidState, uidState, flags);
-            final long rejectCount = op.getRejectCount(uidState, uidState, flags);
-            final long accessDuration = op.getAccessDuration(uidState, uidState, flags);
-
-            if (accessCount <= 0 && rejectCount <= 0 && accessDuration <= 0) {
-                return;
-            }
-
-            serializer.startTag(null, TAG_STATE);
-            serializer.attribute(null, ATTR_NAME, Long.toString(key));
-            if (accessCount > 0) {
-                serializer.attribute(null, ATTR_ACCESS_COUNT, Long.toString(accessCount));
-            }
-            if (rejectCount > 0) {
-                serializer.attribute(null, ATTR_REJECT_COUNT, Long.toString(rejectCount));
-            }
-            if (accessDuration > 0) {
-                serializer.attribute(null, ATTR_ACCESS_DURATION, Long.toString(accessDuration));
-            }
-            serializer.endTag(null, TAG_STATE);
-        }
-
         private static void enforceOpsWellFormed(@NonNull List<HistoricalOps> ops) {
             if (ops == null) {
                 return;
@@ -1673,6 +1634,117 @@ final class HistoricalRegistry {
             return builder.toString();
         }
 
+        /**
+         * Builds the {@link HistoricalOps} of the snapshots in a file which match a query, as
+         * the file is read.
+         */
+        private static final class HistoricalOpsCollector implements HistoricalOpsFile.Visitor {
+            private final @Nullable String mFilterAttributionTag;
+            private final @Nullable String[] mFilterOpNames;
+            private final @HistoricalOpsRequestFilter int mFilter;
+            private final long mFilterBeginTimeMillis;
+            private final long mFilterEndTimeMillis;
+            private final @OpFlags int mFilterFlags;
+            private final long mOverflowMillis;
+
+            private @Nullable List<HistoricalOps> mAllOps;
+            private @Nullable HistoricalOps mOps;
+            private long mFilteredBeginTimeMillis;
+            private long mFilteredEndTimeMillis;
+            private double mFilterScale;
+
+            HistoricalOpsCollector(@Nullable String filterAttributionTag,
+                    @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
+                    long filterBeginTimeMillis, long filterEndTimeMillis,
+                    @OpFlags int filterFlags, long overflowMillis) {
+                mFilterAttributionTag = filterAttributionTag;
+                mFilterOpNames = filterOpNames;
+                mFilter = filter;
+                mFilterBeginTimeMillis = filterBeginTimeMillis;
+                mFilterEndTimeMillis = filterEndTimeMillis;
+                mFilterFlags = filterFlags;
+                mOverflowMillis = overflowMillis;
+            }
+
+            @Override
+            public boolean visitSnapshot(long beginTimeMillis, long endTimeMillis) {
+                beginTimeMillis += mOverflowMillis;
+                endTimeMillis += mOverflowMillis;
+                if (mFilterEndTimeMillis < beginTimeMillis
+                        || mFilterBeginTimeMillis > endTimeMillis) {
+                    return false;
+                }
+                mFilteredBeginTimeMillis = Math.max(beginTimeMillis, mFilterBeginTimeMillis);
+                mFilteredEndTimeMillis = Math.min(endTimeMillis, mFilterEndTimeMillis);
+                mFilterScale = (double) (mFilteredEndTimeMillis - mFilteredBeginTimeMillis)
+                        / (double) (endTimeMillis - beginTimeMillis);
+                mOps = null;
+                return true;
+            }
+
+            @Override
+            public void visitState(int uid, @NonNull String packageName,
+                    @Nullable String attributionTag, int op, long key, long accessCount,
+                    long rejectCount, long accessDuration) {
+                if ((mFilter & FILTER_BY_ATTRIBUTION_TAG) != 0
+                        && !Objects.equals(mFilterAttributionTag, attributionTag)) {
+                    return;
+                }
+                if ((mFilter & FILTER_BY_OP_NAMES) != 0 && !ArrayUtils.contains(mFilterOpNames,
+                        AppOpsManager.opToPublicName(op))) {
+                    return;
+                }
+                final int flags = AppOpsManager.extractFlagsFromKey(key) & mFilterFlags;
+                if (flags == 0) {
+                    return;
+                }
+                final int uidState = AppOpsManager.extractUidStateFromKey(key);
+                if (accessCount > 0) {
+                    getOrCreateOps().increaseAccessCount(op, uid, packageName, attributionTag,
+                            uidState, flags, scale(accessCount));
+                }
+                if (rejectCount > 0) {
+                    getOrCreateOps().increaseRejectCount(op, uid, packageName, attributionTag,
+                            uidState, flags, scale(rejectCount));
+                }
+                if (accessDuration > 0) {
+                    getOrCreateOps().increaseAccessDuration(op, uid, packageName,
+                            attributionTag, uidState, flags, scale(accessDuration));
+                }
+            }
+
+            @Override
+            public void visitSnapshotEnd() {
+                if (mOps == null || mOps.isEmpty()) {
+                    return;
+                }
+                mOps.setBeginAndEndTime(mFilteredBeginTimeMillis, mFilteredEndTimeMillis);
+                if (mAllOps == null) {
+                    mAllOps = new ArrayList<>();
+                }
+                mAllOps.add(mOps);
+                mOps = null;
+            }
+
+            @Nullable List<HistoricalOps> getOps() {
+                return mAllOps;
+            }
+
+            private @NonNull HistoricalOps getOrCreateOps() {
+                if (mOps == null) {
+                    mOps = new HistoricalOps(0, 0);
+                }
+                return mOps;
+            }
+
+            private long scale(long value) {
+                if (Double.isNaN(mFilterScale)) {
+                    return value;
+                }
+                return (long) HistoricalOps.round((double) value * mFilterScale);
+            }
+        }
+
         private static Set<String> getHistoricalFileNames(@NonNull File historyDir)  {
             final File[] files = historyDir.listFiles();
             if (files == null) {
@@ -1725,7 +1797,8 @@ final class HistoricalRegistry {
                     longestName = file.getName();
                 }
             }
-            return Long.parseLong(longestName.replace(HISTORY_FILE_SUFFIX, ""));
+            return Long.parseLong(longestName.replace(HISTORY_FILE_SUFFIX, "")
+                    .replace(LEGACY_HISTORY_FILE_SUFFIX, ""));
         }
     }
 
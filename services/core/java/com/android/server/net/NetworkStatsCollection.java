@@ -62,8 +62,10 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -93,6 +95,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_INDEXED = 17;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -369,32 +372,45 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             if (templateMatches(template, key.ident)
                     && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
                     && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                historyEntry = value.getValues(start, end, now, historyEntry);
-
-                entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork() ?
-                        DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
-                entry.rxBytes = historyEntry.rxBytes;
-                entry.rxPackets = historyEntry.rxPackets;
-                entry.txBytes = historyEntry.txBytes;
-                entry.txPackets = historyEntry.txPackets;
-                entry.operations = historyEntry.operations;
-
-                if (!entry.isEmpty()) {
-                    stats.combineValues(entry);
-                }
+                historyEntry = summarizeHistory(stats, key, mStats.valueAt(i), start, end, now,
+                        entry, historyEntry);
             }
         }
 
         return stats;
     }
 
+    /**
+     * Combine the values of {@code history} between {@code start} and {@code end} into
+     * {@code stats} under the given {@link Key}.
+     *
+     * @return the {@link NetworkStatsHistory.Entry} used, which may be recycled by the caller.
+     */
+    private static NetworkStatsHistory.Entry summarizeHistory(NetworkStats stats, Key key,
+            NetworkStatsHistory history, long start, long end, long now, NetworkStats.Entry entry,
+            NetworkStatsHistory.Entry historyEntry) {
+        historyEntry = history.getValues(start, end, now, historyEntry);
+
+        entry.iface = IFACE_ALL;
+        entry.uid = key.uid;
+        entry.set = key.set;
+        entry.tag = key.tag;
+        entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork() ?
+                DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+        entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+        entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+        entry.rxBytes = historyEntry.rxBytes;
+        entry.rxPackets = historyEntry.rxPackets;
+        entry.txBytes = historyEntry.txBytes;
+        entry.txPackets = historyEntry.txPackets;
+        entry.operations = historyEntry.operations;
+
+        if (!entry.isEmpty()) {
+            stats.combineValues(entry);
+        }
+        return historyEntry;
+    }
+
     /**
      * Record given {@link android.net.NetworkStats.Entry} into this collection.
      */
@@ -459,6 +475,25 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     public void read(DataInputStream in) throws IOException {
+        read(in, new HistoryVisitor() {
+            @Override
+            public boolean wants(Key key, long start, long end) {
+                return true;
+            }
+
+            @Override
+            public void visit(Key key, NetworkStatsHistory history) {
+                recordHistory(key, history);
+            }
+        });
+    }
+
+    /**
+     * Stream the contents of a persisted collection into {@code visitor}. When the stream
+     * carries a key index, histories that the visitor doesn't want are skipped over without
+     * being deserialized.
+     */
+    private static void read(DataInputStream in, HistoryVisitor visitor) throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
@@ -481,7 +516,50 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
                         final Key key = new Key(ident, uid, set, tag);
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
-                        recordHistory(key, history);
+                        if (visitor.wants(key, history.getStart(), history.getEnd())) {
+                            visitor.visit(key, history);
+                        }
+                    }
+                }
+                break;
+            }
+            case VERSION_UNIFIED_INDEXED: {
+                // uid := identSize *(NetworkIdentitySet)
+                //        keySize *(identIndex uid set tag start end length)
+                //        keySize *(NetworkStatsHistory)
+                final int identSize = in.readInt();
+                if (identSize < 0) throw new ProtocolException("negative ident size");
+                final NetworkIdentitySet[] idents = new NetworkIdentitySet[identSize];
+                for (int i = 0; i < identSize; i++) {
+                    idents[i] = new NetworkIdentitySet(in);
+                }
+
+                final int keySize = in.readInt();
+                if (keySize < 0) throw new ProtocolException("negative key size");
+                final Key[] keys = new Key[keySize];
+                final long[] starts = new long[keySize];
+                final long[] ends = new long[keySize];
+                final int[] lengths = new int[keySize];
+                for (int i = 0; i < keySize; i++) {
+                    final int identIndex = in.readInt();
+                    if (identIndex < 0 || identIndex >= identSize) {
+                        throw new ProtocolException("unexpected ident index: " + identIndex);
+                    }
+                    final int uid = in.readInt();
+                    final int set = in.readInt();
+                    final int tag = in.readInt();
+                    keys[i] = new Key(idents[identIndex], uid, set, tag);
+                    starts[i] = in.readLong();
+                    ends[i] = in.readLong();
+                    lengths[i] = in.readInt();
+                    if (lengths[i] < 0) throw new ProtocolException("negative history length");
+                }
+
+                for (int i = 0; i < keySize; i++) {
+                    if (visitor.wants(keys[i], starts[i], ends[i])) {
+                        visitor.visit(keys[i], new NetworkStatsHistory(in));
+                    } else {
+                        skipFully(in, lengths[i]);
                     }
                 }
                 break;
@@ -492,6 +570,14 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            final int skipped = in.skipBytes(length);
+            if (skipped <= 0) throw new EOFException();
+            length -= skipped;
+        }
+    }
+
     public void write(DataOutputStream out) throws IOException {
         // cluster key lists grouped by ident
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
@@ -504,24 +590,39 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             keys.add(key);
         }
 
+        // histories are buffered so their lengths can be indexed ahead of them
+        final ByteArrayOutputStream historyBytes = new ByteArrayOutputStream();
+        final DataOutputStream historyOut = new DataOutputStream(historyBytes);
+
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
+        out.writeInt(VERSION_UNIFIED_INDEXED);
 
         out.writeInt(keysByIdent.size());
         for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
             ident.writeToStream(out);
+        }
 
-            out.writeInt(keys.size());
-            for (Key key : keys) {
+        out.writeInt(mStats.size());
+        int identIndex = 0;
+        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
+            for (Key key : keysByIdent.get(ident)) {
                 final NetworkStatsHistory history = mStats.get(key);
+                final int offset = historyOut.size();
+                history.writeToStream(historyOut);
+
+                out.writeInt(identIndex);
                 out.writeInt(key.uid);
                 out.writeInt(key.set);
                 out.writeInt(key.tag);
-                history.writeToStream(out);
+                out.writeLong(history.getStart());
+                out.writeLong(history.getEnd());
+                out.writeInt(historyOut.size() - offset);
             }
+            identIndex++;
         }
 
+        historyOut.flush();
+        historyBytes.writeTo(out);
         out.flush();
     }
 
@@ -772,6 +873,88 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    /**
+     * Receives the histories of a persisted collection as it's being streamed.
+     */
+    private interface HistoryVisitor {
+        /**
+         * Return whether the history stored under {@code key}, which spans from {@code start}
+         * to {@code end}, should be deserialized and passed to {@link #visit}.
+         */
+        boolean wants(Key key, long start, long end);
+
+        void visit(Key key, NetworkStatsHistory history);
+    }
+
+    /**
+     * {@link FileRotator.Reader} that aggregates persisted collections directly into a
+     * {@link NetworkStats} summary, equivalent to {@link #getSummary} on the collection that
+     * would have been loaded. Only histories matching the request are deserialized, and none
+     * are retained, which avoids loading complete history just to answer a single query.
+     */
+    public static class SummaryReader implements FileRotator.Reader {
+        private final NetworkTemplate mTemplate;
+        private final long mStart;
+        private final long mEnd;
+        private final long mNow;
+        private final @NetworkStatsAccess.Level int mAccessLevel;
+        private final int mCallerUid;
+
+        private final NetworkStats mStats;
+        private final NetworkStats.Entry mEntry = new NetworkStats.Entry();
+        private NetworkStatsHistory.Entry mHistoryEntry;
+
+        private final HistoryVisitor mVisitor = new HistoryVisitor() {
+            @Override
+            public boolean wants(Key key, long start, long end) {
+                return start < mEnd && end > mStart
+                        && key.set < NetworkStats.SET_DEBUG_START
+                        && NetworkStatsAccess.isAccessibleToUser(key.uid, mCallerUid, mAccessLevel)
+                        && templateMatches(mTemplate, key.ident);
+            }
+
+            @Override
+            public void visit(Key key, NetworkStatsHistory history) {
+                mHistoryEntry = summarizeHistory(mStats, key, history, mStart, mEnd, mNow,
+                        mEntry, mHistoryEntry);
+            }
+        };
+
+        public SummaryReader(NetworkTemplate template, long start, long end,
+                @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+            mTemplate = template;
+            mStart = start;
+            mEnd = end;
+            mNow = System.currentTimeMillis();
+            mAccessLevel = accessLevel;
+            mCallerUid = callerUid;
+            mStats = new NetworkStats(end - start, 24);
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            NetworkStatsCollection.read(new DataInputStream(in), mVisitor);
+        }
+
+        /**
+         * Aggregate the matching histories of an in-memory collection, such as pending
+         * data which hasn't been persisted yet.
+         */
+        public void recordCollection(NetworkStatsCollection collection) {
+            for (int i = 0; i < collection.mStats.size(); i++) {
+                final Key key = collection.mStats.keyAt(i);
+                final NetworkStatsHistory history = collection.mStats.valueAt(i);
+                if (mVisitor.wants(key, history.getStart(), history.getEnd())) {
+                    mVisitor.visit(key, history);
+                }
+            }
+        }
+
+        public NetworkStats getSummary() {
+            return mStats;
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
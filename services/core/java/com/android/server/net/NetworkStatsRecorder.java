@@ -182,6 +182,36 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Summarize history matching the requested parameters. Uses the complete
+     * history when it's already cached, otherwise streams matching files from
+     * {@link FileRotator} without loading them into memory.
+     */
+    public NetworkStats getSummaryLocked(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete.getSummary(template, start, end, accessLevel, callerUid);
+        }
+
+        if (LOGD) Slog.d(TAG, "getSummaryLocked() streaming from disk for " + mCookie);
+        final NetworkStatsCollection.SummaryReader reader =
+                new NetworkStatsCollection.SummaryReader(template, start, end, accessLevel,
+                        callerUid);
+        try {
+            mRotator.readMatching(reader, start, end);
+            reader.recordCollection(mPending);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem streaming network stats summary", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem streaming network stats summary", e);
+            recoverFromWtf();
+        }
+        return reader.getSummary();
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
@@ -848,12 +848,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private NetworkStats getNetworkUidBytes(NetworkTemplate template, long start, long end) {
         assertSystemReady();
 
-        final NetworkStatsCollection uidComplete;
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            return mUidRecorder.getSummaryLocked(template, start, end,
+                    NetworkStatsAccess.Level.DEVICE, android.os.Process.SYSTEM_UID);
         }
-        return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
-                android.os.Process.SYSTEM_UID);
     }
 
     @Override
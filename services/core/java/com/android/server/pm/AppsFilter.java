@@ -144,12 +144,15 @@ public class AppsFilter {
      * {@link #shouldFilterApplicationInternal(int, SettingBase, PackageSetting, int)} call.
      * NOTE: It can only be relied upon after the system is ready to avoid unnecessary update on
      * initial scam and is null until {@link #onSystemReady()} is called.
+     * <p>
+     * Updates are made under {@code mCacheLock}, but {@link #shouldFilterApplication} reads it
+     * without holding any lock; see {@link ShouldFilterMatrix}.
      */
     @GuardedBy("mCacheLock")
-    private volatile SparseArray<SparseBooleanArray> mShouldFilterCache;
+    private volatile ShouldFilterMatrix mShouldFilterCache;
 
     @VisibleForTesting(visibility = PRIVATE)
-    AppsFilter(StateProvider stateProvider,
+    public AppsFilter(StateProvider stateProvider,
             FeatureConfig featureConfig,
             String[] forceQueryableWhitelist,
             boolean systemAppsQueryable,
@@ -495,12 +498,8 @@ public class AppsFilter {
                 if (mShouldFilterCache != null) {
                     // update the cache in a one-off manner since we've got all the information we
                     // need.
-                    SparseBooleanArray visibleUids = mShouldFilterCache.get(recipientUid);
-                    if (visibleUids == null) {
-                        visibleUids = new SparseBooleanArray();
-                        mShouldFilterCache.put(recipientUid, visibleUids);
-                    }
-                    visibleUids.put(visibleUid, false);
+                    mShouldFilterCache.put(recipientUid, visibleUid, false);
+                    mShouldFilterCache.publish();
                 }
             }
         }
@@ -532,6 +531,7 @@ public class AppsFilter {
                     if (mShouldFilterCache != null) {
                         updateShouldFilterCacheForPackage(mShouldFilterCache, null, newPkgSetting,
                                 settings, users, settings.size());
+                        mShouldFilterCache.publish();
                     } // else, rebuild entire cache when system is ready
                 }
             });
@@ -632,34 +632,25 @@ public class AppsFilter {
         if (mShouldFilterCache == null) {
             return;
         }
-        for (int i = mShouldFilterCache.size() - 1; i >= 0; i--) {
-            if (UserHandle.getAppId(mShouldFilterCache.keyAt(i)) == appId) {
-                mShouldFilterCache.removeAt(i);
-                continue;
-            }
-            SparseBooleanArray targetSparseArray = mShouldFilterCache.valueAt(i);
-            for (int j = targetSparseArray.size() - 1; j >= 0; j--) {
-                if (UserHandle.getAppId(targetSparseArray.keyAt(j)) == appId) {
-                    targetSparseArray.removeAt(j);
-                }
-            }
-        }
+        mShouldFilterCache.removeAppId(appId);
     }
 
     private void updateEntireShouldFilterCache() {
         mStateProvider.runWithState((settings, users) -> {
-            SparseArray<SparseBooleanArray> cache =
-                    updateEntireShouldFilterCacheInner(settings, users);
+            ShouldFilterMatrix cache = updateEntireShouldFilterCacheInner(settings, users);
             synchronized (mCacheLock) {
                 mShouldFilterCache = cache;
             }
         });
     }
 
-    private SparseArray<SparseBooleanArray> updateEntireShouldFilterCacheInner(
+    private ShouldFilterMatrix updateEntireShouldFilterCacheInner(
             ArrayMap<String, PackageSetting> settings, UserInfo[] users) {
-        SparseArray<SparseBooleanArray> cache =
-                new SparseArray<>(users.length * settings.size());
+        final int[] userIds = new int[users.length];
+        for (int u = 0; u < users.length; u++) {
+            userIds[u] = users[u].id;
+        }
+        ShouldFilterMatrix cache = new ShouldFilterMatrix(userIds, settings.size());
         for (int i = settings.size() - 1; i >= 0; i--) {
             updateShouldFilterCacheForPackage(cache,
                     null /*skipPackage*/, settings.valueAt(i), settings, users, i);
@@ -683,7 +674,7 @@ public class AppsFilter {
                     packagesCache.put(settings.keyAt(i), pkg);
                 }
             });
-            SparseArray<SparseBooleanArray> cache =
+            ShouldFilterMatrix cache =
                     updateEntireShouldFilterCacheInner(settingsCopy, usersRef[0]);
             boolean[] changed = new boolean[1];
             // We have a cache, let's make sure the world hasn't changed out from under us.
@@ -729,17 +720,28 @@ public class AppsFilter {
                     updateShouldFilterCacheForPackage(mShouldFilterCache, null /* skipPackage */,
                             settings.get(packageName), settings, users,
                             settings.size() /*maxIndex*/);
+                    mShouldFilterCache.publish();
                 });
             }
         }
     }
 
-    private void updateShouldFilterCacheForPackage(SparseArray<SparseBooleanArray> cache,
+    /**
+     * Recomputes only the row and column of {@code subjectSetting} in {@code cache}, i.e. its
+     * visibility of each other package and each other package's visibility of it. Callers
+     * sharing {@code cache} with readers must {@link ShouldFilterMatrix#publish()} afterwards.
+     */
+    private void updateShouldFilterCacheForPackage(ShouldFilterMatrix cache,
             @Nullable String skipPackageName, PackageSetting subjectSetting, ArrayMap<String,
             PackageSetting> allSettings, UserInfo[] allUsers, int maxIndex) {
+        if (subjectSetting.appId < Process.FIRST_APPLICATION_UID) {
+            // never filtered, nor filtering, so nothing to cache
+            return;
+        }
         for (int i = Math.min(maxIndex, allSettings.size() - 1); i >= 0; i--) {
             PackageSetting otherSetting = allSettings.valueAt(i);
-            if (subjectSetting.appId == otherSetting.appId) {
+            if (subjectSetting.appId == otherSetting.appId
+                    || otherSetting.appId < Process.FIRST_APPLICATION_UID) {
                 continue;
             }
             //noinspection StringEquality
@@ -747,23 +749,16 @@ public class AppsFilter {
                 continue;
             }
             final int userCount = allUsers.length;
-            final int appxUidCount = userCount * allSettings.size();
             for (int su = 0; su < userCount; su++) {
                 int subjectUser = allUsers[su].id;
+                int subjectUid = UserHandle.getUid(subjectUser, subjectSetting.appId);
                 for (int ou = 0; ou < userCount; ou++) {
                     int otherUser = allUsers[ou].id;
-                    int subjectUid = UserHandle.getUid(subjectUser, subjectSetting.appId);
-                    if (!cache.contains(subjectUid)) {
-                        cache.put(subjectUid, new SparseBooleanArray(appxUidCount));
-                    }
                     int otherUid = UserHandle.getUid(otherUser, otherSetting.appId);
-                    if (!cache.contains(otherUid)) {
-                        cache.put(otherUid, new SparseBooleanArray(appxUidCount));
-                    }
-                    cache.get(subjectUid).put(otherUid,
+                    cache.put(subjectUid, otherUid,
                             shouldFilterApplicationInternal(
                                     subjectUid, subjectSetting, otherSetting, otherUser));
-                    cache.get(otherUid).put(subjectUid,
+                    cache.put(otherUid, subjectUid,
                             shouldFilterApplicationInternal(
                                     otherUid, otherSetting, subjectSetting, subjectUser));
                 }
@@ -952,6 +947,9 @@ public class AppsFilter {
                                 siblingSetting, settings, users, settings.size());
                     }
                 }
+                if (mShouldFilterCache != null) {
+                    mShouldFilterCache.publish();
+                }
             }
         });
     }
@@ -976,25 +974,24 @@ public class AppsFilter {
                     || callingAppId == targetPkgSetting.appId) {
                 return false;
             }
-            synchronized (mCacheLock) {
-                if (mShouldFilterCache != null) { // use cache
-                    SparseBooleanArray shouldFilterTargets = mShouldFilterCache.get(callingUid);
-                    final int targetUid = UserHandle.getUid(userId, targetPkgSetting.appId);
-                    if (shouldFilterTargets == null) {
+            // The cache is read without holding mCacheLock; see ShouldFilterMatrix
+            final ShouldFilterMatrix cache = mShouldFilterCache;
+            if (cache != null) { // use cache
+                final int targetUid = UserHandle.getUid(userId, targetPkgSetting.appId);
+                switch (cache.get(callingUid, targetUid)) {
+                    case ShouldFilterMatrix.VISIBLE:
+                        return false;
+                    case ShouldFilterMatrix.UNKNOWN_CALLER:
                         Slog.wtf(TAG, "Encountered calling uid with no cached rules: "
                                 + callingUid);
                         return true;
-                    }
-                    int indexOfTargetUid = shouldFilterTargets.indexOfKey(targetUid);
-                    if (indexOfTargetUid < 0) {
+                    case ShouldFilterMatrix.UNKNOWN_TARGET:
                         Slog.w(TAG, "Encountered calling -> target with no cached rules: "
                                 + callingUid + " -> " + targetUid);
                         return true;
-                    }
-                    if (!shouldFilterTargets.valueAt(indexOfTargetUid)) {
-                        return false;
-                    }
-                } else {
+                }
+            } else {
+                synchronized (mCacheLock) {
                     if (!shouldFilterApplicationInternal(
                             callingUid, callingSetting, targetPkgSetting, userId)) {
                         return false;
@@ -785,6 +785,23 @@ public class PackageManagerService extends IPackageManager.Stub
     @GuardedBy("mLock")
     final Settings mSettings;
 
+    /**
+     * Copy of the package and uid mappings that system callers query without taking mLock once
+     * the system is ready, or {@code null} if the mappings changed since it was made. Rebuilt on
+     * the next query.
+     */
+    private volatile PackageUidSnapshot mPackageUidSnapshot;
+
+    // Snapshot statistics for dumpsys
+    @GuardedBy("mLock")
+    private int mPackageUidSnapshotRebuilds;
+    @GuardedBy("mLock")
+    private int mPackageUidSnapshotInvalidations;
+    @GuardedBy("mLock")
+    private long mPackageUidSnapshotRebuildNanos;
+    @GuardedBy("mLock")
+    private long mPackageUidSnapshotMaxRebuildNanos;
+
     /**
      * Set of package names that are currently "frozen", which means active
      * surgery is being done on the code/data for that package. The platform
@@ -2534,6 +2551,7 @@ public class PackageManagerService extends IPackageManager.Stub
         // coalesce settings writes, this strategy would have us invalidate the cache too late.
         // Invalidating on schedule addresses this problem.
         PackageManager.invalidatePackageInfoCache();
+        invalidatePackageUidSnapshotLocked();
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2541,6 +2559,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
     void scheduleWritePackageListLocked(int userId) {
         PackageManager.invalidatePackageInfoCache();
+        invalidatePackageUidSnapshotLocked();
         if (!mHandler.hasMessages(WRITE_PACKAGE_LIST)) {
             Message msg = mHandler.obtainMessage(WRITE_PACKAGE_LIST);
             msg.arg1 = userId;
@@ -2555,6 +2574,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
     void scheduleWritePackageRestrictionsLocked(int userId) {
         PackageManager.invalidatePackageInfoCache();
+        invalidatePackageUidSnapshotLocked();
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? mUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
@@ -2764,6 +2784,7 @@ public class PackageManagerService extends IPackageManager.Stub
         mLock = injector.getLock();
         mPermissionManager = injector.getPermissionManagerServiceInternal();
         mSettings = injector.getSettings();
+        mSettings.setPackageCacheInvalidationListener(this::invalidatePackageUidSnapshotLocked);
         mUserManager = injector.getUserManagerService();
 
         mApexManager = testParams.apexManager;
@@ -2832,6 +2853,8 @@ public class PackageManagerService extends IPackageManager.Stub
     public PackageManagerService(Injector injector, boolean onlyCore, boolean factoryTest) {
         PackageManager.disableApplicationInfoCache();
         PackageManager.disablePackageInfoCache();
+        PackageManager.disablePackageUidCache();
+        PackageManager.disablePackagesForUidCache();
 
         // Avoid invalidation-thrashing by preventing cache invalidations from causing property
         // writes if the cache isn't enabled yet.  We re-enable writes later when we're
@@ -2873,6 +2896,7 @@ public class PackageManagerService extends IPackageManager.Stub
         mComponentResolver = injector.getComponentResolver();
         mPermissionManager = injector.getPermissionManagerServiceInternal();
         mSettings = injector.getSettings();
+        mSettings.setPackageCacheInvalidationListener(this::invalidatePackageUidSnapshotLocked);
         mPermissionManagerService = (IPermissionManager) ServiceManager.getService("permissionmgr");
         mIncrementalManager =
                 (IncrementalManager) mContext.getSystemService(Context.INCREMENTAL_SERVICE);
@@ -4894,6 +4918,11 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     private int getPackageUidInternal(String packageName, int flags, int userId, int callingUid) {
+        if (callingUid < Process.FIRST_APPLICATION_UID && mSystemReady) {
+            // Never filtered, so the snapshot can answer without taking the lock. Not used
+            // before the system is ready, as every package scanned at boot would invalidate it.
+            return getPackageUidSnapshot().getPackageUid(packageName, flags, userId);
+        }
         // reader
         synchronized (mLock) {
             final AndroidPackage p = mPackages.get(packageName);
@@ -4916,6 +4945,36 @@ public class PackageManagerService extends IPackageManager.Stub
         return -1;
     }
 
+    @GuardedBy("mLock")
+    private void invalidatePackageUidSnapshotLocked() {
+        if (mPackageUidSnapshot != null) {
+            mPackageUidSnapshot = null;
+            mPackageUidSnapshotInvalidations++;
+        }
+    }
+
+    private PackageUidSnapshot getPackageUidSnapshot() {
+        PackageUidSnapshot snapshot = mPackageUidSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (mLock) {
+            snapshot = mPackageUidSnapshot;
+            if (snapshot == null) {
+                final long startNanos = SystemClock.elapsedRealtimeNanos();
+                snapshot = PackageUidSnapshot.create(mPackages, mSettings.mPackages.values(),
+                        mSettings.getAllSharedUsersLPw(), mUserManager.getUserIds());
+                final long rebuildNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+                mPackageUidSnapshotRebuilds++;
+                mPackageUidSnapshotRebuildNanos += rebuildNanos;
+                mPackageUidSnapshotMaxRebuildNanos =
+                        Math.max(mPackageUidSnapshotMaxRebuildNanos, rebuildNanos);
+                mPackageUidSnapshot = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
     @Override
     public int[] getPackageGids(String packageName, int flags, int userId) {
         if (!mUserManager.exists(userId)) return null;
@@ -6285,6 +6344,11 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     private String[] getPackagesForUidInternal(int uid, int callingUid) {
+        if (callingUid < Process.FIRST_APPLICATION_UID && mSystemReady) {
+            // Never filtered, so the snapshot can answer without taking the lock. Not used
+            // before the system is ready, as every package scanned at boot would invalidate it.
+            return getPackageUidSnapshot().getPackagesForUid(uid);
+        }
         final boolean isCallerInstantApp = getInstantAppPackageName(callingUid) != null;
         final int userId = UserHandle.getUserId(uid);
         final int appId = UserHandle.getAppId(uid);
@@ -6295,25 +6359,44 @@ public class PackageManagerService extends IPackageManager.Stub
                 if (isCallerInstantApp) {
                     return null;
                 }
-                final SharedUserSetting sus = (SharedUserSetting) obj;
-                final int N = sus.packages.size();
-                String[] res = new String[N];
-                final Iterator<PackageSetting> it = sus.packages.iterator();
-                int i = 0;
-                while (it.hasNext()) {
-                    PackageSetting ps = it.next();
-                    if (ps.getInstalled(userId)) {
-                        res[i++] = ps.name;
-                    }
-                }
-                return ArrayUtils.trimToSize(res, i);
             } else if (obj instanceof PackageSetting) {
                 final PackageSetting ps = (PackageSetting) obj;
                 if (ps.getInstalled(userId)
-                        && !shouldFilterApplicationLocked(ps, callingUid, userId)) {
-                    return new String[]{ps.name};
+                        && shouldFilterApplicationLocked(ps, callingUid, userId)) {
+                    return null;
                 }
             }
+            return getInstalledPackagesForSetting(obj, userId);
+        }
+    }
+
+    /**
+     * Returns the packages of {@code setting} installed for {@code userId}, without filtering
+     * them for the caller, or {@code null} if there are none.
+     *
+     * @param setting The {@link SharedUserSetting} or {@link PackageSetting} of an app id, if any
+     */
+    @VisibleForTesting
+    @Nullable
+    static String[] getInstalledPackagesForSetting(@Nullable Object setting, int userId) {
+        if (setting instanceof SharedUserSetting) {
+            final SharedUserSetting sus = (SharedUserSetting) setting;
+            final int N = sus.packages.size();
+            String[] res = new String[N];
+            final Iterator<PackageSetting> it = sus.packages.iterator();
+            int i = 0;
+            while (it.hasNext()) {
+                PackageSetting ps = it.next();
+                if (ps.getInstalled(userId)) {
+                    res[i++] = ps.name;
+                }
+            }
+            return ArrayUtils.trimToSize(res, i);
+        } else if (setting instanceof PackageSetting) {
+            final PackageSetting ps = (PackageSetting) setting;
+            if (ps.getInstalled(userId)) {
+                return new String[]{ps.name};
+            }
         }
         return null;
     }
@@ -9146,8 +9229,12 @@ public class PackageManagerService extends IPackageManager.Stub
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
 
+        final Predicate<ParsedPackage> collectCertificates;
+        synchronized (mLock) {
+            collectCertificates = getCertificatesToCollectLocked(parseFlags);
+        }
         ParallelPackageParser parallelPackageParser =
-                new ParallelPackageParser(packageParser, executorService);
+                new ParallelPackageParser(packageParser, executorService, collectCertificates);
 
         // Submit files for parsing in parallel
         int fileCount = 0;
@@ -9162,13 +9249,26 @@ public class PackageManagerService extends IPackageManager.Stub
             fileCount++;
         }
 
+        // Time spent on the parsing threads, summed over all of them
+        long parseNanos = 0;
+        long collectCertificatesNanos = 0;
+        // Time spent on this thread
+        long waitNanos = 0;
+        long scanNanos = 0;
+        final int packageCount = fileCount;
+
         // Process results one by one
         for (; fileCount > 0; fileCount--) {
+            final long takeStartNanos = SystemClock.elapsedRealtimeNanos();
             ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
+            waitNanos += SystemClock.elapsedRealtimeNanos() - takeStartNanos;
+            parseNanos += parseResult.parseNanos;
+            collectCertificatesNanos += parseResult.collectCertificatesNanos;
             Throwable throwable = parseResult.throwable;
             int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
             if (throwable == null) {
+                final long scanStartNanos = SystemClock.elapsedRealtimeNanos();
                 // TODO(toddke): move lower in the scan chain
                 // Static shared libraries have synthetic package names
                 if (parseResult.parsedPackage.isStaticSharedLibrary()) {
@@ -9176,11 +9276,12 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
                 try {
                     addForInitLI(parseResult.parsedPackage, parseFlags, scanFlags,
-                            currentTime, null);
+                            currentTime, null, parseResult.signingDetails);
                 } catch (PackageManagerException e) {
                     errorCode = e.error;
                     Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
                 }
+                scanNanos += SystemClock.elapsedRealtimeNanos() - scanStartNanos;
             } else if (throwable instanceof PackageParserException) {
                 PackageParserException e = (PackageParserException)
                         throwable;
@@ -9203,14 +9304,61 @@ public class PackageManagerService extends IPackageManager.Stub
                 removeCodePathLI(parseResult.scanFile);
             }
         }
+
+        Slog.i(TAG + "Timing", "scanDir " + scanDir + ": " + packageCount + " packages, parse "
+                + TimeUnit.NANOSECONDS.toMillis(parseNanos) + "ms, collect certificates "
+                + TimeUnit.NANOSECONDS.toMillis(collectCertificatesNanos)
+                + "ms on parsing threads; waited "
+                + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms, scan "
+                + TimeUnit.NANOSECONDS.toMillis(scanNanos) + "ms");
+    }
+
+    /**
+     * Returns which of the packages about to be scanned in a dir should have their certificates
+     * collected while being parsed, judging from the settings as they are now. A wrong guess
+     * costs time but not correctness: {@link #collectCertificatesLI} still decides whether the
+     * certificates are needed, and collects them itself if they weren't.
+     */
+    @GuardedBy("mLock")
+    private Predicate<ParsedPackage> getCertificatesToCollectLocked(@ParseFlags int parseFlags) {
+        final boolean scanSystemPartition = (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0;
+        final VersionInfo internalVersion = mSettings.getInternalVersion();
+        if ((scanSystemPartition && mIsUpgrade) || mIsPreNMR1Upgrade
+                || isCompatSignatureUpdateNeeded(internalVersion)
+                || isRecoverSignatureUpdateNeeded(internalVersion)) {
+            return pkg -> true;
+        }
+        // Code paths and time stamps of packages whose signing details will be reused as long
+        // as their files are unchanged
+        final ArrayMap<String, Long> reusableTimeStamps = new ArrayMap<>();
+        for (int i = mSettings.mPackages.size() - 1; i >= 0; i--) {
+            final PackageSetting ps = mSettings.mPackages.valueAt(i);
+            final SigningDetails signingDetails = ps.signatures.mSigningDetails;
+            if (!ArrayUtils.isEmpty(signingDetails.signatures)
+                    && signingDetails.signatureSchemeVersion != SignatureSchemeVersion.UNKNOWN
+                    && (scanSystemPartition
+                            || !PackageManagerServiceUtils.isApkVerificationForced(ps))) {
+                reusableTimeStamps.put(ps.codePathString, ps.timeStamp);
+            }
+        }
+        return pkg -> {
+            final Long timeStamp = reusableTimeStamps.get(pkg.getCodePath());
+            return timeStamp == null || timeStamp != getLastModifiedTime(pkg);
+        };
     }
 
     public static void reportSettingsProblem(int priority, String msg) {
         logCriticalInfo(priority, msg);
     }
 
+    /**
+     * @param collectedSigningDetails Signing details already collected while parsing, with full
+     *                                APK verification unless {@code skipVerify} allows skipping
+     *                                it, or {@code null} to collect them here if needed.
+     */
     private void collectCertificatesLI(PackageSetting ps, ParsedPackage parsedPackage,
-            boolean forceCollect, boolean skipVerify) throws PackageManagerException {
+            boolean forceCollect, boolean skipVerify,
+            @Nullable SigningDetails collectedSigningDetails) throws PackageManagerException {
         // When upgrading from pre-N MR1, verify the package time stamp using the package
         // directory and not the APK file.
         final long lastModifiedTime = mIsPreNMR1Upgrade
@@ -9242,10 +9390,11 @@ public class PackageManagerService extends IPackageManager.Stub
 
         try {
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
-            parsedPackage.setSigningDetails(
-                    ParsingPackageUtils.getSigningDetails(parsedPackage, skipVerify));
-            if (compareSignatures(ParsingPackageUtils.getSigningDetails(
-                    parsedPackage, skipVerify).signatures, mVendorPlatformSignatures) ==
+            final SigningDetails signingDetails = collectedSigningDetails != null
+                    ? collectedSigningDetails
+                    : ParsingPackageUtils.getSigningDetails(parsedPackage, skipVerify);
+            parsedPackage.setSigningDetails(signingDetails);
+            if (compareSignatures(signingDetails.signatures, mVendorPlatformSignatures) ==
                     PackageManager.SIGNATURE_MATCH) {
                 // Overwrite package signature with our platform signature
                 // if the signature is the vendor's platform signature
@@ -9328,7 +9477,7 @@ public class PackageManagerService extends IPackageManager.Stub
             renameStaticSharedLibraryPackage(parsedPackage);
         }
 
-        return addForInitLI(parsedPackage, parseFlags, scanFlags, currentTime, user);
+        return addForInitLI(parsedPackage, parseFlags, scanFlags, currentTime, user, null);
     }
 
     /**
@@ -9393,7 +9542,7 @@ public class PackageManagerService extends IPackageManager.Stub
     @GuardedBy({"mInstallLock", "mLock"})
     private AndroidPackage addForInitLI(ParsedPackage parsedPackage,
             @ParseFlags int parseFlags, @ScanFlags int scanFlags, long currentTime,
-            @Nullable UserHandle user)
+            @Nullable UserHandle user, @Nullable SigningDetails collectedSigningDetails)
                     throws PackageManagerException {
         final boolean scanSystemPartition = (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0;
         final String renamedPkgName;
@@ -9480,6 +9629,7 @@ public class PackageManagerService extends IPackageManager.Stub
             synchronized (mLock) {
                 // just remove the loaded entries from package lists
                 mPackages.remove(pkgSetting.name);
+                invalidatePackageUidSnapshotLocked();
             }
 
             logCriticalInfo(Log.WARN,
@@ -9525,7 +9675,8 @@ public class PackageManagerService extends IPackageManager.Stub
         // TODO(b/136132412): skip for Incremental installation
         final boolean skipVerify = scanSystemPartition
                 || (forceCollect && canSkipForcedPackageVerification(parsedPackage));
-        collectCertificatesLI(pkgSetting, parsedPackage, forceCollect, skipVerify);
+        collectCertificatesLI(pkgSetting, parsedPackage, forceCollect, skipVerify,
+                collectedSigningDetails);
 
         // Reset profile if the application version is changed
         maybeClearProfilesForUpgradesLI(pkgSetting, parsedPackage);
@@ -12499,6 +12650,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mSettings.insertPackageSettingLPw(pkgSetting, pkg);
             // Add the new setting to mPackages
             mPackages.put(pkg.getPackageName(), pkg);
+            invalidatePackageUidSnapshotLocked();
             if ((scanFlags & SCAN_AS_APK_IN_APEX) != 0) {
                 mApexManager.registerApkInApex(pkg);
             }
@@ -12676,6 +12828,7 @@ public class PackageManagerService extends IPackageManager.Stub
         // writer
         synchronized (mLock) {
             final AndroidPackage removedPackage = mPackages.remove(packageName);
+            invalidatePackageUidSnapshotLocked();
             if (removedPackage != null) {
                 cleanPackageDataStructuresLILPw(removedPackage, chatty);
             }
@@ -21789,6 +21942,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 pw.println("    version: print database version info");
                 pw.println("    write: write current settings now");
                 pw.println("    installs: details about install sessions");
+                pw.println("    snapshot: statistics of the lock-free package uid snapshot");
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
@@ -21927,6 +22081,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 dumpState.setDump(DumpState.DUMP_INSTALLS);
             } else if ("frozen".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_FROZEN);
+            } else if ("snapshot".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_SNAPSHOT);
             } else if ("volumes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_VOLUMES);
             } else if ("dexopt".equals(cmd)) {
@@ -22255,6 +22411,26 @@ public class PackageManagerService extends IPackageManager.Stub
                 ipw.decreaseIndent();
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_SNAPSHOT) && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+
+                final IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ", 120);
+                ipw.println();
+                ipw.println("Package uid snapshot:");
+                ipw.increaseIndent();
+                final PackageUidSnapshot snapshot = mPackageUidSnapshot;
+                ipw.println("current: " + (snapshot != null
+                        ? snapshot.size() + " packages" : "(stale)"));
+                ipw.println("rebuilds: " + mPackageUidSnapshotRebuilds
+                        + ", invalidations: " + mPackageUidSnapshotInvalidations);
+                if (mPackageUidSnapshotRebuilds > 0) {
+                    ipw.println("rebuild time: average "
+                            + mPackageUidSnapshotRebuildNanos / mPackageUidSnapshotRebuilds / 1000
+                            + "us, max " + mPackageUidSnapshotMaxRebuildNanos / 1000 + "us");
+                }
+                ipw.decreaseIndent();
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_VOLUMES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
 
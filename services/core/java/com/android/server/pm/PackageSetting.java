@@ -192,6 +192,11 @@ public class PackageSetting extends PackageSettingBase {
         return appId;
     }
 
+    @VisibleForTesting
+    public void setAppId(int appId) {
+        this.appId = appId;
+    }
+
     public void setInstallPermissionsFixed(boolean fixed) {
         installPermissionsFixed = fixed;
     }
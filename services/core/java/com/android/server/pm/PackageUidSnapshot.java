@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.MATCH_KNOWN_PACKAGES;
+import static android.content.pm.PackageManager.MATCH_SYSTEM_ONLY;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Immutable copy of the package name and uid mappings of {@link PackageManagerService}, which
+ * answers {@link PackageManagerService#getPackageUid} and
+ * {@link PackageManagerService#getPackagesForUid} without taking its lock.
+ * <p>
+ * The snapshot doesn't know about instant apps or app visibility, so it may only answer callers
+ * that are never filtered, i.e. system uids.
+ */
+final class PackageUidSnapshot {
+    private static final class PackageEntry {
+        final String name;
+        // App id of the package setting, or -1 if there is none
+        final int appId;
+        // Uid of the scanned package, or -1 if the package isn't scanned
+        final int packageUid;
+        final boolean packageIsSystem;
+        final boolean settingIsSystem;
+        // Users the package is installed for
+        final int[] installedUserIds;
+
+        PackageEntry(String name, @Nullable PackageSetting ps, @Nullable AndroidPackage pkg,
+                @NonNull int[] userIds) {
+            this.name = name;
+            appId = ps != null ? ps.appId : -1;
+            packageUid = pkg != null ? pkg.getUid() : -1;
+            packageIsSystem = pkg != null && pkg.isSystem();
+            settingIsSystem = ps != null && ps.isSystem();
+            int[] installedUserIds = new int[0];
+            if (ps != null) {
+                for (int userId : userIds) {
+                    if (ps.getInstalled(userId)) {
+                        installedUserIds = ArrayUtils.appendInt(installedUserIds, userId);
+                    }
+                }
+            }
+            this.installedUserIds = installedUserIds;
+        }
+    }
+
+    private final ArrayMap<String, PackageEntry> mPackages;
+    // Packages sharing each app id, in the order the settings return them
+    private final SparseArray<PackageEntry[]> mAppIdPackages;
+
+    private PackageUidSnapshot(ArrayMap<String, PackageEntry> packages,
+            SparseArray<PackageEntry[]> appIdPackages) {
+        mPackages = packages;
+        mAppIdPackages = appIdPackages;
+    }
+
+    /**
+     * Copies the current mappings.
+     *
+     * @param packages The scanned packages by name
+     * @param settings All package settings
+     * @param sharedUsers All shared users
+     * @param userIds All users
+     */
+    static PackageUidSnapshot create(@NonNull Map<String, AndroidPackage> packages,
+            @NonNull Collection<PackageSetting> settings,
+            @NonNull Collection<SharedUserSetting> sharedUsers, @NonNull int[] userIds) {
+        final ArrayMap<String, PackageEntry> entries = new ArrayMap<>(settings.size());
+        for (PackageSetting ps : settings) {
+            entries.put(ps.name, new PackageEntry(ps.name, ps, packages.get(ps.name), userIds));
+        }
+        for (Map.Entry<String, AndroidPackage> entry : packages.entrySet()) {
+            if (!entries.containsKey(entry.getKey())) {
+                entries.put(entry.getKey(),
+                        new PackageEntry(entry.getKey(), null, entry.getValue(), userIds));
+            }
+        }
+
+        final SparseArray<PackageEntry[]> appIdPackages = new SparseArray<>();
+        for (SharedUserSetting sus : sharedUsers) {
+            final ArrayList<PackageEntry> shared = new ArrayList<>(sus.packages.size());
+            for (int i = 0; i < sus.packages.size(); i++) {
+                final PackageEntry entry = entries.get(sus.packages.valueAt(i).name);
+                if (entry != null) {
+                    shared.add(entry);
+                }
+            }
+            appIdPackages.put(sus.userId, shared.toArray(new PackageEntry[0]));
+        }
+        for (PackageSetting ps : settings) {
+            if (ps.sharedUser == null) {
+                appIdPackages.put(ps.appId, new PackageEntry[] {entries.get(ps.name)});
+            }
+        }
+        return new PackageUidSnapshot(entries, appIdPackages);
+    }
+
+    /**
+     * @see PackageManagerService#getPackageUid
+     */
+    int getPackageUid(String packageName, int flags, int userId) {
+        final PackageEntry entry = mPackages.get(packageName);
+        if (entry == null) {
+            return -1;
+        }
+        final boolean systemOnly = (flags & MATCH_SYSTEM_ONLY) != 0;
+        if (entry.packageUid >= 0 && (!systemOnly || entry.packageIsSystem)) {
+            return UserHandle.getUid(userId, entry.packageUid);
+        }
+        if ((flags & MATCH_KNOWN_PACKAGES) != 0 && entry.appId >= 0
+                && (!systemOnly || entry.settingIsSystem)) {
+            return UserHandle.getUid(userId, entry.appId);
+        }
+        return -1;
+    }
+
+    /**
+     * @see PackageManagerService#getPackagesForUid
+     * @see PackageManagerService#getInstalledPackagesForSetting
+     */
+    @Nullable
+    String[] getPackagesForUid(int uid) {
+        final PackageEntry[] entries = mAppIdPackages.get(UserHandle.getAppId(uid));
+        if (entries == null) {
+            return null;
+        }
+        final int userId = UserHandle.getUserId(uid);
+        final String[] packageNames = new String[entries.length];
+        int count = 0;
+        for (PackageEntry entry : entries) {
+            if (ArrayUtils.contains(entry.installedUserIds, userId)) {
+                packageNames[count++] = entry.name;
+            }
+        }
+        return ArrayUtils.trimToSize(packageNames, count);
+    }
+
+    int size() {
+        return mPackages.size();
+    }
+}
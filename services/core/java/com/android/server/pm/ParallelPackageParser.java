@@ -18,8 +18,13 @@ package com.android.server.pm;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
+import android.annotation.Nullable;
 import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
+import android.content.pm.PackageParser.SigningDetails;
+import android.content.pm.parsing.ParsingPackageUtils;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -31,13 +36,17 @@ import java.io.File;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Certificates of the parsed packages can also be collected on the same threads, so that
+ * APK verification doesn't run while the caller holds its locks.</p>
  */
-class ParallelPackageParser {
+@VisibleForTesting
+public class ParallelPackageParser {
 
     private static final int QUEUE_CAPACITY = 30;
     private static final int MAX_THREADS = 4;
@@ -46,7 +55,8 @@ class ParallelPackageParser {
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
-    static ExecutorService makeExecutorService() {
+    @VisibleForTesting
+    public static ExecutorService makeExecutorService() {
         return ConcurrentUtils.newFixedThreadPool(MAX_THREADS, "package-parsing-thread",
                 Process.THREAD_PRIORITY_FOREGROUND);
     }
@@ -55,16 +65,37 @@ class ParallelPackageParser {
 
     private final ExecutorService mExecutorService;
 
+    @Nullable
+    private final Predicate<ParsedPackage> mCollectCertificates;
+
     ParallelPackageParser(PackageParser2 packageParser, ExecutorService executorService) {
+        this(packageParser, executorService, null);
+    }
+
+    /**
+     * @param collectCertificates Decides, on the parsing thread, which parsed packages should
+     *                            also have their certificates collected there. May be called on
+     *                            several threads at once.
+     */
+    @VisibleForTesting
+    public ParallelPackageParser(PackageParser2 packageParser, ExecutorService executorService,
+            @Nullable Predicate<ParsedPackage> collectCertificates) {
         mPackageParser = packageParser;
         mExecutorService = executorService;
+        mCollectCertificates = collectCertificates;
     }
 
-    static class ParseResult {
+    @VisibleForTesting
+    public static class ParseResult {
 
-        ParsedPackage parsedPackage; // Parsed package
-        File scanFile; // File that was parsed
-        Throwable throwable; // Set if an error occurs during parsing
+        public ParsedPackage parsedPackage; // Parsed package
+        public File scanFile; // File that was parsed
+        public Throwable throwable; // Set if an error occurs during parsing
+        // Set if certificates were collected while parsing. Full APK verification was skipped
+        // only for packages in system dirs, as when collecting them on scan.
+        public SigningDetails signingDetails;
+        public long parseNanos; // Time spent parsing
+        public long collectCertificatesNanos; // Time spent collecting certificates
 
         @Override
         public String toString() {
@@ -103,14 +134,20 @@ class ParallelPackageParser {
         mExecutorService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
             try {
                 pr.scanFile = scanFile;
                 pr.parsedPackage = parsePackage(scanFile, parseFlags);
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
+                pr.parseNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            if (pr.parsedPackage != null && mCollectCertificates != null
+                    && mCollectCertificates.test(pr.parsedPackage)) {
+                collectCertificates(pr, parseFlags);
+            }
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -123,6 +160,29 @@ class ParallelPackageParser {
         });
     }
 
+    private void collectCertificates(ParseResult pr, int parseFlags) {
+        // Packages in system dirs are on verified partitions, so only their signing block is
+        // verified, as when collecting certificates on scan
+        final boolean skipVerify = (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0;
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER,
+                "parallel collectCertificates [" + pr.scanFile + "]");
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+            pr.signingDetails = collectCertificates(pr.parsedPackage, skipVerify);
+        } catch (PackageParserException e) {
+            // Collected again and reported when the package is scanned
+        } finally {
+            pr.collectCertificatesNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
+
+    @VisibleForTesting
+    protected SigningDetails collectCertificates(ParsedPackage parsedPackage, boolean skipVerify)
+            throws PackageParserException {
+        return ParsingPackageUtils.getSigningDetails(parsedPackage, skipVerify);
+    }
+
     @VisibleForTesting
     protected ParsedPackage parsePackage(File scanFile, int parseFlags)
             throws PackageParser.PackageParserException {
@@ -61,7 +61,6 @@ import android.content.pm.parsing.component.ParsedProcess;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
-import android.os.Environment;
 import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Message;
@@ -87,6 +86,8 @@ import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.SparseLongArray;
+import android.util.TypedXmlPullParser;
+import android.util.TypedXmlSerializer;
 import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
@@ -95,7 +96,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.CollectionUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
 import com.android.internal.util.XmlUtils;
@@ -121,6 +121,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -131,6 +132,9 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -402,6 +406,10 @@ public final class Settings {
     // App-link priority tracking, per-user
     final SparseIntArray mNextAppLinkGeneration = new SparseIntArray();
 
+    // Digest of the package restrictions last written for each user, so that unchanged users
+    // aren't rewritten
+    private final SparseArray<byte[]> mPackageRestrictionsDigests = new SparseArray<>();
+
     final StringBuilder mReadMessages = new StringBuilder();
 
     /**
@@ -434,7 +442,8 @@ public final class Settings {
         mKernelMappingFilename = null;
     }
 
-    Settings(File dataDir, PermissionSettings permission,
+    @VisibleForTesting
+    public Settings(File dataDir, PermissionSettings permission,
             Object lock) {
         mLock = lock;
         mPermissions = permission;
@@ -459,12 +468,26 @@ public final class Settings {
         mBackupStoppedPackagesFilename = new File(mSystemDir, "packages-stopped-backup.xml");
     }
 
-    private static void invalidatePackageCache() {
+    /**
+     * Called with the lock held whenever written settings invalidate the package caches.
+     */
+    @Nullable
+    private Runnable mPackageCacheInvalidationListener;
+
+    void setPackageCacheInvalidationListener(@Nullable Runnable listener) {
+        mPackageCacheInvalidationListener = listener;
+    }
+
+    private void invalidatePackageCache() {
         PackageManager.invalidatePackageInfoCache();
         ChangeIdStateCache.invalidate();
+        if (mPackageCacheInvalidationListener != null) {
+            mPackageCacheInvalidationListener.run();
+        }
     }
 
-    PackageSetting getPackageLPr(String pkgName) {
+    @VisibleForTesting
+    public PackageSetting getPackageLPr(String pkgName) {
         return mPackages.get(pkgName);
     }
 
@@ -561,8 +584,9 @@ public final class Settings {
         mDisabledSysPackages.remove(name);
     }
 
-    PackageSetting addPackageLPw(String name, String realName, File codePath, File resourcePath,
-            String legacyNativeLibraryPathString, String primaryCpuAbiString,
+    @VisibleForTesting
+    public PackageSetting addPackageLPw(String name, String realName, File codePath,
+            File resourcePath, String legacyNativeLibraryPathString, String primaryCpuAbiString,
             String secondaryCpuAbiString, String cpuAbiOverrideString, int uid, long vc, int
             pkgFlags, int pkgPrivateFlags, String[] usesStaticLibraries,
             long[] usesStaticLibraryNames, Map<String, ArraySet<String>> mimeGroups) {
@@ -1329,8 +1353,9 @@ public final class Settings {
     }
 
     private File getUserPackagesStateBackupFile(int userId) {
-        return new File(Environment.getUserSystemDirectory(userId),
-                "package-restrictions-backup.xml");
+        // Next to getUserPackagesStateFile(userId), for the same reason
+        File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+        return new File(userDir, "package-restrictions-backup.xml");
     }
 
     void writeAllUsersPackageRestrictionsLPr() {
@@ -1557,7 +1582,8 @@ public final class Settings {
         }
     }
 
-    void readPackageRestrictionsLPr(int userId) {
+    @VisibleForTesting
+    public void readPackageRestrictionsLPr(int userId) {
         if (DEBUG_MU) {
             Log.i(TAG, "Reading package restrictions for user=" + userId);
         }
@@ -1619,8 +1645,7 @@ public final class Settings {
                 str = new FileInputStream(userPackagesStateFile);
                 if (DEBUG_MU) Log.i(TAG, "Reading " + userPackagesStateFile);
             }
-            final XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            final TypedXmlPullParser parser = Xml.resolvePullParser(str);
 
             int type;
             while ((type=parser.next()) != XmlPullParser.START_TAG
@@ -1658,27 +1683,21 @@ public final class Settings {
                         continue;
                     }
 
-                    final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
-                            0);
-                    final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
+                    final long ceDataInode = parser.getAttributeLong(null, ATTR_CE_DATA_INODE, 0);
+                    final boolean installed = parser.getAttributeBoolean(null, ATTR_INSTALLED,
                             true);
-                    final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
-                            false);
-                    final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
+                    final boolean stopped = parser.getAttributeBoolean(null, ATTR_STOPPED, false);
+                    final boolean notLaunched = parser.getAttributeBoolean(null,
                             ATTR_NOT_LAUNCHED, false);
 
                     // For backwards compatibility with the previous name of "blocked", which
                     // now means hidden, read the old attribute as well.
-                    final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
-                    boolean hidden = blockedStr == null
-                            ? false : Boolean.parseBoolean(blockedStr);
-                    final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
-                    hidden = hiddenStr == null
-                            ? hidden : Boolean.parseBoolean(hiddenStr);
-
-                    final int distractionFlags = XmlUtils.readIntAttribute(parser,
+                    boolean hidden = parser.getAttributeBoolean(null, ATTR_BLOCKED, false);
+                    hidden = parser.getAttributeBoolean(null, ATTR_HIDDEN, hidden);
+
+                    final int distractionFlags = parser.getAttributeInt(null,
                             ATTR_DISTRACTION_FLAGS, 0);
-                    final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
+                    final boolean suspended = parser.getAttributeBoolean(null, ATTR_SUSPENDED,
                             false);
                     String oldSuspendingPackage = parser.getAttributeValue(null,
                             ATTR_SUSPENDING_PACKAGE);
@@ -1688,29 +1707,29 @@ public final class Settings {
                         oldSuspendingPackage = PLATFORM_PACKAGE_NAME;
                     }
 
-                    final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
+                    final boolean blockUninstall = parser.getAttributeBoolean(null,
                             ATTR_BLOCK_UNINSTALL, false);
-                    final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
+                    final boolean instantApp = parser.getAttributeBoolean(null,
                             ATTR_INSTANT_APP, false);
-                    final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
+                    final boolean virtualPreload = parser.getAttributeBoolean(null,
                             ATTR_VIRTUAL_PRELOAD, false);
-                    final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
+                    final int enabled = parser.getAttributeInt(null, ATTR_ENABLED,
                             COMPONENT_ENABLED_STATE_DEFAULT);
                     final String enabledCaller = parser.getAttributeValue(null,
                             ATTR_ENABLED_CALLER);
                     final String harmfulAppWarning =
                             parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
-                    final int verifState = XmlUtils.readIntAttribute(parser,
+                    final int verifState = parser.getAttributeInt(null,
                             ATTR_DOMAIN_VERIFICATON_STATE,
                             PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
-                    final int linkGeneration = XmlUtils.readIntAttribute(parser,
+                    final int linkGeneration = parser.getAttributeInt(null,
                             ATTR_APP_LINK_GENERATION, 0);
                     if (linkGeneration > maxAppLinkGeneration) {
                         maxAppLinkGeneration = linkGeneration;
                     }
-                    final int installReason = XmlUtils.readIntAttribute(parser,
+                    final int installReason = parser.getAttributeInt(null,
                             ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
-                    final int uninstallReason = XmlUtils.readIntAttribute(parser,
+                    final int uninstallReason = parser.getAttributeInt(null,
                             ATTR_UNINSTALL_REASON, PackageManager.UNINSTALL_REASON_UNKNOWN);
 
                     ArraySet<String> enabledComponents = null;
@@ -2020,7 +2039,8 @@ public final class Settings {
         }
     }
 
-    void writePackageRestrictionsLPr(int userId) {
+    @VisibleForTesting
+    public void writePackageRestrictionsLPr(int userId) {
         invalidatePackageCache();
 
         if (DEBUG_MU) {
@@ -2028,35 +2048,24 @@ public final class Settings {
         }
         final long startTime = SystemClock.uptimeMillis();
 
-        // Keep the old stopped packages around until we know the new ones have
-        // been successfully written.
         File userPackagesStateFile = getUserPackagesStateFile(userId);
         File backupFile = getUserPackagesStateBackupFile(userId);
-        new File(userPackagesStateFile.getParent()).mkdirs();
-        if (userPackagesStateFile.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist packages earlier. So preserve the older
-            // backup for future reference since the current packages
-            // might have been corrupted.
-            if (!backupFile.exists()) {
-                if (!userPackagesStateFile.renameTo(backupFile)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup user packages state file, "
-                            + "current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                userPackagesStateFile.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
-            }
-        }
 
+        // Serialize into memory first: writeLPr() writes the restrictions of every user, and
+        // users whose state hasn't changed since the last write are left alone. Per-user state
+        // isn't tracked as dirty, so every user is still serialized to find that out; only the
+        // file write and sync are skipped.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final MessageDigest digest;
         try {
-            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
-            final BufferedOutputStream str = new BufferedOutputStream(fstr);
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
 
-            final XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+        try {
+            final TypedXmlSerializer serializer = Xml.resolveSerializer(
+                    new DigestOutputStream(bytes, digest));
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
@@ -2073,57 +2082,54 @@ public final class Settings {
                 serializer.startTag(null, TAG_PACKAGE);
                 serializer.attribute(null, ATTR_NAME, pkg.name);
                 if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+                    serializer.attributeLong(null, ATTR_CE_DATA_INODE, ustate.ceDataInode);
                 }
                 if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
+                    serializer.attributeBoolean(null, ATTR_INSTALLED, false);
                 }
                 if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
+                    serializer.attributeBoolean(null, ATTR_STOPPED, true);
                 }
                 if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+                    serializer.attributeBoolean(null, ATTR_NOT_LAUNCHED, true);
                 }
                 if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
+                    serializer.attributeBoolean(null, ATTR_HIDDEN, true);
                 }
                 if (ustate.distractionFlags != 0) {
-                    serializer.attribute(null, ATTR_DISTRACTION_FLAGS,
-                            Integer.toString(ustate.distractionFlags));
+                    serializer.attributeInt(null, ATTR_DISTRACTION_FLAGS,
+                            ustate.distractionFlags);
                 }
                 if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
+                    serializer.attributeBoolean(null, ATTR_SUSPENDED, true);
                 }
                 if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
+                    serializer.attributeBoolean(null, ATTR_INSTANT_APP, true);
                 }
                 if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+                    serializer.attributeBoolean(null, ATTR_VIRTUAL_PRELOAD, true);
                 }
                 if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
+                    serializer.attributeInt(null, ATTR_ENABLED, ustate.enabled);
                     if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
+                        serializer.attributeInterned(null, ATTR_ENABLED_CALLER,
                                 ustate.lastDisableAppCaller);
                     }
                 }
                 if (ustate.domainVerificationStatus !=
                         PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                    serializer.attributeInt(null, ATTR_DOMAIN_VERIFICATON_STATE,
                             ustate.domainVerificationStatus);
                 }
                 if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                    serializer.attributeInt(null, ATTR_APP_LINK_GENERATION,
                             ustate.appLinkGeneration);
                 }
                 if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
+                    serializer.attributeInt(null, ATTR_INSTALL_REASON, ustate.installReason);
                 }
                 if (ustate.uninstallReason != PackageManager.UNINSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_UNINSTALL_REASON,
-                            Integer.toString(ustate.uninstallReason));
+                    serializer.attributeInt(null, ATTR_UNINSTALL_REASON, ustate.uninstallReason);
                 }
                 if (ustate.harmfulAppWarning != null) {
                     serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
@@ -2173,10 +2179,47 @@ public final class Settings {
             serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
 
             serializer.endDocument();
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + "current changes will be lost at reboot", e);
+            return;
+        }
 
-            str.flush();
+        final byte[] contentDigest = digest.digest();
+        if (userPackagesStateFile.exists() && !backupFile.exists()
+                && Arrays.equals(contentDigest, mPackageRestrictionsDigests.get(userId))) {
+            if (DEBUG_MU) Log.i(TAG, "Package restrictions unchanged for user=" + userId);
+            return;
+        }
+        mPackageRestrictionsDigests.remove(userId);
+
+        // Keep the old stopped packages around until we know the new ones have
+        // been successfully written.
+        new File(userPackagesStateFile.getParent()).mkdirs();
+        if (userPackagesStateFile.exists()) {
+            // Presence of backup settings file indicates that we failed
+            // to persist packages earlier. So preserve the older
+            // backup for future reference since the current packages
+            // might have been corrupted.
+            if (!backupFile.exists()) {
+                if (!userPackagesStateFile.renameTo(backupFile)) {
+                    Slog.wtf(PackageManagerService.TAG,
+                            "Unable to backup user packages state file, "
+                            + "current changes will be lost at reboot");
+                    return;
+                }
+            } else {
+                userPackagesStateFile.delete();
+                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
+            }
+        }
+
+        try {
+            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
+            bytes.writeTo(fstr);
             FileUtils.sync(fstr);
-            str.close();
+            fstr.close();
 
             // New settings successfully written, old ones are no longer
             // needed.
@@ -2185,16 +2228,17 @@ public final class Settings {
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
+            mPackageRestrictionsDigests.put(userId, contentDigest);
 
             com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
                     "package-user-" + userId, SystemClock.uptimeMillis() - startTime);
 
             // Done, all is good!
             return;
-        } catch(java.io.IOException e) {
+        } catch (IOException e) {
             Slog.wtf(PackageManagerService.TAG,
                     "Unable to write package manager user packages state, "
-                    + " current changes will be lost at reboot", e);
+                    + "current changes will be lost at reboot", e);
         }
 
         // Clean up partially written files
@@ -2206,7 +2250,7 @@ public final class Settings {
         }
     }
 
-    void readInstallPermissionsLPr(XmlPullParser parser,
+    void readInstallPermissionsLPr(TypedXmlPullParser parser,
             PermissionsState permissionsState) throws IOException, XmlPullParserException {
         int outerDepth = parser.getDepth();
         int type;
@@ -2228,13 +2272,8 @@ public final class Settings {
                     continue;
                 }
 
-                String grantedStr = parser.getAttributeValue(null, ATTR_GRANTED);
-                final boolean granted = grantedStr == null
-                        || Boolean.parseBoolean(grantedStr);
-
-                String flagsStr = parser.getAttributeValue(null, ATTR_FLAGS);
-                final int flags = (flagsStr != null)
-                        ? Integer.parseInt(flagsStr, 16) : 0;
+                final boolean granted = parser.getAttributeBoolean(null, ATTR_GRANTED, true);
+                final int flags = parser.getAttributeIntHex(null, ATTR_FLAGS, 0);
 
                 if (granted) {
                     if (permissionsState.grantInstallPermission(bp) ==
@@ -2263,8 +2302,8 @@ public final class Settings {
         }
     }
 
-    void writePermissionsLPr(XmlSerializer serializer, List<PermissionState> permissionStates)
-            throws IOException {
+    void writePermissionsLPr(TypedXmlSerializer serializer,
+            List<PermissionState> permissionStates) throws IOException {
         if (permissionStates.isEmpty()) {
             return;
         }
@@ -2273,16 +2312,18 @@ public final class Settings {
 
         for (PermissionState permissionState : permissionStates) {
             serializer.startTag(null, TAG_ITEM);
-            serializer.attribute(null, ATTR_NAME, permissionState.getName());
-            serializer.attribute(null, ATTR_GRANTED, String.valueOf(permissionState.isGranted()));
-            serializer.attribute(null, ATTR_FLAGS, Integer.toHexString(permissionState.getFlags()));
+            serializer.attributeInterned(null, ATTR_NAME, permissionState.getName());
+            serializer.attributeBoolean(null, ATTR_GRANTED, permissionState.isGranted());
+            // Unsigned, as these have always been written
+            serializer.attribute(null, ATTR_FLAGS,
+                    Integer.toHexString(permissionState.getFlags()));
             serializer.endTag(null, TAG_ITEM);
         }
 
         serializer.endTag(null, TAG_PERMISSIONS);
     }
 
-    void readUsesStaticLibLPw(XmlPullParser parser, PackageSetting outPs)
+    void readUsesStaticLibLPw(TypedXmlPullParser parser, PackageSetting outPs)
             throws IOException, XmlPullParserException {
         int outerDepth = parser.getDepth();
         int type;
@@ -2292,14 +2333,7 @@ public final class Settings {
                 continue;
             }
             String libName = parser.getAttributeValue(null, ATTR_NAME);
-            String libVersionStr = parser.getAttributeValue(null, ATTR_VERSION);
-
-            long libVersion = -1;
-            try {
-                libVersion = Long.parseLong(libVersionStr);
-            } catch (NumberFormatException e) {
-                // ignore
-            }
+            long libVersion = parser.getAttributeLong(null, ATTR_VERSION, -1);
 
             if (libName != null && libVersion >= 0) {
                 outPs.usesStaticLibraries = ArrayUtils.appendElement(String.class,
@@ -2312,7 +2346,7 @@ public final class Settings {
         }
     }
 
-    void writeUsesStaticLibLPw(XmlSerializer serializer, String[] usesStaticLibraries,
+    void writeUsesStaticLibLPw(TypedXmlSerializer serializer, String[] usesStaticLibraries,
             long[] usesStaticLibraryVersions) throws IOException {
         if (ArrayUtils.isEmpty(usesStaticLibraries) || ArrayUtils.isEmpty(usesStaticLibraryVersions)
                 || usesStaticLibraries.length != usesStaticLibraryVersions.length) {
@@ -2324,7 +2358,7 @@ public final class Settings {
             final long libVersion = usesStaticLibraryVersions[i];
             serializer.startTag(null, TAG_USES_STATIC_LIB);
             serializer.attribute(null, ATTR_NAME, libName);
-            serializer.attribute(null, ATTR_VERSION, Long.toString(libVersion));
+            serializer.attributeLong(null, ATTR_VERSION, libVersion);
             serializer.endTag(null, TAG_USES_STATIC_LIB);
         }
     }
@@ -2433,7 +2467,8 @@ public final class Settings {
         }
     }
 
-    void writeLPr() {
+    @VisibleForTesting
+    public void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
         final long startTime = SystemClock.uptimeMillis();
@@ -2470,9 +2505,7 @@ public final class Settings {
             FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
-            //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+            final TypedXmlSerializer serializer = Xml.resolveSerializer(str);
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
@@ -2484,8 +2517,8 @@ public final class Settings {
 
                 serializer.startTag(null, TAG_VERSION);
                 XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+                serializer.attributeInt(null, ATTR_SDK_VERSION, ver.sdkVersion);
+                serializer.attributeInt(null, ATTR_DATABASE_VERSION, ver.databaseVersion);
                 XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
                 serializer.endTag(null, TAG_VERSION);
             }
@@ -2522,8 +2555,7 @@ public final class Settings {
             for (final SharedUserSetting usr : mSharedUsers.values()) {
                 serializer.startTag(null, "shared-user");
                 serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
+                serializer.attributeInt(null, "userId", usr.userId);
                 usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
                 writePermissionsLPr(serializer, usr.getPermissionsState()
                         .getInstallPermissionStates());
@@ -2813,7 +2845,7 @@ public final class Settings {
         }
     }
 
-    void writeDisabledSysPackageLPr(XmlSerializer serializer, final PackageSetting pkg)
+    void writeDisabledSysPackageLPr(TypedXmlSerializer serializer, final PackageSetting pkg)
             throws java.io.IOException {
         serializer.startTag(null, "updated-package");
         serializer.attribute(null, ATTR_NAME, pkg.name);
@@ -2821,10 +2853,10 @@ public final class Settings {
             serializer.attribute(null, "realName", pkg.realName);
         }
         serializer.attribute(null, "codePath", pkg.codePathString);
-        serializer.attribute(null, "ft", Long.toHexString(pkg.timeStamp));
-        serializer.attribute(null, "it", Long.toHexString(pkg.firstInstallTime));
-        serializer.attribute(null, "ut", Long.toHexString(pkg.lastUpdateTime));
-        serializer.attribute(null, "version", String.valueOf(pkg.versionCode));
+        serializer.attributeLongHex(null, "ft", pkg.timeStamp);
+        serializer.attributeLongHex(null, "it", pkg.firstInstallTime);
+        serializer.attributeLongHex(null, "ut", pkg.lastUpdateTime);
+        serializer.attributeLong(null, "version", pkg.versionCode);
         if (!pkg.resourcePathString.equals(pkg.codePathString)) {
             serializer.attribute(null, "resourcePath", pkg.resourcePathString);
         }
@@ -2832,19 +2864,19 @@ public final class Settings {
             serializer.attribute(null, "nativeLibraryPath", pkg.legacyNativeLibraryPathString);
         }
         if (pkg.primaryCpuAbiString != null) {
-           serializer.attribute(null, "primaryCpuAbi", pkg.primaryCpuAbiString);
+           serializer.attributeInterned(null, "primaryCpuAbi", pkg.primaryCpuAbiString);
         }
         if (pkg.secondaryCpuAbiString != null) {
-            serializer.attribute(null, "secondaryCpuAbi", pkg.secondaryCpuAbiString);
+            serializer.attributeInterned(null, "secondaryCpuAbi", pkg.secondaryCpuAbiString);
         }
         if (pkg.cpuAbiOverrideString != null) {
-            serializer.attribute(null, "cpuAbiOverride", pkg.cpuAbiOverrideString);
+            serializer.attributeInterned(null, "cpuAbiOverride", pkg.cpuAbiOverrideString);
         }
 
         if (pkg.sharedUser == null) {
-            serializer.attribute(null, "userId", Integer.toString(pkg.appId));
+            serializer.attributeInt(null, "userId", pkg.appId);
         } else {
-            serializer.attribute(null, "sharedUserId", Integer.toString(pkg.appId));
+            serializer.attributeInt(null, "sharedUserId", pkg.appId);
         }
 
         writeUsesStaticLibLPw(serializer, pkg.usesStaticLibraries, pkg.usesStaticLibrariesVersions);
@@ -2858,7 +2890,7 @@ public final class Settings {
         serializer.endTag(null, "updated-package");
     }
 
-    void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg)
+    void writePackageLPr(TypedXmlSerializer serializer, final PackageSetting pkg)
             throws java.io.IOException {
         serializer.startTag(null, "package");
         serializer.attribute(null, ATTR_NAME, pkg.name);
@@ -2874,56 +2906,58 @@ public final class Settings {
             serializer.attribute(null, "nativeLibraryPath", pkg.legacyNativeLibraryPathString);
         }
         if (pkg.primaryCpuAbiString != null) {
-            serializer.attribute(null, "primaryCpuAbi", pkg.primaryCpuAbiString);
+            serializer.attributeInterned(null, "primaryCpuAbi", pkg.primaryCpuAbiString);
         }
         if (pkg.secondaryCpuAbiString != null) {
-            serializer.attribute(null, "secondaryCpuAbi", pkg.secondaryCpuAbiString);
+            serializer.attributeInterned(null, "secondaryCpuAbi", pkg.secondaryCpuAbiString);
         }
         if (pkg.cpuAbiOverrideString != null) {
-            serializer.attribute(null, "cpuAbiOverride", pkg.cpuAbiOverrideString);
+            serializer.attributeInterned(null, "cpuAbiOverride", pkg.cpuAbiOverrideString);
         }
 
-        serializer.attribute(null, "publicFlags", Integer.toString(pkg.pkgFlags));
-        serializer.attribute(null, "privateFlags", Integer.toString(pkg.pkgPrivateFlags));
-        serializer.attribute(null, "ft", Long.toHexString(pkg.timeStamp));
-        serializer.attribute(null, "it", Long.toHexString(pkg.firstInstallTime));
-        serializer.attribute(null, "ut", Long.toHexString(pkg.lastUpdateTime));
-        serializer.attribute(null, "version", String.valueOf(pkg.versionCode));
+        serializer.attributeInt(null, "publicFlags", pkg.pkgFlags);
+        serializer.attributeInt(null, "privateFlags", pkg.pkgPrivateFlags);
+        serializer.attributeLongHex(null, "ft", pkg.timeStamp);
+        serializer.attributeLongHex(null, "it", pkg.firstInstallTime);
+        serializer.attributeLongHex(null, "ut", pkg.lastUpdateTime);
+        serializer.attributeLong(null, "version", pkg.versionCode);
         if (pkg.sharedUser == null) {
-            serializer.attribute(null, "userId", Integer.toString(pkg.appId));
+            serializer.attributeInt(null, "userId", pkg.appId);
         } else {
-            serializer.attribute(null, "sharedUserId", Integer.toString(pkg.appId));
+            serializer.attributeInt(null, "sharedUserId", pkg.appId);
         }
         if (pkg.uidError) {
-            serializer.attribute(null, "uidError", "true");
+            serializer.attributeBoolean(null, "uidError", true);
         }
         InstallSource installSource = pkg.installSource;
         if (installSource.installerPackageName != null) {
-            serializer.attribute(null, "installer", installSource.installerPackageName);
+            serializer.attributeInterned(null, "installer", installSource.installerPackageName);
         }
         if (installSource.isOrphaned) {
-            serializer.attribute(null, "isOrphaned", "true");
+            serializer.attributeBoolean(null, "isOrphaned", true);
         }
         if (installSource.initiatingPackageName != null) {
-            serializer.attribute(null, "installInitiator", installSource.initiatingPackageName);
+            serializer.attributeInterned(null, "installInitiator",
+                    installSource.initiatingPackageName);
         }
         if (installSource.isInitiatingPackageUninstalled) {
-            serializer.attribute(null, "installInitiatorUninstalled", "true");
+            serializer.attributeBoolean(null, "installInitiatorUninstalled", true);
         }
         if (installSource.originatingPackageName != null) {
-            serializer.attribute(null, "installOriginator", installSource.originatingPackageName);
+            serializer.attributeInterned(null, "installOriginator",
+                    installSource.originatingPackageName);
         }
         if (pkg.volumeUuid != null) {
-            serializer.attribute(null, "volumeUuid", pkg.volumeUuid);
+            serializer.attributeInterned(null, "volumeUuid", pkg.volumeUuid);
         }
         if (pkg.categoryHint != ApplicationInfo.CATEGORY_UNDEFINED) {
-            serializer.attribute(null, "categoryHint", Integer.toString(pkg.categoryHint));
+            serializer.attributeInt(null, "categoryHint", pkg.categoryHint);
         }
         if (pkg.updateAvailable) {
-            serializer.attribute(null, "updateAvailable", "true");
+            serializer.attributeBoolean(null, "updateAvailable", true);
         }
         if (pkg.forceQueryableOverride) {
-            serializer.attribute(null, "forceQueryable", "true");
+            serializer.attributeBoolean(null, "forceQueryable", true);
         }
 
         writeUsesStaticLibLPw(serializer, pkg.usesStaticLibraries, pkg.usesStaticLibrariesVersions);
@@ -2946,31 +2980,30 @@ public final class Settings {
         serializer.endTag(null, "package");
     }
 
-    void writeSigningKeySetLPr(XmlSerializer serializer,
+    void writeSigningKeySetLPr(TypedXmlSerializer serializer,
             PackageKeySetData data) throws IOException {
         serializer.startTag(null, "proper-signing-keyset");
-        serializer.attribute(null, "identifier",
-                Long.toString(data.getProperSigningKeySet()));
+        serializer.attributeLong(null, "identifier", data.getProperSigningKeySet());
         serializer.endTag(null, "proper-signing-keyset");
     }
 
-    void writeUpgradeKeySetsLPr(XmlSerializer serializer,
+    void writeUpgradeKeySetsLPr(TypedXmlSerializer serializer,
             PackageKeySetData data) throws IOException {
         if (data.isUsingUpgradeKeySets()) {
             for (long id : data.getUpgradeKeySets()) {
                 serializer.startTag(null, "upgrade-keyset");
-                serializer.attribute(null, "identifier", Long.toString(id));
+                serializer.attributeLong(null, "identifier", id);
                 serializer.endTag(null, "upgrade-keyset");
             }
         }
     }
 
-    void writeKeySetAliasesLPr(XmlSerializer serializer,
+    void writeKeySetAliasesLPr(TypedXmlSerializer serializer,
             PackageKeySetData data) throws IOException {
         for (Map.Entry<String, Long> e: data.getAliases().entrySet()) {
             serializer.startTag(null, "defined-keyset");
             serializer.attribute(null, "alias", e.getKey());
-            serializer.attribute(null, "identifier", Long.toString(e.getValue()));
+            serializer.attributeLong(null, "identifier", e.getValue());
             serializer.endTag(null, "defined-keyset");
         }
     }
@@ -2979,7 +3012,8 @@ public final class Settings {
         bp.writeLPr(serializer);
     }
 
-    boolean readLPw(@NonNull List<UserInfo> users) {
+    @VisibleForTesting
+    public boolean readLPw(@NonNull List<UserInfo> users) {
         FileInputStream str = null;
         if (mBackupSettingsFilename.exists()) {
             try {
@@ -3019,8 +3053,7 @@ public final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            final TypedXmlPullParser parser = Xml.resolvePullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -3119,8 +3152,8 @@ public final class Settings {
                     final String volumeUuid = XmlUtils.readStringAttribute(parser,
                             ATTR_VOLUME_UUID);
                     final VersionInfo ver = findOrCreateVersion(volumeUuid);
-                    ver.sdkVersion = XmlUtils.readIntAttribute(parser, ATTR_SDK_VERSION);
-                    ver.databaseVersion = XmlUtils.readIntAttribute(parser, ATTR_DATABASE_VERSION);
+                    ver.sdkVersion = parser.getAttributeInt(null, ATTR_SDK_VERSION);
+                    ver.databaseVersion = parser.getAttributeInt(null, ATTR_DATABASE_VERSION);
                     ver.fingerprint = XmlUtils.readStringAttribute(parser, ATTR_FINGERPRINT);
                 } else {
                     Slog.w(PackageManagerService.TAG, "Unknown element under <packages>: "
@@ -3558,8 +3591,8 @@ public final class Settings {
         }
     }
 
-    private void readDisabledSysPackageLPw(XmlPullParser parser) throws XmlPullParserException,
-            IOException {
+    private void readDisabledSysPackageLPw(TypedXmlPullParser parser)
+            throws XmlPullParserException, IOException {
         String name = parser.getAttributeValue(null, ATTR_NAME);
         String realName = parser.getAttributeValue(null, "realName");
         String codePathStr = parser.getAttributeValue(null, "codePath");
@@ -3581,14 +3614,7 @@ public final class Settings {
         if (resourcePathStr == null) {
             resourcePathStr = codePathStr;
         }
-        String version = parser.getAttributeValue(null, "version");
-        long versionCode = 0;
-        if (version != null) {
-            try {
-                versionCode = Long.parseLong(version);
-            } catch (NumberFormatException e) {
-            }
-        }
+        final long versionCode = parser.getAttributeLong(null, "version", 0);
 
         int pkgFlags = 0;
         int pkgPrivateFlags = 0;
@@ -3600,42 +3626,12 @@ public final class Settings {
                 new File(resourcePathStr), legacyNativeLibraryPathStr, primaryCpuAbiStr,
                 secondaryCpuAbiStr, cpuAbiOverrideStr, versionCode, pkgFlags, pkgPrivateFlags,
                 0 /*sharedUserId*/, null, null, null);
-        String timeStampStr = parser.getAttributeValue(null, "ft");
-        if (timeStampStr != null) {
-            try {
-                long timeStamp = Long.parseLong(timeStampStr, 16);
-                ps.setTimeStamp(timeStamp);
-            } catch (NumberFormatException e) {
-            }
-        } else {
-            timeStampStr = parser.getAttributeValue(null, "ts");
-            if (timeStampStr != null) {
-                try {
-                    long timeStamp = Long.parseLong(timeStampStr);
-                    ps.setTimeStamp(timeStamp);
-                } catch (NumberFormatException e) {
-                }
-            }
-        }
-        timeStampStr = parser.getAttributeValue(null, "it");
-        if (timeStampStr != null) {
-            try {
-                ps.firstInstallTime = Long.parseLong(timeStampStr, 16);
-            } catch (NumberFormatException e) {
-            }
-        }
-        timeStampStr = parser.getAttributeValue(null, "ut");
-        if (timeStampStr != null) {
-            try {
-                ps.lastUpdateTime = Long.parseLong(timeStampStr, 16);
-            } catch (NumberFormatException e) {
-            }
-        }
-        String idStr = parser.getAttributeValue(null, "userId");
-        ps.appId = idStr != null ? Integer.parseInt(idStr) : 0;
+        ps.setTimeStamp(readTimeStamp(parser, 0));
+        ps.firstInstallTime = parser.getAttributeLongHex(null, "it", 0);
+        ps.lastUpdateTime = parser.getAttributeLongHex(null, "ut", 0);
+        ps.appId = parser.getAttributeInt(null, "userId", 0);
         if (ps.appId <= 0) {
-            String sharedIdStr = parser.getAttributeValue(null, "sharedUserId");
-            ps.appId = sharedIdStr != null ? Integer.parseInt(sharedIdStr) : 0;
+            ps.appId = parser.getAttributeInt(null, "sharedUserId", 0);
         }
 
         int outerDepth = parser.getDepth();
@@ -3660,244 +3656,166 @@ public final class Settings {
         mDisabledSysPackages.put(name, ps);
     }
 
+    /**
+     * Reads the hexadecimal "ft" timestamp of a package, or the decimal "ts" written by older
+     * releases.
+     */
+    private static long readTimeStamp(TypedXmlPullParser parser, long defaultValue) {
+        if (parser.getAttributeIndex(null, "ft") != -1) {
+            return parser.getAttributeLongHex(null, "ft", defaultValue);
+        }
+        return parser.getAttributeLong(null, "ts", defaultValue);
+    }
+
     private static int PRE_M_APP_INFO_FLAG_HIDDEN = 1<<27;
     private static int PRE_M_APP_INFO_FLAG_CANT_SAVE_STATE = 1<<28;
     private static int PRE_M_APP_INFO_FLAG_PRIVILEGED = 1<<30;
 
-    private void readPackageLPw(XmlPullParser parser) throws XmlPullParserException, IOException {
-        String name = null;
-        String realName = null;
-        String idStr = null;
-        String sharedIdStr = null;
-        String codePathStr = null;
-        String resourcePathStr = null;
-        String legacyCpuAbiString = null;
-        String legacyNativeLibraryPathStr = null;
-        String primaryCpuAbiString = null;
-        String secondaryCpuAbiString = null;
-        String cpuAbiOverrideString = null;
-        String systemStr = null;
-        String installerPackageName = null;
-        String isOrphaned = null;
-        String installOriginatingPackageName = null;
-        String installInitiatingPackageName = null;
-        String installInitiatorUninstalled = null;
-        String volumeUuid = null;
-        String categoryHintString = null;
-        String updateAvailable = null;
-        int categoryHint = ApplicationInfo.CATEGORY_UNDEFINED;
-        String uidError = null;
-        int pkgFlags = 0;
-        int pkgPrivateFlags = 0;
-        long timeStamp = 0;
-        long firstInstallTime = 0;
-        long lastUpdateTime = 0;
-        PackageSetting packageSetting = null;
-        String version = null;
-        long versionCode = 0;
-        String installedForceQueryable = null;
-        try {
-            name = parser.getAttributeValue(null, ATTR_NAME);
-            realName = parser.getAttributeValue(null, "realName");
-            idStr = parser.getAttributeValue(null, "userId");
-            uidError = parser.getAttributeValue(null, "uidError");
-            sharedIdStr = parser.getAttributeValue(null, "sharedUserId");
-            codePathStr = parser.getAttributeValue(null, "codePath");
-            resourcePathStr = parser.getAttributeValue(null, "resourcePath");
-
-            legacyCpuAbiString = parser.getAttributeValue(null, "requiredCpuAbi");
-
-            legacyNativeLibraryPathStr = parser.getAttributeValue(null, "nativeLibraryPath");
-            primaryCpuAbiString = parser.getAttributeValue(null, "primaryCpuAbi");
-            secondaryCpuAbiString = parser.getAttributeValue(null, "secondaryCpuAbi");
-            cpuAbiOverrideString = parser.getAttributeValue(null, "cpuAbiOverride");
-            updateAvailable = parser.getAttributeValue(null, "updateAvailable");
-            installedForceQueryable = parser.getAttributeValue(null, "forceQueryable");
-
-            if (primaryCpuAbiString == null && legacyCpuAbiString != null) {
-                primaryCpuAbiString = legacyCpuAbiString;
-            }
+    private void readPackageLPw(TypedXmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final String name = parser.getAttributeValue(null, ATTR_NAME);
+        String realName = parser.getAttributeValue(null, "realName");
+        final int userId = parser.getAttributeInt(null, "userId", 0);
+        final boolean uidError = parser.getAttributeBoolean(null, "uidError", false);
+        final boolean hasSharedUserId = parser.getAttributeIndex(null, "sharedUserId") != -1;
+        final int sharedUserId = parser.getAttributeInt(null, "sharedUserId", 0);
+        final String codePathStr = parser.getAttributeValue(null, "codePath");
+        String resourcePathStr = parser.getAttributeValue(null, "resourcePath");
 
-            version = parser.getAttributeValue(null, "version");
-            if (version != null) {
-                try {
-                    versionCode = Long.parseLong(version);
-                } catch (NumberFormatException e) {
-                }
-            }
-            installerPackageName = parser.getAttributeValue(null, "installer");
-            isOrphaned = parser.getAttributeValue(null, "isOrphaned");
-            installInitiatingPackageName = parser.getAttributeValue(null, "installInitiator");
-            installOriginatingPackageName = parser.getAttributeValue(null, "installOriginator");
-            installInitiatorUninstalled = parser.getAttributeValue(null,
-                    "installInitiatorUninstalled");
-            volumeUuid = parser.getAttributeValue(null, "volumeUuid");
-            categoryHintString = parser.getAttributeValue(null, "categoryHint");
-            if (categoryHintString != null) {
-                try {
-                    categoryHint = Integer.parseInt(categoryHintString);
-                } catch (NumberFormatException e) {
-                }
-            }
+        final String legacyCpuAbiString = parser.getAttributeValue(null, "requiredCpuAbi");
+
+        final String legacyNativeLibraryPathStr = parser.getAttributeValue(null,
+                "nativeLibraryPath");
+        String primaryCpuAbiString = parser.getAttributeValue(null, "primaryCpuAbi");
+        final String secondaryCpuAbiString = parser.getAttributeValue(null, "secondaryCpuAbi");
+        final String cpuAbiOverrideString = parser.getAttributeValue(null, "cpuAbiOverride");
+        final boolean updateAvailable = parser.getAttributeBoolean(null, "updateAvailable", false);
+        final boolean installedForceQueryable = parser.getAttributeBoolean(null, "forceQueryable",
+                false);
+
+        if (primaryCpuAbiString == null && legacyCpuAbiString != null) {
+            primaryCpuAbiString = legacyCpuAbiString;
+        }
+
+        final long versionCode = parser.getAttributeLong(null, "version", 0);
+        final String installerPackageName = parser.getAttributeValue(null, "installer");
+        final boolean isOrphaned = parser.getAttributeBoolean(null, "isOrphaned", false);
+        final String installInitiatingPackageName = parser.getAttributeValue(null,
+                "installInitiator");
+        final String installOriginatingPackageName = parser.getAttributeValue(null,
+                "installOriginator");
+        final boolean installInitiatorUninstalled = parser.getAttributeBoolean(null,
+                "installInitiatorUninstalled", false);
+        final String volumeUuid = parser.getAttributeValue(null, "volumeUuid");
+        final int categoryHint = parser.getAttributeInt(null, "categoryHint",
+                ApplicationInfo.CATEGORY_UNDEFINED);
 
-            systemStr = parser.getAttributeValue(null, "publicFlags");
-            if (systemStr != null) {
-                try {
-                    pkgFlags = Integer.parseInt(systemStr);
-                } catch (NumberFormatException e) {
+        int pkgFlags = 0;
+        int pkgPrivateFlags = 0;
+        if (parser.getAttributeIndex(null, "publicFlags") != -1) {
+            pkgFlags = parser.getAttributeInt(null, "publicFlags", 0);
+            pkgPrivateFlags = parser.getAttributeInt(null, "privateFlags", 0);
+        } else {
+            // Pre-M -- both public and private flags were stored in one "flags" field.
+            if (parser.getAttributeIndex(null, "flags") != -1) {
+                pkgFlags = parser.getAttributeInt(null, "flags", 0);
+                if ((pkgFlags & PRE_M_APP_INFO_FLAG_HIDDEN) != 0) {
+                    pkgPrivateFlags |= ApplicationInfo.PRIVATE_FLAG_HIDDEN;
                 }
-                systemStr = parser.getAttributeValue(null, "privateFlags");
-                if (systemStr != null) {
-                    try {
-                        pkgPrivateFlags = Integer.parseInt(systemStr);
-                    } catch (NumberFormatException e) {
-                    }
+                if ((pkgFlags & PRE_M_APP_INFO_FLAG_CANT_SAVE_STATE) != 0) {
+                    pkgPrivateFlags |= ApplicationInfo.PRIVATE_FLAG_CANT_SAVE_STATE;
                 }
-            } else {
-                // Pre-M -- both public and private flags were stored in one "flags" field.
-                systemStr = parser.getAttributeValue(null, "flags");
-                if (systemStr != null) {
-                    try {
-                        pkgFlags = Integer.parseInt(systemStr);
-                    } catch (NumberFormatException e) {
-                    }
-                    if ((pkgFlags & PRE_M_APP_INFO_FLAG_HIDDEN) != 0) {
-                        pkgPrivateFlags |= ApplicationInfo.PRIVATE_FLAG_HIDDEN;
-                    }
-                    if ((pkgFlags & PRE_M_APP_INFO_FLAG_CANT_SAVE_STATE) != 0) {
-                        pkgPrivateFlags |= ApplicationInfo.PRIVATE_FLAG_CANT_SAVE_STATE;
-                    }
-                    if ((pkgFlags & PRE_M_APP_INFO_FLAG_PRIVILEGED) != 0) {
-                        pkgPrivateFlags |= ApplicationInfo.PRIVATE_FLAG_PRIVILEGED;
-                    }
-                    pkgFlags &= ~(PRE_M_APP_INFO_FLAG_HIDDEN
-                            | PRE_M_APP_INFO_FLAG_CANT_SAVE_STATE
-                            | PRE_M_APP_INFO_FLAG_PRIVILEGED);
-                } else {
-                    // For backward compatibility
-                    systemStr = parser.getAttributeValue(null, "system");
-                    if (systemStr != null) {
-                        pkgFlags |= ("true".equalsIgnoreCase(systemStr)) ? ApplicationInfo.FLAG_SYSTEM
-                                : 0;
-                    } else {
-                        // Old settings that don't specify system... just treat
-                        // them as system, good enough.
-                        pkgFlags |= ApplicationInfo.FLAG_SYSTEM;
-                    }
-                }
-            }
-            String timeStampStr = parser.getAttributeValue(null, "ft");
-            if (timeStampStr != null) {
-                try {
-                    timeStamp = Long.parseLong(timeStampStr, 16);
-                } catch (NumberFormatException e) {
+                if ((pkgFlags & PRE_M_APP_INFO_FLAG_PRIVILEGED) != 0) {
+                    pkgPrivateFlags |= ApplicationInfo.PRIVATE_FLAG_PRIVILEGED;
                 }
+                pkgFlags &= ~(PRE_M_APP_INFO_FLAG_HIDDEN
+                        | PRE_M_APP_INFO_FLAG_CANT_SAVE_STATE
+                        | PRE_M_APP_INFO_FLAG_PRIVILEGED);
             } else {
-                timeStampStr = parser.getAttributeValue(null, "ts");
-                if (timeStampStr != null) {
-                    try {
-                        timeStamp = Long.parseLong(timeStampStr);
-                    } catch (NumberFormatException e) {
-                    }
-                }
-            }
-            timeStampStr = parser.getAttributeValue(null, "it");
-            if (timeStampStr != null) {
-                try {
-                    firstInstallTime = Long.parseLong(timeStampStr, 16);
-                } catch (NumberFormatException e) {
-                }
-            }
-            timeStampStr = parser.getAttributeValue(null, "ut");
-            if (timeStampStr != null) {
-                try {
-                    lastUpdateTime = Long.parseLong(timeStampStr, 16);
-                } catch (NumberFormatException e) {
-                }
+                // For backward compatibility
+                pkgFlags |= parser.getAttributeBoolean(null, "system", true)
+                        ? ApplicationInfo.FLAG_SYSTEM : 0;
             }
+        }
+        final long timeStamp = readTimeStamp(parser, 0);
+        final long firstInstallTime = parser.getAttributeLongHex(null, "it", 0);
+        final long lastUpdateTime = parser.getAttributeLongHex(null, "ut", 0);
+        PackageSetting packageSetting = null;
+        if (PackageManagerService.DEBUG_SETTINGS)
+            Log.v(PackageManagerService.TAG, "Reading package: " + name + " userId=" + userId
+                    + " sharedUserId=" + sharedUserId);
+        if (resourcePathStr == null) {
+            resourcePathStr = codePathStr;
+        }
+        if (realName != null) {
+            realName = realName.intern();
+        }
+        if (name == null) {
+            PackageManagerService.reportSettingsProblem(Log.WARN,
+                    "Error in package manager settings: <package> has no name at "
+                            + parser.getPositionDescription());
+        } else if (codePathStr == null) {
+            PackageManagerService.reportSettingsProblem(Log.WARN,
+                    "Error in package manager settings: <package> has no codePath at "
+                            + parser.getPositionDescription());
+        } else if (userId > 0) {
+            packageSetting = addPackageLPw(name.intern(), realName, new File(codePathStr),
+                    new File(resourcePathStr), legacyNativeLibraryPathStr, primaryCpuAbiString,
+                    secondaryCpuAbiString, cpuAbiOverrideString, userId, versionCode, pkgFlags,
+                    pkgPrivateFlags, null /*usesStaticLibraries*/,
+                    null /*usesStaticLibraryVersions*/, null /*mimeGroups*/);
             if (PackageManagerService.DEBUG_SETTINGS)
-                Log.v(PackageManagerService.TAG, "Reading package: " + name + " userId=" + idStr
-                        + " sharedUserId=" + sharedIdStr);
-            final int userId = idStr != null ? Integer.parseInt(idStr) : 0;
-            final int sharedUserId = sharedIdStr != null ? Integer.parseInt(sharedIdStr) : 0;
-            if (resourcePathStr == null) {
-                resourcePathStr = codePathStr;
-            }
-            if (realName != null) {
-                realName = realName.intern();
-            }
-            if (name == null) {
-                PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "Error in package manager settings: <package> has no name at "
-                                + parser.getPositionDescription());
-            } else if (codePathStr == null) {
-                PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "Error in package manager settings: <package> has no codePath at "
-                                + parser.getPositionDescription());
-            } else if (userId > 0) {
-                packageSetting = addPackageLPw(name.intern(), realName, new File(codePathStr),
-                        new File(resourcePathStr), legacyNativeLibraryPathStr, primaryCpuAbiString,
-                        secondaryCpuAbiString, cpuAbiOverrideString, userId, versionCode, pkgFlags,
-                        pkgPrivateFlags, null /*usesStaticLibraries*/,
-                        null /*usesStaticLibraryVersions*/, null /*mimeGroups*/);
+                Log.i(PackageManagerService.TAG, "Reading package " + name + ": userId="
+                        + userId + " pkg=" + packageSetting);
+            if (packageSetting == null) {
+                PackageManagerService.reportSettingsProblem(Log.ERROR, "Failure adding uid "
+                        + userId + " while parsing settings at "
+                        + parser.getPositionDescription());
+            } else {
+                packageSetting.setTimeStamp(timeStamp);
+                packageSetting.firstInstallTime = firstInstallTime;
+                packageSetting.lastUpdateTime = lastUpdateTime;
+            }
+        } else if (hasSharedUserId) {
+            if (sharedUserId > 0) {
+                packageSetting = new PackageSetting(name.intern(), realName, new File(
+                        codePathStr), new File(resourcePathStr), legacyNativeLibraryPathStr,
+                        primaryCpuAbiString, secondaryCpuAbiString, cpuAbiOverrideString,
+                        versionCode, pkgFlags, pkgPrivateFlags, sharedUserId,
+                        null /*usesStaticLibraries*/,
+                        null /*usesStaticLibraryVersions*/,
+                        null /*mimeGroups*/);
+                packageSetting.setTimeStamp(timeStamp);
+                packageSetting.firstInstallTime = firstInstallTime;
+                packageSetting.lastUpdateTime = lastUpdateTime;
+                mPendingPackages.add(packageSetting);
                 if (PackageManagerService.DEBUG_SETTINGS)
-                    Log.i(PackageManagerService.TAG, "Reading package " + name + ": userId="
-                            + userId + " pkg=" + packageSetting);
-                if (packageSetting == null) {
-                    PackageManagerService.reportSettingsProblem(Log.ERROR, "Failure adding uid "
-                            + userId + " while parsing settings at "
-                            + parser.getPositionDescription());
-                } else {
-                    packageSetting.setTimeStamp(timeStamp);
-                    packageSetting.firstInstallTime = firstInstallTime;
-                    packageSetting.lastUpdateTime = lastUpdateTime;
-                }
-            } else if (sharedIdStr != null) {
-                if (sharedUserId > 0) {
-                    packageSetting = new PackageSetting(name.intern(), realName, new File(
-                            codePathStr), new File(resourcePathStr), legacyNativeLibraryPathStr,
-                            primaryCpuAbiString, secondaryCpuAbiString, cpuAbiOverrideString,
-                            versionCode, pkgFlags, pkgPrivateFlags, sharedUserId,
-                            null /*usesStaticLibraries*/,
-                            null /*usesStaticLibraryVersions*/,
-                            null /*mimeGroups*/);
-                    packageSetting.setTimeStamp(timeStamp);
-                    packageSetting.firstInstallTime = firstInstallTime;
-                    packageSetting.lastUpdateTime = lastUpdateTime;
-                    mPendingPackages.add(packageSetting);
-                    if (PackageManagerService.DEBUG_SETTINGS)
-                        Log.i(PackageManagerService.TAG, "Reading package " + name
-                                + ": sharedUserId=" + sharedUserId + " pkg=" + packageSetting);
-                } else {
-                    PackageManagerService.reportSettingsProblem(Log.WARN,
-                            "Error in package manager settings: package " + name
-                                    + " has bad sharedId " + sharedIdStr + " at "
-                                    + parser.getPositionDescription());
-                }
+                    Log.i(PackageManagerService.TAG, "Reading package " + name
+                            + ": sharedUserId=" + sharedUserId + " pkg=" + packageSetting);
             } else {
                 PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "Error in package manager settings: package " + name + " has bad userId "
-                                + idStr + " at " + parser.getPositionDescription());
+                        "Error in package manager settings: package " + name
+                                + " has bad sharedId " + sharedUserId + " at "
+                                + parser.getPositionDescription());
             }
-        } catch (NumberFormatException e) {
+        } else {
             PackageManagerService.reportSettingsProblem(Log.WARN,
                     "Error in package manager settings: package " + name + " has bad userId "
-                            + idStr + " at " + parser.getPositionDescription());
+                            + userId + " at " + parser.getPositionDescription());
         }
         if (packageSetting != null) {
-            packageSetting.uidError = "true".equals(uidError);
+            packageSetting.uidError = uidError;
             InstallSource installSource = InstallSource.create(
                     installInitiatingPackageName, installOriginatingPackageName,
-                    installerPackageName, "true".equals(isOrphaned),
-                    "true".equals(installInitiatorUninstalled));
+                    installerPackageName, isOrphaned, installInitiatorUninstalled);
             packageSetting.installSource = installSource;
             packageSetting.volumeUuid = volumeUuid;
             packageSetting.categoryHint = categoryHint;
             packageSetting.legacyNativeLibraryPathString = legacyNativeLibraryPathStr;
             packageSetting.primaryCpuAbiString = primaryCpuAbiString;
             packageSetting.secondaryCpuAbiString = secondaryCpuAbiString;
-            packageSetting.updateAvailable = "true".equals(updateAvailable);
-            packageSetting.forceQueryableOverride = "true".equals(installedForceQueryable);
+            packageSetting.updateAvailable = updateAvailable;
+            packageSetting.forceQueryableOverride = installedForceQueryable;
             // Handle legacy string here for single-user mode
             final String enabledStr = parser.getAttributeValue(null, ATTR_ENABLED);
             if (enabledStr != null) {
@@ -3913,7 +3831,7 @@ public final class Settings {
                     } else {
                         PackageManagerService.reportSettingsProblem(Log.WARN,
                                 "Error in package manager settings: package " + name
-                                        + " has bad enabled value: " + idStr + " at "
+                                        + " has bad enabled value: " + enabledStr + " at "
                                         + parser.getPositionDescription());
                     }
                 }
@@ -3944,7 +3862,7 @@ public final class Settings {
                             packageSetting.getPermissionsState());
                     packageSetting.installPermissionsFixed = true;
                 } else if (tagName.equals("proper-signing-keyset")) {
-                    long id = Long.parseLong(parser.getAttributeValue(null, "identifier"));
+                    long id = parser.getAttributeLong(null, "identifier");
                     Integer refCt = mKeySetRefs.get(id);
                     if (refCt != null) {
                         mKeySetRefs.put(id, refCt + 1);
@@ -3955,10 +3873,10 @@ public final class Settings {
                 } else if (tagName.equals("signing-keyset")) {
                     // from v1 of keysetmanagerservice - no longer used
                 } else if (tagName.equals("upgrade-keyset")) {
-                    long id = Long.parseLong(parser.getAttributeValue(null, "identifier"));
+                    long id = parser.getAttributeLong(null, "identifier");
                     packageSetting.keySetData.addUpgradeKeySetById(id);
                 } else if (tagName.equals("defined-keyset")) {
-                    long id = Long.parseLong(parser.getAttributeValue(null, "identifier"));
+                    long id = parser.getAttributeLong(null, "identifier");
                     String alias = parser.getAttributeValue(null, "alias");
                     Integer refCt = mKeySetRefs.get(id);
                     if (refCt != null) {
@@ -4116,40 +4034,32 @@ public final class Settings {
         }
     }
 
-    private void readSharedUserLPw(XmlPullParser parser) throws XmlPullParserException,IOException {
-        String name = null;
-        String idStr = null;
+    private void readSharedUserLPw(TypedXmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final String name = parser.getAttributeValue(null, ATTR_NAME);
+        final int userId = parser.getAttributeInt(null, "userId", 0);
         int pkgFlags = 0;
         int pkgPrivateFlags = 0;
         SharedUserSetting su = null;
-        try {
-            name = parser.getAttributeValue(null, ATTR_NAME);
-            idStr = parser.getAttributeValue(null, "userId");
-            int userId = idStr != null ? Integer.parseInt(idStr) : 0;
-            if ("true".equals(parser.getAttributeValue(null, "system"))) {
-                pkgFlags |= ApplicationInfo.FLAG_SYSTEM;
-            }
-            if (name == null) {
-                PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "Error in package manager settings: <shared-user> has no name at "
-                                + parser.getPositionDescription());
-            } else if (userId == 0) {
-                PackageManagerService.reportSettingsProblem(Log.WARN,
-                        "Error in package manager settings: shared-user " + name
-                                + " has bad userId " + idStr + " at "
+        if (parser.getAttributeBoolean(null, "system", false)) {
+            pkgFlags |= ApplicationInfo.FLAG_SYSTEM;
+        }
+        if (name == null) {
+            PackageManagerService.reportSettingsProblem(Log.WARN,
+                    "Error in package manager settings: <shared-user> has no name at "
+                            + parser.getPositionDescription());
+        } else if (userId == 0) {
+            PackageManagerService.reportSettingsProblem(Log.WARN,
+                    "Error in package manager settings: shared-user " + name
+                            + " has bad userId " + parser.getAttributeValue(null, "userId")
+                            + " at " + parser.getPositionDescription());
+        } else {
+            if ((su = addSharedUserLPw(name.intern(), userId, pkgFlags, pkgPrivateFlags))
+                    == null) {
+                PackageManagerService
+                        .reportSettingsProblem(Log.ERROR, "Occurred while parsing settings at "
                                 + parser.getPositionDescription());
-            } else {
-                if ((su = addSharedUserLPw(name.intern(), userId, pkgFlags, pkgPrivateFlags))
-                        == null) {
-                    PackageManagerService
-                            .reportSettingsProblem(Log.ERROR, "Occurred while parsing settings at "
-                                    + parser.getPositionDescription());
-                }
             }
-        } catch (NumberFormatException e) {
-            PackageManagerService.reportSettingsProblem(Log.WARN,
-                    "Error in package manager settings: package " + name + " has bad userId "
-                            + idStr + " at " + parser.getPositionDescription());
         }
 
         if (su != null) {
@@ -4250,6 +4160,7 @@ public final class Settings {
             entry.getValue().removeUser(userId);
         }
         mPreferredActivities.remove(userId);
+        mPackageRestrictionsDigests.remove(userId);
         File file = getUserPackagesStateFile(userId);
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
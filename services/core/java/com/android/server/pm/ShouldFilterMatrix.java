@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.NonNull;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.IntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Compact uid &times; uid bit matrix caching the result of
+ * {@link AppsFilter#shouldFilterApplication}.
+ * <p>
+ * Every application appId known to the matrix is assigned a slot, and slots are laid out once
+ * per user so that each (user, appId) pair maps to a row and a column. A set bit means access
+ * from the row uid to the column uid should be filtered. Only application uids (see
+ * {@link Process#FIRST_APPLICATION_UID}) are tracked, since all other uids are never filtered.
+ * <p>
+ * Writers must be externally serialized, and must call {@link #publish()} once they've finished
+ * a batch of updates. Readers may call {@link #get(int, int)} concurrently without holding any
+ * lock: each bit is read and written atomically, so a racing reader observes either the previous
+ * or the updated value for any given pair.
+ * <p>
+ * A newly added appId has its row and column filled with "filtered" before its slot is stored
+ * with a volatile write, and readers look slots up with a volatile read, so a reader that finds
+ * the slot also sees the fill and never sees a pair as visible before it has been computed.
+ * Slots freed by {@link #removeAppId} are never refilled in place, since a reader may still be
+ * reading the bits of the removed appId: new appIds take fresh slots while there is capacity
+ * left, and a freed slot is only reused in a copy of the matrix, which is then published.
+ */
+final class ShouldFilterMatrix {
+    /** Access from the calling uid to the target uid is allowed. */
+    static final int VISIBLE = 0;
+    /** Access from the calling uid to the target uid should be filtered. */
+    static final int FILTERED = 1;
+    /** The calling uid isn't known to this matrix. */
+    static final int UNKNOWN_CALLER = 2;
+    /** The target uid isn't known to this matrix. */
+    static final int UNKNOWN_TARGET = 3;
+
+    private static final int APP_ID_COUNT =
+            Process.LAST_APPLICATION_UID - Process.FIRST_APPLICATION_UID + 1;
+
+    /** Slot capacity is kept a multiple of 32 so each user's columns start on a word boundary. */
+    private static final int SLOT_ALIGNMENT = 32;
+
+    /**
+     * Everything a reader needs, published as a unit so that a reader never mixes the layout of
+     * one capacity with the bits of another.
+     */
+    private static final class Storage {
+        /** User ids in matrix order. */
+        final int[] userIds;
+        /**
+         * Maps {@code appId - FIRST_APPLICATION_UID} to {@code slot + 1}, or 0 if absent. Stored
+         * after the bits of the slot are initialized.
+         */
+        final AtomicIntegerArray slotOfAppId;
+        /** Number of slots reserved per user; always a multiple of {@link #SLOT_ALIGNMENT}. */
+        final int slotCapacity;
+        /** Number of ints in a single row. */
+        final int rowWords;
+        /** Row-major bits, {@link #rowWords} ints per row. */
+        final int[] bits;
+
+        Storage(int[] userIds, AtomicIntegerArray slotOfAppId, int slotCapacity) {
+            this.userIds = userIds;
+            this.slotOfAppId = slotOfAppId;
+            this.slotCapacity = slotCapacity;
+            this.rowWords = userIds.length * (slotCapacity / Integer.SIZE);
+            this.bits = new int[userIds.length * slotCapacity * rowWords];
+        }
+
+        int indexOfUser(int userId) {
+            for (int i = 0; i < userIds.length; i++) {
+                if (userIds[i] == userId) return i;
+            }
+            return -1;
+        }
+
+        /** Returns the row (and column) index of {@code uid}, or -1 if it isn't tracked. */
+        int indexOfUid(int uid) {
+            final int appIndex = UserHandle.getAppId(uid) - Process.FIRST_APPLICATION_UID;
+            if (appIndex < 0 || appIndex >= APP_ID_COUNT) return -1;
+            final int slot = slotOfAppId.get(appIndex) - 1;
+            if (slot < 0) return -1;
+            final int userIndex = indexOfUser(UserHandle.getUserId(uid));
+            if (userIndex < 0) return -1;
+            return userIndex * slotCapacity + slot;
+        }
+
+        boolean getBit(int row, int column) {
+            return (bits[row * rowWords + (column >>> 5)] & (1 << (column & 31))) != 0;
+        }
+
+        void setBit(int row, int column, boolean value) {
+            final int index = row * rowWords + (column >>> 5);
+            if (value) {
+                bits[index] |= (1 << (column & 31));
+            } else {
+                bits[index] &= ~(1 << (column & 31));
+            }
+        }
+    }
+
+    private volatile Storage mStorage;
+
+    /** Number of slots ever handed out; slots below this are either in use or free. */
+    private int mSlotCount;
+    private final IntArray mFreeSlots = new IntArray();
+
+    /**
+     * @param userIds the users whose uids this matrix will track
+     * @param expectedAppIds hint of how many distinct appIds will be added
+     */
+    ShouldFilterMatrix(@NonNull int[] userIds, int expectedAppIds) {
+        mStorage = new Storage(userIds.clone(), new AtomicIntegerArray(APP_ID_COUNT),
+                alignSlotCapacity(Math.max(expectedAppIds, 1)));
+    }
+
+    private static int alignSlotCapacity(int slots) {
+        return (slots + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT;
+    }
+
+    /**
+     * Returns one of {@link #VISIBLE}, {@link #FILTERED}, {@link #UNKNOWN_CALLER} or
+     * {@link #UNKNOWN_TARGET} for access from {@code callingUid} to {@code targetUid}. Safe to
+     * call without any lock held.
+     */
+    int get(int callingUid, int targetUid) {
+        final Storage storage = mStorage;
+        final int row = storage.indexOfUid(callingUid);
+        if (row < 0) return UNKNOWN_CALLER;
+        final int column = storage.indexOfUid(targetUid);
+        if (column < 0) return UNKNOWN_TARGET;
+        return storage.getBit(row, column) ? FILTERED : VISIBLE;
+    }
+
+    /**
+     * Records whether access from {@code callingUid} to {@code targetUid} should be filtered,
+     * adding either appId to the matrix if needed. Uids which aren't tracked by this matrix are
+     * silently ignored.
+     */
+    void put(int callingUid, int targetUid, boolean shouldFilter) {
+        final int callingAppId = UserHandle.getAppId(callingUid);
+        final int targetAppId = UserHandle.getAppId(targetUid);
+        if (!isTrackedAppId(callingAppId) || !isTrackedAppId(targetAppId)) {
+            return;
+        }
+        ensureAppId(callingAppId);
+        ensureAppId(targetAppId);
+        final Storage storage = mStorage;
+        final int row = storage.indexOfUid(callingUid);
+        final int column = storage.indexOfUid(targetUid);
+        if (row < 0 || column < 0) {
+            // Unknown user
+            return;
+        }
+        storage.setBit(row, column, shouldFilter);
+    }
+
+    /**
+     * Forgets every uid with the given appId. Readers will observe {@link #UNKNOWN_CALLER} or
+     * {@link #UNKNOWN_TARGET} for those uids until the appId is added again.
+     */
+    void removeAppId(int appId) {
+        if (!isTrackedAppId(appId)) {
+            return;
+        }
+        final AtomicIntegerArray slotOfAppId = mStorage.slotOfAppId;
+        final int appIndex = appId - Process.FIRST_APPLICATION_UID;
+        final int slot = slotOfAppId.get(appIndex) - 1;
+        if (slot >= 0) {
+            slotOfAppId.set(appIndex, 0);
+            mFreeSlots.add(slot);
+        }
+    }
+
+    /** Returns whether the given appId currently has a slot in this matrix. */
+    @VisibleForTesting
+    boolean containsAppId(int appId) {
+        return isTrackedAppId(appId)
+                && mStorage.slotOfAppId.get(appId - Process.FIRST_APPLICATION_UID) != 0;
+    }
+
+    /** Returns the number of slots currently reserved per user. */
+    @VisibleForTesting
+    int getSlotCapacity() {
+        return mStorage.slotCapacity;
+    }
+
+    /**
+     * Makes all updates made so far visible to readers on other threads. Must be called after
+     * each batch of {@link #put} or {@link #removeAppId} calls.
+     */
+    void publish() {
+        // A volatile write of the (possibly unchanged) reference orders all prior plain writes
+        // before any subsequent reader's volatile read of mStorage
+        mStorage = mStorage;
+    }
+
+    private static boolean isTrackedAppId(int appId) {
+        return appId >= Process.FIRST_APPLICATION_UID && appId <= Process.LAST_APPLICATION_UID;
+    }
+
+    private void ensureAppId(int appId) {
+        Storage storage = mStorage;
+        final int appIndex = appId - Process.FIRST_APPLICATION_UID;
+        if (storage.slotOfAppId.get(appIndex) != 0) {
+            return;
+        }
+
+        final int slot;
+        if (mSlotCount < storage.slotCapacity) {
+            slot = mSlotCount++;
+        } else if (mFreeSlots.size() > 0) {
+            // Readers may still be reading the bits of the appId that freed the slot, so only
+            // reuse it in a copy
+            slot = mFreeSlots.get(mFreeSlots.size() - 1);
+            mFreeSlots.remove(mFreeSlots.size() - 1);
+            storage = copy(storage, storage.slotCapacity);
+        } else {
+            slot = mSlotCount++;
+            storage = copy(storage, alignSlotCapacity(storage.slotCapacity * 2));
+        }
+
+        // Default to filtered until the caller has computed each pair, so a racing reader never
+        // observes visibility that hasn't been granted
+        final int users = storage.userIds.length;
+        final int rows = users * storage.slotCapacity;
+        for (int u = 0; u < users; u++) {
+            final int index = u * storage.slotCapacity + slot;
+            Arrays.fill(storage.bits, index * storage.rowWords,
+                    (index + 1) * storage.rowWords, -1);
+            for (int row = 0; row < rows; row++) {
+                storage.setBit(row, index, true);
+            }
+        }
+        // The volatile write publishes the fill to readers who find the slot
+        storage.slotOfAppId.set(appIndex, slot + 1);
+    }
+
+    /**
+     * Copies {@code old} into a new storage with the given capacity and publishes it. The copy
+     * has its own slot table, so that slots handed out in it are never seen through {@code old}.
+     */
+    private Storage copy(Storage old, int slotCapacity) {
+        final AtomicIntegerArray slotOfAppId = new AtomicIntegerArray(APP_ID_COUNT);
+        for (int i = 0; i < APP_ID_COUNT; i++) {
+            slotOfAppId.set(i, old.slotOfAppId.get(i));
+        }
+        final Storage storage = new Storage(old.userIds, slotOfAppId, slotCapacity);
+        final int users = old.userIds.length;
+        final int oldUserWords = old.slotCapacity / Integer.SIZE;
+        final int newUserWords = slotCapacity / Integer.SIZE;
+        for (int u = 0; u < users; u++) {
+            for (int slot = 0; slot < old.slotCapacity; slot++) {
+                final int oldRow = (u * old.slotCapacity + slot) * old.rowWords;
+                final int newRow = (u * slotCapacity + slot) * storage.rowWords;
+                for (int v = 0; v < users; v++) {
+                    System.arraycopy(old.bits, oldRow + v * oldUserWords,
+                            storage.bits, newRow + v * newUserWords, oldUserWords);
+                }
+            }
+        }
+        mStorage = storage;
+        return storage;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm.parsing;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.system.StructStat;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file index of every entry in a {@link PackageCacher} directory.
+ * <p>
+ * Each entry records the identity ({@code st_mtime}, {@code st_size} and {@code st_ino}) of the
+ * package file at the time it was cached, so that validating a cache entry only requires a
+ * single {@code stat} of the package file rather than a {@code stat} of both the package and
+ * the cache file. Each entry also records the length and CRC32 of the cache file, which are
+ * checked when it's read, since neither the cache files nor the journal are synced to disk.
+ * The whole index is loaded in one pass the first time it's queried, which also lets us skip
+ * probing the cache directory for packages that have never been cached.
+ * <p>
+ * The index is stored as an append-only journal of put/remove records, so caching a newly
+ * parsed package costs one small append rather than a rewrite of the index. The journal is
+ * compacted at load time once it has accumulated enough obsolete records.
+ * <p>
+ * The index is only an accelerator: a missing, truncated or corrupt journal, or a cache file
+ * that doesn't match its entry, simply results in the affected packages being re-parsed and
+ * re-cached.
+ */
+class PackageCacheIndex {
+    private static final String TAG = "PackageCacheIndex";
+
+    /**
+     * Name of the journal file inside the cache directory. The leading dot guarantees it can't
+     * collide with a cache entry, whose names are derived from package file names.
+     */
+    static final String INDEX_FILE_NAME = ".index";
+
+    private static final int MAGIC = 0x50434958; // "PCIX"
+    private static final int VERSION = 2;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /** Compact the journal when it holds this many more records than live entries. */
+    private static final int COMPACT_THRESHOLD = 64;
+
+    /**
+     * Identity of a package file at the time its cache entry was written, and checksum of that
+     * cache entry.
+     */
+    @VisibleForTesting
+    static final class Entry {
+        final long mtime;
+        final long size;
+        final long ino;
+        final int cacheLength;
+        final long cacheCrc;
+
+        Entry(long mtime, long size, long ino, int cacheLength, long cacheCrc) {
+            this.mtime = mtime;
+            this.size = size;
+            this.ino = ino;
+            this.cacheLength = cacheLength;
+            this.cacheCrc = cacheCrc;
+        }
+
+        boolean matches(@NonNull StructStat stat) {
+            return stat.st_mtime == mtime && stat.st_size == size && stat.st_ino == ino;
+        }
+
+        /** Whether {@code length} bytes of {@code cacheEntry} are the ones that were written. */
+        boolean matchesCacheEntry(@NonNull byte[] cacheEntry, int length) {
+            return length == cacheLength && crc(cacheEntry, length) == cacheCrc;
+        }
+    }
+
+    /** Returns the CRC32 of the first {@code length} bytes of {@code cacheEntry}. */
+    static long crc(@NonNull byte[] cacheEntry, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(cacheEntry, 0, length);
+        return crc.getValue();
+    }
+
+    private final Object mLock = new Object();
+
+    private final AtomicFile mFile;
+
+    @GuardedBy("mLock")
+    private ArrayMap<String, Entry> mEntries;
+
+    PackageCacheIndex(@NonNull File cacheDir) {
+        mFile = new AtomicFile(new File(cacheDir, INDEX_FILE_NAME));
+    }
+
+    /**
+     * Returns the recorded identity of the package file cached under {@code cacheKey}, or
+     * {@code null} if there's no valid entry.
+     */
+    @Nullable
+    Entry get(@NonNull String cacheKey) {
+        synchronized (mLock) {
+            loadLocked();
+            return mEntries.get(cacheKey);
+        }
+    }
+
+    /**
+     * Records that {@code cacheKey} now holds {@code cacheEntry}, for a package file whose
+     * identity is described by {@code stat}.
+     */
+    void put(@NonNull String cacheKey, @NonNull StructStat stat, @NonNull byte[] cacheEntry) {
+        final Entry entry = new Entry(stat.st_mtime, stat.st_size, stat.st_ino,
+                cacheEntry.length, crc(cacheEntry, cacheEntry.length));
+        synchronized (mLock) {
+            loadLocked();
+            mEntries.put(cacheKey, entry);
+            appendLocked(RECORD_PUT, cacheKey, entry);
+        }
+    }
+
+    /**
+     * Forgets any cache entry recorded under {@code cacheKey}.
+     */
+    void remove(@NonNull String cacheKey) {
+        synchronized (mLock) {
+            loadLocked();
+            if (mEntries.remove(cacheKey) != null) {
+                appendLocked(RECORD_REMOVE, cacheKey, null);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void loadLocked() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new ArrayMap<>();
+
+        int records = 0;
+        boolean valid = false;
+        FileInputStream fis = null;
+        try {
+            fis = mFile.openRead();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported index header");
+            }
+            while (true) {
+                final byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                final String key = in.readUTF();
+                if (op == RECORD_PUT) {
+                    mEntries.put(key, new Entry(in.readLong(), in.readLong(), in.readLong(),
+                            in.readInt(), in.readLong()));
+                } else if (op == RECORD_REMOVE) {
+                    mEntries.remove(key);
+                } else {
+                    throw new IOException("Unknown record " + op);
+                }
+                records++;
+            }
+            valid = true;
+        } catch (FileNotFoundException e) {
+            // First boot with this cache directory; start an empty journal below
+        } catch (IOException e) {
+            // A torn final record is expected after an unclean shutdown; keep everything we
+            // managed to read and rewrite a clean journal below
+            Slog.w(TAG, "Truncated package cache index after " + records + " records", e);
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+
+        if (!valid || records - mEntries.size() > COMPACT_THRESHOLD) {
+            writeCompactedLocked();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void writeCompactedLocked() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < mEntries.size(); i++) {
+                writeRecord(out, RECORD_PUT, mEntries.keyAt(i), mEntries.valueAt(i));
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write package cache index", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void appendLocked(byte op, @NonNull String cacheKey, @Nullable Entry entry) {
+        // Appends don't go through AtomicFile, so a crash may leave a torn final record which
+        // loadLocked() discards. They aren't synced either: an entry that survives its cache
+        // file's contents fails the checksum when read, and the package is parsed again.
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile.getBaseFile(), true /* append */)))) {
+            writeRecord(out, op, cacheKey, entry);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to append to package cache index", e);
+        }
+    }
+
+    private static void writeRecord(@NonNull DataOutputStream out, byte op,
+            @NonNull String cacheKey, @Nullable Entry entry) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(cacheKey);
+        if (op == RECORD_PUT) {
+            out.writeLong(entry.mtime);
+            out.writeLong(entry.size);
+            out.writeLong(entry.ino);
+            out.writeInt(entry.cacheLength);
+            out.writeLong(entry.cacheCrc);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.server.pm.parsing;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.pm.PackageParserCacheHelper;
 import android.os.FileUtils;
 import android.os.Parcel;
@@ -30,11 +31,13 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.pm.parsing.pkg.PackageImpl;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
-import libcore.io.IoUtils;
-
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PackageCacher {
@@ -46,11 +49,34 @@ public class PackageCacher {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /**
+     * Cache entries larger than this aren't retained in the per-thread read buffer, so that a
+     * single huge package doesn't pin a large allocation for the life of the parsing thread.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Per-thread scratch buffer that cache entries are read into before being unmarshalled,
+     * which avoids allocating a new array for every cached package during boot.
+     */
+    private static final ThreadLocal<byte[]> sReadBuffer =
+            ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
     @NonNull
     private File mCacheDir;
 
+    @NonNull
+    private final PackageCacheIndex mIndex;
+
+    /**
+     * Strings shared by all packages read through this cacher, such as permission, library and
+     * process names, so that each distinct value is only retained once across all packages.
+     */
+    private final Map<String, String> mStringPool = new ConcurrentHashMap<>();
+
     public PackageCacher(@NonNull File cacheDir) {
         this.mCacheDir = cacheDir;
+        this.mIndex = new PackageCacheIndex(cacheDir);
     }
 
     /**
@@ -65,18 +91,24 @@ public class PackageCacher {
     }
 
     @VisibleForTesting
-    protected ParsedPackage fromCacheEntry(byte[] bytes) {
-        return fromCacheEntryStatic(bytes);
+    protected ParsedPackage fromCacheEntry(byte[] bytes, int length) {
+        return fromCacheEntryStatic(bytes, length, mStringPool);
     }
 
     /** static version of {@link #fromCacheEntry} for unit tests. */
     @VisibleForTesting
     public static ParsedPackage fromCacheEntryStatic(byte[] bytes) {
+        return fromCacheEntryStatic(bytes, bytes.length, null);
+    }
+
+    private static ParsedPackage fromCacheEntryStatic(byte[] bytes, int length,
+            @Nullable Map<String, String> stringPool) {
         final Parcel p = Parcel.obtain();
-        p.unmarshall(bytes, 0, bytes.length);
+        p.unmarshall(bytes, 0, length);
         p.setDataPosition(0);
 
-        final PackageParserCacheHelper.ReadHelper helper = new PackageParserCacheHelper.ReadHelper(p);
+        final PackageParserCacheHelper.ReadHelper helper =
+                new PackageParserCacheHelper.ReadHelper(p, stringPool);
         helper.startAndInstall();
 
         // TODO(b/135203078): Hide PackageImpl constructor?
@@ -99,7 +131,8 @@ public class PackageCacher {
     @VisibleForTesting
     public static byte[] toCacheEntryStatic(ParsedPackage pkg) {
         final Parcel p = Parcel.obtain();
-        final PackageParserCacheHelper.WriteHelper helper = new PackageParserCacheHelper.WriteHelper(p);
+        final PackageParserCacheHelper.WriteHelper helper =
+                new PackageParserCacheHelper.WriteHelper(p);
 
         pkg.writeToParcel(p, 0 /* flags */);
 
@@ -112,33 +145,68 @@ public class PackageCacher {
     }
 
     /**
-     * Given a {@code packageFile} and a {@code cacheFile} returns whether the
-     * cache file is up to date based on the mod-time of both files.
+     * Returns the identity of {@code packageFile}, or {@code null} if it can't be determined.
      */
-    private static boolean isCacheUpToDate(File packageFile, File cacheFile) {
+    @Nullable
+    private static StructStat statPackage(File packageFile) {
         try {
             // NOTE: We don't use the File.lastModified API because it has the very
             // non-ideal failure mode of returning 0 with no excepions thrown.
             // The nio2 Files API is a little better but is considerably more expensive.
-            final StructStat pkg = Os.stat(packageFile.getAbsolutePath());
-            final StructStat cache = Os.stat(cacheFile.getAbsolutePath());
-            return pkg.st_mtime < cache.st_mtime;
+            return Os.stat(packageFile.getAbsolutePath());
         } catch (ErrnoException ee) {
-            // The most common reason why stat fails is that a given cache file doesn't
-            // exist. We ignore that here. It's easy to reason that it's safe to say the
-            // cache isn't up to date if we see any sort of exception here.
-            //
-            // (1) Exception while stating the package file : This should never happen,
-            // and if it does, we do a full package parse (which is likely to throw the
-            // same exception).
-            // (2) Exception while stating the cache file : If the file doesn't exist, the
-            // cache is obviously out of date. If the file *does* exist, we can't read it.
-            // We will attempt to delete and recreate it after parsing the package.
+            // This should never happen, and if it does, we do a full package parse (which is
+            // likely to throw the same exception).
             if (ee.errno != OsConstants.ENOENT) {
-                Slog.w("Error while stating package cache : ", ee);
+                Slog.w(TAG, "Error while stating package file: ", ee);
             }
+            return null;
+        }
+    }
+
+    /**
+     * Given a {@code packageFile} and the {@code cacheKey} it was cached under, returns the
+     * index entry of the cache file if it is up to date, by comparing the package file's
+     * current identity against the identity recorded in the index when the entry was written.
+     * This avoids stating the cache file itself, as well as probing for cache files that were
+     * never written.
+     */
+    @Nullable
+    private PackageCacheIndex.Entry getUpToDateEntry(File packageFile, String cacheKey) {
+        final PackageCacheIndex.Entry entry = mIndex.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        final StructStat pkg = statPackage(packageFile);
+        return pkg != null && entry.matches(pkg) ? entry : null;
+    }
 
-            return false;
+    /**
+     * Reads the contents of {@code cacheFile} into the calling thread's scratch buffer, growing
+     * it if needed, and returns the buffer. The number of valid bytes is returned through
+     * {@code outLength}.
+     */
+    private static byte[] readCacheFile(File cacheFile, int[] outLength) throws IOException {
+        try (InputStream in = new FileInputStream(cacheFile)) {
+            byte[] buffer = sReadBuffer.get();
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    final byte[] grown = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, length);
+                    buffer = grown;
+                }
+                final int n = in.read(buffer, length, buffer.length - length);
+                if (n == -1) {
+                    break;
+                }
+                length += n;
+            }
+            if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+                sReadBuffer.set(buffer);
+            }
+            outLength[0] = length;
+            return buffer;
         }
     }
 
@@ -152,17 +220,23 @@ public class PackageCacher {
 
         try {
             // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            final PackageCacheIndex.Entry entry = getUpToDateEntry(packageFile, cacheKey);
+            if (entry == null) {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            return fromCacheEntry(bytes);
+            final int[] length = new int[1];
+            final byte[] bytes = readCacheFile(cacheFile, length);
+            if (!entry.matchesCacheEntry(bytes, length[0])) {
+                throw new IOException("Cache file doesn't match its index entry: " + cacheFile);
+            }
+            return fromCacheEntry(bytes, length[0]);
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
 
             // If something went wrong while reading the cache entry, delete the cache file
             // so that we regenerate it the next time.
+            mIndex.remove(cacheKey);
             cacheFile.delete();
             return null;
         }
@@ -176,6 +250,7 @@ public class PackageCacher {
             final String cacheKey = getCacheKey(packageFile, flags);
             final File cacheFile = new File(mCacheDir, cacheKey);
 
+            mIndex.remove(cacheKey);
             if (cacheFile.exists()) {
                 if (!cacheFile.delete()) {
                     Slog.e(TAG, "Unable to delete cache file: " + cacheFile);
@@ -188,25 +263,44 @@ public class PackageCacher {
                 return;
             }
 
+            // Stat before writing, so that a package modified while we're writing its entry
+            // is detected as stale next time
+            final StructStat pkg = statPackage(packageFile);
+            if (pkg == null) {
+                return;
+            }
+
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
                 fos.write(cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
                 cacheFile.delete();
+                return;
             }
+            mIndex.put(cacheKey, pkg, cacheEntry);
         } catch (Throwable e) {
             Slog.w(TAG, "Error saving package cache.", e);
         }
     }
 
+    /**
+     * Drops the strings pooled across the packages read so far. The packages read keep the
+     * strings they share, but packages read afterwards won't share them.
+     */
+    public void clearStringPool() {
+        mStringPool.clear();
+    }
+
     /**
      * Delete the cache files for the given {@code packageFile}.
      */
     public void cleanCachedResult(@NonNull File packageFile) {
         final String packageName = packageFile.getName();
         final File[] files = FileUtils.listFilesOrEmpty(mCacheDir,
-                (dir, name) -> name.startsWith(packageName));
+                (dir, name) -> name.startsWith(packageName)
+                        && !PackageCacheIndex.INDEX_FILE_NAME.equals(name));
         for (File file : files) {
+            mIndex.remove(file.getName());
             if (!file.delete()) {
                 Slog.e(TAG, "Unable to clean cache file: " + file);
             }
@@ -185,6 +185,10 @@ public class PackageParser2 implements AutoCloseable {
     public void close() {
         mSharedResult.remove();
         mSharedAppInfo.remove();
+        if (mCacher != null) {
+            // Pooling only pays off while a batch of packages is read, such as the boot scan
+            mCacher.clearStringPool();
+        }
     }
 
     public static abstract class Callback implements ParsingPackageUtils.Callback {
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.protolog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Circular buffer of encoded ProtoLog messages, kept in the order they were logged. The oldest
+ * messages are discarded when it is full.
+ */
+class ProtoLogBuffer {
+    private final Object mLock = new Object();
+    private final int mCapacity;
+    // Ring of messages and their times, starting at mHead
+    @GuardedBy("mLock")
+    private long[] mTimes = new long[16];
+    @GuardedBy("mLock")
+    private byte[][] mMessages = new byte[16][];
+    @GuardedBy("mLock")
+    private int mHead;
+    @GuardedBy("mLock")
+    private int mCount;
+    @GuardedBy("mLock")
+    private int mUsedBytes;
+
+    ProtoLogBuffer(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds a message, discarding the oldest messages if needed.
+     *
+     * @param elapsedRealtimeNanos The time the message was logged at
+     * @param message The encoded message
+     * @throws IllegalStateException if the message is larger than the buffer.
+     */
+    void add(long elapsedRealtimeNanos, byte[] message) {
+        if (message.length > mCapacity) {
+            throw new IllegalStateException("Message too large for the buffer. Buffer size:"
+                    + mCapacity + " Message size: " + message.length);
+        }
+        synchronized (mLock) {
+            while (mUsedBytes + message.length > mCapacity) {
+                mUsedBytes -= mMessages[mHead].length;
+                mMessages[mHead] = null;
+                mHead = (mHead + 1) % mMessages.length;
+                mCount--;
+            }
+            if (mCount == mMessages.length) {
+                growLocked();
+            }
+            // Keep the ring sorted, as the time was taken before waiting for the lock
+            int index = mCount;
+            while (index > 0 && mTimes[(mHead + index - 1) % mTimes.length]
+                    > elapsedRealtimeNanos) {
+                final int from = (mHead + index - 1) % mTimes.length;
+                final int to = (mHead + index) % mTimes.length;
+                mTimes[to] = mTimes[from];
+                mMessages[to] = mMessages[from];
+                index--;
+            }
+            final int tail = (mHead + index) % mTimes.length;
+            mTimes[tail] = elapsedRealtimeNanos;
+            mMessages[tail] = message;
+            mCount++;
+            mUsedBytes += message.length;
+        }
+    }
+
+    /**
+     * Removes all messages.
+     */
+    void reset() {
+        synchronized (mLock) {
+            mTimes = new long[16];
+            mMessages = new byte[16][];
+            mHead = 0;
+            mCount = 0;
+            mUsedBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the number of messages.
+     */
+    int size() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    /**
+     * Writes all messages in the order they were logged.
+     */
+    void writeTo(OutputStream os) throws IOException {
+        final byte[][] messages;
+        synchronized (mLock) {
+            messages = copyMessagesLocked(mCount);
+        }
+        for (byte[] message : messages) {
+            os.write(message);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void growLocked() {
+        mTimes = copyTimesLocked(mTimes.length * 2);
+        mMessages = copyMessagesLocked(mMessages.length * 2);
+        mHead = 0;
+    }
+
+    @GuardedBy("mLock")
+    private long[] copyTimesLocked(int length) {
+        final long[] times = new long[length];
+        final int firstPart = Math.min(mCount, mTimes.length - mHead);
+        System.arraycopy(mTimes, mHead, times, 0, firstPart);
+        System.arraycopy(mTimes, 0, times, firstPart, mCount - firstPart);
+        return times;
+    }
+
+    @GuardedBy("mLock")
+    private byte[][] copyMessagesLocked(int length) {
+        final byte[][] messages = new byte[length][];
+        final int firstPart = Math.min(mCount, mMessages.length - mHead);
+        System.arraycopy(mMessages, mHead, messages, 0, firstPart);
+        System.arraycopy(mMessages, 0, messages, firstPart, mCount - firstPart);
+        return messages;
+    }
+}
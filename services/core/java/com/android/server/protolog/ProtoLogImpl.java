@@ -38,13 +38,13 @@ import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.protolog.common.IProtoLogGroup;
 import com.android.server.protolog.common.LogDataType;
-import com.android.internal.util.TraceBuffer;
 import com.android.server.wm.ProtoLogGroup;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.IllegalFormatConversionException;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
@@ -126,6 +126,8 @@ public class ProtoLogImpl {
     }
 
     private static final int BUFFER_CAPACITY = 1024 * 1024;
+    // Most messages fit in one chunk of this size
+    private static final int MESSAGE_CHUNK_SIZE = 256;
     private static final String LOG_FILENAME = "/data/misc/wmtrace/wm_log.pb";
     private static final String VIEWER_CONFIG_FILENAME = "/system/etc/protolog.conf.json.gz";
     private static final String TAG = "ProtoLog";
@@ -133,24 +135,31 @@ public class ProtoLogImpl {
     static final String PROTOLOG_VERSION = "1.0.0";
 
     private final File mLogFile;
-    private final TraceBuffer mBuffer;
+    private final ProtoLogBuffer mBuffer;
     private final ProtoLogViewerConfigReader mViewerConfig;
 
     private boolean mProtoLogEnabled;
     private boolean mProtoLogEnabledLockFree;
     private final Object mProtoLogEnabledLock = new Object();
 
-    private static ProtoLogImpl sServiceInstance = null;
+    private static volatile ProtoLogImpl sServiceInstance = null;
 
     /**
      * Returns the single instance of the ProtoLogImpl singleton class.
      */
-    public static synchronized ProtoLogImpl getSingleInstance() {
-        if (sServiceInstance == null) {
-            sServiceInstance = new ProtoLogImpl(new File(LOG_FILENAME), BUFFER_CAPACITY,
-                    new ProtoLogViewerConfigReader());
+    public static ProtoLogImpl getSingleInstance() {
+        // Called for every message, don't lock once the instance exists
+        ProtoLogImpl instance = sServiceInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (ProtoLogImpl.class) {
+            if (sServiceInstance == null) {
+                sServiceInstance = new ProtoLogImpl(new File(LOG_FILENAME), BUFFER_CAPACITY,
+                        new ProtoLogViewerConfigReader());
+            }
+            return sServiceInstance;
         }
-        return sServiceInstance;
     }
 
     @VisibleForTesting
@@ -232,16 +241,16 @@ public class ProtoLogImpl {
             return;
         }
         try {
-            ProtoOutputStream os = new ProtoOutputStream();
+            final long elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+            ProtoOutputStream os = new ProtoOutputStream(MESSAGE_CHUNK_SIZE);
             long token = os.start(LOG);
             os.write(MESSAGE_HASH, messageHash);
-            os.write(ELAPSED_REALTIME_NANOS, SystemClock.elapsedRealtimeNanos());
+            os.write(ELAPSED_REALTIME_NANOS, elapsedRealtimeNanos);
 
             if (args != null) {
+                // The params are written unpacked as they come, which parsers of the packed
+                // fields accept, rather than collected into arrays first.
                 int argIndex = 0;
-                ArrayList<Long> longParams = new ArrayList<>();
-                ArrayList<Double> doubleParams = new ArrayList<>();
-                ArrayList<Boolean> booleanParams = new ArrayList<>();
                 for (Object o : args) {
                     int type = LogDataType.bitmaskToLogDataType(paramsMask, argIndex);
                     try {
@@ -250,13 +259,13 @@ public class ProtoLogImpl {
                                 os.write(STR_PARAMS, o.toString());
                                 break;
                             case LogDataType.LONG:
-                                longParams.add(((Number) o).longValue());
+                                os.write(SINT64_PARAMS, ((Number) o).longValue());
                                 break;
                             case LogDataType.DOUBLE:
-                                doubleParams.add(((Number) o).doubleValue());
+                                os.write(DOUBLE_PARAMS, ((Number) o).doubleValue());
                                 break;
                             case LogDataType.BOOLEAN:
-                                booleanParams.add((boolean) o);
+                                os.write(BOOLEAN_PARAMS, (boolean) o);
                                 break;
                         }
                     } catch (ClassCastException ex) {
@@ -266,24 +275,9 @@ public class ProtoLogImpl {
                     }
                     argIndex++;
                 }
-                if (longParams.size() > 0) {
-                    os.writePackedSInt64(SINT64_PARAMS,
-                            longParams.stream().mapToLong(i -> i).toArray());
-                }
-                if (doubleParams.size() > 0) {
-                    os.writePackedDouble(DOUBLE_PARAMS,
-                            doubleParams.stream().mapToDouble(i -> i).toArray());
-                }
-                if (booleanParams.size() > 0) {
-                    boolean[] arr = new boolean[booleanParams.size()];
-                    for (int i = 0; i < booleanParams.size(); i++) {
-                        arr[i] = booleanParams.get(i);
-                    }
-                    os.writePackedBool(BOOLEAN_PARAMS, arr);
-                }
             }
             os.end(token);
-            mBuffer.add(os);
+            mBuffer.add(elapsedRealtimeNanos, os.getBytes());
         } catch (Exception e) {
             Slog.e(TAG, "Exception while logging to proto", e);
         }
@@ -291,9 +285,9 @@ public class ProtoLogImpl {
 
 
     @VisibleForTesting
-    ProtoLogImpl(File file, int bufferCapacity, ProtoLogViewerConfigReader viewerConfig) {
+    public ProtoLogImpl(File file, int bufferCapacity, ProtoLogViewerConfigReader viewerConfig) {
         mLogFile = file;
-        mBuffer = new TraceBuffer(bufferCapacity);
+        mBuffer = new ProtoLogBuffer(bufferCapacity);
         mViewerConfig = viewerConfig;
     }
 
@@ -308,7 +302,7 @@ public class ProtoLogImpl {
         }
         synchronized (mProtoLogEnabledLock) {
             logAndPrintln(pw, "Start logging to " + mLogFile + ".");
-            mBuffer.resetBuffer();
+            mBuffer.reset();
             mProtoLogEnabled = true;
             mProtoLogEnabledLockFree = true;
         }
@@ -448,7 +442,12 @@ public class ProtoLogImpl {
             proto.write(MAGIC_NUMBER, MAGIC_NUMBER_VALUE);
             proto.write(VERSION, PROTOLOG_VERSION);
             proto.write(REAL_TIME_TO_ELAPSED_TIME_OFFSET_MILLIS, offset);
-            mBuffer.writeTraceToFile(mLogFile, proto);
+            mLogFile.delete();
+            try (OutputStream os = new FileOutputStream(mLogFile)) {
+                mLogFile.setReadable(true /* readable */, false /* ownerOnly */);
+                os.write(proto.getBytes());
+                mBuffer.writeTo(os);
+            }
         } catch (IOException e) {
             Slog.e(TAG, "Unable to write buffer to file", e);
         }
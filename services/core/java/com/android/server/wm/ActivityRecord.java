@@ -1736,8 +1736,7 @@ final class ActivityRecord extends WindowToken implements WindowManagerService.A
         }
 
         final ActivityManager.TaskSnapshot snapshot =
-                mWmService.mTaskSnapshotController.getSnapshot(task.mTaskId, task.mUserId,
-                        false /* restoreFromDisk */, false /* isLowResolution */);
+                mWmService.mTaskSnapshotController.getStartingWindowSnapshot(task.mTaskId);
         final int type = getStartingWindowType(newTask, taskSwitch, processRunning,
                 allowTaskSnapshot, activityCreated, snapshot);
 
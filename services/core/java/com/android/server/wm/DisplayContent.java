@@ -288,6 +288,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private WindowState mTmpWindow2;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    /** Whether the layout pass of root windows found windows attached to them. */
+    private boolean mTmpHasLayoutAttached;
     private int mMaxUiWidth;
 
     final AppTransition mAppTransition;
@@ -529,6 +531,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     private MagnificationSpec mMagnificationSpec;
 
+    /**
+     * Whether {@link #mMagnificationSpec} needs to be applied to the surfaces in the next
+     * {@link #prepareSurfaces}, so that several changes within a frame are applied once.
+     */
+    private boolean mMagnificationSpecChanged;
+
     private InputMonitor mInputMonitor;
 
     /** Caches the value whether told display manager that we have content. */
@@ -707,6 +715,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     };
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        mWmService.mWindowPlacerLocked.mLayoutWindowVisits++;
+        mWmService.mWindowPlacerLocked.mWindowVisits++;
+        if (w.mLayoutAttached) {
+            mTmpHasLayoutAttached = true;
+        }
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mWmService.mPolicy.canBeHiddenByKeyguardLw(w))
@@ -776,6 +790,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     };
 
     private final Consumer<WindowState> mPerformLayoutAttached = w -> {
+        mWmService.mWindowPlacerLocked.mLayoutWindowVisits++;
+        mWmService.mWindowPlacerLocked.mWindowVisits++;
         if (w.mLayoutAttached) {
             if (DEBUG_LAYOUT) Slog.v(TAG, "2ND PASS " + w + " mHaveFrame=" + w.mHaveFrame
                     + " mViewVisibility=" + w.mViewVisibility
@@ -809,12 +825,15 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         return w.canBeImeTarget();
     };
 
-    private final Consumer<WindowState> mApplyPostLayoutPolicy =
-            w -> getDisplayPolicy().applyPostLayoutPolicyLw(w, w.mAttrs, w.getParentWindow(),
-                    mInputMethodTarget);
+    private final Consumer<WindowState> mApplyPostLayoutPolicy = w -> {
+        mWmService.mWindowPlacerLocked.mWindowVisits++;
+        getDisplayPolicy().applyPostLayoutPolicyLw(w, w.mAttrs, w.getParentWindow(),
+                mInputMethodTarget);
+    };
 
     private final Consumer<WindowState> mApplySurfaceChangesTransaction = w -> {
         final WindowSurfacePlacer surfacePlacer = mWmService.mWindowPlacerLocked;
+        surfacePlacer.mWindowVisits++;
         final boolean obscuredChanged = w.mObscured !=
                 mTmpApplySurfaceChangesTransactionState.obscured;
         final RootWindowContainer root = mWmService.mRoot;
@@ -4090,6 +4109,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // Used to indicate that we have processed the IME window.
         mTmpWindowsBehindIme = false;
 
+        mTmpHasLayoutAttached = false;
+
         // First perform layout of any root windows (not attached to another window).
         forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
 
@@ -4100,8 +4121,10 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
         // Now perform layout of attached windows, which usually depend on the position of the
         // window they are attached to. XXX does not deal with windows that are attached to windows
-        // that are themselves attached.
-        forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        // that are themselves attached. Skip visiting all windows again if there are none.
+        if (mTmpHasLayoutAttached) {
+            forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        }
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mInputMonitor.layoutInputConsumers(dw, dh);
@@ -4589,25 +4612,38 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     }
 
     void applyMagnificationSpec(MagnificationSpec spec) {
+        // The caller recycles the spec it passed once this returns, so keep a copy of it.
+        if (mMagnificationSpec != null) {
+            mMagnificationSpec.recycle();
+        }
         if (spec.scale != 1.0) {
-            mMagnificationSpec = spec;
+            mMagnificationSpec = MagnificationSpec.obtain(spec);
         } else {
             mMagnificationSpec = null;
         }
         // Re-parent IME's SurfaceControl when MagnificationSpec changed.
         updateImeParent();
 
-        if (spec.scale != 1.0) {
-            applyMagnificationSpec(getPendingTransaction(), spec);
-        } else {
-            clearMagnificationSpec(getPendingTransaction());
-        }
-        getPendingTransaction().apply();
+        mMagnificationSpecChanged = true;
+        scheduleAnimation();
     }
 
     void reapplyMagnificationSpec() {
         if (mMagnificationSpec != null) {
-            applyMagnificationSpec(getPendingTransaction(), mMagnificationSpec);
+            mMagnificationSpecChanged = true;
+            scheduleAnimation();
+        }
+    }
+
+    private void prepareMagnificationSpec(Transaction t) {
+        if (!mMagnificationSpecChanged) {
+            return;
+        }
+        mMagnificationSpecChanged = false;
+        if (mMagnificationSpec != null) {
+            applyMagnificationSpec(t, mMagnificationSpec);
+        } else {
+            clearMagnificationSpec(t);
         }
     }
 
@@ -4665,6 +4701,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "prepareSurfaces");
         try {
             final Transaction transaction = getPendingTransaction();
+            prepareMagnificationSpec(transaction);
             super.prepareSurfaces();
 
             // TODO: Once we totally eliminate global transaction we will pass transaction in here
@@ -803,9 +803,12 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
 
     void performSurfacePlacement() {
         Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "performSurfacePlacement");
+        final WindowSurfacePlacer surfacePlacer = mWmService.mWindowPlacerLocked;
+        surfacePlacer.onSurfacePlacementStarted();
         try {
             performSurfacePlacementNoTrace();
         } finally {
+            surfacePlacer.onSurfacePlacementFinished();
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
         }
     }
@@ -17,10 +17,18 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.graphics.PixelFormat;
 import android.util.ArrayMap;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
@@ -29,28 +37,82 @@ import java.io.PrintWriter;
  */
 class TaskSnapshotCache {
 
+    /**
+     * Maximum size of the buffers of the cached snapshots. The buffers of the least recently used
+     * snapshots are evicted beyond that. Callers that may restore from disk get them back from
+     * there, and starting windows load them from disk off the window manager lock, see
+     * {@link #getStartingWindowSnapshot}.
+     */
+    private static final int MAX_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_CACHE_BYTES_LOW_RAM = 16 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<ActivityRecord, Integer> mAppTaskMap = new ArrayMap<>();
-    private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final LruCache<Integer, CacheEntry> mRunningCache;
+    /**
+     * Snapshots whose buffer was evicted from {@link #mRunningCache}, without their buffer. Their
+     * top app stays in {@link #mAppTaskMap} so that they are dropped with it.
+     */
+    private final ArrayMap<Integer, CacheEntry> mEvictedEntries = new ArrayMap<>();
+    /** Size of the last snapshot put, which is never evicted by its own put. */
+    private int mLastPutSizeBytes;
+    private boolean mClearing;
+    private int mRestoredFromDiskCount;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, ActivityManager.isLowRamDeviceStatic()
+                ? MAX_CACHE_BYTES_LOW_RAM : MAX_CACHE_BYTES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            int maxCacheBytes) {
         mService = service;
         mLoader = loader;
+        mRunningCache = new LruCache<Integer, CacheEntry>(maxCacheBytes) {
+            @Override
+            protected int sizeOf(Integer taskId, CacheEntry entry) {
+                return entry.sizeBytes;
+            }
+
+            @Override
+            public void trimToSize(int maxSize) {
+                // Callers holding the window manager lock read a snapshot back right after taking
+                // it, so never evict it to make room for itself
+                super.trimToSize(maxSize < 0 ? maxSize : Math.max(maxSize, mLastPutSizeBytes));
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer taskId, CacheEntry oldEntry,
+                    CacheEntry newEntry) {
+                // Snapshots of home are not persisted, so there is nothing to restore them from
+                if (evicted && !mClearing && !oldEntry.topApp.isActivityTypeHome()) {
+                    mEvictedEntries.put(taskId, new CacheEntry(
+                            withoutBuffer(oldEntry.snapshot), oldEntry.topApp));
+                } else if (Objects.equals(mAppTaskMap.get(oldEntry.topApp), taskId)) {
+                    mAppTaskMap.remove(oldEntry.topApp);
+                }
+            }
+        };
     }
 
     void clearRunningCache() {
-        mRunningCache.clear();
+        mClearing = true;
+        mRunningCache.evictAll();
+        mClearing = false;
+        for (int i = mEvictedEntries.size() - 1; i >= 0; i--) {
+            removeEvictedEntry(mEvictedEntries.keyAt(i));
+        }
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
-        final CacheEntry entry = mRunningCache.get(task.mTaskId);
-        if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-        }
         final ActivityRecord top = task.getTopMostActivity();
+        removeEvictedEntry(task.mTaskId);
+        final CacheEntry entry = new CacheEntry(snapshot, top);
+        mLastPutSizeBytes = entry.sizeBytes;
+        mRunningCache.put(task.mTaskId, entry);
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, top));
     }
 
     /**
@@ -74,6 +136,38 @@ class TaskSnapshotCache {
         return tryRestoreFromDisk(taskId, userId, isLowResolution);
     }
 
+    /**
+     * Returns the snapshot to use for a starting window of the task. If the buffer of the
+     * snapshot was evicted, returns the snapshot without its buffer, which
+     * {@link #restoreEvictedSnapshot} loads back from disk when the starting window is created.
+     * Must be called with the window manager lock held.
+     */
+    @Nullable TaskSnapshot getStartingWindowSnapshot(int taskId) {
+        final CacheEntry entry = mRunningCache.get(taskId);
+        if (entry != null) {
+            return entry.snapshot;
+        }
+        final CacheEntry evictedEntry = mEvictedEntries.get(taskId);
+        return evictedEntry != null ? evictedEntry.snapshot : null;
+    }
+
+    /**
+     * Loads the buffer of a snapshot returned by {@link #getStartingWindowSnapshot} without it.
+     * Returns {@code null} if the snapshot on disk isn't the same one, e.g. because it wasn't
+     * written yet.
+     * <p>
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    @Nullable TaskSnapshot restoreEvictedSnapshot(int taskId, int userId,
+            TaskSnapshot evictedSnapshot) {
+        final TaskSnapshot snapshot = tryRestoreFromDisk(taskId, userId,
+                false /* isLowResolution */);
+        if (snapshot == null || snapshot.getId() != evictedSnapshot.getId()) {
+            return null;
+        }
+        return snapshot;
+    }
+
     /**
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
@@ -82,6 +176,9 @@ class TaskSnapshotCache {
         if (snapshot == null) {
             return null;
         }
+        synchronized (mService.mGlobalLock) {
+            mRestoredFromDiskCount++;
+        }
         return snapshot;
     }
 
@@ -110,20 +207,39 @@ class TaskSnapshotCache {
     }
 
     void removeRunningEntry(int taskId) {
-        final CacheEntry entry = mRunningCache.get(taskId);
-        if (entry != null) {
+        mRunningCache.remove(taskId);
+        removeEvictedEntry(taskId);
+    }
+
+    private void removeEvictedEntry(int taskId) {
+        final CacheEntry entry = mEvictedEntries.remove(taskId);
+        if (entry != null && Objects.equals(mAppTaskMap.get(entry.topApp), taskId)) {
             mAppTaskMap.remove(entry.topApp);
-            mRunningCache.remove(taskId);
         }
     }
 
+    private static TaskSnapshot withoutBuffer(TaskSnapshot snapshot) {
+        return new TaskSnapshot(snapshot.getId(), snapshot.getTopActivityComponent(),
+                null /* snapshot */, snapshot.getColorSpace(), snapshot.getOrientation(),
+                snapshot.getRotation(), snapshot.getTaskSize(), snapshot.getContentInsets(),
+                snapshot.isLowResolution(), snapshot.isRealSnapshot(),
+                snapshot.getWindowingMode(), snapshot.getSystemUiVisibility(),
+                snapshot.isTranslucent());
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
-        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
-            final CacheEntry entry = mRunningCache.valueAt(i);
-            pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
+        pw.println(doublePrefix + "size=" + mRunningCache.size() + "/" + mRunningCache.maxSize()
+                + " hits=" + mRunningCache.hitCount() + " misses=" + mRunningCache.missCount()
+                + " evictions=" + mRunningCache.evictionCount()
+                + " evictedEntries=" + mEvictedEntries.size()
+                + " restoredFromDisk=" + mRestoredFromDiskCount);
+        // Least recently used first
+        for (Map.Entry<Integer, CacheEntry> e : mRunningCache.snapshot().entrySet()) {
+            final CacheEntry entry = e.getValue();
+            pw.println(doublePrefix + "Entry taskId=" + e.getKey());
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
@@ -137,9 +253,26 @@ class TaskSnapshotCache {
         /** The app token that was on top of the task when the snapshot was taken */
         final ActivityRecord topApp;
 
+        /** The size of the snapshot buffer in bytes. */
+        final int sizeBytes;
+
         CacheEntry(TaskSnapshot snapshot, ActivityRecord topApp) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            sizeBytes = getSizeBytes(snapshot.getSnapshot());
+        }
+
+        private static int getSizeBytes(@Nullable GraphicBuffer buffer) {
+            if (buffer == null) {
+                return 0;
+            }
+            final PixelFormat info = new PixelFormat();
+            try {
+                PixelFormat.getPixelFormatInfo(buffer.getFormat(), info);
+            } catch (IllegalArgumentException e) {
+                info.bytesPerPixel = 4;
+            }
+            return buffer.getWidth() * buffer.getHeight() * info.bytesPerPixel;
         }
     }
 }
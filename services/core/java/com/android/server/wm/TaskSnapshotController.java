@@ -228,6 +228,14 @@ class TaskSnapshotController {
                 && mPersister.enableLowResSnapshots());
     }
 
+    /**
+     * Retrieves the snapshot to show in a starting window of the task. Its buffer may have been
+     * evicted from the cache, in which case {@link #createStartingSurface} loads it from disk.
+     */
+    @Nullable TaskSnapshot getStartingWindowSnapshot(int taskId) {
+        return mCache.getStartingWindowSnapshot(taskId);
+    }
+
     /**
      * @see WindowManagerInternal#clearSnapshotCache
      */
@@ -241,6 +249,23 @@ class TaskSnapshotController {
      */
     StartingSurface createStartingSurface(ActivityRecord activity,
             TaskSnapshot snapshot) {
+        if (snapshot.getSnapshot() == null) {
+            final int taskId;
+            final int userId;
+            synchronized (mService.mGlobalLock) {
+                final Task task = activity.getTask();
+                if (task == null) {
+                    return null;
+                }
+                taskId = task.mTaskId;
+                userId = task.mUserId;
+            }
+            snapshot = mCache.restoreEvictedSnapshot(taskId, userId, snapshot);
+            if (snapshot == null) {
+                Slog.w(TAG, "Failed to restore evicted snapshot of task " + taskId);
+                return null;
+            }
+        }
         return TaskSnapshotSurface.create(mService, activity, snapshot);
     }
 
@@ -623,5 +648,6 @@ class TaskSnapshotController {
     void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mHighResTaskSnapshotScale=" + mHighResTaskSnapshotScale);
         mCache.dump(pw, prefix);
+        mPersister.dump(pw, prefix);
     }
 }
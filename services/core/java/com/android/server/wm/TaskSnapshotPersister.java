@@ -17,6 +17,7 @@
 package com.android.server.wm;
 
 import static android.graphics.Bitmap.CompressFormat.JPEG;
+import static android.graphics.Bitmap.CompressFormat.WEBP_LOSSY;
 
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
@@ -24,14 +25,18 @@ import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 import android.annotation.NonNull;
 import android.annotation.TestApi;
 import android.app.ActivityManager.TaskSnapshot;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserManagerInternal;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -41,15 +46,25 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
  * <p>
  * Test class: {@link TaskSnapshotPersisterLoaderTest}
  */
-class TaskSnapshotPersister {
+@VisibleForTesting
+public class TaskSnapshotPersister {
 
     private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotPersister" : TAG_WM;
     private static final String SNAPSHOTS_DIRNAME = "snapshots";
@@ -60,6 +75,19 @@ class TaskSnapshotPersister {
     private static final String BITMAP_EXTENSION = ".jpg";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
 
+    /**
+     * Format of the persisted bitmaps, either "jpeg" or "webp". The files keep their extension
+     * whatever the format, as {@link TaskSnapshotLoader} detects the format when decoding.
+     */
+    private static final String COMPRESS_FORMAT_PROPERTY = "persist.wm.task_snapshot_format";
+
+    /**
+     * The low-res bitmap is encoded on this many threads while the persister thread encodes the
+     * high-res one. The threads exit when idle.
+     */
+    private static final int ENCODE_THREAD_COUNT = 1;
+    private static final long ENCODE_THREAD_KEEP_ALIVE_MS = 5000;
+
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
@@ -75,6 +103,31 @@ class TaskSnapshotPersister {
     private boolean mEnableLowResSnapshots;
     private final boolean mUse16BitFormat;
     private final UserManagerInternal mUserManagerInternal;
+    private final CompressFormat mCompressFormat;
+    private final ThreadPoolExecutor mEncodeExecutor = new ThreadPoolExecutor(ENCODE_THREAD_COUNT,
+            ENCODE_THREAD_COUNT, ENCODE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "TaskSnapshotEncoder"));
+
+    /**
+     * Hashes of the bitmaps last written for each task id. Only accessed on the persister thread.
+     */
+    private final SparseLongArray mContentHashes = new SparseLongArray();
+    /** Reused to hash the pixels of a bitmap. Only accessed on the persister thread. */
+    private ByteBuffer mHashBuffer;
+    private final CRC32 mHashCrc = new CRC32();
+    private final Adler32 mHashAdler = new Adler32();
+
+    @GuardedBy("mLock")
+    private int mStoredBitmapCount;
+    @GuardedBy("mLock")
+    private int mUnchangedBitmapCount;
+    @GuardedBy("mLock")
+    private long mEncodeNanos;
+    @GuardedBy("mLock")
+    private long mBytesWritten;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -84,12 +137,17 @@ class TaskSnapshotPersister {
     private final ArraySet<Integer> mPersistedTaskIdsSinceLastRemoveObsolete = new ArraySet<>();
 
     TaskSnapshotPersister(WindowManagerService service, DirectoryResolver resolver) {
+        this(service.mContext, resolver);
+    }
+
+    @VisibleForTesting
+    public TaskSnapshotPersister(Context context, DirectoryResolver resolver) {
         mDirectoryResolver = resolver;
         mUserManagerInternal = LocalServices.getService(UserManagerInternal.class);
 
-        final float highResTaskSnapshotScale = service.mContext.getResources().getFloat(
+        final float highResTaskSnapshotScale = context.getResources().getFloat(
                 com.android.internal.R.dimen.config_highResTaskSnapshotScale);
-        final float lowResTaskSnapshotScale = service.mContext.getResources().getFloat(
+        final float lowResTaskSnapshotScale = context.getResources().getFloat(
                 com.android.internal.R.dimen.config_lowResTaskSnapshotScale);
 
         if (lowResTaskSnapshotScale < 0 || 1 <= lowResTaskSnapshotScale) {
@@ -110,8 +168,11 @@ class TaskSnapshotPersister {
             mEnableLowResSnapshots = false;
         }
 
-        mUse16BitFormat = service.mContext.getResources().getBoolean(
+        mUse16BitFormat = context.getResources().getBoolean(
                 com.android.internal.R.bool.config_use16BitTaskSnapshotPixelFormat);
+        mCompressFormat = "webp".equals(SystemProperties.get(COMPRESS_FORMAT_PROPERTY))
+                ? WEBP_LOSSY : JPEG;
+        mEncodeExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -188,6 +249,25 @@ class TaskSnapshotPersister {
         return mUse16BitFormat;
     }
 
+    /**
+     * Persists a snapshot on the calling thread. Only for a persister that was never started, as
+     * the state kept between writes is only accessed on the thread persisting.
+     */
+    @VisibleForTesting
+    public void persistSnapshotForTesting(int taskId, int userId, TaskSnapshot snapshot) {
+        new StoreWriteQueueItem(taskId, userId, snapshot).write();
+    }
+
+    /**
+     * @return How many snapshots weren't written since they didn't change since their last write.
+     */
+    @VisibleForTesting
+    public int getUnchangedBitmapCount() {
+        synchronized (mLock) {
+            return mUnchangedBitmapCount;
+        }
+    }
+
     @TestApi
     void waitForQueueEmpty() {
         while (true) {
@@ -242,6 +322,7 @@ class TaskSnapshotPersister {
     }
 
     private void deleteSnapshot(int taskId, int userId) {
+        mContentHashes.delete(taskId);
         final File protoFile = getProtoFile(taskId, userId);
         final File bitmapLowResFile = getLowResolutionBitmapFile(taskId, userId);
         protoFile.delete();
@@ -254,7 +335,66 @@ class TaskSnapshotPersister {
         }
     }
 
-    interface DirectoryResolver {
+    /**
+     * Hashes the pixels, size and color space of a bitmap, so that bitmaps with the same hash
+     * compress to the same file. The pixels are copied out in one call and checksummed natively
+     * rather than read pixel by pixel, as this runs on every full resolution snapshot.
+     */
+    private long computeContentHash(Bitmap bitmap, int userId) {
+        final int byteCount = bitmap.getByteCount();
+        if (mHashBuffer == null || mHashBuffer.capacity() < byteCount) {
+            mHashBuffer = ByteBuffer.allocateDirect(byteCount);
+        }
+        final ByteBuffer buffer = mHashBuffer;
+        buffer.clear();
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        mHashCrc.reset();
+        mHashCrc.update(buffer);
+        buffer.rewind();
+        mHashAdler.reset();
+        mHashAdler.update(buffer);
+
+        long hash = (mHashCrc.getValue() << 32) | mHashAdler.getValue();
+        hash = 31 * hash + userId;
+        hash = 31 * hash + bitmap.getWidth();
+        hash = 31 * hash + bitmap.getHeight();
+        hash = 31 * hash + bitmap.getColorSpace().getId();
+        return hash;
+    }
+
+    private boolean compressBitmap(Bitmap bitmap, File file) {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            bitmap.compress(mCompressFormat, QUALITY, fos);
+        } catch (IOException e) {
+            Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
+            return false;
+        } finally {
+            bitmap.recycle();
+        }
+        return true;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        final String doublePrefix = prefix + "  ";
+        pw.println(prefix + "SnapshotPersister");
+        synchronized (mLock) {
+            pw.println(doublePrefix + "format=" + mCompressFormat
+                    + " queueSize=" + mWriteQueue.size());
+            pw.println(doublePrefix + "storedBitmaps=" + mStoredBitmapCount
+                    + " unchangedBitmaps=" + mUnchangedBitmapCount
+                    + " bytesWritten=" + mBytesWritten);
+            if (mStoredBitmapCount > 0) {
+                pw.println(doublePrefix + "averageEncodeMs="
+                        + mEncodeNanos / mStoredBitmapCount / 1000000f
+                        + " averageBytes=" + mBytesWritten / mStoredBitmapCount);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public interface DirectoryResolver {
         File getSystemDirectoryForUser(int userId);
     }
 
@@ -413,36 +553,52 @@ class TaskSnapshotPersister {
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
 
             final File file = getHighResolutionBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
-                return false;
-            }
+            final File lowResFile = getLowResolutionBitmapFile(mTaskId, mUserId);
 
-            if (!mEnableLowResSnapshots) {
+            // A task which didn't change since it was last persisted, e.g. when switching back and
+            // forth in recents, doesn't need to be compressed again.
+            final long contentHash = computeContentHash(swBitmap, mUserId);
+            final int index = mContentHashes.indexOfKey(mTaskId);
+            if (index >= 0 && mContentHashes.valueAt(index) == contentHash && file.exists()
+                    && (!mEnableLowResSnapshots || lowResFile.exists())) {
                 swBitmap.recycle();
+                synchronized (mLock) {
+                    mUnchangedBitmapCount++;
+                }
                 return true;
             }
-
-            final Bitmap lowResBitmap = Bitmap.createScaledBitmap(swBitmap,
-                    (int) (bitmap.getWidth() * mLowResScaleFactor),
-                    (int) (bitmap.getHeight() * mLowResScaleFactor), true /* filter */);
-            swBitmap.recycle();
-
-            final File lowResFile = getLowResolutionBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream lowResFos = new FileOutputStream(lowResFile);
-                lowResBitmap.compress(JPEG, QUALITY, lowResFos);
-                lowResFos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + lowResFile + " for persisting.", e);
+            mContentHashes.delete(mTaskId);
+
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            Future<Boolean> lowResResult = null;
+            if (mEnableLowResSnapshots) {
+                final Bitmap lowResBitmap = Bitmap.createScaledBitmap(swBitmap,
+                        (int) (bitmap.getWidth() * mLowResScaleFactor),
+                        (int) (bitmap.getHeight() * mLowResScaleFactor), true /* filter */);
+                lowResResult = mEncodeExecutor.submit(
+                        () -> compressBitmap(lowResBitmap, lowResFile));
+            }
+            boolean success = compressBitmap(swBitmap, file);
+            if (lowResResult != null) {
+                try {
+                    success &= lowResResult.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Slog.e(TAG, "Unable to persist " + lowResFile, e);
+                    success = false;
+                }
+            }
+            if (!success) {
                 return false;
             }
-            lowResBitmap.recycle();
 
+            final long encodeNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            final long bytes = file.length() + (mEnableLowResSnapshots ? lowResFile.length() : 0);
+            mContentHashes.put(mTaskId, contentHash);
+            synchronized (mLock) {
+                mStoredBitmapCount++;
+                mEncodeNanos += encodeNanos;
+                mBytesWritten += bytes;
+            }
             return true;
         }
     }
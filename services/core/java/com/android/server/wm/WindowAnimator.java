@@ -91,6 +91,14 @@ public class WindowAnimator {
     private final ArrayList<Runnable> mAfterPrepareSurfacesRunnables = new ArrayList<>();
     private boolean mInExecuteAfterPrepareSurfacesRunnables;
 
+    /** Surface transactions applied since the start of the current animation frame. */
+    private int mFrameTransactionCount;
+    /** Time of the last animation frame, to tell whether a frame follows right after it. */
+    private long mLastFrameTimeNs;
+    private int mTransactionFrameCount;
+    private long mTotalFrameTransactionCount;
+    private int mMaxFrameTransactionCount;
+
     private final SurfaceControl.Transaction mTransaction;
 
     WindowAnimator(final WindowManagerService service) {
@@ -133,6 +141,7 @@ public class WindowAnimator {
 
         // Schedule next frame already such that back-pressure happens continuously.
         scheduleAnimation();
+        recordFrameTransactions(frameTimeNs);
 
         mCurrentTime = frameTimeNs / TimeUtils.NANOS_PER_MS;
         mBulkUpdateParams = SET_ORIENTATION_CHANGE_COMPLETE;
@@ -228,6 +237,27 @@ public class WindowAnimator {
         }
     }
 
+    /**
+     * Called when a surface transaction of the window manager has been applied, to count the
+     * transactions sent to SurfaceFlinger per animation frame.
+     */
+    void onSurfaceTransactionApplied() {
+        mFrameTransactionCount++;
+    }
+
+    private void recordFrameTransactions(long frameTimeNs) {
+        // Only account for back-to-back frames, the transactions applied while no animation frame
+        // was running don't belong to any frame.
+        if (frameTimeNs - mLastFrameTimeNs <= 2 * mChoreographer.getFrameIntervalNanos()) {
+            mTransactionFrameCount++;
+            mTotalFrameTransactionCount += mFrameTransactionCount;
+            mMaxFrameTransactionCount = Math.max(mMaxFrameTransactionCount,
+                    mFrameTransactionCount);
+        }
+        mLastFrameTimeNs = frameTimeNs;
+        mFrameTransactionCount = 0;
+    }
+
     private static String bulkUpdateParamsToString(int bulkUpdateParams) {
         StringBuilder builder = new StringBuilder(128);
         if ((bulkUpdateParams & WindowSurfacePlacer.SET_UPDATE_ROTATION) != 0) {
@@ -263,6 +293,13 @@ public class WindowAnimator {
                     pw.print(Integer.toHexString(mBulkUpdateParams));
                     pw.println(bulkUpdateParamsToString(mBulkUpdateParams));
         }
+        if (mTransactionFrameCount > 0) {
+            pw.print(prefix); pw.print("transactionsPerFrame: frames=");
+                    pw.print(mTransactionFrameCount);
+                    pw.print(" average=");
+                    pw.print((float) mTotalFrameTransactionCount / mTransactionFrameCount);
+                    pw.print(" max="); pw.println(mMaxFrameTransactionCount);
+        }
     }
 
     private DisplayContentsAnimator getDisplayContentsAnimatorLocked(int displayId) {
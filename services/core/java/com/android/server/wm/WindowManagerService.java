@@ -1018,6 +1018,9 @@ public class WindowManagerService extends IWindowManager.Stub
 
     private final SurfaceControl.Transaction mTransaction;
 
+    /** Number of {@link #openSurfaceTransaction} calls not closed yet. */
+    private int mSurfaceTransactionDepth;
+
     static void boostPriorityForLockedSection() {
         sThreadPriorityBooster.boost();
     }
@@ -1029,6 +1032,7 @@ public class WindowManagerService extends IWindowManager.Stub
     void openSurfaceTransaction() {
         try {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "openSurfaceTransaction");
+            mSurfaceTransactionDepth++;
             SurfaceControl.openTransaction();
         } finally {
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
@@ -1043,6 +1047,10 @@ public class WindowManagerService extends IWindowManager.Stub
         try {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "closeSurfaceTransaction");
             SurfaceControl.closeTransaction();
+            // Only the outermost close applies the transaction.
+            if (--mSurfaceTransactionDepth == 0) {
+                mAnimator.onSurfaceTransactionApplied();
+            }
             mWindowTracing.logState(where);
         } finally {
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
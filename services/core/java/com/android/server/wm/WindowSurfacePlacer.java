@@ -23,6 +23,7 @@ import static com.android.server.wm.WindowManagerService.H.REPORT_WINDOWS_CHANGE
 import static com.android.server.wm.WindowManagerService.LAYOUT_REPEAT_THRESHOLD;
 
 import android.os.Debug;
+import android.os.SystemClock;
 import android.util.Slog;
 
 import java.io.PrintWriter;
@@ -51,6 +52,18 @@ class WindowSurfacePlacer {
     /** The number of layout requests when deferring. */
     private int mDeferredRequests;
 
+    /** Windows visited by the layout passes of the current surface placement. */
+    int mLayoutWindowVisits;
+    /** Windows visited by all per-window passes of the current surface placement. */
+    int mWindowVisits;
+    private long mPlacementStartNanos;
+    private int mPlacementCount;
+    private long mPlacementNanos;
+    private long mTotalLayoutWindowVisits;
+    private long mTotalWindowVisits;
+    private int mMaxWindowVisits;
+    private int mLastWindowVisits;
+
     private class Traverser implements Runnable {
         @Override
         public void run() {
@@ -200,6 +213,28 @@ class WindowSurfacePlacer {
         }
     }
 
+    /**
+     * Called when {@link RootWindowContainer#performSurfacePlacement} starts.
+     */
+    void onSurfacePlacementStarted() {
+        mLayoutWindowVisits = 0;
+        mWindowVisits = 0;
+        mPlacementStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Called when {@link RootWindowContainer#performSurfacePlacement} is done, to account for the
+     * time it took and the windows it visited.
+     */
+    void onSurfacePlacementFinished() {
+        mPlacementCount++;
+        mPlacementNanos += SystemClock.elapsedRealtimeNanos() - mPlacementStartNanos;
+        mTotalLayoutWindowVisits += mLayoutWindowVisits;
+        mTotalWindowVisits += mWindowVisits;
+        mMaxWindowVisits = Math.max(mMaxWindowVisits, mWindowVisits);
+        mLastWindowVisits = mWindowVisits;
+    }
+
     void debugLayoutRepeats(final String msg, int pendingLayoutChanges) {
         if (mLayoutRepeatCount >= LAYOUT_REPEAT_THRESHOLD) {
             Slog.v(TAG, "Layouts looping: " + msg +
@@ -231,5 +266,13 @@ class WindowSurfacePlacer {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
+        pw.println(prefix + "placements=" + mPlacementCount);
+        if (mPlacementCount > 0) {
+            pw.println(prefix + "  averageMs=" + mPlacementNanos / mPlacementCount / 1000000f
+                    + " averageWindowsVisited=" + mTotalWindowVisits / mPlacementCount
+                    + " averageLayoutWindowsVisited=" + mTotalLayoutWindowVisits / mPlacementCount
+                    + " maxWindowsVisited=" + mMaxWindowVisits
+                    + " lastWindowsVisited=" + mLastWindowVisits);
+        }
     }
 }
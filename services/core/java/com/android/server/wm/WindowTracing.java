@@ -27,6 +27,7 @@ import static com.android.server.wm.WindowManagerTraceProto.WHERE;
 import static com.android.server.wm.WindowManagerTraceProto.WINDOW_MANAGER_SERVICE;
 
 import android.annotation.Nullable;
+import android.os.Process;
 import android.os.ShellCommand;
 import android.os.SystemClock;
 import android.os.Trace;
@@ -34,12 +35,19 @@ import android.util.Log;
 import android.util.proto.ProtoOutputStream;
 import android.view.Choreographer;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.protolog.ProtoLogImpl;
 import com.android.internal.util.TraceBuffer;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class that allows window manager to dump its state continuously to a trace file, such that a
@@ -58,6 +66,13 @@ class WindowTracing {
     private static final String TAG = "WindowTracing";
     private static final long MAGIC_NUMBER_VALUE = ((long) MAGIC_NUMBER_H << 32) | MAGIC_NUMBER_L;
 
+    /**
+     * A state equal to the previous one is still written if the previous one is older than this,
+     * so that the trace keeps a sign of life when nothing changes.
+     */
+    private static final long KEYFRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SERIALIZER_THREAD_KEEP_ALIVE_MS = 5000;
+
     private final WindowManagerService mService;
     private final Choreographer mChoreographer;
     private final WindowManagerGlobalLock mGlobalLock;
@@ -74,6 +89,30 @@ class WindowTracing {
     private volatile boolean mEnabledLockFree;
     private boolean mScheduled;
 
+    /**
+     * Encodes the captured states and adds them to the buffer, so that the threads logging the
+     * state, which often hold the window manager lock, don't. The thread exits when idle.
+     */
+    private final ThreadPoolExecutor mSerializer = new ThreadPoolExecutor(1, 1,
+            SERIALIZER_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "WindowTracing"));
+
+    /**
+     * Bytes of the captured states not yet added to the buffer. States that would take it over
+     * the buffer capacity are dropped, as they would push the whole buffer out anyway.
+     */
+    private final AtomicInteger mPendingBytes = new AtomicInteger();
+    private volatile int mBufferCapacity;
+    private final AtomicInteger mDroppedStateCount = new AtomicInteger();
+
+    // Only written on the serializer thread
+    private byte[] mLastState;
+    private long mLastEntryNanos;
+    private volatile int mUnchangedStateCount;
+
     static WindowTracing createDefaultAndStartLooper(WindowManagerService service,
             Choreographer choreographer) {
         File file = new File(TRACE_FILENAME);
@@ -92,6 +131,8 @@ class WindowTracing {
         mGlobalLock = globalLock;
         mTraceFile = file;
         mBuffer = new TraceBuffer(bufferCapacity);
+        mBufferCapacity = bufferCapacity;
+        mSerializer.allowCoreThreadTimeOut(true);
         setLogLevel(WindowTraceLogLevel.TRIM, null /* pw */);
     }
 
@@ -103,7 +144,7 @@ class WindowTracing {
         synchronized (mEnabledLock) {
             ProtoLogImpl.getSingleInstance().startProtoLog(pw);
             logAndPrintln(pw, "Start tracing to " + mTraceFile + ".");
-            mBuffer.resetBuffer();
+            resetBuffer();
             mEnabled = mEnabledLockFree = true;
         }
         log("trace.enable");
@@ -172,6 +213,35 @@ class WindowTracing {
     private void setBufferCapacity(int capacity, PrintWriter pw) {
         logAndPrintln(pw, "Setting window tracing buffer capacity to " + capacity + "bytes");
         mBuffer.setCapacity(capacity);
+        mBufferCapacity = capacity;
+    }
+
+    /**
+     * Removes all entries, once the states captured so far have been added to the buffer.
+     */
+    private void resetBuffer() {
+        runOnSerializer(() -> {
+            mLastState = null;
+            mUnchangedStateCount = 0;
+            mDroppedStateCount.set(0);
+            mBuffer.resetBuffer();
+        });
+    }
+
+    /**
+     * Waits for the states captured so far to be added to the buffer.
+     */
+    @VisibleForTesting
+    void waitForSerializer() {
+        runOnSerializer(() -> { });
+    }
+
+    private void runOnSerializer(Runnable r) {
+        try {
+            mSerializer.submit(r).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Unable to run on the serializer thread", e);
+        }
     }
 
     boolean isEnabled() {
@@ -193,11 +263,11 @@ class WindowTracing {
                 return 0;
             case "frame":
                 setLogFrequency(true /* onFrame */, pw);
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             case "transaction":
                 setLogFrequency(false /* onFrame */, pw);
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             case "level":
                 String logLevelStr = shell.getNextArgRequired().toLowerCase();
@@ -219,11 +289,11 @@ class WindowTracing {
                         break;
                     }
                 }
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             case "size":
                 setBufferCapacity(Integer.parseInt(shell.getNextArgRequired()) * 1024, pw);
-                mBuffer.resetBuffer();
+                resetBuffer();
                 return 0;
             default:
                 pw.println("Unknown command: " + cmd);
@@ -250,7 +320,23 @@ class WindowTracing {
                 + "Log level: "
                 + mLogLevel
                 + "\n"
-                + mBuffer.getStatus();
+                + mBuffer.getStatus()
+                + "\n"
+                + "Unchanged states skipped, without their where and time: "
+                + getUnchangedStateCount()
+                + "\n"
+                + "States dropped while the serializer was behind: "
+                + getDroppedStateCount();
+    }
+
+    @VisibleForTesting
+    int getUnchangedStateCount() {
+        return mUnchangedStateCount;
+    }
+
+    @VisibleForTesting
+    int getDroppedStateCount() {
+        return mDroppedStateCount.get();
     }
 
     /**
@@ -291,23 +377,26 @@ class WindowTracing {
     private void log(String where) {
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "traceStateLocked");
         try {
-            ProtoOutputStream os = new ProtoOutputStream();
-            long tokenOuter = os.start(ENTRY);
-            os.write(ELAPSED_REALTIME_NANOS, SystemClock.elapsedRealtimeNanos());
-            os.write(WHERE, where);
-
-            long tokenInner = os.start(WINDOW_MANAGER_SERVICE);
+            final long elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+            final ProtoOutputStream state = new ProtoOutputStream();
             synchronized (mGlobalLock) {
                 Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "dumpDebugLocked");
                 try {
-                    mService.dumpDebugLocked(os, mLogLevel);
+                    mService.dumpDebugLocked(state, mLogLevel);
                 } finally {
                     Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
                 }
             }
-            os.end(tokenInner);
-            os.end(tokenOuter);
-            mBuffer.add(os);
+            final int size = state.getRawSize();
+            if (mPendingBytes.addAndGet(size) > mBufferCapacity) {
+                mPendingBytes.addAndGet(-size);
+                mDroppedStateCount.incrementAndGet();
+            } else {
+                mSerializer.execute(() -> {
+                    addEntry(elapsedRealtimeNanos, where, state);
+                    mPendingBytes.addAndGet(-size);
+                });
+            }
             mScheduled = false;
         } catch (Exception e) {
             Log.wtf(TAG, "Exception while tracing state", e);
@@ -316,6 +405,33 @@ class WindowTracing {
         }
     }
 
+    /**
+     * Adds an entry with the captured state to the buffer, unless the state is the same as the
+     * one of the previous entry. Runs on the serializer thread.
+     */
+    private void addEntry(long elapsedRealtimeNanos, String where, ProtoOutputStream state) {
+        try {
+            final byte[] stateBytes = state.getBytes();
+            if (Arrays.equals(stateBytes, mLastState)
+                    && elapsedRealtimeNanos - mLastEntryNanos < KEYFRAME_INTERVAL_NANOS) {
+                mUnchangedStateCount++;
+                return;
+            }
+            mLastState = stateBytes;
+            mLastEntryNanos = elapsedRealtimeNanos;
+
+            final ProtoOutputStream os = new ProtoOutputStream();
+            final long token = os.start(ENTRY);
+            os.write(ELAPSED_REALTIME_NANOS, elapsedRealtimeNanos);
+            os.write(WHERE, where);
+            os.write(WINDOW_MANAGER_SERVICE, stateBytes);
+            os.end(token);
+            mBuffer.add(os);
+        } catch (Exception e) {
+            Log.wtf(TAG, "Exception while tracing state", e);
+        }
+    }
+
     /**
      * Writes the trace buffer to new file for the bugreport.
      *
@@ -342,6 +458,7 @@ class WindowTracing {
      * externally synchronized
      */
     private void writeTraceToFileLocked() {
+        waitForSerializer();
         try {
             Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "writeTraceToFileLocked");
             ProtoOutputStream proto = new ProtoOutputStream();
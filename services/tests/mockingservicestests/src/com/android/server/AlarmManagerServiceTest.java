@@ -329,6 +329,12 @@ public class AlarmManagerServiceTest {
                 callingUid, TEST_CALLING_PACKAGE);
     }
 
+    private void setWindowedTestAlarm(long triggerElapsed, long windowLength,
+            PendingIntent operation) {
+        mService.setImpl(ELAPSED_REALTIME_WAKEUP, triggerElapsed, windowLength, 0, operation,
+                null, "test", 0, null, null, TEST_CALLING_UID, TEST_CALLING_PACKAGE);
+    }
+
     private void setTestAlarmWithListener(int type, long triggerTime, IAlarmListener listener) {
         mService.setImpl(type, triggerTime, AlarmManager.WINDOW_EXACT, 0,
                 null, listener, "test", AlarmManager.FLAG_STANDALONE, null, null,
@@ -495,6 +501,28 @@ public class AlarmManagerServiceTest {
         assertEquals(mNowElapsedTest + 9, mTestTimer.getElapsed());
     }
 
+    @Test
+    public void testRemoveFromSharedBatch() {
+        final PendingIntent pi10 = getNewMockPendingIntent();
+        final PendingIntent pi15 = getNewMockPendingIntent();
+        final PendingIntent pi40 = getNewMockPendingIntent();
+
+        setWindowedTestAlarm(mNowElapsedTest + 10_000, 10_000, pi10);
+        setWindowedTestAlarm(mNowElapsedTest + 15_000, 10_000, pi15);
+        setWindowedTestAlarm(mNowElapsedTest + 40_000, 10_000, pi40);
+        assertEquals(2, mService.mAlarmBatches.size());
+        assertEquals(mNowElapsedTest + 15_000, mTestTimer.getElapsed());
+
+        // Removing an alarm from the shared batch widens it back to the remaining alarm
+        mService.removeLocked(pi15, null);
+        assertEquals(2, mService.mAlarmBatches.size());
+        assertEquals(mNowElapsedTest + 10_000, mTestTimer.getElapsed());
+
+        mService.removeLocked(pi10, null);
+        assertEquals(1, mService.mAlarmBatches.size());
+        assertEquals(mNowElapsedTest + 40_000, mTestTimer.getElapsed());
+    }
+
     private void testQuotasDeferralOnSet(int standbyBucket) throws Exception {
         final int quota = mService.getQuotaForBucketLocked(standbyBucket);
         when(mUsageStatsManagerInternal.getAppStandbyBucket(eq(TEST_CALLING_PACKAGE), anyInt(),
@@ -57,7 +57,9 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -951,6 +953,91 @@ public final class CachedAppOptimizerTest {
         assertThat(valuesAfter).isEqualTo(rssAboveThresholdAfter);
     }
 
+    @Test
+    public void compactionRequests_coalescedPerProcess() throws Exception {
+        mCachedAppOptimizerUnderTest.init();
+        setFlag(CachedAppOptimizer.KEY_USE_COMPACTION, "true", true);
+        final ActivityManagerService am = mAms;
+        initActivityManagerService();
+
+        long[] rss = new long[]{/*totalRSS*/ 30000, /*fileRSS*/ 10000, /*anonRSS*/ 20000,
+                /*swap*/ 10000};
+        mProcessDependencies.setRss(rss);
+        mProcessDependencies.setRssAfterCompaction(rss);
+        int pid = 1;
+        ProcessRecord processRecord = makeProcessRecord(pid, 2, 3, "p1", "app1");
+
+        // GIVEN a process is asked to compact again before its first request was handled
+        synchronized (am) {
+            mCachedAppOptimizerUnderTest.compactAppSome(processRecord);
+            mCachedAppOptimizerUnderTest.compactAppFull(processRecord);
+        }
+        waitForHandler();
+
+        // THEN it's compacted only once, with the latest requested action
+        assertThat(mProcessDependencies.getCompactedPids()).containsExactly(pid);
+        assertThat(processRecord.lastCompactAction)
+                .isEqualTo(CachedAppOptimizer.COMPACT_PROCESS_FULL);
+    }
+
+    @Test
+    public void pendingCompactions_orderedByExpectedReclaim() throws Exception {
+        mCachedAppOptimizerUnderTest.init();
+        setFlag(CachedAppOptimizer.KEY_USE_COMPACTION, "true", true);
+        final ActivityManagerService am = mAms;
+        initActivityManagerService();
+
+        long[] rss = new long[]{/*totalRSS*/ 30000, /*fileRSS*/ 10000, /*anonRSS*/ 20000,
+                /*swap*/ 10000};
+        mProcessDependencies.setRss(rss);
+        mProcessDependencies.setRssAfterCompaction(rss);
+        ProcessRecord smallReclaim = makeProcessRecord(1, 2, 3, "p1", "app1");
+        ProcessRecord largeReclaim = makeProcessRecord(2, 3, 4, "p2", "app2");
+        ProcessRecord neverCompacted = makeProcessRecord(3, 4, 5, "p3", "app3");
+        mCachedAppOptimizerUnderTest.mLastCompactionStats.put(1,
+                new CachedAppOptimizer.LastCompactionStats(new long[4], 100));
+        mCachedAppOptimizerUnderTest.mLastCompactionStats.put(2,
+                new CachedAppOptimizer.LastCompactionStats(new long[4], 5000));
+
+        // GIVEN several processes are waiting to compact
+        synchronized (am) {
+            mCachedAppOptimizerUnderTest.compactAppFull(smallReclaim);
+            mCachedAppOptimizerUnderTest.compactAppFull(largeReclaim);
+            mCachedAppOptimizerUnderTest.compactAppFull(neverCompacted);
+        }
+        waitForHandler();
+
+        // THEN the process never compacted goes first, then the one which reclaimed the most
+        assertThat(mProcessDependencies.getCompactedPids()).containsExactly(3, 2, 1).inOrder();
+    }
+
+    @Test
+    public void pendingFreezes_batchedByOwnDueTime() {
+        final long now = 100000;
+        ProcessRecord due = makeProcessRecord(1, 2, 3, "p1", "app1");
+        ProcessRecord dueInWindow = makeProcessRecord(2, 3, 4, "p2", "app2");
+        ProcessRecord sameUidNotDue = makeProcessRecord(3, 2, 3, "p3", "app1");
+        due.freezeDueTime = now;
+        dueInWindow.freezeDueTime = now + CachedAppOptimizer.FREEZE_BATCH_WINDOW_MS;
+        sameUidNotDue.freezeDueTime = now + CachedAppOptimizer.FREEZE_BATCH_WINDOW_MS + 1;
+
+        // GIVEN processes waiting to be frozen, one of them sharing the uid of a due process
+        final ArrayList<ProcessRecord> batch = new ArrayList<>();
+        final long nextDueTime;
+        synchronized (mAms) {
+            mCachedAppOptimizerUnderTest.mPendingFreezes.add(due);
+            mCachedAppOptimizerUnderTest.mPendingFreezes.add(dueInWindow);
+            mCachedAppOptimizerUnderTest.mPendingFreezes.add(sameUidNotDue);
+            nextDueTime = mCachedAppOptimizerUnderTest.takeDueFreezesLocked(now, batch);
+        }
+
+        // THEN only the processes due within the window are frozen, and the other one waits for
+        // its own due time
+        assertThat(batch).containsExactly(due, dueInWindow);
+        assertThat(mCachedAppOptimizerUnderTest.mPendingFreezes).containsExactly(sameUidNotDue);
+        assertThat(nextDueTime).isEqualTo(sameUidNotDue.freezeDueTime);
+        assertThat(due.freezeDueTime).isEqualTo(0);
+    }
 
     private void setFlag(String key, String value, boolean defaultValue) throws Exception {
         mCountDown = new CountDownLatch(1);
@@ -1018,6 +1105,7 @@ public final class CachedAppOptimizerTest {
             implements CachedAppOptimizer.ProcessDependencies {
         private long[] mRss;
         private long[] mRssAfterCompaction;
+        private final ArrayList<Integer> mCompactedPids = new ArrayList<>();
 
         @Override
         public long[] getRss(int pid) {
@@ -1027,6 +1115,11 @@ public final class CachedAppOptimizerTest {
         @Override
         public void performCompaction(String action, int pid) throws IOException {
             mRss = mRssAfterCompaction;
+            mCompactedPids.add(pid);
+        }
+
+        public List<Integer> getCompactedPids() {
+            return mCompactedPids;
         }
 
         public void setRss(long[] newValues) {
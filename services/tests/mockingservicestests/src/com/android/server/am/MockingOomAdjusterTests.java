@@ -1316,6 +1316,50 @@ public class MockingOomAdjusterTests {
                 SCHED_GROUP_DEFAULT);
     }
 
+    @SuppressWarnings("GuardedBy")
+    @Test
+    public void testUpdateOomAdj_DoPartial_MultipleRoots() {
+        ProcessRecord app = spy(makeDefaultProcessRecord(MOCKAPP_PID, MOCKAPP_UID,
+                MOCKAPP_PROCESSNAME, MOCKAPP_PACKAGENAME, false));
+        app.setHasForegroundServices(true, 0);
+        ProcessRecord app2 = spy(makeDefaultProcessRecord(MOCKAPP2_PID, MOCKAPP2_UID,
+                MOCKAPP2_PROCESSNAME, MOCKAPP2_PACKAGENAME, false));
+        bindService(app2, app, null, 0, mock(IBinder.class));
+        ProcessRecord app3 = spy(makeDefaultProcessRecord(MOCKAPP3_PID, MOCKAPP3_UID,
+                MOCKAPP3_PROCESSNAME, MOCKAPP3_PACKAGENAME, false));
+        app3.setHasForegroundServices(true, 0);
+        ProcessRecord app4 = spy(makeDefaultProcessRecord(MOCKAPP4_PID, MOCKAPP4_UID,
+                MOCKAPP4_PROCESSNAME, MOCKAPP4_PACKAGENAME, false));
+        bindProvider(app4, app3, null, null, false);
+        ArrayList<ProcessRecord> lru = sService.mProcessList.mLruProcesses;
+        lru.clear();
+        lru.add(app);
+        lru.add(app2);
+        lru.add(app3);
+        lru.add(app4);
+        ArraySet<ProcessRecord> roots = new ArraySet<>();
+        roots.add(app);
+        roots.add(app3);
+        final boolean updateQuick = sService.mConstants.OOMADJ_UPDATE_QUICK;
+        sService.mConstants.OOMADJ_UPDATE_QUICK = true;
+        sService.mWakefulness = PowerManagerInternal.WAKEFULNESS_AWAKE;
+        try {
+            sService.mOomAdjuster.updateOomAdjLocked(roots, OomAdjuster.OOM_ADJ_REASON_NONE);
+        } finally {
+            sService.mConstants.OOMADJ_UPDATE_QUICK = updateQuick;
+            lru.clear();
+        }
+
+        assertProcStates(app, PROCESS_STATE_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+        assertProcStates(app2, PROCESS_STATE_BOUND_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+        assertProcStates(app3, PROCESS_STATE_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+        assertProcStates(app4, PROCESS_STATE_BOUND_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+    }
+
     @SuppressWarnings("GuardedBy")
     @Test
     public void testUpdateOomAdj_DoAll_Unbound() {
@@ -21,6 +21,7 @@ import static android.app.AppOpsManager.FILTER_BY_UID;
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_ERRORED;
 import static android.app.AppOpsManager.MODE_FOREGROUND;
+import static android.app.AppOpsManager.MODE_IGNORED;
 import static android.app.AppOpsManager.OP_COARSE_LOCATION;
 import static android.app.AppOpsManager.OP_FLAGS_ALL;
 import static android.app.AppOpsManager.OP_READ_SMS;
@@ -50,10 +51,12 @@ import android.app.AppOpsManager.PackageOps;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.PackageManagerInternal;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.os.RemoteCallback;
+import android.os.UserHandle;
 import android.provider.Settings;
 
 import androidx.test.InstrumentationRegistry;
@@ -338,6 +341,43 @@ public class AppOpsServiceTest {
         assertThat(getLoggedOps()).isNull();
     }
 
+    @Test
+    public void testCheckOperation_seesChangesAfterCaching() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ERRORED);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, sMyPackageName, null, false, null,
+                false);
+        // The second check is answered without taking the service lock
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_IGNORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, AppOpsManager.opToDefaultMode(OP_READ_SMS));
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        final Binder token = new Binder();
+        mAppOpsService.setUserRestriction(OP_READ_SMS, true, token,
+                UserHandle.getUserId(mMyUid), null);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+        mAppOpsService.setUserRestriction(OP_READ_SMS, false, token,
+                UserHandle.getUserId(mMyUid), null);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.packageRemoved(mMyUid, sMyPackageName);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(AppOpsManager.opToDefaultMode(OP_READ_SMS));
+    }
+
     private void setupProcStateTests() {
         // For the location proc state tests
         mAppOpsService.setMode(OP_COARSE_LOCATION, mMyUid, sMyPackageName, MODE_FOREGROUND);
@@ -20,6 +20,7 @@ import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doAnswer;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doNothing;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.mock;
@@ -30,6 +31,7 @@ import static com.android.server.job.JobSchedulerService.RARE_INDEX;
 import static com.android.server.job.JobSchedulerService.sElapsedRealtimeClock;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -53,6 +55,7 @@ import android.os.Looper;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.util.ArraySet;
 
 import com.android.server.AppStateTracker;
 import com.android.server.DeviceIdleInternal;
@@ -842,4 +845,113 @@ public class JobSchedulerServiceTest {
                             0, ""));
         }
     }
+
+    /**
+     * Tests that checking only the jobs whose constraints changed queues the same jobs as
+     * checking every job.
+     */
+    @Test
+    public void testQueueChangedJobs_matchesFullCheck() {
+        final ArraySet<JobStatus> readyJobs = new ArraySet<>();
+        spyOn(mService);
+        doNothing().when(mService).evaluateControllerStatesLocked(any());
+        doNothing().when(mService).noteJobsPending(any());
+        doAnswer(inv -> readyJobs.contains(inv.<JobStatus>getArgument(0)))
+                .when(mService).isReadyToBeExecutedLocked(any());
+        mService.mConstants.MIN_READY_NON_ACTIVE_JOBS_COUNT = 3;
+        mService.mConstants.MAX_NON_ACTIVE_JOB_BATCH_DELAY_MS = HOUR_IN_MILLIS;
+
+        final JobStatus activeJob1 = createScheduledJob(1, ACTIVE_INDEX);
+        final JobStatus activeJob2 = createScheduledJob(2, ACTIVE_INDEX);
+        final JobStatus rareJob1 = createScheduledJob(3, RARE_INDEX);
+        final JobStatus rareJob2 = createScheduledJob(4, RARE_INDEX);
+        final JobStatus rareJob3 = createScheduledJob(5, RARE_INDEX);
+
+        synchronized (mService.mLock) {
+            // A job that isn't active is batched until enough of them are ready
+            readyJobs.add(rareJob1);
+            assertChangedCheckMatchesFullCheck(0, rareJob1);
+
+            // A job that isn't batched runs right away
+            readyJobs.add(activeJob1);
+            assertChangedCheckMatchesFullCheck(2, activeJob1);
+
+            // The pending batched job is batched again once the job it ran along with isn't ready
+            readyJobs.remove(activeJob1);
+            assertChangedCheckMatchesFullCheck(0, activeJob1);
+
+            // Enough batched jobs run together, including the one held back before
+            readyJobs.add(rareJob2);
+            readyJobs.add(rareJob3);
+            assertChangedCheckMatchesFullCheck(3, rareJob2, rareJob3);
+
+            // Pending jobs stay pending while a job that isn't ready changes
+            assertChangedCheckMatchesFullCheck(3, activeJob2);
+        }
+    }
+
+    /**
+     * Tests that a batched job that becomes ready while other jobs are pending is queued along
+     * with them, as a check of every job would.
+     */
+    @Test
+    public void testQueueChangedJobs_batchedJobRunsWithPendingJobs() {
+        final ArraySet<JobStatus> readyJobs = new ArraySet<>();
+        spyOn(mService);
+        doNothing().when(mService).evaluateControllerStatesLocked(any());
+        doNothing().when(mService).noteJobsPending(any());
+        doAnswer(inv -> readyJobs.contains(inv.<JobStatus>getArgument(0)))
+                .when(mService).isReadyToBeExecutedLocked(any());
+        mService.mConstants.MIN_READY_NON_ACTIVE_JOBS_COUNT = 5;
+        mService.mConstants.MAX_NON_ACTIVE_JOB_BATCH_DELAY_MS = HOUR_IN_MILLIS;
+
+        final JobStatus activeJob = createScheduledJob(1, ACTIVE_INDEX);
+        final JobStatus rareJob = createScheduledJob(2, RARE_INDEX);
+
+        synchronized (mService.mLock) {
+            readyJobs.add(activeJob);
+            mService.maybeQueueReadyJobsForExecutionLocked();
+            assertEquals(1, mService.mPendingJobs.size());
+
+            readyJobs.add(rareJob);
+            assertChangedCheckMatchesFullCheck(2, rareJob);
+            assertTrue(mService.mPendingJobs.contains(rareJob));
+        }
+    }
+
+    private JobStatus createScheduledJob(int jobId, int standbyBucket) {
+        final JobStatus job = createJobStatus("testQueueChangedJobs",
+                new JobInfo.Builder(jobId, new ComponentName("foo", "bar"))
+                        .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY));
+        job.setStandbyBucket(standbyBucket);
+        mService.mJobs.add(job);
+        return job;
+    }
+
+    /**
+     * Checks the changed jobs, then checks every job, and asserts that both queued the same
+     * {@code expectedPendingCount} jobs.
+     */
+    private void assertChangedCheckMatchesFullCheck(int expectedPendingCount,
+            JobStatus... changedJobs) {
+        mService.addChangedJobsLocked(new ArraySet<>(changedJobs), false /* runNow */);
+        mService.queueChangedJobsForExecutionLocked();
+        final ArraySet<JobStatus> changedCheckJobs = getPendingJobs();
+
+        mService.maybeQueueReadyJobsForExecutionLocked();
+        final ArraySet<JobStatus> fullCheckJobs = getPendingJobs();
+
+        assertEquals(fullCheckJobs, changedCheckJobs);
+        assertEquals(expectedPendingCount, changedCheckJobs.size());
+    }
+
+    private ArraySet<JobStatus> getPendingJobs() {
+        final ArraySet<JobStatus> jobs = new ArraySet<>();
+        mService.mJobs.forEachJob(job -> {
+            if (mService.mPendingJobs.contains(job)) {
+                jobs.add(job);
+            }
+        });
+        return jobs;
+    }
 }
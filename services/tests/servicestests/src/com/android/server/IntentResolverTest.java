@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.annotation.NonNull;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}, in particular that results stay correct as filters are
+ * added and removed between otherwise identical queries.
+ */
+@Presubmit
+@SmallTest
+@RunWith(JUnit4.class)
+public class IntentResolverTest {
+    private static final String ACTION = "com.android.server.TEST_ACTION";
+
+    private static class TestFilter extends IntentFilter {
+        final String packageName;
+        boolean stopped;
+
+        TestFilter(String packageName, String action) {
+            super(action);
+            this.packageName = packageName;
+        }
+    }
+
+    private static class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected boolean isFilterStopped(TestFilter filter, int userId) {
+            return filter.stopped;
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+
+        @Override
+        protected IntentFilter getIntentFilter(@NonNull TestFilter input) {
+            return input;
+        }
+    }
+
+    @Test
+    public void testAddAndRemoveBetweenQueries() {
+        final TestResolver resolver = new TestResolver();
+        final TestFilter first = new TestFilter("com.example.first", ACTION);
+        resolver.addFilter(first);
+        assertResults(resolver.queryIntent(new Intent(ACTION), null, false, 0), first);
+
+        final TestFilter second = new TestFilter("com.example.second", ACTION);
+        resolver.addFilter(second);
+        assertResults(resolver.queryIntent(new Intent(ACTION), null, false, 0), first, second);
+
+        resolver.removeFilter(first);
+        assertResults(resolver.queryIntent(new Intent(ACTION), null, false, 0), second);
+    }
+
+    @Test
+    public void testPerQueryChecksNotCached() {
+        final TestResolver resolver = new TestResolver();
+        final TestFilter first = new TestFilter("com.example.first", ACTION);
+        final TestFilter second = new TestFilter("com.example.second", ACTION);
+        second.addCategory(Intent.CATEGORY_DEFAULT);
+        resolver.addFilter(first);
+        resolver.addFilter(second);
+
+        assertResults(resolver.queryIntent(new Intent(ACTION), null, false, 0), first, second);
+        assertResults(resolver.queryIntent(new Intent(ACTION), null, true, 0), second);
+        assertResults(resolver.queryIntent(
+                new Intent(ACTION).setPackage("com.example.first"), null, false, 0), first);
+
+        // Stopped state may change without any filter being added or removed
+        first.stopped = true;
+        assertResults(resolver.queryIntent(new Intent(ACTION)
+                .addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES), null, false, 0), second);
+        first.stopped = false;
+        assertResults(resolver.queryIntent(new Intent(ACTION)
+                .addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES), null, false, 0), first, second);
+    }
+
+    @Test
+    public void testDistinctIntents() {
+        final TestResolver resolver = new TestResolver();
+        final TestFilter plain = new TestFilter("com.example.plain", ACTION);
+        final TestFilter browsable = new TestFilter("com.example.browsable", ACTION);
+        browsable.addCategory(Intent.CATEGORY_BROWSABLE);
+        browsable.addDataScheme("https");
+        resolver.addFilter(plain);
+        resolver.addFilter(browsable);
+
+        assertResults(resolver.queryIntent(new Intent(ACTION), null, false, 0), plain);
+        assertResults(resolver.queryIntent(new Intent(ACTION, Uri.parse("https://example.com"))
+                .addCategory(Intent.CATEGORY_BROWSABLE), null, false, 0), browsable);
+        assertResults(resolver.queryIntent(new Intent(ACTION, Uri.parse("https://example.com"))
+                .addCategory(Intent.CATEGORY_APP_MAPS), null, false, 0));
+        assertResults(resolver.queryIntent(new Intent(ACTION, Uri.parse("http://example.com"))
+                .addCategory(Intent.CATEGORY_BROWSABLE), null, false, 0));
+    }
+
+    private static void assertResults(List<TestFilter> actual, TestFilter... expected) {
+        assertEquals(expected.length, actual.size());
+        assertTrue(actual.toString(), actual.containsAll(Arrays.asList(expected)));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ * Test class for {@link BroadcastLatencyStats}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastLatencyStatsTest
+ */
+@SmallTest
+@Presubmit
+public class BroadcastLatencyStatsTest {
+
+    @Test
+    public void testParallelDispatch() {
+        final BroadcastLatencyStats stats = new BroadcastLatencyStats();
+        stats.onParallelBroadcastDispatched(createBroadcastRecord(1000, 1005));
+
+        final String[] lines = dump(stats);
+        assertTrue(lines[0], lines[0].contains("<8: 1"));
+        assertEquals(1, countOf(lines[0]));
+        assertEquals(0, countOf(lines[1]));
+        assertEquals(0, countOf(lines[2]));
+    }
+
+    @Test
+    public void testOrderedFinish() {
+        final BroadcastLatencyStats stats = new BroadcastLatencyStats();
+        stats.onOrderedBroadcastFinished(createBroadcastRecord(1000, 1100), 1100 + 3000);
+
+        final String[] lines = dump(stats);
+        assertEquals(0, countOf(lines[0]));
+        assertTrue(lines[1], lines[1].contains("<128: 1"));
+        assertTrue(lines[2], lines[2].contains("<4096: 1"));
+    }
+
+    @Test
+    public void testOrderedFinish_neverDispatched() {
+        final BroadcastLatencyStats stats = new BroadcastLatencyStats();
+        stats.onOrderedBroadcastFinished(createBroadcastRecord(1000, 0), 2000);
+
+        for (String line : dump(stats)) {
+            assertEquals(0, countOf(line));
+        }
+    }
+
+    @Test
+    public void testIgnoresWallClock() {
+        final BroadcastLatencyStats stats = new BroadcastLatencyStats();
+        final BroadcastRecord r = createBroadcastRecord(1000, 1005);
+        // The wall clock was set back by an hour between enqueue and dispatch
+        r.enqueueClockTime = 10_000_000;
+        r.dispatchClockTime = r.enqueueClockTime - 3_600_000;
+        stats.onParallelBroadcastDispatched(r);
+
+        final String line = dump(stats)[0];
+        assertTrue(line, line.contains("<8: 1"));
+    }
+
+    private static String[] dump(BroadcastLatencyStats stats) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw, "");
+        pw.flush();
+        final String[] lines = sw.toString().split("\n");
+        assertEquals(3, lines.length);
+        return lines;
+    }
+
+    /** Returns the total count of a dumped histogram line. */
+    private static int countOf(String line) {
+        int count = 0;
+        for (String bucket : line.substring(line.indexOf('[') + 1, line.indexOf(']'))
+                .split(", ")) {
+            count += Integer.parseInt(bucket.substring(bucket.indexOf(": ") + 2));
+        }
+        return count;
+    }
+
+    private static BroadcastRecord createBroadcastRecord(long enqueueTime, long dispatchTime) {
+        final BroadcastRecord r = new BroadcastRecord(
+                null /* queue */,
+                new Intent(),
+                null /* callerApp */,
+                null  /* callerPackage */,
+                null /* callerFeatureId */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                new ArrayList<>(),
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                false /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                UserHandle.USER_SYSTEM,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+        r.enqueueTime = enqueueTime;
+        r.dispatchTime = dispatchTime;
+        return r;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.IApplicationThread;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class for {@link RegisteredReceiverBatcher}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:RegisteredReceiverBatcherTest
+ */
+@SmallTest
+@Presubmit
+public class RegisteredReceiverBatcherTest {
+    private static final int PROCESS_STATE = 7;
+
+    @Test
+    public void testSend_batchesDeliveriesToOneProcess() throws Exception {
+        final RegisteredReceiverBatcher batcher = new RegisteredReceiverBatcher();
+        final IApplicationThread thread = createThread();
+        final List<IBinder> sentReceivers = new ArrayList<>();
+        final List<Intent> sentIntents = new ArrayList<>();
+        doAnswer(invocation -> {
+            sentReceivers.addAll(invocation.getArgument(0));
+            sentIntents.addAll(invocation.getArgument(1));
+            return null;
+        }).when(thread).scheduleRegisteredReceivers(anyList(), anyList(), any(), anyList(),
+                anyList(), any(), any(), eq(PROCESS_STATE));
+
+        final IIntentReceiver[] receivers = new IIntentReceiver[3];
+        final Intent[] intents = new Intent[3];
+        for (int i = 0; i < 3; i++) {
+            receivers[i] = new TestReceiver();
+            intents[i] = new Intent("action" + i);
+            batcher.add(null /* app */, thread, PROCESS_STATE, createBroadcastRecord(),
+                    receivers[i], intents[i]);
+        }
+        assertEquals(1, batcher.getProcessCount());
+        batcher.send((app, records) -> fail("Unexpected failure"));
+
+        assertEquals(Arrays.asList(receivers[0].asBinder(), receivers[1].asBinder(),
+                receivers[2].asBinder()), sentReceivers);
+        assertEquals(Arrays.asList(intents), sentIntents);
+        verify(thread, never()).scheduleRegisteredReceiver(any(), any(), anyInt(), any(),
+                any(), anyBoolean(), anyBoolean(), anyInt(), anyInt());
+        assertEquals(0, batcher.getProcessCount());
+    }
+
+    @Test
+    public void testSend_oneDeliveryPerProcess() throws Exception {
+        final RegisteredReceiverBatcher batcher = new RegisteredReceiverBatcher();
+        final IApplicationThread thread1 = createThread();
+        final IApplicationThread thread2 = createThread();
+        final IIntentReceiver receiver1 = new TestReceiver();
+        final IIntentReceiver receiver2 = new TestReceiver();
+        final Intent intent = new Intent("action");
+
+        batcher.add(null /* app */, thread1, PROCESS_STATE, createBroadcastRecord(), receiver1,
+                intent);
+        batcher.add(null /* app */, thread2, PROCESS_STATE, createBroadcastRecord(), receiver2,
+                intent);
+        assertEquals(2, batcher.getProcessCount());
+        batcher.send((app, records) -> fail("Unexpected failure"));
+
+        verify(thread1).scheduleRegisteredReceiver(receiver1, intent, 0 /* resultCode */,
+                null /* data */, null /* extras */, false /* ordered */, false /* sticky */,
+                UserHandle.USER_SYSTEM, PROCESS_STATE);
+        verify(thread2).scheduleRegisteredReceiver(receiver2, intent, 0 /* resultCode */,
+                null /* data */, null /* extras */, false /* ordered */, false /* sticky */,
+                UserHandle.USER_SYSTEM, PROCESS_STATE);
+        verify(thread1, never()).scheduleRegisteredReceivers(anyList(), anyList(), any(),
+                anyList(), anyList(), any(), any(), anyInt());
+        assertEquals(0, batcher.getProcessCount());
+    }
+
+    @Test
+    public void testSend_failureReportsUndeliveredBroadcasts() throws Exception {
+        final RegisteredReceiverBatcher batcher = new RegisteredReceiverBatcher();
+        final IApplicationThread thread = createThread();
+        doThrow(new RemoteException()).when(thread).scheduleRegisteredReceivers(anyList(),
+                anyList(), any(), anyList(), anyList(), any(), any(), anyInt());
+        final BroadcastRecord r1 = createBroadcastRecord();
+        final BroadcastRecord r2 = createBroadcastRecord();
+        batcher.add(null /* app */, thread, PROCESS_STATE, r1, new TestReceiver(),
+                new Intent());
+        batcher.add(null /* app */, thread, PROCESS_STATE, r2, new TestReceiver(),
+                new Intent());
+
+        final List<BroadcastRecord> failedRecords = new ArrayList<>();
+        batcher.send((app, records) -> failedRecords.addAll(records));
+
+        assertEquals(Arrays.asList(r1, r2), failedRecords);
+        assertEquals(0, batcher.getProcessCount());
+    }
+
+    private static IApplicationThread createThread() {
+        final IApplicationThread thread = mock(IApplicationThread.class);
+        when(thread.asBinder()).thenReturn(new Binder());
+        return thread;
+    }
+
+    private static class TestReceiver extends IIntentReceiver.Stub {
+        @Override
+        public void performReceive(Intent intent, int resultCode, String data, Bundle extras,
+                boolean ordered, boolean sticky, int sendingUser) {
+        }
+    }
+
+    private static BroadcastRecord createBroadcastRecord() {
+        return new BroadcastRecord(
+                null /* queue */,
+                new Intent(),
+                null /* callerApp */,
+                null  /* callerPackage */,
+                null /* callerFeatureId */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                new ArrayList<>(),
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                false /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                UserHandle.USER_SYSTEM,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+    }
+}
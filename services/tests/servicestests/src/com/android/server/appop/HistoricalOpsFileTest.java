@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import static android.app.AppOpsManager.OP_CAMERA;
+import static android.app.AppOpsManager.OP_FINE_LOCATION;
+import static android.app.AppOpsManager.OP_FLAG_SELF;
+import static android.app.AppOpsManager.UID_STATE_FOREGROUND;
+import static android.app.AppOpsManager.UID_STATE_TOP;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.HistoricalOps;
+import android.os.Process;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HistoricalOpsFileTest {
+    private static final int UID_1 = Process.FIRST_APPLICATION_UID;
+    private static final int UID_2 = Process.FIRST_APPLICATION_UID + 1;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "historical-ops-file-test.bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private void write(List<HistoricalOps> ops, long overflowMillis) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            HistoricalOpsFile.write(out, ops, overflowMillis);
+        }
+    }
+
+    private static HistoricalOps createOps(long beginTimeMillis, long endTimeMillis) {
+        final HistoricalOps ops = new HistoricalOps(beginTimeMillis, endTimeMillis);
+        ops.increaseAccessCount(OP_CAMERA, UID_1, "com.foo", null, UID_STATE_TOP,
+                OP_FLAG_SELF, 3);
+        ops.increaseRejectCount(OP_CAMERA, UID_1, "com.foo", null, UID_STATE_FOREGROUND,
+                OP_FLAG_SELF, 1);
+        ops.increaseAccessDuration(OP_FINE_LOCATION, UID_1, "com.foo", "tag", UID_STATE_TOP,
+                OP_FLAG_SELF, 500);
+        ops.increaseAccessCount(OP_FINE_LOCATION, UID_1, "com.foo.shared", null, UID_STATE_TOP,
+                OP_FLAG_SELF, 7);
+        ops.increaseAccessCount(OP_CAMERA, UID_2, "com.bar", null, UID_STATE_TOP,
+                OP_FLAG_SELF, 11);
+        return ops;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        write(Arrays.asList(createOps(0, 100), createOps(100, 200)), 42);
+
+        final CollectingVisitor visitor = new CollectingVisitor();
+        assertEquals(42, HistoricalOpsFile.read(mFile, Process.INVALID_UID, null, visitor));
+        assertEquals(2, visitor.mOps.size());
+        for (int i = 0; i < visitor.mOps.size(); i++) {
+            final HistoricalOps expected = createOps(i * 100, (i + 1) * 100);
+            final HistoricalOps actual = visitor.mOps.get(i);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testRead_filteredByUidAndPackage() throws Exception {
+        write(Arrays.asList(createOps(0, 100)), 0);
+
+        CollectingVisitor visitor = new CollectingVisitor();
+        HistoricalOpsFile.read(mFile, UID_2, null, visitor);
+        HistoricalOps ops = visitor.mOps.get(0);
+        assertEquals(1, ops.getUidCount());
+        assertEquals(11, ops.getUidOps(UID_2).getPackageOps("com.bar").getOp(
+                AppOpsManager.opToPublicName(OP_CAMERA)).getForegroundAccessCount(OP_FLAG_SELF));
+
+        visitor = new CollectingVisitor();
+        HistoricalOpsFile.read(mFile, UID_1, "com.foo.shared", visitor);
+        ops = visitor.mOps.get(0);
+        assertEquals(1, ops.getUidOps(UID_1).getPackageCount());
+        assertNull(ops.getUidOps(UID_1).getPackageOps("com.foo"));
+
+        visitor = new CollectingVisitor();
+        HistoricalOpsFile.read(mFile, UID_2 + 1, null, visitor);
+        assertEquals(0, visitor.mOps.size());
+    }
+
+    @Test
+    public void testRead_skippedSnapshots() throws Exception {
+        write(Arrays.asList(createOps(0, 100), createOps(100, 200)), 0);
+
+        final CollectingVisitor visitor = new CollectingVisitor() {
+            @Override
+            public boolean visitSnapshot(long beginTimeMillis, long endTimeMillis) {
+                return beginTimeMillis >= 100 && super.visitSnapshot(beginTimeMillis,
+                        endTimeMillis);
+            }
+        };
+        HistoricalOpsFile.read(mFile, Process.INVALID_UID, null, visitor);
+        assertEquals(1, visitor.mOps.size());
+        assertEquals(100, visitor.mOps.get(0).getBeginTimeMillis());
+    }
+
+    private static class CollectingVisitor implements HistoricalOpsFile.Visitor {
+        final List<HistoricalOps> mOps = new ArrayList<>();
+        private HistoricalOps mCurrent;
+
+        @Override
+        public boolean visitSnapshot(long beginTimeMillis, long endTimeMillis) {
+            mCurrent = new HistoricalOps(beginTimeMillis, endTimeMillis);
+            return true;
+        }
+
+        @Override
+        public void visitState(int uid, @NonNull String packageName,
+                @Nullable String attributionTag, int op, long key, long accessCount,
+                long rejectCount, long accessDuration) {
+            final int uidState = AppOpsManager.extractUidStateFromKey(key);
+            final int flags = AppOpsManager.extractFlagsFromKey(key);
+            if (accessCount > 0) {
+                mCurrent.increaseAccessCount(op, uid, packageName, attributionTag, uidState,
+                        flags, accessCount);
+            }
+            if (rejectCount > 0) {
+                mCurrent.increaseRejectCount(op, uid, packageName, attributionTag, uidState,
+                        flags, rejectCount);
+            }
+            if (accessDuration > 0) {
+                mCurrent.increaseAccessDuration(op, uid, packageName, attributionTag, uidState,
+                        flags, accessDuration);
+            }
+        }
+
+        @Override
+        public void visitSnapshotEnd() {
+            if (!mCurrent.isEmpty()) {
+                mOps.add(mCurrent);
+            }
+        }
+    }
+}
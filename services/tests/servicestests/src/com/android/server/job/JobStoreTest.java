@@ -5,6 +5,7 @@ import static android.net.NetworkCapabilities.NET_CAPABILITY_OEM_PAID;
 import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -40,6 +41,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
 import java.time.Clock;
 import java.time.ZoneOffset;
 import java.util.Arrays;
@@ -455,6 +457,84 @@ public class JobStoreTest {
                 taskStatus.getJob().isRequireBatteryNotLow());
     }
 
+    @Test
+    public void testOnlyChangedUidFilesWritten() throws Exception {
+        final int otherUid = SOME_UID + 1;
+        final JobInfo task1 = new Builder(8, mComponent).setPersisted(true).build();
+        final JobInfo task2 = new Builder(12, mComponent).setPersisted(true).build();
+        final JobInfo task3 = new Builder(16, mComponent).setPersisted(true).build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null));
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task2, otherUid, null, -1, null));
+        waitForPendingIo();
+        assertTrue(getJobFile(SOME_UID).exists());
+        assertTrue(getJobFile(otherUid).exists());
+
+        final long otherUidModified = getJobFile(otherUid).lastModified();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task3, SOME_UID, null, -1, null));
+        waitForPendingIo();
+        assertEquals(1, mTaskStoreUnderTest.getPersistStats().countFilesSaved);
+        assertEquals(3, mTaskStoreUnderTest.getPersistStats().countAllJobsSaved);
+        assertEquals(otherUidModified, getJobFile(otherUid).lastModified());
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 3, jobStatusSet.size());
+        assertEquals(2, jobStatusSet.getJobsByUid(SOME_UID).size());
+        assertEquals(1, jobStatusSet.getJobsByUid(otherUid).size());
+    }
+
+    @Test
+    public void testRemovingLastJobDeletesUidFile() throws Exception {
+        final JobInfo task = new Builder(8, mComponent).setPersisted(true).build();
+        final JobStatus taskStatus = JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(taskStatus);
+        waitForPendingIo();
+        assertTrue(getJobFile(SOME_UID).exists());
+
+        mTaskStoreUnderTest.remove(taskStatus, true);
+        waitForPendingIo();
+        assertFalse(getJobFile(SOME_UID).exists());
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 0, jobStatusSet.size());
+    }
+
+    @Test
+    public void testReadingLegacyJobsFile() throws Exception {
+        final JobInfo task = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null));
+        waitForPendingIo();
+
+        // A single uid's file has the same format as the file holding every uid's jobs
+        final File legacyFile = new File(getJobDir(), "jobs.xml");
+        assertTrue(getJobFile(SOME_UID).renameTo(legacyFile));
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task, jobStatusSet.getAllJobs().get(0).getJob());
+
+        // Rewriting every uid's file supersedes the legacy file, which is kept for a downgrade
+        mTaskStoreUnderTest.clear();
+        waitForPendingIo();
+        assertTrue(legacyFile.exists());
+        final JobSet migratedSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(migratedSet, true);
+        assertEquals("Legacy file read after migrating.", 0, migratedSet.size());
+    }
+
+    private File getJobDir() {
+        return new File(new File(mTestContext.getFilesDir(), "system"), "job");
+    }
+
+    private File getJobFile(int uid) {
+        return new File(new File(getJobDir(), "uids"), "jobs_" + uid + ".xml");
+    }
+
     /**
      * Helper function to kick a {@link JobInfo} through a persistence cycle and
      * assert that it's unchanged.
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.util.SparseIntArray;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PendingJobQueueTest {
+    private static final int SOME_UID = android.os.Process.FIRST_APPLICATION_UID;
+
+    private static final int OTHER_UID = SOME_UID + 1;
+
+    /** Priority of the jobs of each uid, as given by the evaluator. */
+    private final SparseIntArray mUidPriorities = new SparseIntArray();
+    private final PendingJobQueue mQueue = new PendingJobQueue((o1, o2) -> Long.compare(
+            o1.enqueueTime, o2.enqueueTime), job -> mUidPriorities.get(job.getSourceUid()));
+    private final PendingJobQueue mPriorityQueue = new PendingJobQueue((o1, o2) -> {
+        if (o1.lastEvaluatedPriority != o2.lastEvaluatedPriority) {
+            return Integer.compare(o2.lastEvaluatedPriority, o1.lastEvaluatedPriority);
+        }
+        return Long.compare(o1.enqueueTime, o2.enqueueTime);
+    }, job -> mUidPriorities.get(job.getSourceUid()));
+
+    private static JobStatus createJob(int jobId, long enqueueTime) {
+        return createJob(jobId, enqueueTime, SOME_UID);
+    }
+
+    private static JobStatus createJob(int jobId, long enqueueTime, int uid) {
+        final JobInfo job = new JobInfo.Builder(jobId, new ComponentName("foo", "bar")).build();
+        final JobStatus js = JobStatus.createFromJobInfo(job, uid, null, 0, null);
+        js.enqueueTime = enqueueTime;
+        return js;
+    }
+
+    @Test
+    public void testAdd_keepsOrder() {
+        final JobStatus job1 = createJob(1, 100);
+        final JobStatus job2 = createJob(2, 200);
+        final JobStatus job3 = createJob(3, 300);
+        mQueue.add(job3);
+        mQueue.add(job1);
+        mQueue.addAll(Arrays.asList(job2));
+
+        assertEquals(3, mQueue.size());
+        assertSame(job1, mQueue.get(0));
+        assertSame(job2, mQueue.get(1));
+        assertSame(job3, mQueue.get(2));
+    }
+
+    @Test
+    public void testAddAll_keepsOrder() {
+        final JobStatus job1 = createJob(1, 100);
+        final JobStatus job2 = createJob(2, 200);
+        final JobStatus job3 = createJob(3, 300);
+        mQueue.add(job2);
+        mQueue.addAll(Arrays.asList(job3, job1));
+
+        assertSame(job1, mQueue.get(0));
+        assertSame(job2, mQueue.get(1));
+        assertSame(job3, mQueue.get(2));
+    }
+
+    @Test
+    public void testRemove() {
+        // Jobs which compare equal are still told apart
+        final JobStatus job1 = createJob(1, 100);
+        final JobStatus job2 = createJob(2, 100);
+        mQueue.add(job1);
+        mQueue.add(job2);
+
+        assertTrue(mQueue.remove(job2));
+        assertFalse(mQueue.remove(job2));
+        assertFalse(mQueue.contains(job2));
+        assertTrue(mQueue.contains(job1));
+        assertEquals(1, mQueue.size());
+        assertSame(job1, mQueue.get(0));
+    }
+
+    @Test
+    public void testRemove_afterReordering() {
+        final JobStatus job1 = createJob(1, 100);
+        final JobStatus job2 = createJob(2, 200);
+        mQueue.add(job1);
+        mQueue.add(job2);
+        job1.enqueueTime = 300;
+
+        assertTrue(mQueue.remove(job1));
+        assertEquals(1, mQueue.size());
+        assertSame(job2, mQueue.get(0));
+    }
+
+    @Test
+    public void testAdd_ordersByEvaluatedPriority() {
+        mUidPriorities.put(OTHER_UID, JobInfo.PRIORITY_TOP_APP);
+        final JobStatus job1 = createJob(1, 100);
+        final JobStatus job2 = createJob(2, 200, OTHER_UID);
+        mPriorityQueue.add(job1);
+        mPriorityQueue.add(job2);
+
+        assertEquals(JobInfo.PRIORITY_TOP_APP, job2.lastEvaluatedPriority);
+        assertSame(job2, mPriorityQueue.get(0));
+        assertSame(job1, mPriorityQueue.get(1));
+        assertEquals(1, mPriorityQueue.getFgJobCount());
+    }
+
+    @Test
+    public void testReevaluatePriorities() {
+        final JobStatus job1 = createJob(1, 100);
+        final JobStatus job2 = createJob(2, 200, OTHER_UID);
+        mPriorityQueue.add(job1);
+        mPriorityQueue.add(job2);
+        assertSame(job1, mPriorityQueue.get(0));
+        assertEquals(0, mPriorityQueue.getFgJobCount());
+
+        mUidPriorities.put(OTHER_UID, JobInfo.PRIORITY_TOP_APP);
+        mPriorityQueue.reevaluatePriorities(OTHER_UID);
+
+        assertEquals(2, mPriorityQueue.size());
+        assertSame(job2, mPriorityQueue.get(0));
+        assertSame(job1, mPriorityQueue.get(1));
+        assertEquals(1, mPriorityQueue.getFgJobCount());
+
+        mUidPriorities.delete(OTHER_UID);
+        mPriorityQueue.reevaluatePriorities(OTHER_UID);
+        assertSame(job1, mPriorityQueue.get(0));
+        assertEquals(0, mPriorityQueue.getFgJobCount());
+    }
+
+    @Test
+    public void testGetFgJobCount_afterRemoveAndClear() {
+        mUidPriorities.put(OTHER_UID, JobInfo.PRIORITY_TOP_APP);
+        final JobStatus job1 = createJob(1, 100, OTHER_UID);
+        final JobStatus job2 = createJob(2, 200, OTHER_UID);
+        mQueue.addAll(Arrays.asList(job1, job2, createJob(3, 300)));
+        assertEquals(2, mQueue.getFgJobCount());
+
+        mQueue.remove(job1);
+        assertEquals(1, mQueue.getFgJobCount());
+        mQueue.clear();
+        assertEquals(0, mQueue.getFgJobCount());
+    }
+
+    @Test
+    public void testCountMatching() {
+        final JobStatus job = createJob(1, 100);
+        // Another instance of the same job, e.g. rescheduled while running
+        final JobStatus rescheduled = createJob(1, 200);
+        mQueue.add(rescheduled);
+        mQueue.add(createJob(2, 300));
+
+        assertEquals(1, mQueue.countMatching(job, false /* fg */));
+        assertEquals(0, mQueue.countMatching(job, true /* fg */));
+        assertEquals(0, mQueue.countMatching(createJob(3, 100), false /* fg */));
+    }
+}
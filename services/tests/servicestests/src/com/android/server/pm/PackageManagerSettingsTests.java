@@ -369,6 +369,31 @@ public class PackageManagerSettingsTests {
         assertThat(readPus3.distractionFlags, is(distractionFlags3));
     }
 
+    @Test
+    public void testWritePackageRestrictions_skipsUnchangedUser() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Settings settingsUnderTest = new Settings(context.getFilesDir(), null, new Object());
+        final PackageSetting ps1 = createPackageSetting(PACKAGE_NAME_1);
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, ps1);
+        final File file = new File(context.getFilesDir(),
+                "system/users/0/package-restrictions.xml");
+
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+        assertTrue(file.setLastModified(0));
+
+        // Nothing changed, so the file is left alone
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+        assertThat(file.lastModified(), is(0L));
+
+        ps1.setStopped(true, 0);
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+        assertThat(file.lastModified(), is(not(0L)));
+
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        settingsUnderTest.readPackageRestrictionsLPr(0);
+        assertThat(settingsUnderTest.mPackages.get(PACKAGE_NAME_1).getStopped(0), is(true));
+    }
+
     @Test
     public void testPackageRestrictionsDistractionFlagsDefault() {
         final PackageSetting defaultSetting = createPackageSetting(PACKAGE_NAME_1);
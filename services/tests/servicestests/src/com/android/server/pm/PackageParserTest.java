@@ -119,8 +119,8 @@ public class PackageParserTest {
         assertNotNull(pkg);
 
         // Make sure that we always write out a cache entry for future reference,
-        // whether or not we're asked to use caches.
-        assertEquals(1, mTmpDir.list().length);
+        // whether or not we're asked to use caches. The cache index is also written alongside.
+        assertEquals(1, mTmpDir.list((dir, name) -> !name.startsWith(".")).length);
     }
 
     @Test
@@ -301,9 +301,9 @@ public class PackageParserTest {
                 }
 
                 @Override
-                public ParsedPackage fromCacheEntry(byte[] cacheEntry) {
+                public ParsedPackage fromCacheEntry(byte[] cacheEntry, int length) {
                     return ((ParsedPackage) PackageImpl.forTesting(
-                            new String(cacheEntry, StandardCharsets.UTF_8))
+                            new String(cacheEntry, 0, length, StandardCharsets.UTF_8))
                             .hideAsParsed());
                 }
             };
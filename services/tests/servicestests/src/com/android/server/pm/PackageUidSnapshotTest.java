@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.MATCH_KNOWN_PACKAGES;
+import static android.content.pm.PackageManager.MATCH_SYSTEM_ONLY;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.pm.ApplicationInfo;
+import android.os.Process;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+import android.util.ArrayMap;
+
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+import com.android.server.pm.parsing.pkg.PackageImpl;
+import com.android.server.pm.parsing.pkg.ParsedPackage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@Presubmit
+@RunWith(JUnit4.class)
+public class PackageUidSnapshotTest {
+    private static final int USER_0 = UserHandle.USER_SYSTEM;
+    private static final int USER_10 = 10;
+    private static final int[] USER_IDS = {USER_0, USER_10};
+    private static final int APP_ID = Process.FIRST_APPLICATION_UID;
+    private static final int SHARED_APP_ID = Process.FIRST_APPLICATION_UID + 1;
+
+    private final ArrayMap<String, AndroidPackage> mPackages = new ArrayMap<>();
+    private final ArrayMap<String, PackageSetting> mSettings = new ArrayMap<>();
+    private final SharedUserSetting mSharedUser = new SharedUserSetting("shared", 0, 0);
+
+    @Before
+    public void setUp() {
+        mSharedUser.userId = SHARED_APP_ID;
+        addPackage("com.app", APP_ID, true /*system*/);
+        addPackage("com.shared.one", SHARED_APP_ID, false);
+        addPackage("com.shared.two", SHARED_APP_ID, false);
+        mSharedUser.addPackage(mSettings.get("com.shared.one"));
+        mSharedUser.addPackage(mSettings.get("com.shared.two"));
+        mSettings.get("com.shared.one").sharedUser = mSharedUser;
+        mSettings.get("com.shared.two").sharedUser = mSharedUser;
+        mSettings.get("com.shared.two").setInstalled(false, USER_10);
+
+        // Uninstalled, but its data is kept
+        addPackage("com.known", APP_ID + 2, false);
+        mPackages.remove("com.known");
+    }
+
+    private void addPackage(String packageName, int appId, boolean system) {
+        final AndroidPackage pkg = ((ParsedPackage) PackageImpl.forTesting(packageName)
+                .hideAsParsed())
+                .setUid(appId)
+                .setSystem(system)
+                .hideAsFinal();
+        mPackages.put(packageName, pkg);
+        mSettings.put(packageName, new PackageSettingBuilder()
+                .setPackage(pkg)
+                .setAppId(appId)
+                .setName(packageName)
+                .setCodePath("/")
+                .setResourcePath("/")
+                .setPkgFlags(system ? ApplicationInfo.FLAG_SYSTEM : 0)
+                .build());
+    }
+
+    private PackageUidSnapshot createSnapshot() {
+        return PackageUidSnapshot.create(mPackages, mSettings.values(),
+                Collections.singletonList(mSharedUser), USER_IDS);
+    }
+
+    @Test
+    public void testGetPackageUid() {
+        final PackageUidSnapshot snapshot = createSnapshot();
+        assertEquals(APP_ID, snapshot.getPackageUid("com.app", 0, USER_0));
+        assertEquals(UserHandle.getUid(USER_10, APP_ID),
+                snapshot.getPackageUid("com.app", MATCH_SYSTEM_ONLY, USER_10));
+        assertEquals(-1, snapshot.getPackageUid("com.shared.one", MATCH_SYSTEM_ONLY, USER_0));
+        assertEquals(-1, snapshot.getPackageUid("com.unknown", 0, USER_0));
+    }
+
+    @Test
+    public void testGetPackageUid_knownPackages() {
+        final PackageUidSnapshot snapshot = createSnapshot();
+        assertEquals(-1, snapshot.getPackageUid("com.known", 0, USER_0));
+        assertEquals(APP_ID + 2, snapshot.getPackageUid("com.known", MATCH_KNOWN_PACKAGES,
+                USER_0));
+    }
+
+    @Test
+    public void testGetPackagesForUid() {
+        final PackageUidSnapshot snapshot = createSnapshot();
+        assertArrayEquals(new String[] {"com.app"}, snapshot.getPackagesForUid(APP_ID));
+        // Shared packages come in the order of the shared user
+        final String[] shared = snapshot.getPackagesForUid(SHARED_APP_ID);
+        Arrays.sort(shared);
+        assertArrayEquals(new String[] {"com.shared.one", "com.shared.two"}, shared);
+        assertArrayEquals(new String[] {"com.shared.one"},
+                snapshot.getPackagesForUid(UserHandle.getUid(USER_10, SHARED_APP_ID)));
+        assertNull(snapshot.getPackagesForUid(APP_ID + 3));
+    }
+
+    @Test
+    public void testGetPackagesForUid_notInstalled() {
+        mSettings.get("com.app").setInstalled(false, USER_10);
+        final PackageUidSnapshot snapshot = createSnapshot();
+        assertNull(snapshot.getPackagesForUid(UserHandle.getUid(USER_10, APP_ID)));
+    }
+
+    @Test
+    public void testGetPackagesForUid_matchesLockedPath() {
+        mSettings.get("com.shared.one").setInstalled(false, USER_10);
+        final PackageUidSnapshot snapshot = createSnapshot();
+
+        // An unknown app id
+        assertArrayEquals(PackageManagerService.getInstalledPackagesForSetting(null, USER_0),
+                snapshot.getPackagesForUid(APP_ID + 3));
+        // A shared user, with and without installed packages for the user
+        for (int userId : USER_IDS) {
+            final int uid = UserHandle.getUid(userId, SHARED_APP_ID);
+            assertArrayEquals(
+                    PackageManagerService.getInstalledPackagesForSetting(mSharedUser, userId),
+                    snapshot.getPackagesForUid(uid));
+        }
+        assertNull(snapshot.getPackagesForUid(UserHandle.getUid(USER_10, SHARED_APP_ID)));
+    }
+
+    @Test
+    public void testIsImmutable() {
+        final PackageUidSnapshot snapshot = createSnapshot();
+        mSettings.get("com.app").setInstalled(false, USER_0);
+        mPackages.remove("com.app");
+        assertEquals(APP_ID, snapshot.getPackageUid("com.app", 0, USER_0));
+        assertArrayEquals(new String[] {"com.app"}, snapshot.getPackagesForUid(APP_ID));
+    }
+}
@@ -16,6 +16,11 @@
 
 package com.android.server.pm;
 
+import static org.mockito.Mockito.mock;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser.PackageParserException;
+import android.content.pm.PackageParser.SigningDetails;
 import android.platform.test.annotations.Presubmit;
 import android.util.Log;
 
@@ -32,7 +37,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
@@ -74,6 +81,48 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testCollectCertificates() {
+        final ParsedPackage collected = mock(ParsedPackage.class);
+        final ParsedPackage notCollected = mock(ParsedPackage.class);
+        final ParsedPackage broken = mock(ParsedPackage.class);
+        final Map<String, ParsedPackage> packages = new HashMap<>();
+        packages.put("collected", collected);
+        packages.put("notCollected", notCollected);
+        packages.put("broken", broken);
+        final ParallelPackageParser parser = new ParallelPackageParser(
+                new TestPackageParser2(), ParallelPackageParser.makeExecutorService(),
+                pkg -> pkg != notCollected) {
+            @Override
+            protected ParsedPackage parsePackage(File scanFile, int parseFlags) {
+                return packages.get(scanFile.getName());
+            }
+
+            @Override
+            protected SigningDetails collectCertificates(ParsedPackage parsedPackage,
+                    boolean skipVerify) throws PackageParserException {
+                if (parsedPackage == broken) {
+                    throw new PackageParserException(
+                            PackageManager.INSTALL_PARSE_FAILED_NO_CERTIFICATES, "broken");
+                }
+                return SigningDetails.UNKNOWN;
+            }
+        };
+        for (String name : packages.keySet()) {
+            parser.submit(new File(name), 0);
+        }
+        for (int i = 0; i < packages.size(); i++) {
+            final ParallelPackageParser.ParseResult result = parser.take();
+            Assert.assertNull(result.throwable);
+            if (result.parsedPackage == collected) {
+                Assert.assertSame(SigningDetails.UNKNOWN, result.signingDetails);
+            } else {
+                // Packages whose certificates failed to be collected are still scanned
+                Assert.assertNull(result.signingDetails);
+            }
+        }
+    }
+
     private class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser(PackageParser2 packageParser, ExecutorService executorService) {
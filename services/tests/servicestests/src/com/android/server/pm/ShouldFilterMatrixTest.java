@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static com.android.server.pm.ShouldFilterMatrix.FILTERED;
+import static com.android.server.pm.ShouldFilterMatrix.UNKNOWN_CALLER;
+import static com.android.server.pm.ShouldFilterMatrix.UNKNOWN_TARGET;
+import static com.android.server.pm.ShouldFilterMatrix.VISIBLE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Process;
+import android.os.UserHandle;
+import android.platform.test.annotations.Presubmit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@Presubmit
+@RunWith(JUnit4.class)
+public class ShouldFilterMatrixTest {
+    private static final int SYSTEM_USER = 0;
+    private static final int SECONDARY_USER = 10;
+    private static final int[] USERS = {SYSTEM_USER, SECONDARY_USER};
+
+    private static final int APP_A = 10345;
+    private static final int APP_B = 10556;
+    private static final int APP_C = 10656;
+
+    @Test
+    public void testPutAndGet() {
+        final ShouldFilterMatrix matrix = new ShouldFilterMatrix(USERS, 2);
+        matrix.put(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_B), false);
+        matrix.put(uid(SYSTEM_USER, APP_B), uid(SYSTEM_USER, APP_A), true);
+        matrix.publish();
+
+        assertEquals(VISIBLE, matrix.get(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_B)));
+        assertEquals(FILTERED, matrix.get(uid(SYSTEM_USER, APP_B), uid(SYSTEM_USER, APP_A)));
+        // Pairs that were never computed default to filtered
+        assertEquals(FILTERED, matrix.get(uid(SECONDARY_USER, APP_A), uid(SYSTEM_USER, APP_B)));
+    }
+
+    @Test
+    public void testUnknownUids() {
+        final ShouldFilterMatrix matrix = new ShouldFilterMatrix(USERS, 2);
+        matrix.put(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_B), false);
+        matrix.publish();
+
+        assertEquals(UNKNOWN_CALLER, matrix.get(uid(SYSTEM_USER, APP_C), uid(SYSTEM_USER, APP_A)));
+        assertEquals(UNKNOWN_TARGET, matrix.get(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_C)));
+        // Users that aren't part of the matrix are unknown too
+        assertEquals(UNKNOWN_CALLER, matrix.get(uid(11, APP_A), uid(SYSTEM_USER, APP_B)));
+        // As are non-application uids, which are never stored
+        matrix.put(Process.SYSTEM_UID, uid(SYSTEM_USER, APP_A), false);
+        assertFalse(matrix.containsAppId(Process.SYSTEM_UID));
+    }
+
+    @Test
+    public void testRemoveAndReuse() {
+        final ShouldFilterMatrix matrix = new ShouldFilterMatrix(USERS, 2);
+        matrix.put(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_B), false);
+        matrix.put(uid(SYSTEM_USER, APP_B), uid(SYSTEM_USER, APP_A), false);
+        matrix.removeAppId(APP_B);
+        matrix.publish();
+
+        assertFalse(matrix.containsAppId(APP_B));
+        assertTrue(matrix.containsAppId(APP_A));
+        assertEquals(UNKNOWN_TARGET, matrix.get(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_B)));
+
+        // APP_C must not inherit APP_B's visibility
+        matrix.put(uid(SYSTEM_USER, APP_C), uid(SECONDARY_USER, APP_A), false);
+        matrix.publish();
+        assertEquals(FILTERED, matrix.get(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_C)));
+        assertEquals(FILTERED, matrix.get(uid(SYSTEM_USER, APP_C), uid(SYSTEM_USER, APP_A)));
+        assertEquals(VISIBLE, matrix.get(uid(SYSTEM_USER, APP_C), uid(SECONDARY_USER, APP_A)));
+    }
+
+    @Test
+    public void testReuseSlotOfRemovedAppId() {
+        final ShouldFilterMatrix matrix = new ShouldFilterMatrix(USERS, 1);
+        final int capacity = matrix.getSlotCapacity();
+        // Fill every slot, APP_A's included, with APP_A visible to the last appId
+        final int lastAppId = Process.FIRST_APPLICATION_UID + capacity - 2;
+        for (int i = 0; i < capacity - 1; i++) {
+            final int appId = Process.FIRST_APPLICATION_UID + i;
+            matrix.put(uid(SYSTEM_USER, appId), uid(SYSTEM_USER, APP_A), appId != lastAppId);
+        }
+        matrix.put(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, lastAppId), false);
+        matrix.publish();
+        assertEquals(capacity, matrix.getSlotCapacity());
+
+        // A different appId added after the removal takes the freed slot without growing
+        matrix.removeAppId(lastAppId);
+        matrix.put(uid(SYSTEM_USER, APP_C), uid(SECONDARY_USER, APP_A), false);
+        matrix.publish();
+
+        assertEquals(capacity, matrix.getSlotCapacity());
+        assertFalse(matrix.containsAppId(lastAppId));
+        assertEquals(UNKNOWN_CALLER,
+                matrix.get(uid(SYSTEM_USER, lastAppId), uid(SYSTEM_USER, APP_A)));
+        // None of the removed appId's visibility carries over to the new one
+        assertEquals(FILTERED, matrix.get(uid(SYSTEM_USER, APP_C), uid(SYSTEM_USER, APP_A)));
+        assertEquals(FILTERED, matrix.get(uid(SYSTEM_USER, APP_A), uid(SYSTEM_USER, APP_C)));
+        assertEquals(VISIBLE, matrix.get(uid(SYSTEM_USER, APP_C), uid(SECONDARY_USER, APP_A)));
+        // And the other appIds keep theirs
+        assertEquals(FILTERED, matrix.get(uid(SYSTEM_USER, Process.FIRST_APPLICATION_UID),
+                uid(SYSTEM_USER, APP_A)));
+    }
+
+    @Test
+    public void testGrowPreservesValues() {
+        final int count = 100;
+        final ShouldFilterMatrix matrix = new ShouldFilterMatrix(USERS, 1);
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < i; j++) {
+                for (int su : USERS) {
+                    for (int ou : USERS) {
+                        final int a = uid(su, Process.FIRST_APPLICATION_UID + i);
+                        final int b = uid(ou, Process.FIRST_APPLICATION_UID + j);
+                        matrix.put(a, b, expected(a, b));
+                        matrix.put(b, a, expected(b, a));
+                    }
+                }
+            }
+        }
+        matrix.publish();
+
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                if (i == j) continue;
+                for (int su : USERS) {
+                    for (int ou : USERS) {
+                        final int a = uid(su, Process.FIRST_APPLICATION_UID + i);
+                        final int b = uid(ou, Process.FIRST_APPLICATION_UID + j);
+                        assertEquals(expected(a, b) ? FILTERED : VISIBLE, matrix.get(a, b));
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean expected(int callingUid, int targetUid) {
+        return ((callingUid * 31 + targetUid) % 3) == 0;
+    }
+
+    private static int uid(int userId, int appId) {
+        return UserHandle.getUid(userId, appId);
+    }
+}
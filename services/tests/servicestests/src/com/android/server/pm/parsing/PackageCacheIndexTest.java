@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm.parsing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+import android.platform.test.annotations.Presubmit;
+import android.system.Os;
+import android.system.StructStat;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Test class for {@link PackageCacheIndex}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:PackageCacheIndexTest
+ */
+@Presubmit
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageCacheIndexTest {
+    private static final byte[] CACHE_ENTRY = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    private File mCacheDir;
+    private File mPackageFile;
+
+    @Before
+    public void setUp() throws Exception {
+        final File root = InstrumentationRegistry.getContext().getCacheDir();
+        mCacheDir = new File(root, "PackageCacheIndexTest");
+        FileUtils.deleteContentsAndDir(mCacheDir);
+        assertTrue(mCacheDir.mkdirs());
+        mPackageFile = new File(root, "PackageCacheIndexTest.apk");
+        writePackageFile(4);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mCacheDir);
+        mPackageFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final StructStat stat = Os.stat(mPackageFile.getAbsolutePath());
+        PackageCacheIndex index = new PackageCacheIndex(mCacheDir);
+        index.put("a-0", stat, CACHE_ENTRY);
+        index.put("b-0", stat, CACHE_ENTRY);
+        index.remove("b-0");
+
+        index = new PackageCacheIndex(mCacheDir);
+        final PackageCacheIndex.Entry entry = index.get("a-0");
+        assertNotNull(entry);
+        assertTrue(entry.matches(stat));
+        assertTrue(entry.matchesCacheEntry(CACHE_ENTRY, CACHE_ENTRY.length));
+        assertNull(index.get("b-0"));
+    }
+
+    @Test
+    public void testTornAppend() throws Exception {
+        final StructStat stat = Os.stat(mPackageFile.getAbsolutePath());
+        PackageCacheIndex index = new PackageCacheIndex(mCacheDir);
+        index.put("a-0", stat, CACHE_ENTRY);
+        index.put("b-0", stat, CACHE_ENTRY);
+
+        // Lose the end of the last record, as an unclean shutdown may
+        final File indexFile = new File(mCacheDir, PackageCacheIndex.INDEX_FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        index = new PackageCacheIndex(mCacheDir);
+        assertNotNull(index.get("a-0"));
+        assertNull(index.get("b-0"));
+
+        // The journal was rewritten without the torn record, so appending to it works again
+        index.put("c-0", stat, CACHE_ENTRY);
+        index = new PackageCacheIndex(mCacheDir);
+        assertNotNull(index.get("a-0"));
+        assertNull(index.get("b-0"));
+        assertNotNull(index.get("c-0"));
+    }
+
+    @Test
+    public void testStaleEntry() throws Exception {
+        final PackageCacheIndex index = new PackageCacheIndex(mCacheDir);
+        index.put("a-0", Os.stat(mPackageFile.getAbsolutePath()), CACHE_ENTRY);
+
+        writePackageFile(8);
+        final PackageCacheIndex.Entry entry = index.get("a-0");
+        assertNotNull(entry);
+        assertFalse(entry.matches(Os.stat(mPackageFile.getAbsolutePath())));
+    }
+
+    @Test
+    public void testCacheEntryMismatch() throws Exception {
+        final PackageCacheIndex index = new PackageCacheIndex(mCacheDir);
+        index.put("a-0", Os.stat(mPackageFile.getAbsolutePath()), CACHE_ENTRY);
+        final PackageCacheIndex.Entry entry = index.get("a-0");
+
+        // A cache file whose contents didn't all make it to disk
+        assertFalse(entry.matchesCacheEntry(CACHE_ENTRY, CACHE_ENTRY.length - 1));
+        final byte[] corrupted = CACHE_ENTRY.clone();
+        corrupted[3] = 0;
+        assertFalse(entry.matchesCacheEntry(corrupted, corrupted.length));
+        assertEquals(CACHE_ENTRY.length, entry.cacheLength);
+    }
+
+    private void writePackageFile(int length) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mPackageFile)) {
+            out.write(new byte[length]);
+        }
+    }
+}
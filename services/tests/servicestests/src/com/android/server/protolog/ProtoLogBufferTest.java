@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.protolog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Test class for {@link ProtoLogBuffer}.
+ */
+@SmallTest
+@Presubmit
+@RunWith(JUnit4.class)
+public class ProtoLogBufferTest {
+
+    private static byte[] write(ProtoLogBuffer buffer) throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        buffer.writeTo(os);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void writeTo_ordersMessagesOfAllThreadsByTime() throws Exception {
+        final ProtoLogBuffer buffer = new ProtoLogBuffer(1024);
+        final Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            final byte value = (byte) i;
+            threads[i] = new Thread(() -> {
+                buffer.add(value, new byte[] {value});
+                buffer.add(value + 10, new byte[] {(byte) (value + 10)});
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(12, buffer.size());
+        assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 10, 11, 12, 13, 14, 15}, write(buffer));
+    }
+
+    @Test
+    public void add_outOfOrder() throws Exception {
+        final ProtoLogBuffer buffer = new ProtoLogBuffer(1024);
+        buffer.add(2, new byte[] {2});
+        buffer.add(1, new byte[] {1});
+        buffer.add(3, new byte[] {3});
+        assertArrayEquals(new byte[] {1, 2, 3}, write(buffer));
+    }
+
+    @Test
+    public void add_discardsOldest() throws Exception {
+        final ProtoLogBuffer buffer = new ProtoLogBuffer(4);
+        for (byte i = 0; i < 40; i++) {
+            buffer.add(i, new byte[] {i, i});
+        }
+        assertArrayEquals(new byte[] {38, 38, 39, 39}, write(buffer));
+    }
+
+    @Test
+    public void add_oneThreadUsesWholeCapacity() throws Exception {
+        final ProtoLogBuffer buffer = new ProtoLogBuffer(16);
+        for (byte i = 0; i < 8; i++) {
+            buffer.add(i, new byte[] {i, i});
+        }
+        assertEquals(8, buffer.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void add_tooLarge() {
+        new ProtoLogBuffer(4).add(0, new byte[5]);
+    }
+
+    @Test
+    public void reset() throws Exception {
+        final ProtoLogBuffer buffer = new ProtoLogBuffer(1024);
+        buffer.add(1, new byte[] {1});
+        buffer.reset();
+        assertEquals(0, buffer.size());
+        assertArrayEquals(new byte[0], write(buffer));
+    }
+}
@@ -719,4 +719,63 @@ public class UsageStatsDatabaseTest {
         verifyPackageDataIsNotRemoved(newDB, UsageStatsManager.INTERVAL_MONTHLY, installedPackages);
         verifyPackageDataIsNotRemoved(newDB, UsageStatsManager.INTERVAL_YEARLY, installedPackages);
     }
+
+    @Test
+    public void testReadFilterSkipEvents() throws IOException {
+        final int interval = UsageStatsManager.INTERVAL_DAILY;
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+        List<IntervalStats> stats = mUsageStatsDatabase.queryUsageStats(interval, 0, mEndTime,
+                mIntervalStatsVerifier, UsageStatsDatabase.ReadFilter.SKIP_EVENTS);
+
+        assertEquals(1, stats.size());
+        final IntervalStats stat = stats.get(0);
+        assertEquals(0, stat.events.size());
+        assertEquals(mIntervalStats.endTime, stat.endTime);
+        assertEquals(mIntervalStats.interactiveTracker.count, stat.interactiveTracker.count);
+        assertEquals(mIntervalStats.packageStats.size(), stat.packageStats.size());
+        assertEquals(mIntervalStats.configurations.size(), stat.configurations.size());
+    }
+
+    @Test
+    public void testReadFilterEventsOnly() throws IOException {
+        final int interval = UsageStatsManager.INTERVAL_DAILY;
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+
+        // Only ask for the middle third of the events of a single package
+        final long beginTime = mIntervalStats.events.get(mIntervalStats.events.size() / 3)
+                .mTimeStamp;
+        final long endTime = mIntervalStats.events.get(mIntervalStats.events.size() * 2 / 3)
+                .mTimeStamp;
+        final String packageName = "fake.package.name2";
+        List<IntervalStats> stats = mUsageStatsDatabase.queryUsageStats(interval, 0, mEndTime,
+                mIntervalStatsVerifier,
+                UsageStatsDatabase.ReadFilter.eventsOnly(beginTime, endTime, packageName));
+
+        assertEquals(1, stats.size());
+        final IntervalStats stat = stats.get(0);
+        assertEquals(0, stat.packageStats.size());
+        assertEquals(0, stat.configurations.size());
+
+        int expected = 0;
+        for (int i = 0; i < mIntervalStats.events.size(); i++) {
+            final Event event = mIntervalStats.events.get(i);
+            if (event.mTimeStamp >= beginTime && event.mTimeStamp < endTime
+                    && packageName.equals(event.mPackage)) {
+                compareUsageEvent(event, stat.events.get(expected), expected, MAX_TESTED_VERSION);
+                expected++;
+            }
+        }
+        assertEquals(expected, stat.events.size());
+    }
+
+    @Test
+    public void testReadFilterUnknownPackage() throws IOException {
+        final int interval = UsageStatsManager.INTERVAL_DAILY;
+        mUsageStatsDatabase.putUsageStats(interval, mIntervalStats);
+        List<IntervalStats> stats = mUsageStatsDatabase.queryUsageStats(interval, 0, mEndTime,
+                mIntervalStatsVerifier,
+                UsageStatsDatabase.ReadFilter.eventsOnly(0, mEndTime, "not.a.package"));
+
+        assertEquals(0, stats.size());
+    }
 }
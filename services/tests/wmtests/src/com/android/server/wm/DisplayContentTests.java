@@ -77,6 +77,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyFloat;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
@@ -102,6 +103,7 @@ import android.view.IDisplayWindowRotationCallback;
 import android.view.IDisplayWindowRotationController;
 import android.view.ISystemGestureExclusionListener;
 import android.view.IWindowManager;
+import android.view.MagnificationSpec;
 import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.SurfaceControl.Transaction;
@@ -1493,6 +1495,31 @@ public class DisplayContentTests extends WindowTestsBase {
         assertFalse(publicDc.forceDesktopMode());
     }
 
+    @Test
+    public void testApplyMagnificationSpec_appliedOnceInPrepareSurfaces() {
+        final DisplayContent dc = createNewDisplay();
+        createWindow(null, TYPE_APPLICATION, dc, "app");
+        final Transaction t = dc.getPendingTransaction();
+        clearInvocations(t);
+
+        final MagnificationSpec spec = MagnificationSpec.obtain();
+        spec.initialize(2f, 0f, 0f);
+        dc.applyMagnificationSpec(spec);
+        final MagnificationSpec newSpec = MagnificationSpec.obtain();
+        newSpec.initialize(3f, 0f, 0f);
+        dc.applyMagnificationSpec(newSpec);
+        verify(t, never()).setMatrix(any(), anyFloat(), anyFloat(), anyFloat(), anyFloat());
+
+        // Only the latest spec is applied to the surfaces, when the frame is prepared.
+        dc.prepareSurfaces();
+        verify(t, never()).setMatrix(any(), eq(2f), eq(0f), eq(0f), eq(2f));
+        verify(t, atLeastOnce()).setMatrix(any(), eq(3f), eq(0f), eq(0f), eq(3f));
+
+        clearInvocations(t);
+        dc.prepareSurfaces();
+        verify(t, never()).setMatrix(any(), eq(3f), eq(0f), eq(0f), eq(3f));
+    }
+
     private boolean isOptionsPanelAtRight(int displayId) {
         return (mWm.getPreferredOptionsPanelGravity(displayId) & Gravity.RIGHT) == Gravity.RIGHT;
     }
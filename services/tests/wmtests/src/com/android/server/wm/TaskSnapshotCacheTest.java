@@ -124,6 +124,113 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
                 true /* restoreFromDisk */, false /* isLowResolution */));
     }
 
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // Each snapshot buffer is 100x100 RGBA_8888, so the cache fits two of them
+        mCache = new TaskSnapshotCache(mWm, mLoader, 2 * 100 * 100 * 4);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        final int taskId1 = window1.getTask().mTaskId;
+        final int taskId2 = window2.getTask().mTaskId;
+        final int taskId3 = window3.getTask().mTaskId;
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        // Use the first one, so that the second one is the least recently used
+        assertNotNull(mCache.getSnapshot(taskId1, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        mCache.putSnapshot(window3.getTask(), createSnapshot());
+
+        assertNotNull(mCache.getSnapshot(taskId1, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertNull(mCache.getSnapshot(taskId2, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertNotNull(mCache.getSnapshot(taskId3, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+
+        // Removing the app of the evicted snapshot doesn't affect the others
+        mCache.onAppRemoved(window2.mActivityRecord);
+        assertNotNull(mCache.getSnapshot(taskId1, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertNotNull(mCache.getSnapshot(taskId3, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+    }
+
+    @Test
+    public void testStartingWindowSnapshotAfterEviction() {
+        // The cache only fits one snapshot
+        mCache = new TaskSnapshotCache(mWm, mLoader, 100 * 100 * 4);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final Task task1 = window1.getTask();
+        final TaskSnapshot snapshot = createSnapshot();
+        mCache.putSnapshot(task1, snapshot);
+        mPersister.persistSnapshot(task1.mTaskId, task1.mUserId, snapshot);
+        mPersister.waitForQueueEmpty();
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        assertNull(mCache.getSnapshot(task1.mTaskId, task1.mUserId,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+
+        // The starting window still gets the metadata of the evicted snapshot...
+        final TaskSnapshot evicted = mCache.getStartingWindowSnapshot(task1.mTaskId);
+        assertNotNull(evicted);
+        assertNull(evicted.getSnapshot());
+        assertEquals(snapshot.getId(), evicted.getId());
+        assertEquals(snapshot.getRotation(), evicted.getRotation());
+        assertEquals(snapshot.getOrientation(), evicted.getOrientation());
+
+        // ...and its buffer from disk
+        final TaskSnapshot restored = mCache.restoreEvictedSnapshot(task1.mTaskId,
+                task1.mUserId, evicted);
+        assertNotNull(restored);
+        assertNotNull(restored.getSnapshot());
+
+        // Removing the app drops the evicted snapshot too
+        mCache.onAppRemoved(window1.mActivityRecord);
+        assertNull(mCache.getStartingWindowSnapshot(task1.mTaskId));
+    }
+
+    @Test
+    public void testRestoreEvictedSnapshot_notPersisted() {
+        mCache = new TaskSnapshotCache(mWm, mLoader, 100 * 100 * 4);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final Task task1 = window1.getTask();
+        mCache.putSnapshot(task1, createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+
+        final TaskSnapshot evicted = mCache.getStartingWindowSnapshot(task1.mTaskId);
+        assertNotNull(evicted);
+        assertNull(mCache.restoreEvictedSnapshot(task1.mTaskId, task1.mUserId, evicted));
+    }
+
+    @Test
+    public void testKeepsSnapshotLargerThanCache() {
+        mCache = new TaskSnapshotCache(mWm, mLoader, 100 * 100);
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final TaskSnapshot snapshot = createSnapshot();
+        mCache.putSnapshot(window.getTask(), snapshot);
+
+        // Recents reads the snapshot back right after taking it
+        assertEquals(snapshot, mCache.getSnapshot(window.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+    }
+
+    @Test
+    public void testReplaceSnapshot() {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mCache.putSnapshot(window.getTask(), createSnapshot());
+        final TaskSnapshot snapshot = createSnapshot();
+        mCache.putSnapshot(window.getTask(), snapshot);
+        assertEquals(snapshot, mCache.getSnapshot(window.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+
+        // The top app still maps to the replacing snapshot
+        mCache.onAppRemoved(window.mActivityRecord);
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+    }
+
     @Test
     public void testClearCache() {
         final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
@@ -23,6 +23,7 @@ import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSess
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -31,6 +32,7 @@ import static org.mockito.Mockito.when;
 import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
 import android.content.res.Configuration;
+import android.graphics.Color;
 import android.graphics.Rect;
 import android.os.SystemClock;
 import android.platform.test.annotations.Presubmit;
@@ -84,6 +86,48 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(Configuration.ORIENTATION_PORTRAIT, snapshot.getOrientation());
     }
 
+    @Test
+    public void testPersistUnchangedSnapshot_skipsBitmaps() {
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final File proto = new File(FILES_DIR.getPath() + "/snapshots/1.proto");
+        final File bitmap = new File(FILES_DIR.getPath() + "/snapshots/1.jpg");
+        final File lowResBitmap = new File(FILES_DIR.getPath() + "/snapshots/1_reduced.jpg");
+        assertTrue(bitmap.setLastModified(0));
+        assertTrue(lowResBitmap.setLastModified(0));
+
+        // Same content, only the proto is written
+        mPersister.persistSnapshot(1, mTestUserId, new TaskSnapshotBuilder()
+                .setRotation(Surface.ROTATION_90)
+                .build());
+        mPersister.waitForQueueEmpty();
+        assertEquals(0, bitmap.lastModified());
+        assertEquals(0, lowResBitmap.lastModified());
+        assertEquals(Surface.ROTATION_90, mLoader.loadTask(1, mTestUserId,
+                false /* isLowResolution */).getRotation());
+        assertTrue(proto.exists());
+
+        // Different content
+        mPersister.persistSnapshot(1, mTestUserId, new TaskSnapshotBuilder()
+                .setColor(Color.BLUE)
+                .build());
+        mPersister.waitForQueueEmpty();
+        assertNotEquals(0, bitmap.lastModified());
+        assertNotEquals(0, lowResBitmap.lastModified());
+    }
+
+    @Test
+    public void testPersistUnchangedSnapshot_rewritesDeletedBitmaps() {
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final File bitmap = new File(FILES_DIR.getPath() + "/snapshots/1.jpg");
+        assertTrue(bitmap.delete());
+
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        assertTrue(bitmap.exists());
+    }
+
     @Test
     public void testTaskRemovedFromRecents() {
         mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
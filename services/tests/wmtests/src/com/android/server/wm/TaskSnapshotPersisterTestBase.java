@@ -153,6 +153,7 @@ class TaskSnapshotPersisterTestBase extends WindowTestsBase {
         private int mWindowingMode = WINDOWING_MODE_FULLSCREEN;
         private int mSystemUiVisibility = 0;
         private int mRotation = Surface.ROTATION_0;
+        private int mColor = Color.RED;
 
         TaskSnapshotBuilder() {
         }
@@ -187,6 +188,11 @@ class TaskSnapshotPersisterTestBase extends WindowTestsBase {
             return this;
         }
 
+        TaskSnapshotBuilder setColor(int color) {
+            mColor = color;
+            return this;
+        }
+
         TaskSnapshot build() {
             // To satisfy existing tests, ensure the graphics buffer is always 100x100, and
             // compute the ize of the task according to mScaleFraction.
@@ -196,7 +202,7 @@ class TaskSnapshotPersisterTestBase extends WindowTestsBase {
                     PixelFormat.RGBA_8888,
                     USAGE_HW_TEXTURE | USAGE_SW_READ_RARELY | USAGE_SW_READ_RARELY);
             Canvas c = buffer.lockCanvas();
-            c.drawColor(Color.RED);
+            c.drawColor(mColor);
             buffer.unlockCanvasAndPost(c);
             return new TaskSnapshot(MOCK_SNAPSHOT_ID, new ComponentName("", ""), buffer,
                     ColorSpace.get(ColorSpace.Named.SRGB), ORIENTATION_PORTRAIT,
@@ -54,6 +54,7 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Test class for {@link WindowTracing}.
@@ -128,6 +129,34 @@ public class WindowTracingTest {
         verify(mWmMock, times(2)).dumpDebugLocked(any(), eq(WindowTraceLogLevel.TRIM));
     }
 
+    @Test
+    public void trace_skipsUnchangedState() throws Exception {
+        mWindowTracing.startTrace(mock(PrintWriter.class));
+        mWindowTracing.logState("where");
+        mWindowTracing.logState("where");
+        mWindowTracing.waitForSerializer();
+        verify(mWmMock, times(3)).dumpDebugLocked(any(), eq(WindowTraceLogLevel.TRIM));
+        assertEquals(2, mWindowTracing.getUnchangedStateCount());
+    }
+
+    @Test
+    public void trace_dropsStateLargerThanBuffer() throws Exception {
+        final char[] where = new char[2048];
+        Arrays.fill(where, 'a');
+        doAnswer(inv -> {
+            inv.<ProtoOutputStream>getArgument(0).write(
+                    WindowManagerTraceProto.WHERE, new String(where));
+            return null;
+        }).when(mWmMock).dumpDebugLocked(any(), any());
+
+        mWindowTracing.startTrace(mock(PrintWriter.class));
+        mWindowTracing.logState("where");
+        mWindowTracing.waitForSerializer();
+        verify(mWmMock, times(2)).dumpDebugLocked(any(), eq(WindowTraceLogLevel.TRIM));
+        assertEquals(2, mWindowTracing.getDroppedStateCount());
+        assertEquals(0, mWindowTracing.getUnchangedStateCount());
+    }
+
     @Test
     public void traceFile_startsWithMagicHeader() throws Exception {
         mWindowTracing.startTrace(mock(PrintWriter.class));
@@ -801,11 +801,63 @@ public class UsageStatsDatabase {
         void combine(IntervalStats stats, boolean mutable, List<T> accumulatedResult);
     }
 
+    /**
+     * Describes which parts of each {@link IntervalStats} a query needs. The parts a filter
+     * excludes are skipped over while reading from disk instead of being parsed, so a combiner
+     * must not rely on them being present.
+     */
+    public static final class ReadFilter {
+        /** Reads everything. */
+        public static final ReadFilter ALL = new ReadFilter(false, false, Long.MIN_VALUE,
+                Long.MAX_VALUE, null);
+
+        /** Reads everything but the event log, for queries over aggregated stats. */
+        public static final ReadFilter SKIP_EVENTS = new ReadFilter(false, true, Long.MIN_VALUE,
+                Long.MAX_VALUE, null);
+
+        /** Whether to skip package, configuration and event stats. */
+        final boolean skipStats;
+        /** Whether to skip the event log. */
+        final boolean skipEvents;
+        /** Events before this time are skipped. */
+        final long eventsBeginTime;
+        /** Events at or after this time are skipped. */
+        final long eventsEndTime;
+        /** If non-null, events of any other package are skipped. */
+        final String eventsPackage;
+
+        private ReadFilter(boolean skipStats, boolean skipEvents, long eventsBeginTime,
+                long eventsEndTime, String eventsPackage) {
+            this.skipStats = skipStats;
+            this.skipEvents = skipEvents;
+            this.eventsBeginTime = eventsBeginTime;
+            this.eventsEndTime = eventsEndTime;
+            this.eventsPackage = eventsPackage;
+        }
+
+        /**
+         * Reads only the events between {@code beginTime} (inclusive) and {@code endTime}
+         * (exclusive) and, if {@code packageName} is non-null, only those of that package.
+         */
+        public static ReadFilter eventsOnly(long beginTime, long endTime, String packageName) {
+            return new ReadFilter(true, false, beginTime, endTime, packageName);
+        }
+    }
+
     /**
      * Find all {@link IntervalStats} for the given range and interval type.
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, combiner, ReadFilter.ALL);
+    }
+
+    /**
+     * Find all {@link IntervalStats} for the given range and interval type, only reading the
+     * parts of each one that are needed by {@code filter}.
+     */
+    public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            StatCombiner<T> combiner, ReadFilter filter) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -849,6 +901,20 @@ public class UsageStatsDatabase {
             }
 
             final ArrayList<T> results = new ArrayList<>();
+            int eventsPackageToken = PackagesTokenData.UNASSIGNED_TOKEN;
+            if (filter.eventsPackage != null && mCurrentVersion >= 5) {
+                final ArrayMap<String, Integer> packageTokens =
+                        mPackagesTokenData.packagesToTokensMap.get(filter.eventsPackage);
+                if (packageTokens != null) {
+                    eventsPackageToken = packageTokens.getOrDefault(filter.eventsPackage,
+                            PackagesTokenData.UNASSIGNED_TOKEN);
+                }
+                if (eventsPackageToken == PackagesTokenData.UNASSIGNED_TOKEN
+                        && filter.skipStats) {
+                    // The package has no token, so no file can hold any of its events
+                    return results;
+                }
+            }
             for (int i = startIndex; i <= endIndex; i++) {
                 final AtomicFile f = intervalStats.valueAt(i);
                 final IntervalStats stats = new IntervalStats();
@@ -858,7 +924,7 @@ public class UsageStatsDatabase {
                 }
 
                 try {
-                    readLocked(f, stats);
+                    readLocked(f, stats, filter, eventsPackageToken);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -1068,11 +1134,21 @@ public class UsageStatsDatabase {
      */
     private void readLocked(AtomicFile file, IntervalStats statsOut)
             throws IOException, RuntimeException {
+        readLocked(file, statsOut, ReadFilter.ALL, PackagesTokenData.UNASSIGNED_TOKEN);
+    }
+
+    /**
+     * Same as {@link #readLocked(AtomicFile, IntervalStats)}, but only reads the parts of the
+     * file needed by {@code filter} when the current version supports it.
+     */
+    private void readLocked(AtomicFile file, IntervalStats statsOut, ReadFilter filter,
+            int eventsPackageToken) throws IOException, RuntimeException {
         if (mCurrentVersion <= 3) {
             Slog.wtf(TAG, "Reading UsageStats as XML; current database version: "
                     + mCurrentVersion);
         }
-        readLocked(file, statsOut, mCurrentVersion, mPackagesTokenData);
+        readLocked(file, statsOut, mCurrentVersion, mPackagesTokenData, filter,
+                eventsPackageToken);
     }
 
     /**
@@ -1084,12 +1160,20 @@ public class UsageStatsDatabase {
      */
     private static boolean readLocked(AtomicFile file, IntervalStats statsOut, int version,
             PackagesTokenData packagesTokenData) throws IOException, RuntimeException {
+        return readLocked(file, statsOut, version, packagesTokenData, ReadFilter.ALL,
+                PackagesTokenData.UNASSIGNED_TOKEN);
+    }
+
+    private static boolean readLocked(AtomicFile file, IntervalStats statsOut, int version,
+            PackagesTokenData packagesTokenData, ReadFilter filter, int eventsPackageToken)
+            throws IOException, RuntimeException {
         boolean dataOmitted = false;
         try {
             FileInputStream in = file.openRead();
             try {
                 statsOut.beginTime = parseBeginTime(file);
-                dataOmitted = readLocked(in, statsOut, version, packagesTokenData);
+                dataOmitted = readLocked(in, statsOut, version, packagesTokenData, filter,
+                        eventsPackageToken);
                 statsOut.lastTimeSaved = file.getLastModifiedTime();
             } finally {
                 try {
@@ -1114,6 +1198,19 @@ public class UsageStatsDatabase {
      */
     private static boolean readLocked(InputStream in, IntervalStats statsOut, int version,
             PackagesTokenData packagesTokenData) throws RuntimeException {
+        return readLocked(in, statsOut, version, packagesTokenData, ReadFilter.ALL,
+                PackagesTokenData.UNASSIGNED_TOKEN);
+    }
+
+    /**
+     * Returns {@code true} if any stats were omitted while reading, {@code false} otherwise.
+     * <p/>
+     * Parts of the stats excluded by {@code filter} may be skipped while reading, though older
+     * versions are always read in full.
+     */
+    private static boolean readLocked(InputStream in, IntervalStats statsOut, int version,
+            PackagesTokenData packagesTokenData, ReadFilter filter, int eventsPackageToken)
+            throws RuntimeException {
         boolean dataOmitted = false;
         switch (version) {
             case 1:
@@ -1135,7 +1232,7 @@ public class UsageStatsDatabase {
                 break;
             case 5:
                 try {
-                    UsageStatsProtoV2.read(in, statsOut);
+                    UsageStatsProtoV2.read(in, statsOut, filter, eventsPackageToken);
                 } catch (Exception e) {
                     Slog.e(TAG, "Unable to read interval stats from proto.", e);
                 }
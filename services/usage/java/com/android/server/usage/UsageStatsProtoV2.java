@@ -431,6 +431,26 @@ final class UsageStatsProtoV2 {
      * @param stats the interval stats object which will be populated.
      */
     public static void read(InputStream in, IntervalStats stats) throws IOException {
+        read(in, stats, UsageStatsDatabase.ReadFilter.ALL, PackagesTokenData.UNASSIGNED_TOKEN);
+    }
+
+    /**
+     * Populates a tokenized version of interval stats from the input stream given, only reading
+     * the parts of it required by {@code filter}. Everything else is stepped over without being
+     * parsed.
+     * <p>
+     * This relies on {@link #write} emitting the event log last and in chronological order, so
+     * that reading can stop as soon as no further events can be of interest.
+     *
+     * @param in the input stream from which to read events.
+     * @param stats the interval stats object which will be populated.
+     * @param filter the parts of the interval stats to read.
+     * @param eventsPackageToken the token of {@link UsageStatsDatabase.ReadFilter#eventsPackage},
+     *                           or {@link PackagesTokenData#UNASSIGNED_TOKEN} to read the events
+     *                           of all packages.
+     */
+    static void read(InputStream in, IntervalStats stats, UsageStatsDatabase.ReadFilter filter,
+            int eventsPackageToken) throws IOException {
         final ProtoInputStream proto = new ProtoInputStream(in);
         while (true) {
             switch (proto.nextField()) {
@@ -445,22 +465,27 @@ final class UsageStatsProtoV2 {
                     stats.minorVersion = proto.readInt(IntervalStatsObfuscatedProto.MINOR_VERSION);
                     break;
                 case (int) IntervalStatsObfuscatedProto.INTERACTIVE:
+                    if (filter.skipStats) break;
                     loadCountAndTime(proto, IntervalStatsObfuscatedProto.INTERACTIVE,
                             stats.interactiveTracker);
                     break;
                 case (int) IntervalStatsObfuscatedProto.NON_INTERACTIVE:
+                    if (filter.skipStats) break;
                     loadCountAndTime(proto, IntervalStatsObfuscatedProto.NON_INTERACTIVE,
                             stats.nonInteractiveTracker);
                     break;
                 case (int) IntervalStatsObfuscatedProto.KEYGUARD_SHOWN:
+                    if (filter.skipStats) break;
                     loadCountAndTime(proto, IntervalStatsObfuscatedProto.KEYGUARD_SHOWN,
                             stats.keyguardShownTracker);
                     break;
                 case (int) IntervalStatsObfuscatedProto.KEYGUARD_HIDDEN:
+                    if (filter.skipStats) break;
                     loadCountAndTime(proto, IntervalStatsObfuscatedProto.KEYGUARD_HIDDEN,
                             stats.keyguardHiddenTracker);
                     break;
                 case (int) IntervalStatsObfuscatedProto.PACKAGES:
+                    if (filter.skipStats) break;
                     try {
                         final long packagesToken = proto.start(
                                 IntervalStatsObfuscatedProto.PACKAGES);
@@ -474,6 +499,7 @@ final class UsageStatsProtoV2 {
                     }
                     break;
                 case (int) IntervalStatsObfuscatedProto.CONFIGURATIONS:
+                    if (filter.skipStats) break;
                     try {
                         final long configsToken = proto.start(
                                 IntervalStatsObfuscatedProto.CONFIGURATIONS);
@@ -484,12 +510,27 @@ final class UsageStatsProtoV2 {
                     }
                     break;
                 case (int) IntervalStatsObfuscatedProto.EVENT_LOG:
+                    if (filter.skipEvents) {
+                        // Nothing of interest follows the event log
+                        finishRead(stats);
+                        return;
+                    }
                     try {
                         final long eventsToken = proto.start(
                                 IntervalStatsObfuscatedProto.EVENT_LOG);
                         UsageEvents.Event event = parseEvent(proto, stats.beginTime);
                         proto.end(eventsToken);
-                        if (event != null) {
+                        if (event == null) {
+                            break;
+                        }
+                        if (event.mTimeStamp >= filter.eventsEndTime) {
+                            // All remaining events are at least as recent as this one
+                            finishRead(stats);
+                            return;
+                        }
+                        if (event.mTimeStamp >= filter.eventsBeginTime
+                                && (eventsPackageToken == PackagesTokenData.UNASSIGNED_TOKEN
+                                        || eventsPackageToken == event.mPackageToken)) {
                             stats.events.insert(event);
                         }
                     } catch (IOException e) {
@@ -497,18 +538,22 @@ final class UsageStatsProtoV2 {
                     }
                     break;
                 case ProtoInputStream.NO_MORE_FIELDS:
-                    // update the begin and end time stamps for all usage stats
-                    final int usageStatsSize = stats.packageStatsObfuscated.size();
-                    for (int i = 0; i < usageStatsSize; i++) {
-                        final UsageStats usageStats = stats.packageStatsObfuscated.valueAt(i);
-                        usageStats.mBeginTimeStamp = stats.beginTime;
-                        usageStats.mEndTimeStamp = stats.endTime;
-                    }
+                    finishRead(stats);
                     return;
             }
         }
     }
 
+    private static void finishRead(IntervalStats stats) {
+        // update the begin and end time stamps for all usage stats
+        final int usageStatsSize = stats.packageStatsObfuscated.size();
+        for (int i = 0; i < usageStatsSize; i++) {
+            final UsageStats usageStats = stats.packageStatsObfuscated.valueAt(i);
+            usageStats.mBeginTimeStamp = stats.beginTime;
+            usageStats.mEndTimeStamp = stats.endTime;
+        }
+    }
+
     /**
      * Writes the tokenized interval stats object to a ProtoBuf file.
      *
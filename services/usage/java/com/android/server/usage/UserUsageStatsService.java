@@ -51,6 +51,7 @@ import android.util.SparseIntArray;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.CollectionUtils;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.usage.UsageStatsDatabase.ReadFilter;
 import com.android.server.usage.UsageStatsDatabase.StatCombiner;
 
 import java.io.File;
@@ -407,10 +408,11 @@ class UserUsageStatsService {
     /**
      * Generic query method that selects the appropriate IntervalStats for the specified time range
      * and bucket, then calls the {@link com.android.server.usage.UsageStatsDatabase.StatCombiner}
-     * provided to select the stats to use from the IntervalStats object.
+     * provided to select the stats to use from the IntervalStats object. Only the parts of each
+     * IntervalStats on disk allowed by the {@link ReadFilter} are read.
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
-            StatCombiner<T> combiner) {
+            StatCombiner<T> combiner, ReadFilter filter) {
         if (intervalType == INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -450,7 +452,7 @@ class UserUsageStatsService {
 
         // Get the stats from disk.
         List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+                truncatedEndTime, combiner, filter);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -480,21 +482,24 @@ class UserUsageStatsService {
         if (!validRange(checkAndGetTimeLocked(), beginTime, endTime)) {
             return null;
         }
-        return queryStats(bucketType, beginTime, endTime, sUsageStatsCombiner);
+        return queryStats(bucketType, beginTime, endTime, sUsageStatsCombiner,
+                ReadFilter.SKIP_EVENTS);
     }
 
     List<ConfigurationStats> queryConfigurationStats(int bucketType, long beginTime, long endTime) {
         if (!validRange(checkAndGetTimeLocked(), beginTime, endTime)) {
             return null;
         }
-        return queryStats(bucketType, beginTime, endTime, sConfigStatsCombiner);
+        return queryStats(bucketType, beginTime, endTime, sConfigStatsCombiner,
+                ReadFilter.SKIP_EVENTS);
     }
 
     List<EventStats> queryEventStats(int bucketType, long beginTime, long endTime) {
         if (!validRange(checkAndGetTimeLocked(), beginTime, endTime)) {
             return null;
         }
-        return queryStats(bucketType, beginTime, endTime, sEventStatsCombiner);
+        return queryStats(bucketType, beginTime, endTime, sEventStatsCombiner,
+                ReadFilter.SKIP_EVENTS);
     }
 
     UsageEvents queryEvents(final long beginTime, final long endTime, int flags) {
@@ -548,7 +553,7 @@ class UserUsageStatsService {
                             accumulatedResult.add(event);
                         }
                     }
-                });
+                }, ReadFilter.eventsOnly(beginTime, endTime, null));
 
         if (results == null || results.isEmpty()) {
             return null;
@@ -590,7 +595,7 @@ class UserUsageStatsService {
                         }
                         accumulatedResult.add(event);
                     }
-                });
+                }, ReadFilter.eventsOnly(beginTime, endTime, packageName));
 
         if (results == null || results.isEmpty()) {
             return null;
@@ -936,7 +941,7 @@ class UserUsageStatsService {
                             accumulatedResult.add(event);
                         }
                     }
-                });
+                }, ReadFilter.eventsOnly(beginTime, endTime, null));
 
         pw.print("Last 24 hour events (");
         if (prettyDates) {
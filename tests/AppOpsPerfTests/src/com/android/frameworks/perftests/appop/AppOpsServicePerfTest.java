@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.appop;
+
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.OP_READ_SMS;
+import static android.app.AppOpsManager.OP_WRITE_SMS;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManagerInternal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.LocalServices;
+import com.android.server.appop.AppOpsService;
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Measures {@link AppOpsService#noteOperation} and {@link AppOpsService#checkOperation} when
+ * called from one thread and from {@link #THREAD_COUNT} threads at once, as happens when many
+ * apps call into the service. Each result is the wall time of a round of calls divided by the
+ * number of calls in it, so a lower multithreaded result means more throughput.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppOpsServicePerfTest {
+    private static final String APP_OPS_FILENAME = "appops-service-perf-test.xml";
+
+    private static final int THREAD_COUNT = 8;
+    private static final int CALLS_PER_THREAD = 2000;
+
+    private File mAppOpsFile;
+    private HandlerThread mHandlerThread;
+    private AppOpsService mAppOpsService;
+    private String mMyPackageName;
+    private int mMyUid;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOpsFile = new File(context.getFilesDir(), APP_OPS_FILENAME);
+        mAppOpsFile.delete();
+        mHandlerThread = new HandlerThread("AppOpsServicePerfTest");
+        mHandlerThread.start();
+        mMyPackageName = context.getOpPackageName();
+        mMyUid = Process.myUid();
+
+        // Only consulted the first time each package is seen, so it's off the measured path
+        final AndroidPackage myPkg = mock(AndroidPackage.class);
+        when(myPkg.getUid()).thenReturn(mMyUid);
+        when(myPkg.getAttributions()).thenReturn(Collections.emptyList());
+        final PackageManagerInternal packageManagerInternal = mock(PackageManagerInternal.class);
+        when(packageManagerInternal.getPackage(mMyPackageName)).thenReturn(myPkg);
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, packageManagerInternal);
+
+        mAppOpsService = new AppOpsService(mAppOpsFile,
+                new Handler(mHandlerThread.getLooper()), new PermissiveContext(context));
+        mAppOpsService.startHistoricalRegistryForTesting();
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        mAppOpsService.setMode(OP_WRITE_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quitSafely();
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        mAppOpsFile.delete();
+    }
+
+    @Test
+    public void testNoteOperation_singleThread() throws Exception {
+        runCalls(1, this::noteOperation);
+    }
+
+    @Test
+    public void testNoteOperation_multiThread() throws Exception {
+        runCalls(THREAD_COUNT, this::noteOperation);
+    }
+
+    @Test
+    public void testCheckOperation_singleThread() throws Exception {
+        runCalls(1, this::checkOperation);
+    }
+
+    @Test
+    public void testCheckOperation_multiThread() throws Exception {
+        runCalls(THREAD_COUNT, this::checkOperation);
+    }
+
+    private int noteOperation(int i) {
+        return mAppOpsService.noteOperation((i & 1) == 0 ? OP_READ_SMS : OP_WRITE_SMS, mMyUid,
+                mMyPackageName, null, false, null, false);
+    }
+
+    private int checkOperation(int i) {
+        return mAppOpsService.checkOperation((i & 1) == 0 ? OP_READ_SMS : OP_WRITE_SMS, mMyUid,
+                mMyPackageName);
+    }
+
+    private void runCalls(int threadCount, IntUnaryOperator call) throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        final int callCount = threadCount * CALLS_PER_THREAD;
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            elapsedTimeNs = runRound(threadCount, call) / callCount;
+        }
+    }
+
+    /**
+     * Makes {@link #CALLS_PER_THREAD} calls on each of {@code threadCount} threads, started
+     * together, and returns how long it took for all of them to finish.
+     */
+    private static long runRound(int threadCount, IntUnaryOperator call) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicInteger rejected = new AtomicInteger();
+        for (int t = 0; t < threadCount; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    if (call.applyAsInt(i) != MODE_ALLOWED) {
+                        rejected.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        start.countDown();
+        done.await();
+        final long elapsedTime = SystemClock.elapsedRealtimeNanos() - startTime;
+        assertEquals(0, rejected.get());
+        return elapsedTime;
+    }
+
+    /**
+     * Lets the service change modes without the test holding MANAGE_APP_OPS_MODES.
+     */
+    private static class PermissiveContext extends ContextWrapper {
+        PermissiveContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public void enforcePermission(String permission, int pid, int uid, String message) {
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.appop;
+
+import static android.app.AppOpsManager.OP_CAMERA;
+import static android.app.AppOpsManager.OP_COARSE_LOCATION;
+import static android.app.AppOpsManager.OP_FINE_LOCATION;
+import static android.app.AppOpsManager.OP_FLAG_SELF;
+import static android.app.AppOpsManager.OP_FLAG_TRUSTED_PROXIED;
+import static android.app.AppOpsManager.OP_RECORD_AUDIO;
+import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
+import static android.app.AppOpsManager.UID_STATE_TOP;
+
+import static org.junit.Assert.assertEquals;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager.HistoricalOps;
+import android.os.Process;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.appop.HistoricalOpsFile;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading {@link #DAY_COUNT} days of app op history for {@link #APP_COUNT} apps,
+ * stored as one daily snapshot per day as in the compressed levels of the historical registry,
+ * comparing a read of everything against reads filtered to one uid and to one package.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class HistoricalOpsFilePerfTest {
+    private static final int DAY_COUNT = 30;
+    private static final int APP_COUNT = 300;
+    private static final int[] OPS = {OP_CAMERA, OP_RECORD_AUDIO, OP_FINE_LOCATION,
+            OP_COARSE_LOCATION};
+
+    private static final int QUERY_UID = Process.FIRST_APPLICATION_UID + APP_COUNT / 2;
+    private static final String QUERY_PACKAGE_NAME = packageName(APP_COUNT / 2);
+
+    private static final int ALL_STATES = DAY_COUNT * (APP_COUNT * OPS.length * 2 + APP_COUNT / 10);
+    private static final int PACKAGE_STATES = DAY_COUNT * OPS.length * 2;
+    // The queried uid is shared with a second package
+    private static final int UID_STATES = PACKAGE_STATES + DAY_COUNT;
+
+    private static File sFile;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        sFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "historical-ops-file-perf-test.bin");
+        final long dayMillis = TimeUnit.DAYS.toMillis(1);
+        final List<HistoricalOps> allOps = new ArrayList<>(DAY_COUNT);
+        for (int day = 0; day < DAY_COUNT; day++) {
+            final HistoricalOps ops = new HistoricalOps(day * dayMillis, (day + 1) * dayMillis);
+            for (int app = 0; app < APP_COUNT; app++) {
+                final int uid = Process.FIRST_APPLICATION_UID + app;
+                final String packageName = packageName(app);
+                for (int op : OPS) {
+                    ops.increaseAccessCount(op, uid, packageName, null, UID_STATE_TOP,
+                            OP_FLAG_SELF, day + app + 1);
+                    ops.increaseAccessCount(op, uid, packageName, null, UID_STATE_BACKGROUND,
+                            OP_FLAG_TRUSTED_PROXIED, 1);
+                    ops.increaseAccessDuration(op, uid, packageName, null, UID_STATE_TOP,
+                            OP_FLAG_SELF, 1000);
+                }
+                // Every tenth uid is shared by a second package
+                if (app % 10 == 0) {
+                    ops.increaseAccessCount(OP_CAMERA, uid, packageName + ".shared", null,
+                            UID_STATE_TOP, OP_FLAG_SELF, 1);
+                }
+            }
+            allOps.add(ops);
+        }
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(sFile))) {
+            HistoricalOpsFile.write(out, allOps, 0);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownOnce() {
+        sFile.delete();
+    }
+
+    @Test
+    public void testRead_all() throws Exception {
+        runRead(Process.INVALID_UID, null, ALL_STATES);
+    }
+
+    @Test
+    public void testRead_oneUid() throws Exception {
+        runRead(QUERY_UID, null, UID_STATES);
+    }
+
+    @Test
+    public void testRead_onePackage() throws Exception {
+        runRead(QUERY_UID, QUERY_PACKAGE_NAME, PACKAGE_STATES);
+    }
+
+    private void runRead(int filterUid, @Nullable String filterPackageName, int expectedStates)
+            throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final CountingVisitor visitor = new CountingVisitor();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            HistoricalOpsFile.read(sFile, filterUid, filterPackageName, visitor);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            assertEquals(expectedStates, visitor.mStateCount);
+        }
+    }
+
+    private static String packageName(int app) {
+        return "com.example.app" + app;
+    }
+
+    private static final class CountingVisitor implements HistoricalOpsFile.Visitor {
+        int mStateCount;
+
+        @Override
+        public boolean visitSnapshot(long beginTimeMillis, long endTimeMillis) {
+            return true;
+        }
+
+        @Override
+        public void visitState(int uid, @NonNull String packageName,
+                @Nullable String attributionTag, int op, long key, long accessCount,
+                long rejectCount, long accessDuration) {
+            mStateCount++;
+        }
+
+        @Override
+        public void visitSnapshotEnd() {
+        }
+    }
+}
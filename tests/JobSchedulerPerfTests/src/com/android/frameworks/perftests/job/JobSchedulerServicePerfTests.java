@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.frameworks.perftests.job;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doNothing;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mock;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.spyOn;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+import android.app.ActivityManagerInternal;
+import android.app.IActivityManager;
+import android.app.job.JobInfo;
+import android.app.usage.UsageStatsManagerInternal;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManagerInternal;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkInfo.DetailedState;
+import android.net.NetworkPolicyManager;
+import android.net.NetworkRequest;
+import android.os.BatteryManager;
+import android.os.BatteryManagerInternal;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.AppStateTracker;
+import com.android.server.DeviceIdleInternal;
+import com.android.server.LocalServices;
+import com.android.server.SystemServiceManager;
+import com.android.server.job.JobSchedulerService;
+import com.android.server.job.controllers.BatteryController;
+import com.android.server.job.controllers.JobStatus;
+import com.android.server.usage.AppStandbyInternal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+/**
+ * Measures the time the JobSchedulerService lock is held for connectivity and charging changes
+ * with {@link #JOB_COUNT} jobs scheduled, a quarter of which need a network and a quarter of
+ * which need charging. Each iteration flips one of the two and checks the jobs, either only
+ * those whose constraints changed or all of them.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class JobSchedulerServicePerfTests {
+    private static final String SOURCE_PACKAGE = "com.android.frameworks.perftests.job";
+    private static final int SOURCE_USER_ID = 0;
+    private static final int CALLING_UID = 10079;
+    private static final int UID_COUNT = 100;
+    private static final int JOB_COUNT = 10_000;
+
+    private MockitoSession mMockingSession;
+    @Mock
+    private Context mContext;
+    @Mock
+    private ConnectivityManager mConnManager;
+
+    private JobSchedulerService mService;
+    private NetworkCallback mNetworkCallback;
+    private BatteryController.ChargingTracker mChargingTracker;
+    private final Network mNetwork = new Network(101);
+    private final NetworkCapabilities mCapabilities = new NetworkCapabilities()
+            .addCapability(NET_CAPABILITY_INTERNET)
+            .addCapability(NET_CAPABILITY_VALIDATED);
+    private final NetworkInfo mNetworkInfo =
+            new NetworkInfo(ConnectivityManager.TYPE_WIFI, 0, null, null);
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Before
+    public void setUp() throws RemoteException {
+        mMockingSession = mockitoSession()
+                .initMocks(this)
+                .strictness(Strictness.LENIENT)
+                .mockStatic(LocalServices.class)
+                .mockStatic(ServiceManager.class)
+                .startMocking();
+
+        // Called in JobSchedulerService constructor.
+        when(mContext.getMainLooper()).thenReturn(Looper.getMainLooper());
+        doReturn(mock(ActivityManagerInternal.class))
+                .when(() -> LocalServices.getService(ActivityManagerInternal.class));
+        doReturn(mock(AppStandbyInternal.class))
+                .when(() -> LocalServices.getService(AppStandbyInternal.class));
+        doReturn(mock(UsageStatsManagerInternal.class))
+                .when(() -> LocalServices.getService(UsageStatsManagerInternal.class));
+        when(mContext.getString(anyInt())).thenReturn("some_test_string");
+        // Called in BackgroundJobsController constructor.
+        doReturn(mock(AppStateTracker.class))
+                .when(() -> LocalServices.getService(AppStateTracker.class));
+        // Called in BatteryController constructor.
+        doReturn(mock(BatteryManagerInternal.class))
+                .when(() -> LocalServices.getService(BatteryManagerInternal.class));
+        // Called in ConnectivityController constructor.
+        when(mContext.getSystemService(ConnectivityManager.class)).thenReturn(mConnManager);
+        when(mContext.getSystemService(NetworkPolicyManager.class))
+                .thenReturn(mock(NetworkPolicyManager.class));
+        // Called in DeviceIdleJobsController constructor.
+        doReturn(mock(DeviceIdleInternal.class))
+                .when(() -> LocalServices.getService(DeviceIdleInternal.class));
+        // Used in JobStatus.
+        doReturn(mock(PackageManagerInternal.class))
+                .when(() -> LocalServices.getService(PackageManagerInternal.class));
+        // Called via IdleController constructor.
+        when(mContext.getPackageManager()).thenReturn(mock(PackageManager.class));
+        when(mContext.getResources()).thenReturn(mock(Resources.class));
+        // Called in QuotaController constructor.
+        final IActivityManager activityManager = ActivityManager.getService();
+        spyOn(activityManager);
+        doNothing().when(activityManager).registerUidObserver(any(), anyInt(), anyInt(), any());
+        // Called by QuotaTracker
+        doReturn(mock(SystemServiceManager.class))
+                .when(() -> LocalServices.getService(SystemServiceManager.class));
+
+        // Every job's uid has the network, which is connected until the first flip.
+        mNetworkInfo.setDetailedState(DetailedState.CONNECTED, null, null);
+        when(mConnManager.getActiveNetworkForUid(anyInt())).thenReturn(mNetwork);
+        when(mConnManager.getNetworkCapabilities(mNetwork)).thenReturn(mCapabilities);
+        when(mConnManager.getNetworkInfoForUid(any(), anyInt(), anyBoolean()))
+                .thenReturn(mNetworkInfo);
+
+        mService = new JobSchedulerService(mContext);
+
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        verify(mConnManager).registerNetworkCallback(any(NetworkRequest.class),
+                callbackCaptor.capture());
+        mNetworkCallback = callbackCaptor.getValue();
+        final ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext, atLeastOnce()).registerReceiver(receiverCaptor.capture(),
+                any(IntentFilter.class));
+        for (BroadcastReceiver receiver : receiverCaptor.getAllValues()) {
+            if (receiver instanceof BatteryController.ChargingTracker) {
+                mChargingTracker = (BatteryController.ChargingTracker) receiver;
+            }
+        }
+        // Charging until the first flip.
+        mChargingTracker.onReceiveInternal(new Intent(Intent.ACTION_BATTERY_OKAY));
+        mChargingTracker.onReceiveInternal(new Intent(BatteryManager.ACTION_CHARGING));
+
+        for (int i = 0; i < JOB_COUNT; i++) {
+            mService.startTrackingJobForTesting(createJobStatus(i));
+        }
+        // Start from a state where every job has been checked.
+        synchronized (mService.getLock()) {
+            mService.maybeQueueReadyJobsForExecutionLocked();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mMockingSession != null) {
+            mMockingSession.finishMocking();
+        }
+    }
+
+    /** Checks only the jobs the controllers reported changed, as the service now does. */
+    @Test
+    public void testConnectivityAndChargingFlips_changedJobs() {
+        runFlips(true /* changedJobsOnly */);
+    }
+
+    /** Checks every job after each flip, as the service did before controllers reported them. */
+    @Test
+    public void testConnectivityAndChargingFlips_allJobs() {
+        runFlips(false /* changedJobsOnly */);
+    }
+
+    private void runFlips(boolean changedJobsOnly) {
+        final ManualBenchmarkState benchmarkState = mPerfManualStatusReporter.getBenchmarkState();
+
+        long elapsedTimeNs = 0;
+        int flip = 0;
+        while (benchmarkState.keepRunning(elapsedTimeNs)) {
+            // Connected and charging are each flipped off, then back on.
+            final boolean on = flip % 4 >= 2;
+            final boolean connectivity = flip % 2 == 0;
+            flip++;
+
+            // The controllers hold the lock while they update their jobs, and the service
+            // holds it while it checks them.
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            if (connectivity) {
+                mNetworkInfo.setDetailedState(
+                        on ? DetailedState.CONNECTED : DetailedState.DISCONNECTED, null, null);
+                mNetworkCallback.onCapabilitiesChanged(mNetwork, mCapabilities);
+            } else {
+                mChargingTracker.onReceiveInternal(new Intent(
+                        on ? BatteryManager.ACTION_CHARGING : BatteryManager.ACTION_DISCHARGING));
+            }
+            synchronized (mService.getLock()) {
+                if (changedJobsOnly) {
+                    mService.queueChangedJobsForExecutionLocked();
+                } else {
+                    mService.maybeQueueReadyJobsForExecutionLocked();
+                }
+            }
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            elapsedTimeNs = endTime - startTime;
+        }
+    }
+
+    /**
+     * Creates a job that needs a network, charging or an idle device, spread over
+     * {@link #UID_COUNT} uids.
+     */
+    private static JobStatus createJobStatus(int jobId) {
+        final JobInfo.Builder builder = new JobInfo.Builder(jobId,
+                new ComponentName(SOURCE_PACKAGE, "JobSchedulerServicePerfTestJobService"));
+        switch (jobId % 4) {
+            case 0:
+                builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY);
+                break;
+            case 1:
+                builder.setRequiresCharging(true);
+                break;
+            default:
+                builder.setRequiresDeviceIdle(true);
+                break;
+        }
+        return JobStatus.createFromJobInfo(builder.build(), CALLING_UID + jobId % UID_COUNT,
+                SOURCE_PACKAGE, SOURCE_USER_ID, "JobSchedulerServicePerfTests");
+    }
+}
@@ -47,6 +47,7 @@ public class JobStorePerfTests {
     private static final String SOURCE_PACKAGE = "com.android.frameworks.perftests.job";
     private static final int SOURCE_USER_ID = 0;
     private static final int CALLING_UID = 10079;
+    private static final int MANY_UIDS_COUNT = 200;
 
     private static Context sContext;
     private static File sTestDir;
@@ -54,6 +55,7 @@ public class JobStorePerfTests {
 
     private static List<JobStatus> sFewJobs = new ArrayList<>();
     private static List<JobStatus> sManyJobs = new ArrayList<>();
+    private static List<JobStatus> sManyUidsJobs = new ArrayList<>();
 
     @Rule
     public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
@@ -70,6 +72,10 @@ public class JobStorePerfTests {
         for (int i = 0; i < 500; i++) {
             sManyJobs.add(createJobStatus("manyJobs", i));
         }
+        for (int i = 0; i < 5000; i++) {
+            sManyUidsJobs.add(
+                    createJobStatus("manyUidsJobs", i, CALLING_UID + i % MANY_UIDS_COUNT));
+        }
     }
 
     @AfterClass
@@ -105,6 +111,30 @@ public class JobStorePerfTests {
         runPersistedJobWriting(sManyJobs);
     }
 
+    @Test
+    public void testPersistedJobWriting_manyUids() {
+        runPersistedJobWriting(sManyUidsJobs);
+    }
+
+    @Test
+    public void testPersistedJobWriting_manyUids_oneUidChanged() {
+        final ManualBenchmarkState benchmarkState = mPerfManualStatusReporter.getBenchmarkState();
+
+        sJobStore.clear();
+        for (JobStatus job : sManyUidsJobs) {
+            sJobStore.add(job);
+        }
+        sJobStore.waitForWriteToCompleteForTesting(10_000);
+
+        long elapsedTimeNs = 0;
+        while (benchmarkState.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            sJobStore.writeStatusToDiskForTesting(CALLING_UID);
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            elapsedTimeNs = endTime - startTime;
+        }
+    }
+
     private void runPersistedJobReading(List<JobStatus> jobList, boolean rtcIsGood) {
         final ManualBenchmarkState benchmarkState = mPerfManualStatusReporter.getBenchmarkState();
 
@@ -145,12 +175,21 @@ public class JobStorePerfTests {
         runPersistedJobReading(sManyJobs, false);
     }
 
+    @Test
+    public void testPersistedJobReading_manyUids_goodRTC() {
+        runPersistedJobReading(sManyUidsJobs, true);
+    }
+
     private static JobStatus createJobStatus(String testTag, int jobId) {
+        return createJobStatus(testTag, jobId, CALLING_UID);
+    }
+
+    private static JobStatus createJobStatus(String testTag, int jobId, int callingUid) {
         JobInfo jobInfo = new JobInfo.Builder(jobId,
                 new ComponentName(sContext, "JobStorePerfTestJobService"))
                 .setPersisted(true)
                 .build();
         return JobStatus.createFromJobInfo(
-                jobInfo, CALLING_UID, SOURCE_PACKAGE, SOURCE_USER_ID, testTag);
+                jobInfo, callingUid, SOURCE_PACKAGE, SOURCE_USER_ID, testTag);
     }
 }
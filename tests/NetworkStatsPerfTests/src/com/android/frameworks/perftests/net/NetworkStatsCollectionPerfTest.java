@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.Process;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+import android.telephony.TelephonyManager;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.net.NetworkIdentitySet;
+import com.android.server.net.NetworkStatsAccess;
+import com.android.server.net.NetworkStatsCollection;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compares answering summary and history queries by loading a complete
+ * {@link NetworkStatsCollection} against streaming a summary straight from its persisted form
+ * with {@link NetworkStatsCollection.SummaryReader}, using 90 days of uid and tag history.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsCollectionPerfTest {
+    private static final String TEST_IMSI = "310260000000000";
+
+    private static final long BUCKET_DURATION = 2 * HOUR_IN_MILLIS;
+    private static final long HISTORY_DURATION = 90 * DAY_IN_MILLIS;
+    private static final long TIME_END = 1326088800000L;
+    private static final long TIME_START = TIME_END - HISTORY_DURATION;
+
+    private static final int UID_COUNT = 150;
+    private static final int QUERY_UID = Process.FIRST_APPLICATION_UID + UID_COUNT / 2;
+
+    private static NetworkTemplate sTemplate;
+    private static byte[] sData;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        NetworkTemplate.forceAllNetworkTypes();
+        sTemplate = buildTemplateMobileAll(TEST_IMSI);
+
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry(4096L, 4L, 1024L, 2L, 0L);
+        for (int i = 0; i < UID_COUNT; i++) {
+            final int uid = Process.FIRST_APPLICATION_UID + i;
+            for (long time = TIME_START; time < TIME_END; time += BUCKET_DURATION) {
+                collection.recordData(ident, uid, SET_DEFAULT, TAG_NONE, time,
+                        time + BUCKET_DURATION, entry);
+                collection.recordData(ident, uid, SET_FOREGROUND, 0x1000 + (i % 4), time,
+                        time + BUCKET_DURATION, entry);
+            }
+        }
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(new DataOutputStream(bos));
+        sData = bos.toByteArray();
+    }
+
+    @AfterClass
+    public static void tearDownOnce() {
+        NetworkTemplate.resetForceAllNetworkTypes();
+    }
+
+    @Test
+    public void testSummary_load() throws Exception {
+        runLoadSummary(TIME_START, NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+    }
+
+    @Test
+    public void testSummary_stream() throws Exception {
+        runStreamSummary(TIME_START, NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+    }
+
+    @Test
+    public void testSummaryLastDay_load() throws Exception {
+        runLoadSummary(TIME_END - DAY_IN_MILLIS, NetworkStatsAccess.Level.DEVICE,
+                Process.SYSTEM_UID);
+    }
+
+    @Test
+    public void testSummaryLastDay_stream() throws Exception {
+        runStreamSummary(TIME_END - DAY_IN_MILLIS, NetworkStatsAccess.Level.DEVICE,
+                Process.SYSTEM_UID);
+    }
+
+    @Test
+    public void testSingleUidSummary_load() throws Exception {
+        runLoadSummary(TIME_START, NetworkStatsAccess.Level.DEFAULT, QUERY_UID);
+    }
+
+    @Test
+    public void testSingleUidSummary_stream() throws Exception {
+        runStreamSummary(TIME_START, NetworkStatsAccess.Level.DEFAULT, QUERY_UID);
+    }
+
+    /**
+     * Measures loading the collection and querying the history of one uid from it; the query
+     * alone is reported as the "query" extra result.
+     */
+    @Test
+    public void testHistory() throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            final NetworkStatsCollection collection = readCollection();
+            final long readTime = SystemClock.elapsedRealtimeNanos();
+            collection.getHistory(sTemplate, null, QUERY_UID, SET_DEFAULT, TAG_NONE, FIELD_ALL,
+                    TIME_START, TIME_END, NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            elapsedTimeNs = endTime - startTime;
+            state.addExtraResult("query", endTime - readTime);
+        }
+    }
+
+    private void runLoadSummary(long start, @NetworkStatsAccess.Level int accessLevel,
+            int callerUid) throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            loadSummary(start, accessLevel, callerUid);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+        }
+    }
+
+    private void runStreamSummary(long start, @NetworkStatsAccess.Level int accessLevel,
+            int callerUid) throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        NetworkStats streamed = null;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            streamed = streamSummary(start, accessLevel, callerUid);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+        }
+        // Only worth measuring if it gives the same answer
+        assertEquals(loadSummary(start, accessLevel, callerUid).getTotalBytes(),
+                streamed.getTotalBytes());
+    }
+
+    private static NetworkStats loadSummary(long start,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) throws IOException {
+        return readCollection().getSummary(sTemplate, start, TIME_END, accessLevel, callerUid);
+    }
+
+    private static NetworkStats streamSummary(long start,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) throws IOException {
+        final NetworkStatsCollection.SummaryReader reader =
+                new NetworkStatsCollection.SummaryReader(sTemplate, start, TIME_END, accessLevel,
+                        callerUid);
+        reader.read(new ByteArrayInputStream(sData));
+        return reader.getSummary();
+    }
+
+    private static NetworkStatsCollection readCollection() throws IOException {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        collection.read(new ByteArrayInputStream(sData));
+        return collection;
+    }
+}
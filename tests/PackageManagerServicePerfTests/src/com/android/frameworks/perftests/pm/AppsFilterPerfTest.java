@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.pm;
+
+import android.content.Intent;
+import android.content.pm.UserInfo;
+import android.content.pm.parsing.ParsingPackage;
+import android.content.pm.parsing.component.ParsedActivity;
+import android.content.pm.parsing.component.ParsedIntentInfo;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+import android.util.ArrayMap;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.pm.AppsFilter;
+import com.android.server.pm.PackageSetting;
+import com.android.server.pm.parsing.pkg.AndroidPackage;
+import com.android.server.pm.parsing.pkg.PackageImpl;
+import com.android.server.pm.parsing.pkg.ParsedPackage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Measures how long {@link AppsFilter} takes to build its visibility cache, to update it when
+ * a single package is installed, and to answer a query from it.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class AppsFilterPerfTest {
+    private static final UserInfo[] USERS = {
+            new UserInfo(0, "0", 0),
+            new UserInfo(10, "10", 0),
+    };
+    // Queries are far quicker than a clock read, so they're timed in batches
+    private static final int QUERY_BATCH_SIZE = 1000;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mPackageCount;
+
+    @Parameterized.Parameters(name = "{0}packages")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {
+                { 200 },
+                { 500 },
+                { 1000 },
+        });
+    }
+
+    @Test
+    public void testBuildCache() {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final ArrayMap<String, PackageSetting> settings = new ArrayMap<>();
+            final AppsFilter appsFilter = createAppsFilter(settings);
+            for (int i = 0; i < mPackageCount; i++) {
+                addPackage(appsFilter, settings, createPackageSetting(i));
+            }
+
+            // onSystemReady() builds the entire cache inline with our synchronous executor
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            appsFilter.onSystemReady();
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+        }
+    }
+
+    @Test
+    public void testAddPackage() {
+        final ArrayMap<String, PackageSetting> settings = new ArrayMap<>();
+        final AppsFilter appsFilter = createReadyAppsFilter(settings);
+        final PackageSetting added = createPackageSetting(mPackageCount);
+
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            addPackage(appsFilter, settings, added);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+
+            appsFilter.removePackage(added);
+            settings.remove(added.name);
+        }
+    }
+
+    @Test
+    public void testShouldFilterApplication() {
+        final ArrayMap<String, PackageSetting> settings = new ArrayMap<>();
+        final AppsFilter appsFilter = createReadyAppsFilter(settings);
+        final PackageSetting calling = settings.valueAt(0);
+        final PackageSetting target = settings.valueAt(settings.size() - 1);
+
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < QUERY_BATCH_SIZE; i++) {
+                appsFilter.shouldFilterApplication(calling.getAppId(), calling, target, 0);
+            }
+            elapsedTimeNs = (SystemClock.elapsedRealtimeNanos() - startTime) / QUERY_BATCH_SIZE;
+        }
+    }
+
+    private AppsFilter createReadyAppsFilter(ArrayMap<String, PackageSetting> settings) {
+        final AppsFilter appsFilter = createAppsFilter(settings);
+        for (int i = 0; i < mPackageCount; i++) {
+            addPackage(appsFilter, settings, createPackageSetting(i));
+        }
+        appsFilter.onSystemReady();
+        return appsFilter;
+    }
+
+    private static AppsFilter createAppsFilter(ArrayMap<String, PackageSetting> settings) {
+        return new AppsFilter(callback -> callback.currentState(settings, USERS),
+                new EnabledFeatureConfig(), new String[0], false /* systemAppsQueryable */,
+                null /* overlayProvider */, Runnable::run);
+    }
+
+    private static void addPackage(AppsFilter appsFilter,
+            ArrayMap<String, PackageSetting> settings, PackageSetting setting) {
+        settings.put(setting.name, setting);
+        appsFilter.addPackage(setting);
+    }
+
+    /**
+     * Creates a package which declares a single exported activity, with every other package also
+     * querying the activity of its predecessor so the cache holds a mix of visible and filtered
+     * pairs.
+     */
+    private static PackageSetting createPackageSetting(int index) {
+        final String packageName = "com.example.package" + index;
+        final ParsedActivity activity = new ParsedActivity();
+        activity.setPackageName(packageName);
+        final ParsedIntentInfo info = new ParsedIntentInfo();
+        info.addAction("com.example.ACTION_" + index);
+        activity.addIntent(info);
+        activity.setExported(true);
+        final ParsingPackage pkg = PackageImpl.forTesting(packageName)
+                .setTargetSdkVersion(Build.VERSION_CODES.R)
+                .addActivity(activity);
+        if (index % 2 == 1) {
+            pkg.addQueriesIntent(new Intent("com.example.ACTION_" + (index - 1)));
+        }
+
+        final File path = new File("/");
+        final PackageSetting setting = new PackageSetting(packageName, null /* realName */,
+                path, path, null /* legacyNativeLibraryPathString */,
+                null /* primaryCpuAbiString */, null /* secondaryCpuAbiString */,
+                null /* cpuAbiOverrideString */,
+                1L /* pVersionCode */, 0 /* pkgFlags */, 0 /* privateFlags */,
+                0 /* sharedUserId */, null /* usesStaticLibraries */,
+                null /* usesStaticLibrariesVersions */, null /* mimeGroups */);
+        setting.pkg = ((ParsedPackage) pkg.hideAsParsed()).hideAsFinal();
+        setting.setAppId(Process.FIRST_APPLICATION_UID + index);
+        return setting;
+    }
+
+    /**
+     * Filters every package, without the overhead of a mock on the paths being measured.
+     */
+    private static class EnabledFeatureConfig implements AppsFilter.FeatureConfig {
+        @Override
+        public void onSystemReady() {
+        }
+
+        @Override
+        public boolean isGloballyEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean packageIsEnabled(AndroidPackage pkg) {
+            return true;
+        }
+
+        @Override
+        public boolean isLoggingEnabled(int appId) {
+            return false;
+        }
+
+        @Override
+        public void enableLogging(int appId, boolean enable) {
+        }
+
+        @Override
+        public void updatePackageState(PackageSetting setting, boolean removed) {
+        }
+    }
+}
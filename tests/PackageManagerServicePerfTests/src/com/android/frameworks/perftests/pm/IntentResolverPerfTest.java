@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.pm;
+
+import android.annotation.NonNull;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.IntentResolver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures {@link IntentResolver#queryIntent} against a synthetic resolver shaped like the
+ * activity resolver of a device with a few hundred installed packages, both for repeated
+ * queries and for queries right after a filter change, which defeats the match cache.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    private static final int PACKAGE_COUNT = 500;
+
+    private static final Intent[] QUERIES = {
+            new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER),
+            new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.example.com/path"))
+                    .addCategory(Intent.CATEGORY_BROWSABLE),
+            new Intent(Intent.ACTION_SEND).setType("image/png"),
+            new Intent(Intent.ACTION_BOOT_COMPLETED),
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static class Resolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+
+        @Override
+        protected IntentFilter getIntentFilter(@NonNull IntentFilter input) {
+            return input;
+        }
+    }
+
+    @Test
+    public void testQueryIntent_repeated() throws Exception {
+        final Resolver resolver = buildResolver();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final Intent intent = QUERIES[i++ % QUERIES.length];
+            resolver.queryIntent(intent, intent.getType(), true, 0);
+        }
+    }
+
+    @Test
+    public void testQueryIntent_afterFilterChange() throws Exception {
+        final Resolver resolver = buildResolver();
+        final IntentFilter churn = new IntentFilter("com.example.CHURN");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            resolver.addFilter(churn);
+            resolver.removeFilter(churn);
+            state.resumeTiming();
+
+            final Intent intent = QUERIES[i++ % QUERIES.length];
+            resolver.queryIntent(intent, intent.getType(), true, 0);
+        }
+    }
+
+    private static Resolver buildResolver() throws Exception {
+        final Resolver resolver = new Resolver();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final IntentFilter launcher = new IntentFilter(Intent.ACTION_MAIN);
+            launcher.addCategory(Intent.CATEGORY_LAUNCHER);
+            resolver.addFilter(launcher);
+
+            final IntentFilter receiver = new IntentFilter(i % 4 == 0
+                    ? Intent.ACTION_BOOT_COMPLETED : "com.example.ACTION_" + i);
+            resolver.addFilter(receiver);
+
+            if (i % 10 == 0) {
+                final IntentFilter view = new IntentFilter(Intent.ACTION_VIEW);
+                view.addCategory(Intent.CATEGORY_DEFAULT);
+                view.addCategory(Intent.CATEGORY_BROWSABLE);
+                view.addDataScheme("https");
+                view.addDataAuthority("www.example" + i + ".com", null);
+                resolver.addFilter(view);
+            }
+            if (i % 5 == 0) {
+                final IntentFilter send = new IntentFilter(Intent.ACTION_SEND, "image/*");
+                send.addCategory(Intent.CATEGORY_DEFAULT);
+                resolver.addFilter(send);
+            }
+        }
+        return resolver;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.pm;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.annotation.NonNull;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageParser;
+import android.content.pm.parsing.ParsingPackageUtils;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+import android.system.Os;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.pm.ParallelPackageParser;
+import com.android.server.pm.parsing.PackageParser2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures the parsing and certificate collection of the package manager's boot scan, as on the
+ * first boot after an update, with {@link #SYSTEM_APP_COUNT} system apps and
+ * {@link #DATA_APP_COUNT} data apps. Certificates are collected either on the parsing threads,
+ * as the scan now does, or one by one on the scanning thread, as it did while holding its
+ * locks. The time spent parsing and collecting certificates, summed over all threads, is
+ * reported as the "parseNs" and "certificatesNs" extra results.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageManagerBootScanPerfTest {
+    private static final int SYSTEM_APP_COUNT = 300;
+    private static final int DATA_APP_COUNT = 200;
+
+    private File mScanDir;
+    private File mSystemAppDir;
+    private File mDataAppDir;
+    private PackageParser2 mPackageParser;
+    private ExecutorService mExecutorService;
+    private long mParseNanos;
+    private long mCertificatesNanos;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Before
+    public void setUp() throws Exception {
+        mScanDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "package-manager-boot-scan-perf-test");
+        mSystemAppDir = new File(mScanDir, "system");
+        mDataAppDir = new File(mScanDir, "data");
+        mSystemAppDir.mkdirs();
+        mDataAppDir.mkdirs();
+        // Every app is this test's own apk, linked rather than copied to keep the test small
+        final String apkPath = InstrumentationRegistry.getContext().getPackageCodePath();
+        for (int i = 0; i < SYSTEM_APP_COUNT; i++) {
+            Os.symlink(apkPath, new File(mSystemAppDir, "app" + i + ".apk").getPath());
+        }
+        for (int i = 0; i < DATA_APP_COUNT; i++) {
+            Os.symlink(apkPath, new File(mDataAppDir, "app" + i + ".apk").getPath());
+        }
+        // No cache dir, as on the first boot after an update
+        mPackageParser = new PackageParser2(null /* separateProcesses */,
+                false /* onlyCoreApps */, null /* displayMetrics */, null /* cacheDir */,
+                new PackageParser2.Callback() {
+                    @Override
+                    public boolean isChangeEnabled(long changeId,
+                            @NonNull ApplicationInfo appInfo) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean hasFeature(String feature) {
+                        return false;
+                    }
+                });
+        mExecutorService = ParallelPackageParser.makeExecutorService();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorService.shutdownNow();
+        mPackageParser.close();
+        FileUtils.deleteContentsAndDir(mScanDir);
+    }
+
+    @Test
+    public void testBootScan_certificatesOnParsingThreads() throws Exception {
+        runBootScan(true /* collectWhileParsing */);
+    }
+
+    @Test
+    public void testBootScan_certificatesOnScanThread() throws Exception {
+        runBootScan(false /* collectWhileParsing */);
+    }
+
+    private void runBootScan(boolean collectWhileParsing) throws Exception {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            mParseNanos = 0;
+            mCertificatesNanos = 0;
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            scanDir(mSystemAppDir, PackageParser.PARSE_IS_SYSTEM_DIR, collectWhileParsing);
+            scanDir(mDataAppDir, 0 /* parseFlags */, collectWhileParsing);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+
+            state.addExtraResult("parseNs", mParseNanos);
+            state.addExtraResult("certificatesNs", mCertificatesNanos);
+        }
+    }
+
+    private void scanDir(File dir, int parseFlags, boolean collectWhileParsing)
+            throws Exception {
+        final ParallelPackageParser parser = new ParallelPackageParser(mPackageParser,
+                mExecutorService, collectWhileParsing ? pkg -> true : null);
+        final File[] files = dir.listFiles();
+        for (File file : files) {
+            parser.submit(file, parseFlags);
+        }
+        final boolean skipVerify = (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0;
+        for (int i = 0; i < files.length; i++) {
+            final ParallelPackageParser.ParseResult result = parser.take();
+            assertNull(result.throwable);
+            mParseNanos += result.parseNanos;
+            if (collectWhileParsing) {
+                assertNotNull(result.signingDetails);
+                mCertificatesNanos += result.collectCertificatesNanos;
+            } else {
+                final long startTime = SystemClock.elapsedRealtimeNanos();
+                assertNotNull(ParsingPackageUtils.getSigningDetails(result.parsedPackage,
+                        skipVerify));
+                mCertificatesNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+            }
+        }
+    }
+}
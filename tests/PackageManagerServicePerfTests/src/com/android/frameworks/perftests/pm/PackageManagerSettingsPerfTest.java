@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.pm;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.UserInfo;
+import android.os.Debug;
+import android.os.FileUtils;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.pm.Settings;
+import com.android.server.pm.permission.PermissionSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures writing and reading packages.xml and the package restrictions of one user on a
+ * device with {@link #PACKAGE_COUNT} packages. The objects allocated by each are reported as
+ * the "allocations" extra result.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageManagerSettingsPerfTest {
+    private static final int PACKAGE_COUNT = 500;
+    private static final String LAST_PACKAGE_NAME = packageName(PACKAGE_COUNT - 1);
+
+    private final List<UserInfo> mUsers = Collections.singletonList(
+            new UserInfo(UserHandle.USER_SYSTEM, "test user", UserInfo.FLAG_INITIALIZED));
+    private File mDataDir;
+    private Settings mSettings;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Before
+    public void setUp() {
+        mDataDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "package-manager-settings-perf-test");
+        mSettings = createSettings();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String packageName = packageName(i);
+            final File codePath = new File("/data/app/" + packageName + "-1");
+            mSettings.addPackageLPw(packageName, null /* realName */, codePath, codePath,
+                    null /* legacyNativeLibraryPathString */, "arm64-v8a",
+                    null /* secondaryCpuAbiString */, null /* cpuAbiOverrideString */,
+                    Process.FIRST_APPLICATION_UID + i, i + 1,
+                    i % 5 == 0 ? ApplicationInfo.FLAG_SYSTEM : 0, 0 /* pkgPrivateFlags */,
+                    null /* usesStaticLibraries */, null /* usesStaticLibraryNames */,
+                    null /* mimeGroups */).setTimeStamp(System.currentTimeMillis());
+        }
+        Debug.startAllocCounting();
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+        FileUtils.deleteContentsAndDir(mDataDir);
+    }
+
+    @Test
+    public void testWritePackages() {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            Debug.resetThreadAllocCount();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            mSettings.writeLPr();
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            state.addExtraResult("allocations", Debug.getThreadAllocCount());
+        }
+    }
+
+    @Test
+    public void testReadPackages() {
+        mSettings.writeLPr();
+
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            final Settings settings = createSettings();
+            Debug.resetThreadAllocCount();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            final boolean read = settings.readLPw(mUsers);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            state.addExtraResult("allocations", Debug.getThreadAllocCount());
+
+            assertTrue(read);
+            assertNotNull(settings.getPackageLPr(LAST_PACKAGE_NAME));
+        }
+    }
+
+    /**
+     * Measures writing the restrictions of a user whose file is missing, as for a user whose
+     * state changed since the last write.
+     */
+    @Test
+    public void testWritePackageRestrictions_changed() {
+        final File restrictionsFile = getPackageRestrictionsFile(UserHandle.USER_SYSTEM);
+
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            restrictionsFile.delete();
+            Debug.resetThreadAllocCount();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            mSettings.writePackageRestrictionsLPr(UserHandle.USER_SYSTEM);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            state.addExtraResult("allocations", Debug.getThreadAllocCount());
+        }
+    }
+
+    /**
+     * Measures writing the restrictions of a user whose state hasn't changed, which is
+     * serialized but not written to disk.
+     */
+    @Test
+    public void testWritePackageRestrictions_unchanged() {
+        mSettings.writePackageRestrictionsLPr(UserHandle.USER_SYSTEM);
+
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            Debug.resetThreadAllocCount();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            mSettings.writePackageRestrictionsLPr(UserHandle.USER_SYSTEM);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            state.addExtraResult("allocations", Debug.getThreadAllocCount());
+        }
+    }
+
+    @Test
+    public void testReadPackageRestrictions() {
+        mSettings.writePackageRestrictionsLPr(UserHandle.USER_SYSTEM);
+
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            Debug.resetThreadAllocCount();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            mSettings.readPackageRestrictionsLPr(UserHandle.USER_SYSTEM);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            state.addExtraResult("allocations", Debug.getThreadAllocCount());
+        }
+    }
+
+    private Settings createSettings() {
+        return new Settings(mDataDir, mock(PermissionSettings.class), new Object());
+    }
+
+    private File getPackageRestrictionsFile(int userId) {
+        return new File(new File(new File(new File(mDataDir, "system"), "users"),
+                Integer.toString(userId)), "package-restrictions.xml");
+    }
+
+    private static String packageName(int index) {
+        return "com.example.app" + index;
+    }
+}
@@ -19,11 +19,13 @@ package com.android.frameworks.perftests.usage.tests;
 import static junit.framework.Assert.assertEquals;
 
 import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
 import android.content.Context;
 import android.os.SystemClock;
 import android.perftests.utils.ManualBenchmarkState;
 import android.perftests.utils.PerfManualStatusReporter;
+import android.text.format.DateUtils;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.LargeTest;
@@ -32,6 +34,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.server.usage.IntervalStats;
 import com.android.server.usage.PackagesTokenData;
 import com.android.server.usage.UsageStatsDatabase;
+import com.android.server.usage.UsageStatsDatabase.ReadFilter;
 import com.android.server.usage.UsageStatsDatabase.StatCombiner;
 
 import org.junit.BeforeClass;
@@ -58,6 +61,12 @@ public class UsageStatsDatabasePerfTest {
     final static int LIGHT_USE = 10;
     // Represents how many usage events per app a device might have with heavy usage
     final static int HEAVY_USE = 50;
+    // Represents how many days of daily files a query over a month of history reads
+    final static int HISTORY_DAYS = 30;
+    // Represents how many apps might have been used over a month by a user with many apps
+    final static int HISTORY_PKGS = 300;
+
+    private static UsageStatsDatabase sHistoryDatabase;
 
     private static final StatCombiner<UsageEvents.Event> sUsageStatsCombiner =
             new StatCombiner<UsageEvents.Event>() {
@@ -72,6 +81,15 @@ public class UsageStatsDatabasePerfTest {
             };
 
 
+    private static final StatCombiner<UsageStats> sPackageStatsCombiner =
+            new StatCombiner<UsageStats>() {
+                @Override
+                public void combine(IntervalStats stats, boolean mutable,
+                        List<UsageStats> accResult) {
+                    accResult.addAll(stats.packageStats.values());
+                }
+            };
+
     @Rule
     public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
 
@@ -100,6 +118,69 @@ public class UsageStatsDatabasePerfTest {
         }
     }
 
+    /**
+     * Writes {@link #HISTORY_DAYS} daily files, each holding {@link #LIGHT_USE} events for each
+     * of {@link #HISTORY_PKGS} packages, into a database separate from {@link #sUsageStatsDatabase}.
+     */
+    private static UsageStatsDatabase getHistoryDatabase() throws IOException {
+        if (sHistoryDatabase != null) {
+            return sHistoryDatabase;
+        }
+        final File dir = new File(sContext.getFilesDir(), "UsageStatsDatabasePerfTestHistory");
+        deleteRecursively(dir);
+        sHistoryDatabase = new UsageStatsDatabase(dir);
+        sHistoryDatabase.readMappingsLocked();
+        sHistoryDatabase.init(1);
+        for (int day = 0; day < HISTORY_DAYS; day++) {
+            final IntervalStats intervalStats = new IntervalStats();
+            intervalStats.beginTime = day * DateUtils.DAY_IN_MILLIS;
+            intervalStats.endTime = intervalStats.beginTime + DateUtils.DAY_IN_MILLIS;
+            final long step = DateUtils.DAY_IN_MILLIS / (HISTORY_PKGS * LIGHT_USE);
+            long time = intervalStats.beginTime;
+            for (int evt = 0; evt < LIGHT_USE; evt++) {
+                for (int pkg = 0; pkg < HISTORY_PKGS; pkg++) {
+                    UsageEvents.Event event = new UsageEvents.Event();
+                    event.mPackage = "fake.package.name" + pkg;
+                    event.mClass = event.mPackage + ".class1";
+                    event.mTimeStamp = time;
+                    event.mEventType = UsageEvents.Event.ACTIVITY_RESUMED;
+                    intervalStats.events.insert(event);
+                    intervalStats.update(event.mPackage, event.mClass, event.mTimeStamp,
+                            event.mEventType, 1);
+                    time += step;
+                }
+            }
+            sHistoryDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, intervalStats);
+        }
+        sHistoryDatabase.writeMappingsLocked();
+        return sHistoryDatabase;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private <T> void runHistoryQueryTest(StatCombiner<T> combiner, ReadFilter filter,
+            int expectedResults) throws IOException {
+        final UsageStatsDatabase database = getHistoryDatabase();
+        final ManualBenchmarkState benchmarkState = mPerfManualStatusReporter.getBenchmarkState();
+        final long endTime = HISTORY_DAYS * DateUtils.DAY_IN_MILLIS;
+        long elapsedTimeNs = 0;
+        while (benchmarkState.keepRunning(elapsedTimeNs)) {
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            List<T> temp = database.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, 0,
+                    endTime, combiner, filter);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+            assertEquals(expectedResults, temp.size());
+        }
+    }
+
     private static void clearUsageStatsFiles() {
         File[] intervalDirs = mTestDir.listFiles();
         for (File intervalDir : intervalDirs) {
@@ -252,4 +333,37 @@ public class UsageStatsDatabasePerfTest {
     public void testDeobfuscateStats_ManyPkgsHeavyUse() {
         runDeobfuscateStatsTest(MANY_PKGS, HEAVY_USE);
     }
+
+    @Test
+    public void testQueryEvents_MonthOfHistory() throws IOException {
+        runHistoryQueryTest(sUsageStatsCombiner, ReadFilter.ALL,
+                HISTORY_DAYS * HISTORY_PKGS * LIGHT_USE);
+    }
+
+    @Test
+    public void testQueryEvents_MonthOfHistory_EventsOnly() throws IOException {
+        runHistoryQueryTest(sUsageStatsCombiner,
+                ReadFilter.eventsOnly(0, HISTORY_DAYS * DateUtils.DAY_IN_MILLIS, null),
+                HISTORY_DAYS * HISTORY_PKGS * LIGHT_USE);
+    }
+
+    @Test
+    public void testQueryEventsForPackage_MonthOfHistory() throws IOException {
+        runHistoryQueryTest(sUsageStatsCombiner,
+                ReadFilter.eventsOnly(0, HISTORY_DAYS * DateUtils.DAY_IN_MILLIS,
+                        "fake.package.name" + (HISTORY_PKGS / 2)),
+                HISTORY_DAYS * LIGHT_USE);
+    }
+
+    @Test
+    public void testQueryPackageStats_MonthOfHistory() throws IOException {
+        runHistoryQueryTest(sPackageStatsCombiner, ReadFilter.ALL,
+                HISTORY_DAYS * HISTORY_PKGS);
+    }
+
+    @Test
+    public void testQueryPackageStats_MonthOfHistory_SkipEvents() throws IOException {
+        runHistoryQueryTest(sPackageStatsCombiner, ReadFilter.SKIP_EVENTS,
+                HISTORY_DAYS * HISTORY_PKGS);
+    }
 }
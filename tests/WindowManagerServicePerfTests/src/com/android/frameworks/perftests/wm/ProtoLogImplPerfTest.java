@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.wm;
+
+import static org.mockito.Mockito.mock;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.protolog.ProtoLogImpl;
+import com.android.server.protolog.ProtoLogViewerConfigReader;
+import com.android.server.protolog.common.LogDataType;
+import com.android.server.wm.ProtoLogGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures a ProtoLog call on the calling thread, as made by the window manager for one of its
+ * groups, when the group is disabled, logged to proto and logged to logcat. Each result is the
+ * time of one call, averaged over {@link #CALLS} calls, and the objects allocated per call are
+ * reported as the "allocations" extra result.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProtoLogImplPerfTest {
+    private static final ProtoLogGroup GROUP = ProtoLogGroup.WM_DEBUG_ADD_REMOVE;
+    private static final String MESSAGE = "addWindow: %s to display %d visible=%b";
+    private static final int PARAMS_MASK = LogDataType.logDataTypesToBitMask(
+            LogDataType.parseFormatString(MESSAGE));
+    private static final int CALLS = 1000;
+
+    private File mFile;
+    private ProtoLogImpl mProtoLog;
+    private boolean mLogToProto;
+    private boolean mLogToLogcat;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "protolog-perf-test.pb");
+        mProtoLog = new ProtoLogImpl(mFile, 1024 * 1024, mock(ProtoLogViewerConfigReader.class));
+        ProtoLogImpl.setSingleInstance(mProtoLog);
+        mLogToProto = GROUP.isLogToProto();
+        mLogToLogcat = GROUP.isLogToLogcat();
+        Debug.startAllocCounting();
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+        mProtoLog.stopProtoLog(null, false);
+        ProtoLogImpl.setSingleInstance(null);
+        GROUP.setLogToProto(mLogToProto);
+        GROUP.setLogToLogcat(mLogToLogcat);
+        mFile.delete();
+    }
+
+    @Test
+    public void testLog_disabled() {
+        GROUP.setLogToProto(false);
+        GROUP.setLogToLogcat(false);
+        runLog();
+    }
+
+    @Test
+    public void testLog_proto() {
+        GROUP.setLogToProto(true);
+        GROUP.setLogToLogcat(false);
+        mProtoLog.startProtoLog(null);
+        runLog();
+    }
+
+    @Test
+    public void testLog_logcat() {
+        GROUP.setLogToProto(false);
+        GROUP.setLogToLogcat(true);
+        runLog();
+    }
+
+    private void runLog() {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        long i = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            Debug.resetThreadAllocCount();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            for (int call = 0; call < CALLS; call++) {
+                // The generated code checks the cached state of the group, then boxes the params
+                if (ProtoLogImpl.isEnabled(GROUP)) {
+                    mProtoLog.log(ProtoLogImpl.LogLevel.VERBOSE, GROUP, 1234, PARAMS_MASK,
+                            MESSAGE, new Object[] {"Window{42 u0 com.example/.Activity}", i++,
+                                    true});
+                }
+            }
+            elapsedTimeNs = (SystemClock.elapsedRealtimeNanos() - startTime) / CALLS;
+            state.addExtraResult("allocations", Debug.getThreadAllocCount() / CALLS);
+        }
+    }
+}
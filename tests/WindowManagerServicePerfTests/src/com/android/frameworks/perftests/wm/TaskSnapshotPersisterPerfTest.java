@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.wm;
+
+import static android.app.WindowConfiguration.WINDOWING_MODE_FULLSCREEN;
+import static android.content.res.Configuration.ORIENTATION_PORTRAIT;
+import static android.graphics.GraphicBuffer.USAGE_HW_TEXTURE;
+import static android.graphics.GraphicBuffer.USAGE_SW_READ_RARELY;
+
+import android.app.ActivityManager.TaskSnapshot;
+import android.content.ComponentName;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorSpace;
+import android.graphics.GraphicBuffer;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.perftests.utils.ManualBenchmarkState;
+import android.perftests.utils.PerfManualStatusReporter;
+import android.view.Surface;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.wm.TaskSnapshotPersister;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures persisting the snapshots of {@link #TASK_COUNT} tasks, as when switching between
+ * them in recents, both when only one of them changed since it was last persisted and when all
+ * of them did. The bytes of the snapshot files are reported as the "bytesOnDisk" extra result,
+ * and the share of snapshots that weren't rewritten as the "unchangedPercent" extra result.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class TaskSnapshotPersisterPerfTest {
+    private static final int TASK_COUNT = 8;
+    private static final int SNAPSHOT_WIDTH = 720;
+    private static final int SNAPSHOT_HEIGHT = 1440;
+    private static final int USER_ID = UserHandle.USER_SYSTEM;
+
+    private File mDataDir;
+    private TaskSnapshotPersister mPersister;
+    private final TaskSnapshot[] mSnapshots = new TaskSnapshot[TASK_COUNT];
+    private int mGeneration;
+
+    @Rule
+    public PerfManualStatusReporter mPerfManualStatusReporter = new PerfManualStatusReporter();
+
+    @Before
+    public void setUp() {
+        mDataDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "task-snapshot-persister-perf-test");
+        mDataDir.mkdirs();
+        // Not started, so that snapshots are persisted on the test thread
+        mPersister = new TaskSnapshotPersister(InstrumentationRegistry.getContext(),
+                userId -> mDataDir);
+        for (int i = 0; i < TASK_COUNT; i++) {
+            mSnapshots[i] = createSnapshot();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDataDir);
+    }
+
+    @Test
+    public void testPersist_oneChanged() {
+        runPersist(false /* allChanged */);
+    }
+
+    @Test
+    public void testPersist_allChanged() {
+        runPersist(true /* allChanged */);
+    }
+
+    private void runPersist(boolean allChanged) {
+        final ManualBenchmarkState state = mPerfManualStatusReporter.getBenchmarkState();
+        long elapsedTimeNs = 0;
+        int round = 0;
+        while (state.keepRunning(elapsedTimeNs)) {
+            // The task switched away from is the one that changed
+            for (int i = 0; i < TASK_COUNT; i++) {
+                if (allChanged || i == round % TASK_COUNT) {
+                    mSnapshots[i] = createSnapshot();
+                }
+            }
+            round++;
+            final int unchangedCount = mPersister.getUnchangedBitmapCount();
+
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < TASK_COUNT; i++) {
+                mPersister.persistSnapshotForTesting(i, USER_ID, mSnapshots[i]);
+            }
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+
+            state.addExtraResult("bytesOnDisk", getBytesOnDisk(mDataDir));
+            state.addExtraResult("unchangedPercent",
+                    (mPersister.getUnchangedBitmapCount() - unchangedCount) * 100 / TASK_COUNT);
+        }
+    }
+
+    /**
+     * Creates a snapshot whose content differs from all the ones created before it.
+     */
+    private TaskSnapshot createSnapshot() {
+        final int generation = mGeneration++;
+        final GraphicBuffer buffer = GraphicBuffer.create(SNAPSHOT_WIDTH, SNAPSHOT_HEIGHT,
+                PixelFormat.RGBA_8888, USAGE_HW_TEXTURE | USAGE_SW_READ_RARELY);
+        final Canvas c = buffer.lockCanvas();
+        c.drawColor(Color.WHITE);
+        final Paint paint = new Paint();
+        paint.setTextSize(32);
+        // Rows of text and a few blocks of color, to compress like an app rather than a fill
+        for (int y = 0; y < SNAPSHOT_HEIGHT; y += 48) {
+            paint.setColor(Color.rgb((y + generation * 37) & 0xff, 64, 128));
+            if (y % 480 == 0) {
+                c.drawRect(0, y, SNAPSHOT_WIDTH, y + 240, paint);
+            } else {
+                c.drawText("Generation " + generation + " line " + y, 16, y, paint);
+            }
+        }
+        buffer.unlockCanvasAndPost(c);
+        return new TaskSnapshot(generation, new ComponentName("com.example", ".Activity"),
+                buffer, ColorSpace.get(ColorSpace.Named.SRGB), ORIENTATION_PORTRAIT,
+                Surface.ROTATION_0, new Point(SNAPSHOT_WIDTH, SNAPSHOT_HEIGHT), new Rect(),
+                false /* isLowResolution */, true /* isRealSnapshot */,
+                WINDOWING_MODE_FULLSCREEN, 0 /* systemUiVisibility */,
+                false /* isTranslucent */);
+    }
+
+    private static long getBytesOnDisk(File dir) {
+        long bytes = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.isDirectory() ? getBytesOnDisk(file) : file.length();
+            }
+        }
+        return bytes;
+    }
+}
@@ -32,6 +32,7 @@ import static com.android.server.net.NetworkStatsCollection.multiplySafe;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.content.res.Resources;
@@ -192,6 +193,85 @@ public class NetworkStatsCollectionTest {
                 77017831L, 100995L, 35436758L, 92344L);
     }
 
+    @Test
+    public void testSummaryReader() throws Exception {
+        final NetworkStatsCollection collection = buildMultiUidCollection();
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(new DataOutputStream(bos));
+
+        // Streamed summaries must match summaries of the loaded collection, for any
+        // combination of time range and access level
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final long[][] ranges = {
+                { Long.MIN_VALUE, Long.MAX_VALUE },
+                { TIME_A, TIME_B },
+                { TIME_B + HOUR_IN_MILLIS, TIME_C },
+                { TIME_C + HOUR_IN_MILLIS, Long.MAX_VALUE },
+        };
+        final int[] accessLevels = {
+                NetworkStatsAccess.Level.DEFAULT,
+                NetworkStatsAccess.Level.USER,
+                NetworkStatsAccess.Level.DEVICE,
+        };
+        for (long[] range : ranges) {
+            for (int accessLevel : accessLevels) {
+                final NetworkStatsCollection.SummaryReader reader =
+                        new NetworkStatsCollection.SummaryReader(template, range[0], range[1],
+                                accessLevel, myUid());
+                reader.read(new ByteArrayInputStream(bos.toByteArray()));
+                assertStatsEquals(collection.getSummary(template, range[0], range[1],
+                        accessLevel, myUid()), reader.getSummary());
+            }
+        }
+    }
+
+    @Test
+    public void testSummaryReaderIncludesPending() throws Exception {
+        final NetworkStatsCollection collection = buildMultiUidCollection();
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+
+        final NetworkStatsCollection.SummaryReader reader =
+                new NetworkStatsCollection.SummaryReader(template, Long.MIN_VALUE,
+                        Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid());
+        reader.recordCollection(collection);
+        assertStatsEquals(collection.getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid()), reader.getSummary());
+    }
+
+    @Test
+    public void testReadUnindexed() throws Exception {
+        final NetworkIdentitySet ident = buildMobileIdentSet();
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        history.recordData(TIME_A, TIME_A + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(1024L, 8L, 512L, 4L, 0L));
+
+        // Hand-assemble a file in the previous, unindexed unified format
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0x414E4554);
+        out.writeInt(16);
+        out.writeInt(1);
+        ident.writeToStream(out);
+        out.writeInt(1);
+        out.writeInt(myUid());
+        out.writeInt(SET_DEFAULT);
+        out.writeInt(TAG_NONE);
+        history.writeToStream(out);
+        out.flush();
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        collection.read(new ByteArrayInputStream(bos.toByteArray()));
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI),
+                1024L, 8L, 512L, 4L, NetworkStatsAccess.Level.DEVICE);
+
+        final NetworkStatsCollection.SummaryReader reader =
+                new NetworkStatsCollection.SummaryReader(buildTemplateMobileAll(TEST_IMSI),
+                        Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid());
+        reader.read(new ByteArrayInputStream(bos.toByteArray()));
+        assertEntry(1024L, 8L, 512L, 4L, reader.getSummary().getTotal(null));
+    }
+
     @Test
     public void testStartEndAtomicBuckets() throws Exception {
         final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
@@ -542,6 +622,55 @@ public class NetworkStatsCollectionTest {
         }
     }
 
+    private static NetworkIdentitySet buildMobileIdentSet() {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        return identSet;
+    }
+
+    /**
+     * Build a collection with traffic for several uids, users, sets and tags spread over
+     * distinct time ranges, plus traffic on a network that doesn't match the test template.
+     */
+    private static NetworkStatsCollection buildMultiUidCollection() {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet mobile = buildMobileIdentSet();
+        final NetworkIdentitySet otherMobile = new NetworkIdentitySet();
+        otherMobile.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                "310260999999999", null, false, true, true));
+
+        final int[] uids = { myUid(), myUid() + 1, Process.SYSTEM_UID,
+                myUid() + UserHandle.PER_USER_RANGE };
+        final long[] starts = { TIME_A, TIME_B, TIME_C };
+        for (int i = 0; i < uids.length; i++) {
+            for (int j = 0; j < starts.length; j++) {
+                final NetworkStats.Entry entry = new NetworkStats.Entry(
+                        1000L * (i + 1) + j, 10L + i, 500L * (i + 1) + j, 5L + j, 1L);
+                collection.recordData(mobile, uids[i], SET_DEFAULT, TAG_NONE, starts[j],
+                        starts[j] + HOUR_IN_MILLIS, entry);
+                collection.recordData(mobile, uids[i], NetworkStats.SET_FOREGROUND, 0x42,
+                        starts[j], starts[j] + HOUR_IN_MILLIS, entry);
+                collection.recordData(otherMobile, uids[i], SET_DEFAULT, TAG_NONE, starts[j],
+                        starts[j] + HOUR_IN_MILLIS, entry);
+            }
+        }
+        return collection;
+    }
+
+    private static void assertStatsEquals(NetworkStats expected, NetworkStats actual) {
+        assertEquals("unexpected size", expected.size(), actual.size());
+        NetworkStats.Entry expectedEntry = null;
+        for (int i = 0; i < expected.size(); i++) {
+            expectedEntry = expected.getValues(i, expectedEntry);
+            final int j = actual.findIndex(expectedEntry.iface, expectedEntry.uid,
+                    expectedEntry.set, expectedEntry.tag, expectedEntry.metered,
+                    expectedEntry.roaming, expectedEntry.defaultNetwork);
+            assertTrue("missing " + expectedEntry, j >= 0);
+            assertEntry(expectedEntry, actual.getValues(j, null));
+        }
+    }
+
     private static NetworkStatsHistory getHistory(NetworkStatsCollection collection,
             SubscriptionPlan augmentPlan, long start, long end) {
         return collection.getHistory(buildTemplateMobileAll(TEST_IMSI), augmentPlan, UID_ALL,